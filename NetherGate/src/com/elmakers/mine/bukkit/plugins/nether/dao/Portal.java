@@ -21,7 +21,7 @@ public class Portal
 		this.id = id;
 	}
 	
-	@Persist
+	@Persist(indexed=true)
 	public Nether getNether()
 	{
 		return nether;
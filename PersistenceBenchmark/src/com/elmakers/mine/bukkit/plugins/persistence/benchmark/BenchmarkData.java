@@ -0,0 +1,101 @@
+package com.elmakers.mine.bukkit.plugins.persistence.benchmark;
+
+import com.elmakers.mine.bukkit.plugins.persistence.annotation.Persist;
+import com.elmakers.mine.bukkit.plugins.persistence.annotation.PersistClass;
+
+/**
+ * A simple persisted class with a mix of field types, used by the benchmarks.
+ * 
+ * @author NathanWolf
+ *
+ */
+@PersistClass(schema="benchmark", name="data")
+public class BenchmarkData
+{
+	public BenchmarkData()
+	{
+	}
+	
+	public BenchmarkData(int id)
+	{
+		this.id = id;
+		this.name = "data" + id;
+		this.amount = id * 0.5;
+		this.scale = id * 0.25f;
+		this.enabled = (id % 2) == 0;
+		this.count = id * 3;
+	}
+	
+	@Persist(id=true)
+	public int getId()
+	{
+		return id;
+	}
+
+	public void setId(int id)
+	{
+		this.id = id;
+	}
+
+	@Persist
+	public String getName()
+	{
+		return name;
+	}
+
+	public void setName(String name)
+	{
+		this.name = name;
+	}
+
+	@Persist
+	public double getAmount()
+	{
+		return amount;
+	}
+
+	public void setAmount(double amount)
+	{
+		this.amount = amount;
+	}
+
+	@Persist
+	public float getScale()
+	{
+		return scale;
+	}
+
+	public void setScale(float scale)
+	{
+		this.scale = scale;
+	}
+
+	@Persist
+	public boolean getEnabled()
+	{
+		return enabled;
+	}
+
+	public void setEnabled(boolean enabled)
+	{
+		this.enabled = enabled;
+	}
+
+	@Persist
+	public int getCount()
+	{
+		return count;
+	}
+
+	public void setCount(int count)
+	{
+		this.count = count;
+	}
+
+	protected int		id;
+	protected String	name;
+	protected double	amount;
+	protected float		scale;
+	protected boolean	enabled;
+	protected int		count;
+}
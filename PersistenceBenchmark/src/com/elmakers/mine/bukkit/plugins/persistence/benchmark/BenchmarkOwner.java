@@ -0,0 +1,54 @@
+package com.elmakers.mine.bukkit.plugins.persistence.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.elmakers.mine.bukkit.plugins.persistence.annotation.Persist;
+import com.elmakers.mine.bukkit.plugins.persistence.annotation.PersistClass;
+
+/**
+ * A persisted class that holds a list of references to BenchmarkData objects.
+ * 
+ * Loading these exercises the deferred reference path in PersistedList.
+ * 
+ * @author NathanWolf
+ *
+ */
+@PersistClass(schema="benchmark", name="owner")
+public class BenchmarkOwner
+{
+	public BenchmarkOwner()
+	{
+	}
+	
+	public BenchmarkOwner(String id)
+	{
+		this.id = id;
+		this.data = new ArrayList<BenchmarkData>();
+	}
+	
+	@Persist(id=true)
+	public String getId()
+	{
+		return id;
+	}
+
+	public void setId(String id)
+	{
+		this.id = id;
+	}
+
+	@Persist
+	public List<BenchmarkData> getData()
+	{
+		return data;
+	}
+
+	public void setData(List<BenchmarkData> data)
+	{
+		this.data = data;
+	}
+
+	protected String				id;
+	protected List<BenchmarkData>	data;
+}
@@ -0,0 +1,90 @@
+package com.elmakers.mine.bukkit.plugins.persistence.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+
+import com.elmakers.mine.bukkit.plugins.persistence.Persistence;
+import com.elmakers.mine.bukkit.plugins.persistence.utilities.PluginProperties;
+
+/**
+ * Sets up a Persistence instance for benchmarking, with no server running.
+ * 
+ * Each JMH fork gets its own temporary data folder, so the SQLite databases
+ * always start out empty and are removed when the fork exits.
+ * 
+ * @author NathanWolf
+ *
+ */
+public class BenchmarkPersistence
+{
+	/**
+	 * Get the Persistence instance used for benchmarks, creating it if necessary.
+	 * 
+	 * @return The Persistence singleton, using a temporary data folder
+	 */
+	public static Persistence getPersistence()
+	{
+		synchronized(lock)
+		{
+			if (dataFolder == null)
+			{
+				dataFolder = createDataFolder();
+			}
+		}
+		return Persistence.getInstance(dataFolder);
+	}
+	
+	public static File getDataFolder()
+	{
+		return dataFolder;
+	}
+	
+	protected static File createDataFolder()
+	{
+		File folder = null;
+		try
+		{
+			folder = File.createTempFile("persistence-benchmark", "");
+		}
+		catch (IOException ex)
+		{
+			throw new IllegalStateException("Can't create a temporary data folder: " + ex.getMessage());
+		}
+		
+		folder.delete();
+		folder.mkdirs();
+		
+		// Snapshots are only used by benchmarks that write them
+		PluginProperties properties = new PluginProperties(new File(folder, "persistence.properties").getPath());
+		properties.put("persistence-snapshot", "true");
+		properties.save();
+		
+		final File deleteFolder = folder;
+		Runtime.getRuntime().addShutdownHook(new Thread()
+		{
+			@Override
+			public void run()
+			{
+				delete(deleteFolder);
+			}
+		});
+		
+		return folder;
+	}
+	
+	protected static void delete(File file)
+	{
+		File[] children = file.listFiles();
+		if (children != null)
+		{
+			for (File child : children)
+			{
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+	
+	private static File			dataFolder	= null;
+	private static final Object	lock		= new Object();
+}
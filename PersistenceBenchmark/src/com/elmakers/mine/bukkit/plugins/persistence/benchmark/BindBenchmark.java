@@ -0,0 +1,57 @@
+package com.elmakers.mine.bukkit.plugins.persistence.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.elmakers.mine.bukkit.plugins.persistence.core.PersistedClass;
+
+/**
+ * Measures the cost of binding a class- scanning its annotations and
+ * building its field list and accessors.
+ * 
+ * @author NathanWolf
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BindBenchmark
+{
+	@Setup
+	public void setup()
+	{
+		// bind() looks up the store for its schema, so Persistence needs to exist first.
+		BenchmarkPersistence.getPersistence();
+	}
+	
+	@Benchmark
+	public PersistedClass bindData()
+	{
+		PersistedClass persistedClass = new PersistedClass();
+		persistedClass.bind(BenchmarkData.class);
+		persistedClass.bindReferences();
+		return persistedClass;
+	}
+	
+	@Benchmark
+	public PersistedClass bindReferenceList()
+	{
+		PersistedClass persistedClass = new PersistedClass();
+		persistedClass.bind(BenchmarkOwner.class);
+		persistedClass.bindReferences();
+		return persistedClass;
+	}
+}
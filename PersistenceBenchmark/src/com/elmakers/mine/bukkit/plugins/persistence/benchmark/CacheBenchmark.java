@@ -0,0 +1,76 @@
+package com.elmakers.mine.bukkit.plugins.persistence.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.elmakers.mine.bukkit.plugins.persistence.Persistence;
+
+/**
+ * Measures Persistence.put and Persistence.get against a warm cache.
+ * 
+ * @author NathanWolf
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CacheBenchmark
+{
+	@Param({"100", "10000"})
+	public int objectCount;
+	
+	@Setup
+	public void setup()
+	{
+		persistence = BenchmarkPersistence.getPersistence();
+		objects = new BenchmarkData[objectCount];
+		for (int i = 0; i < objectCount; i++)
+		{
+			objects[i] = new BenchmarkData(i + 1);
+			persistence.put(objects[i]);
+		}
+	}
+	
+	@Benchmark
+	public boolean put()
+	{
+		BenchmarkData data = objects[next()];
+		return persistence.put(data);
+	}
+	
+	@Benchmark
+	public BenchmarkData get()
+	{
+		return persistence.get(objects[next()].getId(), BenchmarkData.class);
+	}
+	
+	@Benchmark
+	public BenchmarkData getMissing()
+	{
+		return persistence.get(-1 - next(), BenchmarkData.class);
+	}
+	
+	protected int next()
+	{
+		index = (index + 1) % objectCount;
+		return index;
+	}
+	
+	protected Persistence		persistence;
+	protected BenchmarkData[]	objects;
+	protected int				index	= 0;
+}
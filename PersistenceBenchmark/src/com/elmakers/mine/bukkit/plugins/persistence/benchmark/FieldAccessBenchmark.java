@@ -0,0 +1,156 @@
+package com.elmakers.mine.bukkit.plugins.persistence.benchmark;
+
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.elmakers.mine.bukkit.plugins.persistence.core.LoadContext;
+import com.elmakers.mine.bukkit.plugins.persistence.core.PersistedClass;
+import com.elmakers.mine.bukkit.plugins.persistence.core.PersistedField;
+import com.elmakers.mine.bukkit.plugins.persistence.data.DataField;
+import com.elmakers.mine.bukkit.plugins.persistence.data.DataRow;
+import com.elmakers.mine.bukkit.plugins.persistence.data.DataTable;
+import com.elmakers.mine.bukkit.plugins.persistence.data.DataType;
+
+/**
+ * Compares populating and loading whole rows through the bound field
+ * accessors with the old path, which called Method.invoke on each field's
+ * getter or setter.
+ *
+ * The old path is given its Methods, data names and types up front, so
+ * only the cost of the reflective call itself is compared.
+ *
+ * Results are in rows per second.
+ *
+ * @author NathanWolf
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FieldAccessBenchmark
+{
+	static final int ROW_COUNT = 1000;
+	
+	@Setup
+	public void setup() throws Exception
+	{
+		persistedClass = BenchmarkPersistence.getPersistence().getPersistedClass(BenchmarkData.class);
+		table = new DataTable(persistedClass.getTableName());
+		
+		List<PersistedField> persistedFields = persistedClass.getPersistedFields();
+		fields = persistedFields.toArray(new PersistedField[persistedFields.size()]);
+		dataNames = new String[fields.length];
+		dataTypes = new DataType[fields.length];
+		getters = new Method[fields.length];
+		setters = new Method[fields.length];
+		for (int i = 0; i < fields.length; i++)
+		{
+			PersistedField field = fields[i];
+			String name = field.getName();
+			dataNames[i] = field.getDataName();
+			dataTypes[i] = field.getDataType();
+			getters[i] = BenchmarkData.class.getMethod("get" + name.substring(0, 1).toUpperCase() + name.substring(1));
+			setters[i] = PersistedField.findSetter(getters[i], BenchmarkData.class);
+		}
+		
+		objects = new BenchmarkData[ROW_COUNT];
+		targets = new BenchmarkData[ROW_COUNT];
+		rows = new DataRow[ROW_COUNT];
+		for (int i = 0; i < ROW_COUNT; i++)
+		{
+			objects[i] = new BenchmarkData(i + 1);
+			targets[i] = new BenchmarkData();
+			rows[i] = new DataRow(table);
+			persistedClass.populate(rows[i], objects[i]);
+		}
+	}
+	
+	@Benchmark
+	@OperationsPerInvocation(ROW_COUNT)
+	public void populateBound(Blackhole blackhole)
+	{
+		for (int i = 0; i < ROW_COUNT; i++)
+		{
+			DataRow row = new DataRow(table);
+			persistedClass.populate(row, objects[i]);
+			blackhole.consume(row);
+		}
+	}
+	
+	@Benchmark
+	@OperationsPerInvocation(ROW_COUNT)
+	public void populateReflective(Blackhole blackhole) throws Exception
+	{
+		for (int i = 0; i < ROW_COUNT; i++)
+		{
+			DataRow row = new DataRow(table);
+			for (int f = 0; f < getters.length; f++)
+			{
+				row.add(new DataField(dataNames[f], dataTypes[f], getters[f].invoke(objects[i])));
+			}
+			blackhole.consume(row);
+		}
+	}
+	
+	@Benchmark
+	@OperationsPerInvocation(ROW_COUNT)
+	public void loadBound(Blackhole blackhole)
+	{
+		// None of these fields are references, so the context never has anything to resolve
+		LoadContext context = new LoadContext();
+		for (int i = 0; i < ROW_COUNT; i++)
+		{
+			persistedClass.load(rows[i], targets[i], context);
+			blackhole.consume(targets[i]);
+		}
+	}
+	
+	@Benchmark
+	@OperationsPerInvocation(ROW_COUNT)
+	public void loadReflective(Blackhole blackhole) throws Exception
+	{
+		for (int i = 0; i < ROW_COUNT; i++)
+		{
+			DataRow row = rows[i];
+			for (int f = 0; f < setters.length; f++)
+			{
+				DataField dataField = row.get(dataNames[f]);
+				Object value = dataField.getValue();
+				if (dataField.getType() != dataTypes[f])
+				{
+					value = DataType.convertTo(value, dataTypes[f]);
+				}
+				setters[f].invoke(targets[i], value);
+			}
+			blackhole.consume(targets[i]);
+		}
+	}
+	
+	protected PersistedClass	persistedClass;
+	protected DataTable			table;
+	protected PersistedField[]	fields;
+	protected String[]			dataNames;
+	protected DataType[]		dataTypes;
+	protected Method[]			getters;
+	protected Method[]			setters;
+	protected BenchmarkData[]	objects;
+	protected BenchmarkData[]	targets;
+	protected DataRow[]			rows;
+}
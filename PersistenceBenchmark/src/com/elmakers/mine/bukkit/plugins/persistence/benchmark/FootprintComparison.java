@@ -0,0 +1,77 @@
+package com.elmakers.mine.bukkit.plugins.persistence.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.elmakers.mine.bukkit.plugins.persistence.core.PersistedClass;
+import com.elmakers.mine.bukkit.plugins.persistence.data.ColumnarTable;
+import com.elmakers.mine.bukkit.plugins.persistence.data.DataTable;
+
+/**
+ * Measures the heap held by a table of rows, compared to a ColumnarTable
+ * holding the same data.
+ * 
+ * This isn't a JMH benchmark, it measures the heap in use after a full GC.
+ * Run it with:
+ * 
+ *     java -cp target/benchmarks.jar com.elmakers.mine.bukkit.plugins.persistence.benchmark.FootprintComparison [rows]
+ * 
+ * @author NathanWolf
+ *
+ */
+public class FootprintComparison
+{
+	public static void main(String[] args)
+	{
+		int rowCount = 200000;
+		if (args.length > 0)
+		{
+			rowCount = Integer.parseInt(args[0]);
+		}
+		
+		PersistedClass persistedClass = BenchmarkPersistence.getPersistence().getPersistedClass(BenchmarkData.class);
+		List<BenchmarkData> objects = new ArrayList<BenchmarkData>(rowCount);
+		for (int i = 0; i < rowCount; i++)
+		{
+			objects.add(new BenchmarkData(i + 1));
+		}
+		
+		// Warm up, so class loading and JIT don't show up in the measurements
+		TableBenchmark.fill(persistedClass, objects, new DataTable(persistedClass.getTableName()));
+		TableBenchmark.fill(persistedClass, objects, new ColumnarTable(persistedClass.getTableName()));
+		
+		long before = getUsedMemory();
+		DataTable rowTable = TableBenchmark.fill(persistedClass, objects, new DataTable(persistedClass.getTableName()));
+		long rowBytes = getUsedMemory() - before;
+		int rows = rowTable.getRowCount();
+		rowTable = null;
+		
+		before = getUsedMemory();
+		ColumnarTable columnarTable = (ColumnarTable)TableBenchmark.fill(persistedClass, objects, new ColumnarTable(persistedClass.getTableName()));
+		long columnarBytes = getUsedMemory() - before;
+		
+		System.out.println("Rows: " + rows);
+		System.out.println("DataTable:     " + rowBytes + " bytes, " + (rowBytes / rows) + " per row");
+		System.out.println("ColumnarTable: " + columnarBytes + " bytes, " + (columnarBytes / rows) + " per row"
+				+ " (estimated " + columnarTable.getFootprint() + ")");
+		
+		System.exit(0);
+	}
+	
+	protected static long getUsedMemory()
+	{
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 4; i++)
+		{
+			System.gc();
+			try
+			{
+				Thread.sleep(50);
+			}
+			catch (InterruptedException ex)
+			{
+			}
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+}
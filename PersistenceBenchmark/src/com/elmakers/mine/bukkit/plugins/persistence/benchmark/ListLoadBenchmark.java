@@ -0,0 +1,89 @@
+package com.elmakers.mine.bukkit.plugins.persistence.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.elmakers.mine.bukkit.plugins.persistence.Persistence;
+import com.elmakers.mine.bukkit.plugins.persistence.core.PersistedClass;
+
+/**
+ * Measures loading objects that hold lists of references to other objects.
+ * 
+ * The references are resolved through PersistedList's deferred reference path,
+ * after all of the list rows have been read.
+ * 
+ * @author NathanWolf
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ListLoadBenchmark
+{
+	@Param({"100"})
+	public int ownerCount;
+	
+	@Param({"10", "100"})
+	public int listSize;
+	
+	@Setup
+	public void setup()
+	{
+		Persistence persistence = BenchmarkPersistence.getPersistence();
+		dataClass = persistence.getPersistedClass(BenchmarkData.class);
+		ownerClass = persistence.getPersistedClass(BenchmarkOwner.class);
+		dataClass.reset();
+		ownerClass.reset();
+		dataClass.clear();
+		ownerClass.clear();
+		
+		List<BenchmarkData> data = new ArrayList<BenchmarkData>();
+		for (int i = 0; i < listSize; i++)
+		{
+			BenchmarkData item = new BenchmarkData(i + 1);
+			persistence.put(item);
+			data.add(item);
+		}
+		
+		for (int i = 0; i < ownerCount; i++)
+		{
+			BenchmarkOwner owner = new BenchmarkOwner("owner" + i);
+			owner.getData().addAll(data);
+			persistence.put(owner);
+		}
+		
+		dataClass.save();
+		ownerClass.save();
+	}
+	
+	@Benchmark
+	public List<BenchmarkOwner> loadOwners()
+	{
+		// Drop both caches, so the referenced objects have to be loaded too
+		dataClass.clear();
+		ownerClass.clear();
+		
+		List<BenchmarkOwner> owners = new ArrayList<BenchmarkOwner>();
+		ownerClass.getAll(owners);
+		return owners;
+	}
+	
+	protected PersistedClass	dataClass;
+	protected PersistedClass	ownerClass;
+}
@@ -0,0 +1,98 @@
+package com.elmakers.mine.bukkit.plugins.persistence.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.elmakers.mine.bukkit.plugins.persistence.Persistence;
+import com.elmakers.mine.bukkit.plugins.persistence.core.PersistedClass;
+import com.elmakers.mine.bukkit.plugins.persistence.data.DataRow;
+import com.elmakers.mine.bukkit.plugins.persistence.data.DataRowHandler;
+import com.elmakers.mine.bukkit.plugins.persistence.data.DataStore;
+import com.elmakers.mine.bukkit.plugins.persistence.data.DataTable;
+
+/**
+ * Measures reading a whole table through the DataStore, both streamed
+ * and collected into a DataTable, and loading it into objects.
+ * 
+ * @author NathanWolf
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LoadBenchmark
+{
+	@Param({"100", "1000", "10000", "200000"})
+	public int rowCount;
+	
+	@Setup
+	public void setup()
+	{
+		Persistence persistence = BenchmarkPersistence.getPersistence();
+		PersistedClass persistedClass = persistence.getPersistedClass(BenchmarkData.class);
+		persistedClass.reset();
+		persistedClass.clear();
+		
+		for (int i = 0; i < rowCount; i++)
+		{
+			persistence.put(new BenchmarkData(i + 1));
+		}
+		persistedClass.save();
+		
+		this.persistedClass = persistedClass;
+		tableName = persistedClass.getTableName();
+		store = persistence.getStore(persistedClass.getSchema());
+		store.connect();
+	}
+	
+	@Benchmark
+	public void loadStreamed(final Blackhole blackhole)
+	{
+		store.load(new DataTable(tableName), new DataRowHandler()
+		{
+			public void handle(DataRow row)
+			{
+				blackhole.consume(row);
+			}
+		});
+	}
+	
+	@Benchmark
+	public DataTable loadTable()
+	{
+		DataTable table = new DataTable(tableName);
+		store.load(table);
+		return table;
+	}
+	
+	@Benchmark
+	public List<BenchmarkData> loadObjects()
+	{
+		// Clearing the cache makes the next read load the whole table again
+		persistedClass.clear();
+		List<BenchmarkData> objects = new ArrayList<BenchmarkData>();
+		persistedClass.getAll(objects);
+		return objects;
+	}
+	
+	protected PersistedClass persistedClass;
+	protected DataStore	store;
+	protected String	tableName;
+}
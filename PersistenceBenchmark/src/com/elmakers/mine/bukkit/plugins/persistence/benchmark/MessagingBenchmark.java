@@ -0,0 +1,123 @@
+package com.elmakers.mine.bukkit.plugins.persistence.benchmark;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.TimeUnit;
+
+import org.bukkit.command.CommandSender;
+import org.bukkit.plugin.Plugin;
+import org.bukkit.plugin.PluginDescriptionFile;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.elmakers.mine.bukkit.plugins.persistence.Messaging;
+import com.elmakers.mine.bukkit.plugins.persistence.dao.PluginCommand;
+
+/**
+ * Measures Messaging.dispatch for a base command and a sub-command.
+ * 
+ * The plugin and command sender are simple proxies, since there's no server.
+ * 
+ * @author NathanWolf
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessagingBenchmark
+{
+	public static class CommandListener
+	{
+		public boolean onBench(CommandSender sender, String[] parameters)
+		{
+			count++;
+			return true;
+		}
+		
+		public boolean onBenchSub(CommandSender sender, String[] parameters)
+		{
+			count++;
+			return true;
+		}
+		
+		public int count = 0;
+	}
+	
+	@Setup
+	public void setup()
+	{
+		final PluginDescriptionFile description = new PluginDescriptionFile("Benchmark", "0.0", MessagingBenchmark.class.getName());
+		Plugin plugin = (Plugin)createProxy(Plugin.class, description);
+		sender = (CommandSender)createProxy(CommandSender.class, null);
+		
+		messaging = new Messaging(plugin, BenchmarkPersistence.getPersistence());
+		
+		// Add a few commands ahead of the one we dispatch, so the lookup has something to skip
+		for (int i = 0; i < 10; i++)
+		{
+			messaging.getGeneralCommand("other" + i, "Another command", "other" + i);
+		}
+		
+		PluginCommand benchCommand = messaging.getGeneralCommand("bench", "Benchmark command", "bench");
+		benchCommand.bind("onBench");
+		PluginCommand subCommand = benchCommand.getSubCommand("sub", "Benchmark sub-command", "bench sub");
+		subCommand.bind("onBenchSub");
+	}
+	
+	@Benchmark
+	public boolean dispatchCommand()
+	{
+		return messaging.dispatch(listener, sender, "bench", noParameters);
+	}
+	
+	@Benchmark
+	public boolean dispatchSubCommand()
+	{
+		return messaging.dispatch(listener, sender, "bench", subParameters);
+	}
+	
+	protected static Object createProxy(Class<?> proxyInterface, final PluginDescriptionFile description)
+	{
+		return Proxy.newProxyInstance(proxyInterface.getClassLoader(), new Class<?>[] { proxyInterface }, new InvocationHandler()
+		{
+			public Object invoke(Object proxy, Method method, Object[] args)
+			{
+				if (method.getName().equals("getDescription"))
+				{
+					return description;
+				}
+				if (method.getName().equals("hashCode"))
+				{
+					return System.identityHashCode(proxy);
+				}
+				if (method.getName().equals("equals"))
+				{
+					return proxy == args[0];
+				}
+				if (method.getName().equals("toString"))
+				{
+					return "Benchmark proxy";
+				}
+				throw new UnsupportedOperationException(method.getName() + " is not available while benchmarking");
+			}
+		});
+	}
+	
+	protected Messaging			messaging;
+	protected CommandSender		sender;
+	protected CommandListener	listener		= new CommandListener();
+	protected String[]			noParameters	= new String[0];
+	protected String[]			subParameters	= new String[] { "sub", "value" };
+}
@@ -0,0 +1,86 @@
+package com.elmakers.mine.bukkit.plugins.persistence.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.elmakers.mine.bukkit.plugins.persistence.Persistence;
+import com.elmakers.mine.bukkit.plugins.persistence.core.PersistedClass;
+
+/**
+ * Measures PersistedClass.save with a given number of modified objects,
+ * out of a larger table of cached objects.
+ * 
+ * @author NathanWolf
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SaveBenchmark
+{
+	@Param({"1000"})
+	public int objectCount;
+	
+	@Param({"1", "10", "100", "1000"})
+	public int dirtyCount;
+	
+	@Setup
+	public void setup()
+	{
+		persistence = BenchmarkPersistence.getPersistence();
+		persistedClass = persistence.getPersistedClass(BenchmarkData.class);
+		persistedClass.reset();
+		persistedClass.clear();
+		
+		objects = new BenchmarkData[objectCount];
+		for (int i = 0; i < objectCount; i++)
+		{
+			objects[i] = new BenchmarkData(i + 1);
+			persistence.put(objects[i]);
+		}
+		persistedClass.save();
+	}
+	
+	@Setup(Level.Invocation)
+	public void modify()
+	{
+		for (int i = 0; i < dirtyCount; i++)
+		{
+			BenchmarkData data = objects[next()];
+			data.setCount(data.getCount() + 1);
+			persistence.put(data);
+		}
+	}
+	
+	@Benchmark
+	public void save()
+	{
+		persistedClass.save();
+	}
+	
+	protected int next()
+	{
+		index = (index + 1) % objectCount;
+		return index;
+	}
+	
+	protected Persistence		persistence;
+	protected PersistedClass	persistedClass;
+	protected BenchmarkData[]	objects;
+	protected int				index	= 0;
+}
@@ -0,0 +1,84 @@
+package com.elmakers.mine.bukkit.plugins.persistence.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.elmakers.mine.bukkit.plugins.persistence.Persistence;
+import com.elmakers.mine.bukkit.plugins.persistence.core.PersistedClass;
+
+/**
+ * Measures loading a class's cache on startup, from the store and from a snapshot.
+ * 
+ * Before each load, the cache is cleared, as it would be on a restart. For the
+ * snapshot source, a snapshot is written first- snapshots are removed once read.
+ * 
+ * @author NathanWolf
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 20)
+@Fork(1)
+public class SnapshotBenchmark
+{
+	@Param({"1000", "10000", "200000"})
+	public int rowCount;
+	
+	@Param({"store", "snapshot"})
+	public String source;
+	
+	@Setup
+	public void setup()
+	{
+		persistence = BenchmarkPersistence.getPersistence();
+		persistedClass = persistence.getPersistedClass(BenchmarkData.class);
+		persistedClass.reset();
+		persistedClass.clear();
+		
+		for (int i = 0; i < rowCount; i++)
+		{
+			persistence.put(new BenchmarkData(i + 1));
+		}
+		persistedClass.save();
+	}
+	
+	@Setup(Level.Iteration)
+	public void restart()
+	{
+		// Make sure everything is loaded, so a snapshot can be written
+		List<BenchmarkData> objects = new ArrayList<BenchmarkData>();
+		persistedClass.getAll(objects);
+		if (source.equals("snapshot"))
+		{
+			persistedClass.writeSnapshot(persistence.getSnapshotFolder());
+		}
+		persistedClass.clear();
+	}
+	
+	@Benchmark
+	public List<BenchmarkData> load()
+	{
+		List<BenchmarkData> objects = new ArrayList<BenchmarkData>();
+		persistedClass.getAll(objects);
+		return objects;
+	}
+	
+	protected Persistence persistence;
+	protected PersistedClass persistedClass;
+}
@@ -0,0 +1,80 @@
+package com.elmakers.mine.bukkit.plugins.persistence.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.elmakers.mine.bukkit.plugins.persistence.core.PersistedClass;
+import com.elmakers.mine.bukkit.plugins.persistence.data.ColumnarTable;
+import com.elmakers.mine.bukkit.plugins.persistence.data.DataRow;
+import com.elmakers.mine.bukkit.plugins.persistence.data.DataTable;
+
+/**
+ * Compares building a table of objects as DataRows with building a ColumnarTable.
+ * 
+ * Run with "-prof gc" to compare the bytes allocated per table (gc.alloc.rate.norm).
+ * See FootprintComparison for the memory each table holds on to.
+ * 
+ * @author NathanWolf
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TableBenchmark
+{
+	@Param({"1000", "100000"})
+	public int rowCount;
+	
+	@Setup
+	public void setup()
+	{
+		persistedClass = BenchmarkPersistence.getPersistence().getPersistedClass(BenchmarkData.class);
+		objects = new ArrayList<BenchmarkData>(rowCount);
+		for (int i = 0; i < rowCount; i++)
+		{
+			objects.add(new BenchmarkData(i + 1));
+		}
+	}
+	
+	@Benchmark
+	public DataTable rowTable()
+	{
+		return fill(persistedClass, objects, new DataTable(persistedClass.getTableName()));
+	}
+	
+	@Benchmark
+	public DataTable columnarTable()
+	{
+		return fill(persistedClass, objects, new ColumnarTable(persistedClass.getTableName()));
+	}
+	
+	public static DataTable fill(PersistedClass persistedClass, List<BenchmarkData> objects, DataTable table)
+	{
+		for (BenchmarkData data : objects)
+		{
+			DataRow row = new DataRow(table);
+			persistedClass.populate(row, data);
+			table.addRow(row);
+		}
+		return table;
+	}
+	
+	protected PersistedClass		persistedClass;
+	protected List<BenchmarkData>	objects;
+}
@@ -15,6 +15,7 @@ import com.elmakers.mine.bukkit.plugins.persistence.dao.CommandSenderData;
 import com.elmakers.mine.bukkit.plugins.persistence.dao.PluginCommand;
 import com.elmakers.mine.bukkit.plugins.persistence.dao.Message;
 import com.elmakers.mine.bukkit.plugins.persistence.dao.PluginData;
+import com.elmakers.mine.bukkit.plugins.persistence.stats.OperationStats;
 
 /** 
  * An interface for displaying data-driven messages and processing data-driven commands.
@@ -35,6 +36,7 @@ public class Messaging
 	public Messaging(Plugin requestingPlugin, Persistence persistence)
 	{
 		this.persistence = persistence;
+		this.dispatchStats = persistence.getStats().getOperation("dispatch");
 		
 		// Retreive or create the plugin data record for this plugin.
 		PluginDescriptionFile pdfFile = requestingPlugin.getDescription();
@@ -174,12 +176,20 @@ public class Messaging
 		List<PluginCommand> baseCommands = plugin.getCommands();
 		if (baseCommands == null) return false;
 		
-		for (PluginCommand command : baseCommands)
+		long start = OperationStats.start();
+		try
 		{
-			boolean success = dispatch(listener, sender, command, baseCommand, baseParameters);
-			if (success) return true;
+			for (PluginCommand command : baseCommands)
+			{
+				boolean success = dispatch(listener, sender, command, baseCommand, baseParameters);
+				if (success) return true;
+			}
+			return false;
+		}
+		finally
+		{
+			dispatchStats.end(start);
 		}
-		return false;
 	}
 	
 	protected boolean dispatch(Object listener, CommandSender sender, PluginCommand command, String commandString, String[] parameters)
@@ -268,6 +278,7 @@ public class Messaging
 
 	private Persistence persistence;
 	private PluginData plugin;
+	private final OperationStats dispatchStats;
 	private CommandSenderData playerSender;
 	private static final Logger log = Persistence.getLogger();
 	private List<Message> messages;
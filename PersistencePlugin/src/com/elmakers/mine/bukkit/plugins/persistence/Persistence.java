@@ -1,19 +1,49 @@
 package com.elmakers.mine.bukkit.plugins.persistence;
 
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import java.util.logging.Logger;
 
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+
 import org.bukkit.entity.Player;
 import org.bukkit.plugin.Plugin;
 
 import com.elmakers.mine.bukkit.plugins.persistence.core.PersistedClass;
+import com.elmakers.mine.bukkit.plugins.persistence.core.PersistedField;
+import com.elmakers.mine.bukkit.plugins.persistence.core.PersistenceJournal;
+import com.elmakers.mine.bukkit.plugins.persistence.core.PersistenceWriter;
+import com.elmakers.mine.bukkit.plugins.persistence.core.SaveBatch;
 import com.elmakers.mine.bukkit.plugins.persistence.core.Schema;
 import com.elmakers.mine.bukkit.plugins.persistence.dao.CommandSenderData;
 import com.elmakers.mine.bukkit.plugins.persistence.data.DataStore;
+import com.elmakers.mine.bukkit.plugins.persistence.data.sql.JdbcStore;
 import com.elmakers.mine.bukkit.plugins.persistence.data.sql.SqlLiteStore;
+import com.elmakers.mine.bukkit.plugins.persistence.data.sql.SqlStore;
+import com.elmakers.mine.bukkit.plugins.persistence.stats.Gauge;
+import com.elmakers.mine.bukkit.plugins.persistence.stats.OperationStats;
+import com.elmakers.mine.bukkit.plugins.persistence.stats.Stats;
+import com.elmakers.mine.bukkit.plugins.persistence.utilities.PluginProperties;
 
 /** 
  * The main Persistence interface.
@@ -61,16 +91,13 @@ public class Persistence
 	 */
 	public <T> void getAll(List<T> objects, Class<T> objectType)
 	{	
-		synchronized(cacheReadLock)
+		PersistedClass persistedClass = getPersistedClass(objectType);
+		if (persistedClass == null)
 		{
-			PersistedClass persistedClass = getPersistedClass(objectType);
-			if (persistedClass == null)
-			{
-				return;
-			}
-			
-			persistedClass.getAll(objects);	
+			return;
 		}
+		
+		persistedClass.getAll(objects);	
 	}
 	
 	/**
@@ -96,19 +123,13 @@ public class Persistence
 	 */
 	public <T> void putAll(List<T> objects, Class<T> objectType)
 	{
-		synchronized(cacheReadLock)
+		PersistedClass persistedClass = getPersistedClass(objectType);
+		if (persistedClass == null)
 		{
-			synchronized(cacheWriteLock)
-			{
-				PersistedClass persistedClass = getPersistedClass(objectType);
-				if (persistedClass == null)
-				{
-					return;
-				}
-				
-				persistedClass.putAll(objects);	
-			}
+			return;
 		}
+		
+		persistedClass.putAll(objects);	
 	}
 	
 	/**
@@ -127,18 +148,52 @@ public class Persistence
 	@SuppressWarnings("unchecked")
 	public <T> T get(Object id, Class<T> objectType)
 	{
-		synchronized(cacheReadLock)
+		PersistedClass persistedClass = getPersistedClass(objectType);
+		if (persistedClass == null)
 		{
-			PersistedClass persistedClass = getPersistedClass(objectType);
-			if (persistedClass == null)
-			{
-				return null;
-			}
-			
-			Object result = persistedClass.get(id);
-			if (result == null) return null;
-			return (T)result;	
+			return null;
 		}
+		
+		Object result = persistedClass.get(id);
+		if (result == null) return null;
+		return (T)result;	
+	}
+	
+	/**
+	 * Retrieve all instances of the specified type with a given field value.
+	 * 
+	 * This is a parameterized function. An example call:
+	 * 
+	 * List<Portal> portals = persistence.getBy("nether", nether, Portal.class);
+	 * 
+	 * Fields marked with @Persist(indexed=true) are looked up using an index, other fields
+	 * are searched by checking every object. For reference fields, the value may be either the referenced 
+	 * object or its id.
+	 * 
+	 * @param <T> The base type of object. This is an invisible parameter, you don't need to worry about it
+	 * @param fieldName The name of the field to search, as declared in the class
+	 * @param value The field value to look for
+	 * @param objectType The type of object to search for
+	 * @return A list of matching objects, empty if none were found
+	 */
+	public <T> List<T> getBy(String fieldName, Object value, Class<T> objectType)
+	{
+		List<T> objects = new ArrayList<T>();
+		PersistedClass persistedClass = getPersistedClass(objectType);
+		if (persistedClass == null)
+		{
+			return objects;
+		}
+		
+		PersistedField field = persistedClass.getField(fieldName);
+		if (field == null)
+		{
+			log.warning("Persistence: Class " + persistedClass.getTableName() + " has no persisted field named " + fieldName);
+			return objects;
+		}
+		
+		persistedClass.getBy(field, value, objects);
+		return objects;
 	}
 	
 	/**
@@ -154,39 +209,461 @@ public class Persistence
 	 */
 	public boolean put(Object persist)
 	{
-		synchronized(cacheReadLock)
+		PersistedClass persistedClass = getPersistedClass(persist.getClass());
+		if (persistedClass == null)
+		{
+			return false;
+		}
+		
+		persistedClass.put(persist);
+		return true;
+	}
+
+	/**
+	 * Remove an object from the data store.
+	 *
+	 * The object is removed from the cache immediately, and deleted from the database at save time.
+	 *
+	 * @param persist The object to remove
+	 * @return false if, for some reason, the removal failed.
+	 */
+	public boolean remove(Object persist)
+	{
+		PersistedClass persistedClass = getPersistedClass(persist.getClass());
+		if (persistedClass == null)
+		{
+			return false;
+		}
+
+		persistedClass.remove(persist);
+		return true;
+	}
+
+	/**
+	 * Force a save of all cached data.
+	 * 
+	 * This only saves dirty data- unmodified data is not saved back to the database.
+	 * Only classes that have had objects put or removed since the last save are visited.
+	 * 
+	 * Persistence calls save() internally on server shutdown, player login, and player logout. So, calling save is not
+	 * mandatory- you only need to use it to force an immediate save.
+	 * 
+	 * If write-behind is enabled, dirty data is copied and handed off to a writer thread, and this method
+	 * returns before the data is actually written. Use flush() if you need to wait for it.
+	 * 
+	 * If the journal is enabled, journaled changes are removed once this save has been written.
+	 * 
+	 */
+	public void save()
+	{
+		long start = OperationStats.start();
+		
+		// Anything journaled before this point is included in the batches below
+		PersistenceJournal.Checkpoint checkpoint = journal == null ? null : journal.checkpoint();
+		
+		List<PersistedClass> saveClasses = null;
+		synchronized(dirtyClasses)
+		{
+			saveClasses = new ArrayList<PersistedClass>(dirtyClasses);
+			dirtyClasses.clear();
+		}
+		
+		for (PersistedClass persistedClass : saveClasses)
 		{
-			synchronized(cacheWriteLock)
+			SaveBatch batch = persistedClass.createSaveBatch();
+			if (batch != null)
 			{
-				PersistedClass persistedClass = getPersistedClass(persist.getClass());
-				if (persistedClass == null)
+				if (checkpoint != null) checkpoint.add(batch);
+				write(batch);
+			}
+			
+			// A class that isn't loaded yet can't be saved, so check it again next time.
+			if (persistedClass.isDirty())
+			{
+				markDirty(persistedClass);
+				if (batch == null && checkpoint != null) checkpoint.setIncomplete();
+			}
+		}
+		
+		if (checkpoint != null)
+		{
+			PersistenceWriter currentWriter = writer;
+			if (currentWriter != null)
+			{
+				currentWriter.queue(checkpoint);
+			}
+			else
+			{
+				checkpoint.run();
+			}
+		}
+		
+		// Any dirty data has been saved now, so this is a good time to check the cache.
+		// This visits every class, since objects can expire without being modified.
+		for (PersistedClass persistedClass : persistedClasses)
+		{
+			persistedClass.evict();
+		}
+		
+		saveStats.end(start, saveClasses.size());
+	}
+	
+	/**
+	 * Flag a class as having unsaved changes.
+	 * 
+	 * This is an internal function that doesn't necessarily need to be called.
+	 * 
+	 * @param persistedClass The class that has changed
+	 */
+	public void markDirty(PersistedClass persistedClass)
+	{
+		synchronized(dirtyClasses)
+		{
+			dirtyClasses.add(persistedClass);
+		}
+	}
+	
+	/**
+	 * Write a batch of changes to its data store.
+	 * 
+	 * If write-behind is enabled, the batch is queued for the writer thread.
+	 * Otherwise, it is written immediately.
+	 * 
+	 * This is an internal function that doesn't necessarily need to be called.
+	 * 
+	 * @param batch The batch to write
+	 */
+	public void write(SaveBatch batch)
+	{
+		PersistenceWriter currentWriter = writer;
+		if (currentWriter != null)
+		{
+			currentWriter.queue(batch);
+		}
+		else
+		{
+			batch.execute();
+		}
+	}
+	
+	/**
+	 * Wait for any data queued by save() to be written.
+	 * 
+	 * This does nothing if write-behind is not enabled. It will block the calling thread,
+	 * so should generally only be used on shutdown.
+	 */
+	public void flush()
+	{
+		PersistenceWriter currentWriter = writer;
+		if (currentWriter != null)
+		{
+			currentWriter.flush();
+		}
+	}
+	
+	/**
+	 * Load every known class that hasn't been loaded yet.
+	 * 
+	 * Each schema's tables are read on its own thread, using that schema's store, 
+	 * so schemas are read in parallel. Objects are then built on the calling thread,
+	 * and each class's cache becomes visible once it is completely populated.
+	 * 
+	 * Classes that bindKnownClasses() found in other plugins are only read, not built, since
+	 * building them would run their plugin's code before that plugin is enabled. Their
+	 * objects are built from the data that was read the first time the class is used.
+	 * 
+	 * PersistencePlugin calls this on startup if persistence-warm-up is enabled, after binding
+	 * the classes that were in use at the last shutdown. Plugins may also call it after using
+	 * their classes for the first time, to load everything up front.
+	 */
+	public void warmUp()
+	{
+		// Group classes by schema, so each schema's store is only used by one thread
+		final LinkedHashMap<String, List<PersistedClass>> schemaClasses = new LinkedHashMap<String, List<PersistedClass>>();
+		for (PersistedClass persistedClass : persistedClasses)
+		{
+			List<PersistedClass> classes = schemaClasses.get(persistedClass.getSchema());
+			if (classes == null)
+			{
+				classes = new ArrayList<PersistedClass>();
+				schemaClasses.put(persistedClass.getSchema(), classes);
+			}
+			classes.add(persistedClass);
+		}
+		if (schemaClasses.size() == 0) return;
+		
+		long startTime = System.currentTimeMillis();
+		final ConcurrentHashMap<PersistedClass, Long> readTimes = new ConcurrentHashMap<PersistedClass, Long>();
+		final ConcurrentHashMap<PersistedClass, Integer> rowCounts = new ConcurrentHashMap<PersistedClass, Integer>();
+		int threadCount = Math.max(1, Math.min(warmUpThreads, schemaClasses.size()));
+		ExecutorService executor = Executors.newFixedThreadPool(threadCount, new ThreadFactory()
+		{
+			public Thread newThread(Runnable r)
+			{
+				Thread thread = new Thread(r, "Persistence Warm-up");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		
+		List<Future<?>> results = new ArrayList<Future<?>>();
+		for (final List<PersistedClass> classes : schemaClasses.values())
+		{
+			results.add(executor.submit(new Runnable()
+			{
+				public void run()
 				{
-					return false;
+					for (PersistedClass persistedClass : classes)
+					{
+						long readStart = System.currentTimeMillis();
+						int rows = persistedClass.prefetch();
+						readTimes.put(persistedClass, System.currentTimeMillis() - readStart);
+						rowCounts.put(persistedClass, rows);
+					}
 				}
+			}));
+		}
+		executor.shutdown();
+		
+		for (Future<?> result : results)
+		{
+			try
+			{
+				result.get();
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				break;
+			}
+			catch (ExecutionException e)
+			{
+				log.warning("Persistence: Error warming up cache: " + e.getCause().getMessage());
+			}
+		}
+		
+		// Classes that failed to prefetch, or weren't finished, will load from the store here
+		int classCount = 0;
+		for (List<PersistedClass> classes : schemaClasses.values())
+		{
+			for (PersistedClass persistedClass : classes)
+			{
+				Long readTime = readTimes.get(persistedClass);
+				Integer rows = rowCounts.get(persistedClass);
+				if (deferredClasses.remove(persistedClass))
+				{
+					if (rows == null || rows < 0) continue;
+					classCount++;
+					log.info("Persistence: Warmed up " + persistedClass.getSchema() + "." + persistedClass.getTableName() + ", " 
+							+ rows + " rows, read in " + readTime + "ms, will build on first use");
+					continue;
+				}
+				
+				long buildStart = System.currentTimeMillis();
+				if (!persistedClass.preload()) continue;
+				long buildTime = System.currentTimeMillis() - buildStart;
 				
-				persistedClass.put(persist);
+				if (rows == null || rows < 0) continue;
+				classCount++;
+				log.info("Persistence: Warmed up " + persistedClass.getSchema() + "." + persistedClass.getTableName() + ", " 
+						+ rows + " rows, read in " + readTime + "ms, built in " + buildTime + "ms");
 			}
 		}
-		return true;		
+		log.info("Persistence: Warmed up " + classCount + " classes in " + schemaClasses.size() + " schemas in " 
+				+ (System.currentTimeMillis() - startTime) + "ms");
 	}
 	
-	
 	/**
-	 * Force a save of all cached data.
+	 * Write a snapshot of each fully cached class, to speed up loading on the next startup.
 	 * 
-	 * This only saves dirty data- unmodified data is not saved back to the database.
-	 * Persistence calls save() internally on server shutdown, player login, and player logout. So, calling save is not
-	 * mandatory- you only need to use it to force an immediate save.
+	 * This is done on shutdown, if persistence-snapshot is enabled. It should only be done after
+	 * all data has been saved and flushed, classes with unsaved changes are skipped.
 	 * 
+	 * Snapshots are only used if they still match the data store, otherwise data is loaded from the store as usual.
 	 */
-	public void save()
+	public void writeSnapshots()
 	{
+		File folder = getSnapshotFolder();
+		if (folder == null) return;
+		
+		long startTime = System.currentTimeMillis();
+		int classCount = 0;
 		for (PersistedClass persistedClass : persistedClasses)
 		{
-			persistedClass.save();
+			if (persistedClass.writeSnapshot(folder))
+			{
+				classCount++;
+			}
+		}
+		log.info("Persistence: Wrote snapshots of " + classCount + " classes in " + (System.currentTimeMillis() - startTime) + "ms");
+	}
+	
+	/**
+	 * Record the name of every class that is in use, so they can be found again on startup.
+	 * 
+	 * This is done on shutdown. The classes are listed in a text file in the data folder, 
+	 * one per line.
+	 * 
+	 * @see #bindKnownClasses(List)
+	 */
+	public void saveKnownClasses()
+	{
+		if (dataFolder == null) return;
+		
+		File classesFile = new File(dataFolder, classesFileName);
+		try
+		{
+			PrintWriter classWriter = new PrintWriter(new FileWriter(classesFile));
+			try
+			{
+				for (PersistedClass persistedClass : persistedClasses)
+				{
+					classWriter.println(persistedClass.getType().getName());
+				}
+			}
+			finally
+			{
+				classWriter.close();
+			}
+		}
+		catch (IOException e)
+		{
+			log.warning("Persistence: Error writing " + classesFile.getName() + ": " + e.getMessage());
+		}
+	}
+	
+	/**
+	 * Bind the classes that were in use the last time Persistence shut down.
+	 * 
+	 * Persistence is enabled before the plugins that use it, so without this, warmUp() on
+	 * startup would only know about Persistence's own classes.
+	 * 
+	 * Each class is looked up with the given class loaders, in order. Classes that can't be 
+	 * found, for instance because their plugin has been removed, are skipped.
+	 * 
+	 * Classes from other plugins are only bound, never initialized or instantiated, since
+	 * those plugins haven't been enabled yet. The next warmUp() reads their data without
+	 * building any objects.
+	 * 
+	 * @param classLoaders The class loaders to look for classes with
+	 * @return The number of classes bound
+	 * @see #saveKnownClasses()
+	 */
+	public int bindKnownClasses(List<ClassLoader> classLoaders)
+	{
+		if (dataFolder == null) return 0;
+		
+		File classesFile = new File(dataFolder, classesFileName);
+		if (!classesFile.exists()) return 0;
+		
+		List<String> classNames = new ArrayList<String>();
+		try
+		{
+			BufferedReader reader = new BufferedReader(new FileReader(classesFile));
+			try
+			{
+				String line;
+				while ((line = reader.readLine()) != null)
+				{
+					line = line.trim();
+					if (line.length() > 0)
+					{
+						classNames.add(line);
+					}
+				}
+			}
+			finally
+			{
+				reader.close();
+			}
+		}
+		catch (IOException e)
+		{
+			log.warning("Persistence: Error reading " + classesFile.getName() + ": " + e.getMessage());
+			return 0;
 		}
+		
+		int classCount = 0;
+		for (String className : classNames)
+		{
+			Class<?> persistType = findClass(className, classLoaders);
+			if (persistType == null)
+			{
+				log.info("Persistence: Skipping unknown class " + className);
+				continue;
+			}
+			PersistedClass persistedClass = getPersistedClass(persistType);
+			if (persistedClass != null)
+			{
+				if (persistType.getClassLoader() != Persistence.class.getClassLoader())
+				{
+					deferredClasses.add(persistedClass);
+				}
+				classCount++;
+			}
+		}
+		return classCount;
+	}
+	
+	/**
+	 * Get the folder that cache snapshots are written to.
+	 * 
+	 * @return The snapshot folder, or null if snapshots are disabled
+	 */
+	public File getSnapshotFolder()
+	{
+		if (!snapshot || dataFolder == null) return null;
+		return new File(dataFolder, snapshotFolderName);
 	}
 	
+	/**
+	 * Get the journal that changes are recorded in until they are saved.
+	 * 
+	 * This is an internal function that doesn't necessarily need to be called.
+	 * 
+	 * @return The journal, or null if persistence-journal is disabled
+	 */
+	public PersistenceJournal getJournal()
+	{
+		return journal;
+	}
+	
+	/**
+	 * Get the global stats, for saves, journal writes and the write queue.
+	 * 
+	 * Each data store and persisted class has stats of its own.
+	 * 
+	 * @return The global stats
+	 */
+	public Stats getStats()
+	{
+		return stats;
+	}
+	
+	/**
+	 * Retrieve a list of all data stores that have been opened.
+	 * 
+	 * This function is used for inspecting stats.
+	 * 
+	 * @return The list of data stores
+	 */
+	public List<DataStore> getStoreList()
+	{
+		synchronized(dataLock)
+		{
+			return new ArrayList<DataStore>(stores);
+		}
+	}
+	
+	/**
+	 * Check whether Persistence should warm up its cache on startup.
+	 * 
+	 * @return true if persistence-warm-up is enabled
+	 */
+	public boolean isWarmUpEnabled()
+	{
+		return warmUp;
+	}
 	
 	/**
 	 * Clear all data.
@@ -196,10 +673,21 @@ public class Persistence
 	 */
 	public void clear()
 	{
-		persistedClasses.clear();
-		persistedClassMap.clear();
-		schemaMap.clear();
-		schemas.clear();
+		synchronized(registryLock)
+		{
+			synchronized(dirtyClasses)
+			{
+				dirtyClasses.clear();
+			}
+			for (PersistedClass persistedClass : persistedClasses)
+			{
+				persistedClass.getStats().unregister();
+			}
+			persistedClasses.clear();
+			persistedClassMap.clear();
+			schemaMap.clear();
+			schemas.clear();
+		}
 	}
 	
 	/**
@@ -222,7 +710,29 @@ public class Persistence
 		}
 		return instance;
 	}
-	
+
+	/**
+	 * Return the singleton instance for Persistence, using a specific data folder.
+	 *
+	 * This lets Persistence run without a server, for tools and benchmarks.
+	 * If the instance has already been created, the data folder is ignored.
+	 *
+	 * @param dataFolder The folder to keep databases and properties in
+	 * @return the Persistence singleton instance
+	 */
+	public static Persistence getInstance(File dataFolder)
+	{
+		synchronized(instanceLock)
+		{
+			if (instance == null)
+			{
+				instance = new Persistence();
+				instance.initialize(dataFolder);
+			}
+		}
+		return instance;
+	}
+
 	/**
 	 * Retrieve or create the persistence store for a particular schema.
 	 * 
@@ -246,6 +756,7 @@ public class Persistence
 				store.initialize(schema, this);
 				schemaStores.put(schema, store);
 				stores.add(store);
+				registerStats(store.getStats(), "DataStore", "schema=" + quoteName(schema));
 			}
 		}
 		return store;
@@ -283,20 +794,68 @@ public class Persistence
 	 * 
 	 * This is an internal function that doesn't necessarily need to be called.
 	 * 
+	 * Known classes are looked up without locking. New classes are bound under a registry lock,
+	 * and only become visible to other threads once they, and any classes they reference, are fully bound.
+	 * 
 	 * @param persistType
 	 * @return The persisted class definition, or null if failure
 	 */
 	public PersistedClass getPersistedClass(Class<? extends Object> persistType)
 	{	
 		PersistedClass persistedClass = persistedClassMap.get(persistType);
-		if (persistedClass == null)
+		if (persistedClass != null)
 		{
-			persistedClass = new PersistedClass();
-			if (!persistedClass.bind(persistType))
+			return persistedClass;
+		}
+		
+		synchronized(registryLock)
+		{
+			persistedClass = persistedClassMap.get(persistType);
+			if (persistedClass == null)
+			{
+				persistedClass = bindingClassMap.get(persistType);
+			}
+			if (persistedClass != null)
 			{
-				log.warning("No fields in class '" + persistType.getName() + "', Did you use @Persist?");
-				return null;
+				return persistedClass;
 			}
+			
+			bindDepth++;
+			try
+			{
+				persistedClass = new PersistedClass();
+				if (!persistedClass.bind(persistType))
+				{
+					log.warning("No fields in class '" + persistType.getName() + "', Did you use @Persist?");
+					return null;
+				}
+				bindingClassMap.put(persistType, persistedClass);
+				
+				// Deferred bind refernces- to avoid circular reference issues
+				persistedClass.bindReferences();
+			}
+			finally
+			{
+				bindDepth--;
+				if (bindDepth == 0)
+				{
+					publishBoundClasses();
+				}
+			}
+		}
+		return persistedClass;
+	}
+	
+	/**
+	 * Register any newly bound classes, making them visible to other threads.
+	 * 
+	 * Must be called while holding the registry lock.
+	 */
+	protected void publishBoundClasses()
+	{
+		for (Map.Entry<Class<? extends Object>, PersistedClass> entry : bindingClassMap.entrySet())
+		{
+			PersistedClass persistedClass = entry.getValue();
 			String schemaName = persistedClass.getSchema();
 			Schema schema = schemaMap.get(schemaName);
 			if (schema == null)
@@ -308,12 +867,44 @@ public class Persistence
 			}
 			schema.addPersistedClass(persistedClass);
 			persistedClasses.add(persistedClass);
-			persistedClassMap.put(persistType, persistedClass);
-			
-			// Deferred bind refernces- to avoid circular reference issues
-			persistedClass.bindReferences();
+			persistedClassMap.put(entry.getKey(), persistedClass);
+			registerStats(persistedClass.getStats(), "PersistedClass", "schema=" + quoteName(schemaName) + ",name=" + quoteName(persistedClass.getTableName()));
 		}
-		return persistedClass;
+		bindingClassMap.clear();
+	}
+	
+	/**
+	 * Get the maximum number of objects kept in memory for classes that aren't cached.
+	 * 
+	 * @return The working set size, per class
+	 */
+	public int getWorkingSetSize()
+	{
+		return workingSetSize;
+	}
+	
+	/**
+	 * Get the default maximum number of objects to cache per class.
+	 * 
+	 * This can be overridden with @PersistClass(maxSize).
+	 * 
+	 * @return The maximum cache size, or 0 for no limit
+	 */
+	public int getCacheMaxSize()
+	{
+		return cacheMaxSize;
+	}
+	
+	/**
+	 * Get the default number of seconds an object can go unused before it is evicted.
+	 * 
+	 * This can be overridden with @PersistClass(timeout).
+	 * 
+	 * @return The cache timeout in seconds, or 0 to never time out
+	 */
+	public int getCacheTimeout()
+	{
+		return cacheTimeout;
 	}
 	
 	/*
@@ -322,10 +913,24 @@ public class Persistence
 	
 	protected DataStore createStore()
 	{
-		// Only SqlLite supported for now!
-		// TODO : Support MySQL
-		SqlLiteStore store = new SqlLiteStore();
+		SqlStore store = null;
+		if (storeType.equalsIgnoreCase("jdbc"))
+		{
+			store = new JdbcStore(jdbcDriver, jdbcUrl);
+			store.setCredentials(jdbcUser, jdbcPassword);
+		}
+		else
+		{
+			if (!storeType.equalsIgnoreCase("sqlite"))
+			{
+				log.warning("Persistence: Unknown store type " + storeType + ", using sqlite");
+			}
+			store = new SqlLiteStore();
+		}
 		store.setDataFolder(dataFolder);
+		store.setReadPoolSize(readPoolSize);
+		store.setBatchSize(batchSize);
+		store.setStatementCacheSize(statementCacheSize);
 		return store;
 	}
 	
@@ -334,9 +939,167 @@ public class Persistence
 		this.dataFolder = dataFolder;
 		dataFolder.mkdirs();
 
+		loadProperties();
+		
+		Stats.setEnabled(statsEnabled);
+		stats.addGauge("dirtyClasses", new Gauge()
+		{
+			public long getValue()
+			{
+				synchronized(dirtyClasses)
+				{
+					return dirtyClasses.size();
+				}
+			}
+		});
+		stats.addGauge("writeQueue", new Gauge()
+		{
+			public long getValue()
+			{
+				PersistenceWriter currentWriter = writer;
+				return currentWriter == null ? 0 : currentWriter.getPendingCount();
+			}
+		});
+		stats.addGauge("writeFailures", new Gauge()
+		{
+			public long getValue()
+			{
+				PersistenceWriter currentWriter = writer;
+				return currentWriter == null ? 0 : currentWriter.getFailedCount();
+			}
+		});
+		registerStats(stats, "Persistence", null);
+		
+		if (writeBehind)
+		{
+			PersistenceWriter newWriter = new PersistenceWriter(writeQueueSize);
+			newWriter.start();
+			writer = newWriter;
+		}
+		
+		// This has to happen before any class is loaded, so caches are loaded with the replayed data
+		if (journaling)
+		{
+			openJournal();
+		}
+		
 		updateGlobalData();
+	}
+	
+	protected void openJournal()
+	{
+		journal = new PersistenceJournal(new File(dataFolder, journalFolderName), journalCommitInterval);
+		journal.setWriteStats(journalStats);
+		
+		long startTime = System.currentTimeMillis();
+		int replayed = journal.replay(this);
+		if (replayed > 0)
+		{
+			log.info("Persistence: Replayed " + replayed + " journaled changes in " + (System.currentTimeMillis() - startTime) + "ms");
+			
+			// Snapshots were written before these changes
+			clearSnapshots();
+		}
+		else if (replayed < 0)
+		{
+			log.severe("Persistence: Couldn't replay the journal, it will be kept until the next restart");
+		}
 		
-		// TODO : load configuration, sql connection params, etc?
+		if (!journal.open())
+		{
+			log.severe("Persistence: Couldn't open the journal, changes will not be journaled");
+			journal = null;
+		}
+	}
+	
+	/**
+	 * Register a set of stats with JMX, if stats are enabled.
+	 * 
+	 * @param target The stats to register
+	 * @param type The kind of thing the stats are for
+	 * @param keys Any extra object name keys, such as the schema, or null
+	 */
+	protected void registerStats(Stats target, String type, String keys)
+	{
+		if (!statsEnabled) return;
+		
+		String name = statsDomain + ":type=" + type;
+		if (keys != null)
+		{
+			name += "," + keys;
+		}
+		
+		try
+		{
+			target.register(new ObjectName(name));
+		}
+		catch (MalformedObjectNameException e)
+		{
+			log.warning("Persistence: Invalid stats name " + name + ": " + e.getMessage());
+		}
+	}
+	
+	protected static String quoteName(String value)
+	{
+		return ObjectName.quote(value == null ? "" : value);
+	}
+	
+	protected static Class<?> findClass(String className, List<ClassLoader> classLoaders)
+	{
+		for (ClassLoader classLoader : classLoaders)
+		{
+			try
+			{
+				return Class.forName(className, false, classLoader);
+			}
+			catch (ClassNotFoundException e)
+			{
+			}
+			catch (LinkageError e)
+			{
+			}
+		}
+		return null;
+	}
+	
+	protected void clearSnapshots()
+	{
+		File[] files = new File(dataFolder, snapshotFolderName).listFiles();
+		if (files == null) return;
+		
+		for (File file : files)
+		{
+			file.delete();
+		}
+	}
+	
+	protected void loadProperties()
+	{
+		File propertiesFile = new File(dataFolder, propertiesFileName);
+		PluginProperties properties = new PluginProperties(propertiesFile.getAbsolutePath());
+		properties.load();
+		
+		writeBehind = properties.getBoolean("persistence-write-behind", writeBehind);
+		writeQueueSize = properties.getInteger("persistence-write-queue-size", writeQueueSize);
+		batchSize = properties.getInteger("persistence-batch-size", batchSize);
+		statementCacheSize = properties.getInteger("persistence-statement-cache-size", statementCacheSize);
+		workingSetSize = properties.getInteger("persistence-working-set-size", workingSetSize);
+		cacheMaxSize = properties.getInteger("persistence-cache-max-size", cacheMaxSize);
+		cacheTimeout = properties.getInteger("persistence-cache-timeout", cacheTimeout);
+		storeType = properties.getString("persistence-store", storeType);
+		readPoolSize = properties.getInteger("persistence-read-pool-size", readPoolSize);
+		jdbcDriver = properties.getString("persistence-jdbc-driver", jdbcDriver);
+		jdbcUrl = properties.getString("persistence-jdbc-url", jdbcUrl);
+		jdbcUser = properties.getString("persistence-jdbc-user", jdbcUser);
+		jdbcPassword = properties.getString("persistence-jdbc-password", jdbcPassword);
+		warmUp = properties.getBoolean("persistence-warm-up", warmUp);
+		warmUpThreads = properties.getInteger("persistence-warm-up-threads", warmUpThreads);
+		snapshot = properties.getBoolean("persistence-snapshot", snapshot);
+		journaling = properties.getBoolean("persistence-journal", journaling);
+		journalCommitInterval = properties.getInteger("persistence-journal-commit-interval", journalCommitInterval);
+		statsEnabled = properties.getBoolean("persistence-stats", statsEnabled);
+		
+		properties.save();
 	}
 	
 	protected void updateGlobalData()
@@ -360,15 +1123,35 @@ public class Persistence
 	
 	protected void disconnect()
 	{
+		PersistenceWriter currentWriter = writer;
+		if (currentWriter != null)
+		{
+			currentWriter.shutdown();
+			writer = null;
+		}
+		
+		if (journal != null)
+		{
+			journal.close();
+			journal = null;
+		}
+		
 		synchronized(dataLock)
 		{
 			for (DataStore store : stores)
 			{
+				store.getStats().unregister();
 				store.disconnect();
 			}
 			stores.clear();
 			schemaStores.clear();
 		}
+		
+		for (PersistedClass persistedClass : persistedClasses)
+		{
+			persistedClass.getStats().unregister();
+		}
+		stats.unregister();
 	}
 	
 	/*
@@ -376,11 +1159,48 @@ public class Persistence
 	 */
 	
 	private File dataFolder = null;
+	private volatile PersistenceWriter writer = null;
+	private PersistenceJournal journal = null;
+	
+	private final String propertiesFileName = "persistence.properties";
+	private boolean writeBehind = false;
+	private int writeQueueSize = 256;
+	private int batchSize = 500;
+	private int statementCacheSize = 64;
+	private int workingSetSize = 256;
+	private int cacheMaxSize = 0;
+	private int cacheTimeout = 0;
+	private String storeType = "sqlite";
+	private int readPoolSize = 0;
+	private String jdbcDriver = "org.h2.Driver";
+	private String jdbcUrl = "jdbc:h2:{folder}/{schema}";
+	private String jdbcUser = "";
+	private String jdbcPassword = "";
+	private boolean warmUp = false;
+	private int warmUpThreads = 4;
+	private boolean snapshot = false;
+	private final String snapshotFolderName = "snapshots";
+	private final String classesFileName = "classes.txt";
+	private boolean journaling = false;
+	private int journalCommitInterval = 50;
+	private final String journalFolderName = "journal";
+	private boolean statsEnabled = true;
+	private final String statsDomain = "com.elmakers.mine.bukkit.plugins.persistence";
+	private final Stats stats = new Stats();
+	private final OperationStats saveStats = stats.getOperation("save");
+	private final OperationStats journalStats = stats.getOperation("journalWrite");
+	
+	private final ConcurrentHashMap<Class<? extends Object>, PersistedClass> persistedClassMap = new ConcurrentHashMap<Class<? extends Object>, PersistedClass>(); 
+	private final List<PersistedClass> persistedClasses = new CopyOnWriteArrayList<PersistedClass>(); 
+	private final Set<PersistedClass> deferredClasses = Collections.newSetFromMap(new ConcurrentHashMap<PersistedClass, Boolean>());
+	private final LinkedHashSet<PersistedClass> dirtyClasses = new LinkedHashSet<PersistedClass>();
+	private final List<Schema> schemas = new CopyOnWriteArrayList<Schema>();
+	private final ConcurrentHashMap<String, Schema> schemaMap = new ConcurrentHashMap<String, Schema>();
 	
-	private final HashMap<Class<? extends Object>, PersistedClass> persistedClassMap = new HashMap<Class<? extends Object>, PersistedClass>(); 
-	private final List<PersistedClass> persistedClasses = new ArrayList<PersistedClass>(); 
-	private final List<Schema> schemas = new ArrayList<Schema>();
-	private final HashMap<String, Schema> schemaMap = new HashMap<String, Schema>();
+	// Classes being bound, which aren't visible outside of the registry lock until they're complete
+	private final LinkedHashMap<Class<? extends Object>, PersistedClass> bindingClassMap = new LinkedHashMap<Class<? extends Object>, PersistedClass>();
+	private int bindDepth = 0;
+	private final Object registryLock = new Object();
 
 	private static final Logger log = Logger.getLogger("Minecraft");
 	private final HashMap<String, DataStore> schemaStores = new HashMap<String, DataStore>();
@@ -388,8 +1208,6 @@ public class Persistence
 	
 	private static final Object dataLock = new Object();
 	private static final Object instanceLock = new Object();
-	private static final Object cacheReadLock = new Object();
-	private static final Object cacheWriteLock = new Object();
 	
 	private static Persistence instance = null;
 }
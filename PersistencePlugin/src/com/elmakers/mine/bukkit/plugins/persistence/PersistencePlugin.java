@@ -1,6 +1,8 @@
 package com.elmakers.mine.bukkit.plugins.persistence;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.logging.Logger;
 
 import org.bukkit.Server;
@@ -8,6 +10,7 @@ import org.bukkit.command.Command;
 import org.bukkit.command.CommandSender;
 import org.bukkit.event.Event.Priority;
 import org.bukkit.event.Event.Type;
+import org.bukkit.plugin.Plugin;
 import org.bukkit.plugin.PluginDescriptionFile;
 import org.bukkit.plugin.PluginLoader;
 import org.bukkit.plugin.PluginManager;
@@ -84,6 +87,9 @@ public class PersistencePlugin extends JavaPlugin
 		if (persistence != null)
 		{
 			persistence.save();
+			persistence.flush();
+			persistence.writeSnapshots();
+			persistence.saveKnownClasses();
 			persistence.clear();
 			persistence.disconnect();
 		}
@@ -98,6 +104,14 @@ public class PersistencePlugin extends JavaPlugin
 		try
 		{
 			initialize();
+			
+			// Load known classes now, so the first player to join doesn't have to wait
+			if (persistence.isWarmUpEnabled())
+			{
+				persistence.bindKnownClasses(getPluginClassLoaders());
+				persistence.warmUp();
+			}
+			
 			PluginDescriptionFile pdfFile = this.getDescription();
 	        log.info(pdfFile.getName() + " version " + pdfFile.getVersion() + " is enabled");
 		}
@@ -150,6 +164,29 @@ public class PersistencePlugin extends JavaPlugin
 		pm.registerEvent(Type.PLAYER_JOIN, listener, Priority.Normal, this);
 	}
 	
+	/**
+	 * Get the class loaders to look for persisted classes with.
+	 * 
+	 * Plugins are all loaded before any of them are enabled, so their classes can be
+	 * found before the plugins that own them start.
+	 * 
+	 * @return This plugin's class loader, followed by those of every other plugin
+	 */
+	protected List<ClassLoader> getPluginClassLoaders()
+	{
+		List<ClassLoader> classLoaders = new ArrayList<ClassLoader>();
+		classLoaders.add(getClass().getClassLoader());
+		for (Plugin plugin : getServer().getPluginManager().getPlugins())
+		{
+			ClassLoader classLoader = plugin.getClass().getClassLoader();
+			if (!classLoaders.contains(classLoader))
+			{
+				classLoaders.add(classLoader);
+			}
+		}
+		return classLoaders;
+	}
+	
 	/*
 	 * Private data
 	 */
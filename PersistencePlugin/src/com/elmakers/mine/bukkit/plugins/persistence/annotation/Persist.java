@@ -49,4 +49,17 @@ public @interface Persist
 	 * @return true if this field is contained.
 	 */
 	boolean contained() default false;
+	
+	
+	/**
+	 * Specify that this field should be indexed.
+	 * 
+	 * Indexed fields can be searched with Persistence.getBy, without scanning every object.
+	 * An index is created in the data store, and one is kept in memory for cached objects.
+	 * 
+	 * This is not valid for lists, or for contained objects.
+	 * 
+	 * @return true if this field is indexed.
+	 */
+	boolean indexed() default false;
 }
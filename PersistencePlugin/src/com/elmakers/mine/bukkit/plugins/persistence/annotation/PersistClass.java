@@ -60,10 +60,35 @@ public @interface PersistClass
 	/**
 	 * Whether or not to keep this entity in the cache.
 	 * 
-	 * NOT YET SUPPORTED
+	 * Cached entities are loaded all at once, the first time they are used.
+	 * 
+	 * Non-cached entities are loaded one at a time, by id, and only a limited working
+	 * set is kept in memory. Use this for large tables. Non-cached entities may not
+	 * use autogenerated ids.
 	 * 
 	 * @return true if this is a cached object
 	 */
 	boolean cache() default true;
 	
+	/**
+	 * The maximum number of objects of this entity to keep in memory.
+	 * 
+	 * When the cache is full, the least recently used objects are evicted, and
+	 * will be reloaded from the data store if needed again.
+	 * 
+	 * Use 0 for no limit, or leave unset to use the default from persistence.properties.
+	 * 
+	 * @return The maximum cache size
+	 */
+	int maxSize() default -1;
+	
+	/**
+	 * The number of seconds an object of this entity may go unused before being evicted from memory.
+	 * 
+	 * Use 0 to never evict idle objects, or leave unset to use the default from persistence.properties.
+	 * 
+	 * @return The cache timeout, in seconds
+	 */
+	int timeout() default -1;
+	
 }
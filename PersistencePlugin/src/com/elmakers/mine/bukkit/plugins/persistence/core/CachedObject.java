@@ -1,11 +1,31 @@
 package com.elmakers.mine.bukkit.plugins.persistence.core;
 
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
 class CachedObject
 {
-	private Object object;
+	/**
+	 * What we know about this object's row in the data store.
+	 */
+	enum RowState
+	{
+		NEW,
+		STORED,
+		UNKNOWN
+	}
+	
+	private volatile Object object;
+	private RowState rowState = RowState.UNKNOWN;
+	private Object[] savedValues;
+	private HashMap<PersistedList, List<Object>> savedLists;
 	private boolean cached;
-	private boolean dirty;
-	private long cacheTime;
+	private volatile boolean dirty;
+	private volatile long cacheTime;
+	private int pendingWrites;
+	private int writeSequence;
+	private int appliedSequence;
 	
 	public CachedObject(Object o)
 	{
@@ -48,6 +68,147 @@ class CachedObject
 		updateCacheTime();
 	}
 	
+	/**
+	 * Check to see if this object has been saved, but not yet written to the store.
+	 * 
+	 * Objects with pending writes must not be evicted, or a reload could read stale data.
+	 * 
+	 * @return true if there are pending writes for this object
+	 */
+	public synchronized boolean isWritePending()
+	{
+		return pendingWrites > 0;
+	}
+	
+	/**
+	 * Check to see if this object can be dropped from the cache.
+	 * 
+	 * Objects that are dirty, or have a write in flight, have changes that aren't
+	 * known to be in the store yet.
+	 * 
+	 * @return true if the store has everything this object holds
+	 */
+	public synchronized boolean isEvictable()
+	{
+		return !dirty && pendingWrites == 0;
+	}
+	
+	/**
+	 * Record that this object's data has been added to a save batch.
+	 * 
+	 * @return A sequence number for the write, to pass to endWrite
+	 */
+	public synchronized int beginWrite()
+	{
+		pendingWrites++;
+		return ++writeSequence;
+	}
+	
+	/**
+	 * Record that a write of this object succeeded.
+	 * 
+	 * The values and list keys that were written become the saved state, unless
+	 * a later write has already finished.
+	 * 
+	 * @param sequence The sequence number from beginWrite
+	 * @param values The column values that were written
+	 * @param lists The list keys that were written, by list
+	 */
+	public synchronized void endWrite(int sequence, Object[] values, Map<PersistedList, List<Object>> lists)
+	{
+		pendingWrites--;
+		if (sequence <= appliedSequence) return;
+		
+		appliedSequence = sequence;
+		rowState = RowState.STORED;
+		savedValues = values;
+		for (Map.Entry<PersistedList, List<Object>> entry : lists.entrySet())
+		{
+			setSavedList(entry.getKey(), entry.getValue());
+		}
+	}
+	
+	/**
+	 * Record that a write of this object failed.
+	 * 
+	 * The object is dirty again, and we no longer know what is in its row.
+	 * This happens before the pending write is released, so the object can't
+	 * be evicted in between.
+	 */
+	public synchronized void failWrite()
+	{
+		dirty = true;
+		rowState = RowState.UNKNOWN;
+		savedValues = null;
+		savedLists = null;
+		pendingWrites--;
+	}
+	
+	public synchronized RowState getRowState()
+	{
+		return rowState;
+	}
+	
+	/**
+	 * Get the column values last read from or written to the store.
+	 * 
+	 * @return The saved column values, or null if they aren't known
+	 */
+	public synchronized Object[] getSavedValues()
+	{
+		return savedValues;
+	}
+	
+	/**
+	 * Record that this object's row exists in the store, with the given values.
+	 * 
+	 * @param values The column values in the store, or null if they aren't known
+	 */
+	public synchronized void setStored(Object[] values)
+	{
+		rowState = RowState.STORED;
+		savedValues = values;
+	}
+	
+	/**
+	 * Record that this object has no row in the store yet.
+	 */
+	public synchronized void setNew()
+	{
+		rowState = RowState.NEW;
+		savedValues = null;
+		savedLists = null;
+	}
+	
+	/**
+	 * Get the list elements last read from or written to the store.
+	 * 
+	 * @param list The list field
+	 * @return The element keys for the list, or null if they aren't known
+	 */
+	public synchronized List<Object> getSavedList(PersistedList list)
+	{
+		if (savedLists == null) return null;
+		return savedLists.get(list);
+	}
+	
+	public synchronized void setSavedList(PersistedList list, List<Object> keys)
+	{
+		if (savedLists == null)
+		{
+			savedLists = new HashMap<PersistedList, List<Object>>();
+		}
+		savedLists.put(list, keys);
+	}
+	
+	/**
+	 * Mark this object as recently used.
+	 */
+	public void touch()
+	{
+		updateCacheTime();
+	}
+	
 	public void setSaved()
 	{
 		dirty = false;
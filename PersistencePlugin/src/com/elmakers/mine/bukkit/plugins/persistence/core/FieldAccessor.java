@@ -0,0 +1,290 @@
+package com.elmakers.mine.bukkit.plugins.persistence.core;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+/**
+ * Reads and writes a single persisted field or getter/setter pair.
+ *
+ * An accessor is bound once, when a PersistedClass is bound, so that
+ * the work of looking up and checking access to fields and methods isn't
+ * repeated for every object that is loaded or saved.
+ *
+ * Primitive fields get specialized accessors, which skip the generic
+ * reflection path.
+ *
+ * @author NathanWolf
+ *
+ */
+abstract class FieldAccessor
+{
+	public abstract Object get(Object o);
+
+	public abstract boolean set(Object o, Object value);
+
+	public static FieldAccessor create(Method getter, Method setter)
+	{
+		makeAccessible(getter);
+		makeAccessible(setter);
+		return new MethodAccessor(getter, setter);
+	}
+
+	public static FieldAccessor create(Field field)
+	{
+		makeAccessible(field);
+
+		Class<?> type = field.getType();
+		if (type == int.class) return new IntFieldAccessor(field);
+		if (type == boolean.class) return new BooleanFieldAccessor(field);
+		if (type == double.class) return new DoubleFieldAccessor(field);
+		if (type == float.class) return new FloatFieldAccessor(field);
+
+		return new ObjectFieldAccessor(field);
+	}
+
+	/**
+	 * Turn off access checks, which are otherwise done on every call.
+	 *
+	 * If a security manager won't allow this, the normal checks are used.
+	 */
+	protected static void makeAccessible(java.lang.reflect.AccessibleObject accessible)
+	{
+		if (accessible == null) return;
+		try
+		{
+			accessible.setAccessible(true);
+		}
+		catch (SecurityException ex)
+		{
+		}
+	}
+
+	static class MethodAccessor extends FieldAccessor
+	{
+		public MethodAccessor(Method getter, Method setter)
+		{
+			this.getter = getter;
+			this.setter = setter;
+		}
+
+		@Override
+		public Object get(Object o)
+		{
+			try
+			{
+				return getter.invoke(o);
+			}
+			catch(InvocationTargetException e)
+			{
+				return null;
+			}
+			catch(IllegalAccessException e)
+			{
+				return null;
+			}
+		}
+
+		@Override
+		public boolean set(Object o, Object value)
+		{
+			try
+			{
+				setter.invoke(o, value);
+			}
+			catch(InvocationTargetException e)
+			{
+				return false;
+			}
+			catch(IllegalAccessException e)
+			{
+				return false;
+			}
+			return true;
+		}
+
+		private final Method getter;
+		private final Method setter;
+	}
+
+	static class ObjectFieldAccessor extends FieldAccessor
+	{
+		public ObjectFieldAccessor(Field field)
+		{
+			this.field = field;
+		}
+
+		@Override
+		public Object get(Object o)
+		{
+			try
+			{
+				return field.get(o);
+			}
+			catch(IllegalAccessException e)
+			{
+				return null;
+			}
+		}
+
+		@Override
+		public boolean set(Object o, Object value)
+		{
+			try
+			{
+				field.set(o, value);
+			}
+			catch(IllegalAccessException e)
+			{
+				return false;
+			}
+			return true;
+		}
+
+		protected final Field field;
+	}
+
+	static class IntFieldAccessor extends ObjectFieldAccessor
+	{
+		public IntFieldAccessor(Field field)
+		{
+			super(field);
+		}
+
+		@Override
+		public Object get(Object o)
+		{
+			try
+			{
+				return Integer.valueOf(field.getInt(o));
+			}
+			catch(IllegalAccessException e)
+			{
+				return null;
+			}
+		}
+
+		@Override
+		public boolean set(Object o, Object value)
+		{
+			if (!(value instanceof Number)) return false;
+			try
+			{
+				field.setInt(o, ((Number)value).intValue());
+			}
+			catch(IllegalAccessException e)
+			{
+				return false;
+			}
+			return true;
+		}
+	}
+
+	static class BooleanFieldAccessor extends ObjectFieldAccessor
+	{
+		public BooleanFieldAccessor(Field field)
+		{
+			super(field);
+		}
+
+		@Override
+		public Object get(Object o)
+		{
+			try
+			{
+				return Boolean.valueOf(field.getBoolean(o));
+			}
+			catch(IllegalAccessException e)
+			{
+				return null;
+			}
+		}
+
+		@Override
+		public boolean set(Object o, Object value)
+		{
+			if (!(value instanceof Boolean)) return false;
+			try
+			{
+				field.setBoolean(o, ((Boolean)value).booleanValue());
+			}
+			catch(IllegalAccessException e)
+			{
+				return false;
+			}
+			return true;
+		}
+	}
+
+	static class DoubleFieldAccessor extends ObjectFieldAccessor
+	{
+		public DoubleFieldAccessor(Field field)
+		{
+			super(field);
+		}
+
+		@Override
+		public Object get(Object o)
+		{
+			try
+			{
+				return Double.valueOf(field.getDouble(o));
+			}
+			catch(IllegalAccessException e)
+			{
+				return null;
+			}
+		}
+
+		@Override
+		public boolean set(Object o, Object value)
+		{
+			if (!(value instanceof Number)) return false;
+			try
+			{
+				field.setDouble(o, ((Number)value).doubleValue());
+			}
+			catch(IllegalAccessException e)
+			{
+				return false;
+			}
+			return true;
+		}
+	}
+
+	static class FloatFieldAccessor extends ObjectFieldAccessor
+	{
+		public FloatFieldAccessor(Field field)
+		{
+			super(field);
+		}
+
+		@Override
+		public Object get(Object o)
+		{
+			try
+			{
+				return Float.valueOf(field.getFloat(o));
+			}
+			catch(IllegalAccessException e)
+			{
+				return null;
+			}
+		}
+
+		@Override
+		public boolean set(Object o, Object value)
+		{
+			if (!(value instanceof Number)) return false;
+			try
+			{
+				field.setFloat(o, ((Number)value).floatValue());
+			}
+			catch(IllegalAccessException e)
+			{
+				return false;
+			}
+			return true;
+		}
+	}
+}
@@ -0,0 +1,96 @@
+package com.elmakers.mine.bukkit.plugins.persistence.core;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * An in-memory index of cached objects, by the value of one of their fields.
+ *
+ * This maps field values to object ids. For reference fields, the value is the id of
+ * the referenced object.
+ *
+ * Objects are indexed when they are put, loaded or saved, so an index may be out of date for
+ * objects that have been modified since. Callers should check the value of any object they find.
+ *
+ * @author NathanWolf
+ *
+ */
+class FieldIndex
+{
+	public FieldIndex(PersistedField field)
+	{
+		this.field = field;
+	}
+
+	public PersistedField getField()
+	{
+		return field;
+	}
+
+	/**
+	 * Index an object, replacing any previous value.
+	 *
+	 * @param id The object's id
+	 * @param key The current value of the indexed field
+	 */
+	public void update(Object id, Object key)
+	{
+		if (idKeys.containsKey(id))
+		{
+			Object previous = idKeys.get(id);
+			if (previous == null ? key == null : previous.equals(key)) return;
+			remove(id);
+		}
+
+		idKeys.put(id, key);
+		Set<Object> ids = keyMap.get(key);
+		if (ids == null)
+		{
+			ids = new LinkedHashSet<Object>();
+			keyMap.put(key, ids);
+		}
+		ids.add(id);
+	}
+
+	public void remove(Object id)
+	{
+		if (!idKeys.containsKey(id)) return;
+
+		Object key = idKeys.remove(id);
+		Set<Object> ids = keyMap.get(key);
+		if (ids == null) return;
+
+		ids.remove(id);
+		if (ids.size() == 0)
+		{
+			keyMap.remove(key);
+		}
+	}
+
+	/**
+	 * Find the ids of objects with a given field value.
+	 *
+	 * @param key The field value to look for
+	 * @param ids A collection to add matching ids to
+	 */
+	public void get(Object key, Collection<Object> ids)
+	{
+		Set<Object> found = keyMap.get(key);
+		if (found != null)
+		{
+			ids.addAll(found);
+		}
+	}
+
+	public void clear()
+	{
+		keyMap.clear();
+		idKeys.clear();
+	}
+
+	private final PersistedField field;
+	private final HashMap<Object, Set<Object>> keyMap = new HashMap<Object, Set<Object>>();
+	private final HashMap<Object, Object> idKeys = new HashMap<Object, Object>();
+}
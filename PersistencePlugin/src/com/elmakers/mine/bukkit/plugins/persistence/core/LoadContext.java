@@ -0,0 +1,148 @@
+package com.elmakers.mine.bukkit.plugins.persistence.core;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Tracks references found while loading objects, so they can be bound afterward.
+ *
+ * Objects may reference objects of classes that aren't loaded yet, or of their own class.
+ * So, references are not looked up as rows are read. The ids are collected here instead,
+ * and then resolve() looks up all of the ids for each referenced class at once.
+ *
+ * Each load uses its own context, so loads on different threads don't share any state.
+ *
+ * @author NathanWolf
+ *
+ */
+public class LoadContext
+{
+	/**
+	 * Defer binding a reference field.
+	 *
+	 * @param field The reference field
+	 * @param object The object that owns the field
+	 * @param referenceId The id of the referenced object
+	 */
+	public void addReference(PersistedReference field, Object object, Object referenceId)
+	{
+		references.add(new DeferredReference(field, object, referenceId));
+	}
+
+	/**
+	 * Defer binding a list of references.
+	 *
+	 * @param field The list field
+	 * @param object The object that owns the list
+	 * @param referenceIds The ids of the referenced objects, in list order
+	 */
+	public void addReferenceList(PersistedList field, Object object, List<Object> referenceIds)
+	{
+		referenceLists.add(new DeferredReferenceList(field, object, referenceIds));
+	}
+
+	/**
+	 * Bind all deferred references.
+	 *
+	 * Referenced classes are loaded as needed. Each referenced class is searched once, for
+	 * all of the ids that were collected for it.
+	 */
+	public void resolve()
+	{
+		if (references.size() == 0 && referenceLists.size() == 0) return;
+
+		// Group ids by the class they reference
+		HashMap<PersistedClass, Set<Object>> classIds = new HashMap<PersistedClass, Set<Object>>();
+		for (DeferredReference ref : references)
+		{
+			addId(classIds, ref.field.referenceType, ref.referenceId);
+		}
+		for (DeferredReferenceList ref : referenceLists)
+		{
+			for (Object id : ref.referenceIds)
+			{
+				addId(classIds, ref.field.referenceType, id);
+			}
+		}
+
+		HashMap<PersistedClass, Map<Object, Object>> classObjects = new HashMap<PersistedClass, Map<Object, Object>>();
+		for (Map.Entry<PersistedClass, Set<Object>> entry : classIds.entrySet())
+		{
+			Map<Object, Object> objects = new HashMap<Object, Object>();
+			entry.getKey().get(entry.getValue(), objects);
+			classObjects.put(entry.getKey(), objects);
+		}
+
+		for (DeferredReference ref : references)
+		{
+			Map<Object, Object> objects = classObjects.get(ref.field.referenceType);
+			Object reference = null;
+			if (ref.referenceId != null && objects != null)
+			{
+				reference = objects.get(ref.referenceId);
+			}
+			ref.field.set(ref.object, reference);
+		}
+		for (DeferredReferenceList ref : referenceLists)
+		{
+			Map<Object, Object> objects = classObjects.get(ref.field.referenceType);
+			List<Object> list = new ArrayList<Object>(ref.referenceIds.size());
+			for (Object id : ref.referenceIds)
+			{
+				list.add(id == null || objects == null ? null : objects.get(id));
+			}
+			ref.field.set(ref.object, list);
+		}
+
+		references.clear();
+		referenceLists.clear();
+	}
+
+	protected static void addId(Map<PersistedClass, Set<Object>> classIds, PersistedClass referenceType, Object id)
+	{
+		if (id == null || referenceType == null) return;
+
+		Set<Object> ids = classIds.get(referenceType);
+		if (ids == null)
+		{
+			ids = new LinkedHashSet<Object>();
+			classIds.put(referenceType, ids);
+		}
+		ids.add(id);
+	}
+
+	class DeferredReference
+	{
+		public final PersistedReference field;
+		public final Object object;
+		public final Object referenceId;
+
+		public DeferredReference(PersistedReference field, Object object, Object referenceId)
+		{
+			this.field = field;
+			this.object = object;
+			this.referenceId = referenceId;
+		}
+	}
+
+	class DeferredReferenceList
+	{
+		public final PersistedList field;
+		public final Object object;
+		public final List<Object> referenceIds;
+
+		public DeferredReferenceList(PersistedList field, Object object, List<Object> referenceIds)
+		{
+			this.field = field;
+			this.object = object;
+			this.referenceIds = referenceIds;
+		}
+	}
+
+	private final List<DeferredReference> references = new ArrayList<DeferredReference>();
+	private final List<DeferredReferenceList> referenceLists = new ArrayList<DeferredReferenceList>();
+}
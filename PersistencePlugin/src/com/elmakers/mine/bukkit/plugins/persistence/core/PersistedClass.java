@@ -1,20 +1,43 @@
 package com.elmakers.mine.bukkit.plugins.persistence.core;
 
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Logger;
+import java.util.zip.CRC32;
 
 import com.elmakers.mine.bukkit.plugins.persistence.Persistence;
 import com.elmakers.mine.bukkit.plugins.persistence.PersistencePlugin;
 import com.elmakers.mine.bukkit.plugins.persistence.annotation.Persist;
 import com.elmakers.mine.bukkit.plugins.persistence.annotation.PersistClass;
+import com.elmakers.mine.bukkit.plugins.persistence.data.ColumnarTable;
+import com.elmakers.mine.bukkit.plugins.persistence.data.DataField;
 import com.elmakers.mine.bukkit.plugins.persistence.data.DataRow;
+import com.elmakers.mine.bukkit.plugins.persistence.data.DataRowHandler;
 import com.elmakers.mine.bukkit.plugins.persistence.data.DataTable;
 import com.elmakers.mine.bukkit.plugins.persistence.data.DataStore;
 import com.elmakers.mine.bukkit.plugins.persistence.data.DataType;
+import com.elmakers.mine.bukkit.plugins.persistence.data.TableSnapshot;
+import com.elmakers.mine.bukkit.plugins.persistence.stats.Gauge;
+import com.elmakers.mine.bukkit.plugins.persistence.stats.OperationStats;
+import com.elmakers.mine.bukkit.plugins.persistence.stats.Stats;
 
 /**
  * Represents and manages a single persisted class.
@@ -32,11 +55,12 @@ public class PersistedClass
 {
 	public PersistedClass()
 	{
-		
+		addGauges();
 	}
 	
 	public PersistedClass(PersistedClass copy, PersistedField container)
 	{
+		addGauges();
 		this.defaultStore = copy.defaultStore;
 		this.container = container;
 		bind(copy.persistClass);
@@ -65,13 +89,14 @@ public class PersistedClass
 		name = name.replace(" ", "_");
 		schema = schema.replace(" ", "_");
 		
-		defaultStore = Persistence.getInstance().getStore(schema);
+		persistence = Persistence.getInstance();
+		defaultStore = persistence.getStore(schema);
 		
-		if (!cacheObjects)
-		{
-			log.warning("Persistence: class " + persistClass.getName() + ": non-cached objects no supported, yet.");
-			return false;
-		}
+		// Cached classes are unbounded by default, non-cached classes keep a small working set
+		int defaultMaxSize = cacheObjects ? persistence.getCacheMaxSize() : persistence.getWorkingSetSize();
+		maxCacheSize = classSettings.maxSize() >= 0 ? classSettings.maxSize() : defaultMaxSize;
+		int timeout = classSettings.timeout() >= 0 ? classSettings.timeout() : persistence.getCacheTimeout();
+		cacheTimeout = timeout * 1000L;
 		
 		/*
 		 * Find fields, getters and setters
@@ -119,6 +144,12 @@ public class PersistedClass
 			return false;
 		}
 		
+		if (!cacheObjects && idField != null && idField.isAutogenerated())
+		{
+			log.warning("Persistence: class " + persistClass.getName() + ": non-cached objects can't use autogenerated ids");
+			return false;
+		}
+		
 		return (fields.size() > 0);
 	}
 	
@@ -182,6 +213,22 @@ public class PersistedClass
 			internalFields.add(field);
 		}
 		
+		if (persist.indexed())
+		{
+			if (field instanceof PersistedList || persist.contained() || container != null)
+			{
+				log.warning("Persistence: class " + persistClass.getName() + ": only data and reference fields may be indexed");
+			}
+			else
+			{
+				field.setIndexed(true);
+				if (!persist.id())
+				{
+					indexes.add(new FieldIndex(field));
+				}
+			}
+		}
+		
 		field.setContainer(container);
 
 		fields.add(field);
@@ -195,45 +242,137 @@ public class PersistedClass
 		{
 			field.bind();
 		}
+		
+		// Now that references are bound, all field types are known
+		hasReferences = false;
+		for (PersistedField field : fields)
+		{
+			field.bindAccessor();
+			if (field instanceof PersistedReference && ((PersistedReference)field).referenceType != null)
+			{
+				hasReferences = true;
+			}
+			else if (field instanceof PersistedList && ((PersistedList)field).referenceType != null)
+			{
+				hasReferences = true;
+			}
+		}
 	}
 	
 	public void put(Object o)
 	{
-		checkLoadCache();
-				
-		Object id = getId(o);
-		CachedObject co = cacheMap.get(id);
-		if (co == null)
+		boolean loading = lock();
+		try
+		{
+			checkLoadCache();
+					
+			Object id = getId(o);
+			if (id == null && !idField.isAutogenerated())
+			{
+				log.warning("Persistence: Can't store a " + getTableName() + " with a null id");
+				return;
+			}
+			CachedObject co = id == null ? null : cacheMap.get(id);
+			if (co == null)
+			{
+				co = addToCache(o);
+			}
+			
+			// TODO: merge
+			co.setCached(cacheObjects);
+			co.setObject(o);
+			index(getId(o), o);
+			markDirty(co);
+			journal(getId(o), o);
+		}
+		finally
 		{
-			co = addToCache(o);
+			unlock(loading);
 		}
-		
-		// TODO: merge
-		co.setCached(cacheObjects);
-		co.setObject(o);
-		dirty = true;
 	}
 	
 	public void remove(Object o)
 	{
-		Object id = getId(o);
-		removeFromCache(id);
-		dirty = true;
+		boolean loading = lock();
+		try
+		{
+			checkLoadCache();
+			
+			Object id = getId(o);
+			removeFromCache(id);
+			journal(id, null);
+		}
+		finally
+		{
+			unlock(loading);
+		}
 	}
 
 	public Object get(Object id)
 	{
-		checkLoadCache();
-		CachedObject cached = cacheMap.get(id);
-		if (cached == null) return null;
-		return cached.getObject();
+		// Cached objects are read without locking
+		CachedObject cached = getLoaded(id);
+		if (cached != null) return cached.getObject();
+		
+		boolean loading = lock(true);
+		try
+		{
+			checkLoadCache();
+			cached = getCached(id);
+			if (cached == null) return null;
+			return cached.getObject();
+		}
+		finally
+		{
+			unlock(loading);
+		}
 	}
 	
-	@SuppressWarnings("unchecked")
 	public <T> void getAll(List<T> objects)
 	{
-		checkLoadCache();
-		for (CachedObject cachedObject : cache)
+		// If the whole table is cached, read it without locking.
+		// If anything was evicted while reading, try again with the lock held.
+		if (loadState == LoadState.LOADED && cacheComplete)
+		{
+			long evictions = cacheEvictions;
+			List<T> cachedObjects = new ArrayList<T>();
+			getAllCached(cachedObjects);
+			if (cacheComplete && evictions == cacheEvictions)
+			{
+				objects.addAll(cachedObjects);
+				return;
+			}
+		}
+		
+		boolean loading = lock(true);
+		try
+		{
+			checkLoadCache();
+			if (!cacheComplete)
+			{
+				List<Object> loaded = new ArrayList<Object>();
+				loadAll(loaded);
+				for (Object object : loaded)
+				{
+					@SuppressWarnings("unchecked")
+					T typed = (T)object;
+					objects.add(typed);
+				}
+				return;
+			}
+			
+			getAllCached(objects);
+		}
+		finally
+		{
+			unlock(loading);
+		}
+	}
+	
+	@SuppressWarnings("unchecked")
+	protected <T> void getAllCached(List<T> objects)
+	{
+		for (CachedObject cachedObject : cacheMap.values())
 		{
 			Object object = cachedObject.getObject();
 			if (persistClass.isAssignableFrom(object.getClass()))
@@ -245,27 +384,240 @@ public class PersistedClass
 	
 	public void putAll(List<? extends Object> objects)
 	{
-		checkLoadCache();
-		// TODO: merge...
+		boolean loading = lock();
+		try
+		{
+			checkLoadCache();
+			// TODO: merge...
+		}
+		finally
+		{
+			unlock(loading);
+		}
 	}
 
 	public Object get(Object id, Object defaultValue)
 	{
-		checkLoadCache();
-		CachedObject cached = cacheMap.get(id);
-		if (cached == null)
+		CachedObject cached = getLoaded(id);
+		if (cached != null) return cached.getObject();
+		
+		boolean loading = lock(true);
+		try
+		{
+			checkLoadCache();
+			cached = getCached(id);
+			if (cached == null)
+			{
+				cached = addToCache(defaultValue);
+				
+			}
+			return cached.getObject();
+		}
+		finally
+		{
+			unlock(loading);
+		}
+	}
+	
+	/**
+	 * Look up a set of objects by id.
+	 * 
+	 * This is used to bind references once a load is finished. The class is loaded if needed,
+	 * and then every id is looked up while holding the lock once. Any ids that aren't in 
+	 * memory are read from the store together, with one query per chunk of ids.
+	 * 
+	 * @param ids The ids of the objects to find
+	 * @param objects A map to fill with objects, by id. Ids that aren't found are left out.
+	 */
+	public void get(Collection<Object> ids, Map<Object, Object> objects)
+	{
+		boolean loading = lock(true);
+		try
 		{
-			cached = addToCache(defaultValue);
+			checkLoadCache();
+			List<Object> missing = new ArrayList<Object>();
+			for (Object id : ids)
+			{
+				if (id == null) continue;
+				
+				CachedObject cached = findCached(id);
+				if (cached != null)
+				{
+					objects.put(id, cached.getObject());
+				}
+				else if (mayBeStored(id))
+				{
+					missing.add(id);
+				}
+			}
 			
+			if (missing.size() > 0)
+			{
+				loadObjects(defaultStore, missing);
+				for (Object id : missing)
+				{
+					CachedObject cached = cacheMap.get(id);
+					if (cached != null)
+					{
+						cached.touch();
+						objects.put(id, cached.getObject());
+					}
+				}
+				evict();
+			}
+		}
+		finally
+		{
+			unlock(loading);
+		}
+	}
+	
+	/**
+	 * Find all objects with a given field value.
+	 * 
+	 * If the whole table is cached, this uses the field's in-memory index, or
+	 * checks every cached object if the field isn't indexed. Otherwise, matching
+	 * rows are read from the store.
+	 * 
+	 * @param <T> The type of object to find
+	 * @param field The field to search
+	 * @param value The value to look for. For reference fields, this can be the referenced object or its id.
+	 * @param objects A list to fill with matching objects
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> void getBy(PersistedField field, Object value, List<T> objects)
+	{
+		Object key = field.toIndexKey(value);
+		List<Object> found = new ArrayList<Object>();
+		
+		boolean loading = lock(true);
+		try
+		{
+			checkLoadCache();
+			FieldIndex index = getIndex(field);
+			if (!cacheComplete)
+			{
+				loadAll(found, field, key);
+			}
+			else if (index != null)
+			{
+				List<Object> ids = new ArrayList<Object>();
+				index.get(key, ids);
+				for (Object id : ids)
+				{
+					CachedObject cached = cacheMap.get(id);
+					if (cached != null && matches(cached.getObject(), field, key))
+					{
+						found.add(cached.getObject());
+					}
+				}
+			}
+			else
+			{
+				for (CachedObject cached : cacheMap.values())
+				{
+					if (matches(cached.getObject(), field, key))
+					{
+						found.add(cached.getObject());
+					}
+				}
+			}
+		}
+		finally
+		{
+			unlock(loading);
+		}
+		
+		for (Object object : found)
+		{
+			objects.add((T)object);
+		}
+	}
+	
+	/**
+	 * Find a persisted data or reference field by name.
+	 * 
+	 * @param fieldName The name of the field, as declared in the class
+	 * @return The field, or null if there is no such field
+	 */
+	public PersistedField getField(String fieldName)
+	{
+		for (PersistedField field : internalFields)
+		{
+			if (field.getName().equals(fieldName))
+			{
+				return field;
+			}
+		}
+		return null;
+	}
+	
+	protected FieldIndex getIndex(PersistedField field)
+	{
+		for (FieldIndex index : indexes)
+		{
+			if (index.getField() == field)
+			{
+				return index;
+			}
+		}
+		return null;
+	}
+	
+	protected static boolean matches(Object o, PersistedField field, Object key)
+	{
+		if (field == null) return true;
+		return valuesEqual(field.getIndexKey(o), key);
+	}
+	
+	/**
+	 * Update the in-memory indexes for an object.
+	 * 
+	 * @param id The object's id
+	 * @param o The object
+	 */
+	protected void index(Object id, Object o)
+	{
+		if (id == null) return;
+		
+		for (FieldIndex index : indexes)
+		{
+			index.update(id, index.getField().getIndexKey(o));
+		}
+	}
+	
+	protected void unindex(Object id)
+	{
+		if (id == null) return;
+		
+		for (FieldIndex index : indexes)
+		{
+			index.remove(id);
 		}
-		return cached.getObject();
 	}
 	
 	public void clear()
 	{
-		cacheMap.clear();
-		cache.clear();
-		loadState = LoadState.UNLOADED;
+		boolean loading = lock();
+		try
+		{
+			loadState = LoadState.UNLOADED;
+			cacheComplete = false;
+			prefetchedTable = null;
+			prefetchedLists = null;
+			cacheMap.clear();
+			for (FieldIndex index : indexes)
+			{
+				index.clear();
+			}
+			dirtyObjects.clear();
+			failedObjects.clear();
+			evictedMap.clear();
+		}
+		finally
+		{
+			unlock(loading);
+		}
 	}
 	
 	public void reset()
@@ -275,24 +627,121 @@ public class PersistedClass
 	
 	public void reset(DataStore store)
 	{
-		if (!store.connect()) return;
-		
-		DataTable resetTable = getClassTable(); 
-		store.reset(resetTable);
-		
-		// Reset any list sub-tables
-		for (PersistedList list : externalFields)
+		boolean loading = lock();
+		try
 		{
-			DataTable listTable = getListTable(list);
-			store.reset(listTable);
+			synchronized (store)
+			{
+				if (!store.connect()) return;
+				
+				DataTable resetTable = getClassTable(); 
+				store.reset(resetTable);
+				
+				// Reset any list sub-tables
+				for (PersistedList list : externalFields)
+				{
+					DataTable listTable = getListTable(list);
+					store.reset(listTable);
+				}
+			}
+			
+			maxId = 1;
+		}
+		finally
+		{
+			unlock(loading);
+		}
+	}
+	
+	/**
+	 * Lock this class, for anything other than reading cached objects.
+	 * 
+	 * Loading a class can load other classes, to resolve references, so a class lock
+	 * may be held while waiting for another class's lock. To keep two threads from
+	 * doing that in opposite orders, anything that might resolve references also 
+	 * holds a single load lock, which is always taken first.
+	 * 
+	 * Only classes with references ever wait on another class while locked, and 
+	 * then only while loading. Everything else just takes this class's lock, so 
+	 * a big load in one class doesn't hold up unrelated classes.
+	 * 
+	 * @return true if the load lock was taken, this must be passed to unlock
+	 */
+	protected boolean lock()
+	{
+		return lock(false);
+	}
+	
+	/**
+	 * Lock this class.
+	 * 
+	 * @param reading true if objects that aren't cached may be read from the store
+	 * @return true if the load lock was taken, this must be passed to unlock
+	 */
+	protected boolean lock(boolean reading)
+	{
+		boolean loading = needsLoadLock(reading);
+		while (true)
+		{
+			if (loading)
+			{
+				loadLock.lock();
+			}
+			classLock.lock();
+			
+			// The class may have been cleared or evicted from while we were waiting
+			if (loading || !needsLoadLock(reading)) break;
+			
+			classLock.unlock();
+			loading = true;
+		}
+		return loading;
+	}
+	
+	/**
+	 * Check to see if locking this class should also take the load lock.
+	 * 
+	 * @param reading true if objects that aren't cached may be read from the store
+	 * @return true if this class may lock other classes while it is locked
+	 */
+	protected boolean needsLoadLock(boolean reading)
+	{
+		if (!hasReferences) return false;
+		if (loadState != LoadState.LOADED) return true;
+		return reading && !cacheComplete;
+	}
+	
+	protected void unlock(boolean loading)
+	{
+		classLock.unlock();
+		if (loading)
+		{
+			loadLock.unlock();
 		}
+	}
+	
+	/**
+	 * Look up an object in the cache, without locking or loading anything.
+	 * 
+	 * @param id The id of the object to find
+	 * @return The cached object, or null if it isn't in the cache
+	 */
+	protected CachedObject getLoaded(Object id)
+	{
+		if (id == null || loadState != LoadState.LOADED) return null;
 		
-		maxId = 1;
+		CachedObject cached = cacheMap.get(id);
+		if (cached != null)
+		{
+			cacheHits.incrementAndGet();
+			cached.touch();
+		}
+		return cached;
 	}
 	
 	public boolean isDirty()
 	{
-		return dirty;
+		return dirtyObjects.size() > 0 || removedIds.size() > 0 || !failedObjects.isEmpty() || !failedRemovals.isEmpty();
 	}
 	
 	public int getFieldCount()
@@ -342,32 +791,82 @@ public class PersistedClass
 	
 	public void save(DataStore store)
 	{
-		if (loadState != LoadState.LOADED) return;
-		if (!dirty) return;
-		
-		// Drop removed objects
-		if (removedFromCache.size() > 0)
+		SaveBatch batch = createSaveBatch(store);
+		if (batch != null)
 		{
-			DataTable clearTable = getClassTable();
-			populate(clearTable, removedFromCache);			
-			store.clear(clearTable);
-			
-			removedFromCache.clear();
-			removedMap.clear();
+			batch.execute();
+		}
+	}
+	
+	public SaveBatch createSaveBatch()
+	{
+		return createSaveBatch(defaultStore);
+	}
+	
+	/**
+	 * Snapshot all pending changes into a SaveBatch.
+	 * 
+	 * Only objects that have been put or removed since the last save are included,
+	 * so the cost of a save depends on how much has changed, not on the size of the cache.
+	 * 
+	 * Dirty objects are marked as saved once they've been copied into the batch,
+	 * so the batch may be written later on another thread. Their saved values and
+	 * row state are only updated once the batch is written, if the write fails they 
+	 * are marked dirty again.
+	 * 
+	 * @param store The store to save to
+	 * @return A batch of changes, or null if there is nothing to save
+	 */
+	public SaveBatch createSaveBatch(DataStore store)
+	{
+		boolean loading = lock();
+		try
+		{
+			long start = OperationStats.start();
+			int changeCount = dirtyObjects.size() + removedIds.size();
+			SaveBatch batch = populateSaveBatch(store);
+			if (batch != null)
+			{
+				saveStats.end(start, changeCount);
+			}
+			return batch;
 		}
+		finally
+		{
+			unlock(loading);
+		}
+	}
+	
+	protected SaveBatch populateSaveBatch(DataStore store)
+	{
+		if (loadState != LoadState.LOADED) return null;
+		requeueFailed();
+		if (!isDirty()) return null;
 		
-		// Save dirty objects
-		List<CachedObject> dirtyObjects = new ArrayList<CachedObject>();
-		for (CachedObject cached : cache)
+		SaveBatch batch = new SaveBatch(this, store);
+		
+		// Delete removed objects, and their list data, by id
+		if (removedIds.size() > 0 && idField != null)
 		{
-			if (cached.isDirty())
+			List<Object> ids = new ArrayList<Object>(removedIds);
+			batch.addRemovedIds(ids);
+			DataTable clearTable = getClassTable();
+			clearTable.addIdFieldName(idField.getDataName());
+			batch.clearIds(clearTable, ids);
+			
+			for (PersistedList list : externalFields)
 			{
-				dirtyObjects.add(cached);
+				DataTable listTable = getListTable(list);
+				listTable.addIdFieldName(getContainedIdName());
+				batch.clearIds(listTable, ids);
 			}
 		}
+		removedIds.clear();
 		
-		save(dirtyObjects, store);
-		dirty = false;
+		// Save dirty objects
+		populate(batch, new ArrayList<CachedObject>(dirtyObjects));
+		
+		return batch;
 	}
 	
 	protected void populate(DataTable dataTable, List<CachedObject> instances)
@@ -395,37 +894,327 @@ public class PersistedClass
 	
 	public void save(List<CachedObject> instances, DataStore store)
 	{
-		if (!store.connect()) return;
+		SaveBatch batch = new SaveBatch(this, store);
+		populate(batch, instances);
+		batch.execute();
+	}
+	
+	protected void populate(SaveBatch batch, List<CachedObject> instances)
+	{
+		if (instances.size() == 0) return;
 		
-		// Save main class data
-		DataTable classTable = getClassTable();
-		populate(classTable, instances);
-		store.save(classTable);
+		// Record what we know about each object's row before anything changes.
+		// The new state is only applied to the objects once the batch is written.
+		List<SaveBatch.SavedObject> savedObjects = new ArrayList<SaveBatch.SavedObject>(instances.size());
+		for (CachedObject instance : instances)
+		{
+			savedObjects.add(batch.addSavedObject(instance));
+		}
 		
-		// Save list data
+		// Work out list changes first. New objects have no list rows in the store yet.
+		List<PersistedList.ListChanges> listChanges = new ArrayList<PersistedList.ListChanges>();
 		for (PersistedList list : externalFields)
 		{
-			DataTable listTable = getListTable(list);
-			List<Object> instanceIds = new ArrayList<Object>();
-			
-			for (CachedObject instance : instances)
+			PersistedList.ListChanges changes = list.createChanges();
+			for (SaveBatch.SavedObject saved : savedObjects)
 			{
-				Object id = getId(instance.getObject());
-				instanceIds.add(id);			
-				list.save(listTable, instance.getObject());
+				List<Object> keys = list.save(changes, saved.cached.getObject(), saved.getSavedList(list));
+				saved.lists.put(list, keys);
 			}
+			listChanges.add(changes);
+		}
+		
+		// Save main class data.
+		// New rows are inserted, and existing rows only update the columns that have changed
+		// since they were last loaded or saved. Rows that may or may not exist are saved in full.
+		// These may hold every object in the class, so they store data by column
+		DataTable insertTable = new ColumnarTable(getTableName());
+		DataTable saveTable = new ColumnarTable(getTableName());
+		LinkedHashMap<List<String>, DataTable> updateTables = new LinkedHashMap<List<String>, DataTable>();
+		HashMap<DataTable, DataTable> fullTables = new HashMap<DataTable, DataTable>();
+		String idName = idField == null ? null : idField.getDataName();
+		
+		for (SaveBatch.SavedObject saved : savedObjects)
+		{
+			Object instance = saved.cached.getObject();
+			DataRow row = new DataRow(saveTable);
+			populate(row, instance);
 			
-			// First, delete removed items
-			store.clearIds(listTable, instanceIds);
+			if (saved.rowState == CachedObject.RowState.NEW)
+			{
+				insertTable.addRow(row);
+			}
+			else if (saved.rowState == CachedObject.RowState.STORED && idName != null && row.get(idName) != null)
+			{
+				addUpdate(updateTables, fullTables, row, saved.savedValues, idName);
+			}
+			else
+			{
+				saveTable.addRow(row);
+			}
 			
-			// Save new list data
-			store.save(listTable);
-		}	
+			saved.values = getValues(row);
+			index(getId(instance), instance);
+		}
+		
+		if (insertTable.getRowCount() > 0)
+		{
+			batch.insert(insertTable);
+		}
+		if (saveTable.getRowCount() > 0)
+		{
+			batch.save(saveTable);
+		}
+		for (DataTable updateTable : updateTables.values())
+		{
+			batch.update(updateTable, fullTables.get(updateTable));
+		}
+		
+		// Save list data, only writing the rows that have changed
+		for (PersistedList.ListChanges changes : listChanges)
+		{
+			changes.addTo(batch);
+		}
 		
 		for (CachedObject cached : instances)
 		{
 			cached.setSaved();
+			dirtyObjects.remove(cached);
+		}
+	}
+	
+	/**
+	 * Add the changed columns of a row to an update table.
+	 * 
+	 * Rows are grouped into tables by the set of columns that changed, so that
+	 * each table can be written with a single statement.
+	 * 
+	 * The full row is kept alongside each update, in case the row isn't in the store after all.
+	 * 
+	 * @param updateTables The update tables, keyed by changed column names
+	 * @param fullTables The full rows for each update table
+	 * @param row The current data for an object
+	 * @param savedValues The values last read from or written to the store, or null to update every column
+	 * @param idName The name of the id column
+	 */
+	protected void addUpdate(Map<List<String>, DataTable> updateTables, Map<DataTable, DataTable> fullTables, DataRow row, Object[] savedValues, String idName)
+	{
+		List<DataField> fields = row.getFields();
+		boolean compare = savedValues != null && savedValues.length == fields.size();
+		
+		List<DataField> changed = new ArrayList<DataField>();
+		List<String> columns = new ArrayList<String>();
+		for (int i = 0; i < fields.size(); i++)
+		{
+			DataField field = fields.get(i);
+			if (field.getName().equals(idName)) continue;
+			if (compare && valuesEqual(savedValues[i], field.getValue())) continue;
+			
+			changed.add(field);
+			columns.add(field.getName());
+		}
+		
+		// Nothing to write
+		if (changed.size() == 0) return;
+		
+		DataTable updateTable = updateTables.get(columns);
+		if (updateTable == null)
+		{
+			updateTable = getClassTable();
+			updateTable.addIdFieldName(idName);
+			updateTables.put(columns, updateTable);
+			
+			DataTable fullTable = getClassTable();
+			fullTable.addIdFieldName(idName);
+			fullTables.put(updateTable, fullTable);
+		}
+		fullTables.get(updateTable).addRow(row);
+		
+		DataRow updateRow = new DataRow(updateTable);
+		for (DataField field : changed)
+		{
+			updateRow.add(field);
+		}
+		updateRow.add(row.get(idName));
+		updateTable.addRow(updateRow);
+	}
+	
+	protected static boolean valuesEqual(Object a, Object b)
+	{
+		if (a == null) return b == null;
+		return a.equals(b);
+	}
+	
+	protected static Object[] getValues(DataRow row)
+	{
+		List<DataField> fields = row.getFields();
+		Object[] values = new Object[fields.size()];
+		for (int i = 0; i < values.length; i++)
+		{
+			values[i] = fields.get(i).getValue();
+		}
+		return values;
+	}
+	
+	/**
+	 * Remember the current column values of an object that was just loaded.
+	 * 
+	 * This needs to happen after any deferred references and lists have been bound, so
+	 * the snapshot matches the data in the store.
+	 * 
+	 * @param cached The loaded object
+	 */
+	protected void snapshot(CachedObject cached)
+	{
+		DataRow row = new DataRow(getClassTable());
+		populate(row, cached.getObject());
+		cached.setStored(getValues(row));
+		index(getId(cached.getObject()), cached.getObject());
+		
+		for (PersistedList list : externalFields)
+		{
+			cached.setSavedList(list, list.getKeys(cached.getObject()));
+		}
+	}
+	
+	/**
+	 * Called when a batch for this class could not be written.
+	 * 
+	 * This may be called from the writer thread, so the objects and ids are only
+	 * queued here. They are put back into the dirty set on the next save.
+	 * 
+	 * @param objects The objects that were in the batch, which have already been marked dirty
+	 * @param ids The removed ids that the batch was deleting
+	 */
+	protected void writeFailed(List<CachedObject> objects, List<Object> ids)
+	{
+		failedObjects.addAll(objects);
+		failedRemovals.addAll(ids);
+		if (persistence != null)
+		{
+			persistence.markDirty(this);
+		}
+	}
+	
+	/**
+	 * Put the objects and removals from failed batches back into the dirty set.
+	 * 
+	 * Objects that have been removed or replaced since are skipped, as are
+	 * removed ids that have since been put back.
+	 */
+	protected void requeueFailed()
+	{
+		CachedObject cached = null;
+		while ((cached = failedObjects.poll()) != null)
+		{
+			Object id = getId(cached.getObject());
+			if (id != null && cacheMap.get(id) == cached)
+			{
+				dirtyObjects.add(cached);
+			}
+		}
+		
+		Object id = null;
+		while ((id = failedRemovals.poll()) != null)
+		{
+			if (!cacheMap.containsKey(id))
+			{
+				removedIds.add(id);
+			}
+		}
+	}
+	
+	/**
+	 * Track an object that needs to be saved.
+	 * 
+	 * This also lets Persistence know that this class has changes, so save()
+	 * can skip classes that haven't changed.
+	 * 
+	 * @param cached The modified object
+	 */
+	protected void markDirty(CachedObject cached)
+	{
+		dirtyObjects.add(cached);
+		if (persistence != null)
+		{
+			persistence.markDirty(this);
+		}
+	}
+	
+	/**
+	 * Record an object's current state in the journal, if there is one.
+	 * 
+	 * The record holds the object's class table row and all of its list rows, so replaying
+	 * it restores the object as it is now. Removed objects are recorded with no rows.
+	 * 
+	 * @param id The object's id
+	 * @param o The object, or null if it was removed
+	 */
+	protected void journal(Object id, Object o)
+	{
+		PersistenceJournal journal = persistence == null ? null : persistence.getJournal();
+		if (journal == null || id == null || !isJournaled()) return;
+		
+		List<DataTable> tables = new ArrayList<DataTable>();
+		DataTable classTable = getClassTable();
+		classTable.addIdFieldName(idField.getDataName());
+		if (o != null)
+		{
+			DataRow row = new DataRow(classTable);
+			populate(row, o);
+			classTable.addRow(row);
+		}
+		tables.add(classTable);
+		
+		for (PersistedList list : externalFields)
+		{
+			DataTable listTable = getListTable(list);
+			listTable.addIdFieldName(getContainedIdName());
+			list.save(listTable, o);
+			tables.add(listTable);
 		}
+		
+		journal.write(schema, id, tables);
+	}
+	
+	/**
+	 * Check to see if this class's changes can be journaled.
+	 * 
+	 * Either all of a class's changes are journaled, or none are, so a replay 
+	 * never restores an older version of an object over a newer one.
+	 * 
+	 * @return true if every column of this class and its lists can be journaled
+	 */
+	protected boolean isJournaled()
+	{
+		if (journalChecked) return journaled;
+		
+		List<DataTable> tables = new ArrayList<DataTable>();
+		DataTable classTable = getClassTable();
+		classTable.createHeader();
+		populateHeader(classTable);
+		tables.add(classTable);
+		for (PersistedList list : externalFields)
+		{
+			DataTable listTable = getListTable(list);
+			list.populateHeader(listTable);
+			tables.add(listTable);
+		}
+		
+		journaled = idField != null && !contained;
+		for (DataTable table : tables)
+		{
+			for (DataField field : table.getHeader().getFields())
+			{
+				journaled = journaled && PersistenceJournal.canWrite(field.getType());
+			}
+		}
+		if (!journaled)
+		{
+			log.info("Persistence: Changes to " + getTableName() + " can't be journaled, it has fields that can't be stored");
+		}
+		journalChecked = true;
+		return journaled;
 	}
 	
 	/*
@@ -451,17 +1240,25 @@ public class PersistedClass
 	
 	protected void checkLoadCache(DataStore store)
 	{
-		if (loadState == LoadState.UNLOADED && cacheObjects)
+		if (loadState == LoadState.UNLOADED)
 		{
 			loadState = LoadState.LOADING;
 			try
 			{
-				if (store.connect())
+				// The writer thread may be using this store
+				synchronized (store)
 				{
+					if (!store.connect()) return;
 					validateTables(store);
-					loadCache();
-					loadState = LoadState.LOADED;
 				}
+				
+				// Non-cached objects are loaded one at a time, as needed
+				if (cacheObjects)
+				{
+					loadCache(store);
+					cacheComplete = true;
+				}
+				loadState = LoadState.LOADED;
 			}
 			catch(Exception e)
 			{
@@ -524,6 +1321,278 @@ public class PersistedClass
 		}
 	}
 	
+	/**
+	 * Load this class's cache now, instead of waiting for it to be used.
+	 * 
+	 * If this class's tables have been prefetched, objects are built from that data
+	 * instead of reading from the store again.
+	 * 
+	 * @return true if the class is loaded
+	 */
+	public boolean preload()
+	{
+		boolean loading = lock();
+		try
+		{
+			checkLoadCache();
+			return loadState == LoadState.LOADED;
+		}
+		finally
+		{
+			unlock(loading);
+		}
+	}
+	
+	/**
+	 * Read this class's tables from its store, without creating any objects.
+	 * 
+	 * This is used to warm up the cache from a background thread. It doesn't take this
+	 * class's lock while reading, so it can run alongside other classes being loaded.
+	 * The data is kept until the class is loaded, see preload(). If it has already been
+	 * read, it isn't read again.
+	 * 
+	 * @return The number of rows read, or -1 if there was nothing to read
+	 */
+	public int prefetch()
+	{
+		if (!cacheObjects || loadState != LoadState.UNLOADED) return -1;
+		
+		classLock.lock();
+		try
+		{
+			if (prefetchedTable != null) return prefetchedTable.getRowCount();
+		}
+		finally
+		{
+			classLock.unlock();
+		}
+		
+		DataStore store = defaultStore;
+		synchronized (store)
+		{
+			if (!store.connect()) return -1;
+			validateTables(store);
+		}
+		
+		// Tables are in the same order as in a snapshot, the class table and then each list
+		List<ColumnarTable> tables = readSnapshot(store);
+		if (tables == null)
+		{
+			tables = new ArrayList<ColumnarTable>();
+			ColumnarTable classTable = new ColumnarTable(getTableName());
+			if (!store.load(classTable)) return -1;
+			tables.add(classTable);
+			for (PersistedList list : externalFields)
+			{
+				ColumnarTable listTable = new ColumnarTable(list.getTableName());
+				if (!store.load(listTable)) return -1;
+				tables.add(listTable);
+			}
+		}
+		
+		classLock.lock();
+		try
+		{
+			// Someone may have loaded this class in the meantime
+			if (loadState != LoadState.UNLOADED) return -1;
+			setPrefetched(tables);
+		}
+		finally
+		{
+			classLock.unlock();
+		}
+		return tables.get(0).getRowCount();
+	}
+	
+	protected void setPrefetched(List<ColumnarTable> tables)
+	{
+		prefetchedTable = tables.get(0);
+		prefetchedLists = new HashMap<PersistedList, ColumnarTable>();
+		for (int i = 0; i < externalFields.size(); i++)
+		{
+			prefetchedLists.put(externalFields.get(i), tables.get(i + 1));
+		}
+	}
+	
+	/**
+	 * Write this class's cache to a snapshot file, so it can be loaded quickly on the next startup.
+	 * 
+	 * This should only be done once all changes have been written to the store. Only
+	 * fully cached classes with no unsaved changes are written.
+	 * 
+	 * @param folder The folder to write snapshots to
+	 * @return true if a snapshot was written
+	 */
+	public boolean writeSnapshot(File folder)
+	{
+		boolean loading = lock();
+		try
+		{
+			if (!cacheObjects || loadState != LoadState.LOADED || !cacheComplete || isDirty()) return false;
+			
+			long start = OperationStats.start();
+			List<CachedObject> instances = new ArrayList<CachedObject>(cacheMap.values());
+			List<ColumnarTable> tables = new ArrayList<ColumnarTable>();
+			ColumnarTable classTable = new ColumnarTable(getTableName());
+			populate(classTable, instances);
+			tables.add(classTable);
+			for (PersistedList list : externalFields)
+			{
+				ColumnarTable listTable = new ColumnarTable(list.getTableName());
+				for (CachedObject instance : instances)
+				{
+					list.save(listTable, instance.getObject());
+				}
+				tables.add(listTable);
+			}
+			
+			// Snapshots can only be checked against stores that can tell when their data has changed
+			long dataVersion;
+			synchronized (defaultStore)
+			{
+				dataVersion = defaultStore.getDataVersion();
+			}
+			if (dataVersion == 0) return false;
+			
+			folder.mkdirs();
+			File file = getSnapshotFile(folder);
+			if (!TableSnapshot.write(file, getSignature(dataVersion), tables))
+			{
+				log.info("Persistence: Can't write a snapshot of " + getTableName() + ", it has fields that can't be stored");
+				return false;
+			}
+			snapshotWriteStats.end(start, classTable.getRowCount(), file.length());
+			return true;
+		}
+		catch (IOException e)
+		{
+			log.warning("Persistence: Error writing snapshot of " + getTableName() + ": " + e.getMessage());
+			return false;
+		}
+		finally
+		{
+			unlock(loading);
+		}
+	}
+	
+	/**
+	 * Read this class's tables from its snapshot file, if it has a usable one.
+	 * 
+	 * A snapshot is only used if its layout matches this class, its checksum is good, the
+	 * store's data version hasn't changed since it was written, and its tables have the same
+	 * number of rows as the store. The file is removed once it's been read, since it won't 
+	 * include any changes made after this.
+	 * 
+	 * @param store The store the snapshot was taken from
+	 * @return The class table, followed by each list table, or null to read from the store
+	 */
+	protected List<ColumnarTable> readSnapshot(DataStore store)
+	{
+		File folder = persistence == null ? null : persistence.getSnapshotFolder();
+		if (folder == null) return null;
+		
+		File file = getSnapshotFile(folder);
+		if (!file.exists()) return null;
+		
+		long startTime = System.currentTimeMillis();
+		long start = OperationStats.start();
+		long size = file.length();
+		try
+		{
+			long dataVersion;
+			synchronized (store)
+			{
+				dataVersion = store.getDataVersion();
+			}
+			if (dataVersion == 0)
+			{
+				log.info("Persistence: Can't check the snapshot of " + getTableName() + " against the store, loading from the store");
+				return null;
+			}
+			
+			List<ColumnarTable> tables = TableSnapshot.read(file, getSignature(dataVersion));
+			if (tables == null || tables.size() != externalFields.size() + 1)
+			{
+				log.info("Persistence: Snapshot of " + getTableName() + " is out of date, loading from the store");
+				return null;
+			}
+			
+			// Make sure the store hasn't been changed since the snapshot was written
+			synchronized (store)
+			{
+				for (ColumnarTable table : tables)
+				{
+					if (store.count(table) != table.getRowCount())
+					{
+						log.info("Persistence: Snapshot of " + getTableName() + " doesn't match the store, loading from the store");
+						return null;
+					}
+				}
+			}
+			
+			log.info("Persistence: Read snapshot of " + getTableName() + ", " + tables.get(0).getRowCount() 
+					+ " rows in " + (System.currentTimeMillis() - startTime) + "ms");
+			snapshotReadStats.end(start, tables.get(0).getRowCount(), size);
+			return tables;
+		}
+		catch (Exception e)
+		{
+			log.warning("Persistence: Error reading snapshot of " + getTableName() + ": " + e.getMessage());
+			return null;
+		}
+		finally
+		{
+			if (!file.delete())
+			{
+				log.warning("Persistence: Couldn't remove snapshot file " + file.getName());
+			}
+		}
+	}
+	
+	protected File getSnapshotFile(File folder)
+	{
+		return new File(folder, schema + "." + getTableName() + ".snapshot");
+	}
+	
+	/**
+	 * Get a value identifying the layout of this class's tables, and the data they hold.
+	 * 
+	 * This changes if columns are added, removed, renamed or change type, or if the
+	 * store's data version changes.
+	 * 
+	 * @param dataVersion The store's data version
+	 * @return A checksum of the table and column names and types, and the data version
+	 * @see DataStore#getDataVersion()
+	 */
+	protected long getSignature(long dataVersion)
+	{
+		CRC32 signature = new CRC32();
+		signature.update(Long.toString(dataVersion).getBytes());
+		List<DataTable> tables = new ArrayList<DataTable>();
+		DataTable classTable = getClassTable();
+		classTable.createHeader();
+		populateHeader(classTable);
+		tables.add(classTable);
+		for (PersistedList list : externalFields)
+		{
+			DataTable listTable = getListTable(list);
+			list.populateHeader(listTable);
+			tables.add(listTable);
+		}
+		
+		for (DataTable table : tables)
+		{
+			StringBuilder layout = new StringBuilder(table.getName());
+			for (DataField field : table.getHeader().getFields())
+			{
+				layout.append(',').append(field.getName()).append(':').append(field.getType());
+			}
+			layout.append(';');
+			signature.update(layout.toString().getBytes());
+		}
+		return signature.getValue();
+	}
+	
 	protected void loadCache()
 	{
 		loadCache(defaultStore);
@@ -532,65 +1601,542 @@ public class PersistedClass
 	protected void loadCache(DataStore store)
 	{
 		if (!store.connect()) return;
+		long start = OperationStats.start();
 		
-		DataTable classTable = getClassTable();
-		store.load(classTable);
-		
-		// Begin deferred referencing, to prevent the problem of DAO's referencing unloaded DAOs.
-		// DAOs will be loaded recursively as needed,
-		// and then all deferred references will be resolved afterward.
-		PersistedReference.beginDefer();
+		// References are collected as objects are loaded, to prevent the problem of DAO's referencing unloaded DAOs.
+		// They are all bound afterward, once this class is in the cache.
+		final LoadContext context = new LoadContext();
 		
-		for (DataRow row : classTable.getRows())
+		// Objects are created as rows are read, without holding the whole table in memory
+		if (prefetchedTable == null)
+		{
+			List<ColumnarTable> snapshot = readSnapshot(store);
+			if (snapshot != null)
+			{
+				setPrefetched(snapshot);
+			}
+		}
+		ColumnarTable classTable = prefetchedTable;
+		Map<PersistedList, ColumnarTable> listTables = prefetchedLists;
+		prefetchedTable = null;
+		prefetchedLists = null;
+		DataRowHandler loader = new DataRowHandler()
 		{
-			Object newInstance = createInstance(row);
-			if (newInstance != null)
+			public void handle(DataRow row)
 			{
-				if (idField.isAutogenerated())
+				Object newInstance = createInstance(row, context);
+				if (newInstance != null)
 				{
-					int id = (Integer)idField.get(newInstance);
-					if (id > maxId) maxId = id;
+					addLoadedToCache(newInstance);
 				}
-				addToCache(newInstance);
 			}
+		};
+		if (classTable != null)
+		{
+			classTable.read(loader);
+		}
+		else
+		{
+			store.load(getClassTable(), loader);
 		}
-		
-		// Bind deferred references, to handle DAOs referencing other DAOs, even of the
-		// Same type. 
-		// DAOs will be loaded recursively as needed, and then references bound when everything has been
-		// resolved.
-		PersistedReference.endDefer();
-
-		// Defer load lists of entities
-		PersistedList.beginDefer();
 		
 		// Load list data
 		if (externalFields.size() > 0)
 		{
 			List<Object> instances = new ArrayList<Object>();
-			for (CachedObject cached : cache)
+			for (CachedObject cached : cacheMap.values())
 			{
 				instances.add(cached.getObject());
 			}
 			for (PersistedList list : externalFields)
 			{
-				DataTable listTable = getListTable(list);
-				store.load(listTable);
-				list.load(listTable, instances);
+				ColumnarTable listTable = listTables == null ? null : listTables.get(list);
+				if (listTable != null)
+				{
+					list.load(listTable, instances, context);
+				}
+				else
+				{
+					list.load(store, instances, context);
+				}
+			}
+		}
+		
+		// Bind references and reference lists, to handle DAOs referencing other DAOs, even of the
+		// same type. Referenced DAOs are loaded as needed, with one lookup per referenced class.
+		context.resolve();
+		
+		for (CachedObject cached : cacheMap.values())
+		{
+			snapshot(cached);
+		}
+		loadStats.end(start, cacheMap.size());
+	}
+	
+	/**
+	 * Look up an object in the cache.
+	 * 
+	 * If the object isn't cached, and the cache doesn't hold the whole table (because
+	 * this is a non-cached class, or objects have been evicted), the object is loaded from the store.
+	 * 
+	 * @param id The id of the object to find
+	 * @return The cached object, or null if not found
+	 */
+	protected CachedObject getCached(Object id)
+	{
+		if (id == null) return null;
+		
+		CachedObject cached = findCached(id);
+		if (cached != null || !mayBeStored(id)) return cached;
+		
+		cached = loadObject(defaultStore, id);
+		if (cached != null)
+		{
+			cached.touch();
+		}
+		return cached;
+	}
+	
+	/**
+	 * Look up an object that is in memory, without reading from the store.
+	 * 
+	 * Evicted objects that are still in use are put back in the cache.
+	 * 
+	 * @param id The id of the object to find
+	 * @return The cached object, or null if it isn't in memory
+	 */
+	protected CachedObject findCached(Object id)
+	{
+		CachedObject cached = cacheMap.get(id);
+		if (cached != null)
+		{
+			cacheHits.incrementAndGet();
+			cached.touch();
+			return cached;
+		}
+		
+		cacheMisses.incrementAndGet();
+		if (!mayBeStored(id)) return null;
+		
+		cached = restoreEvicted(id);
+		if (cached != null)
+		{
+			cached.touch();
+		}
+		return cached;
+	}
+	
+	/**
+	 * Check to see if an object that isn't in memory might be in the store.
+	 * 
+	 * @param id The id of the object
+	 * @return false if we know there is no such object
+	 */
+	protected boolean mayBeStored(Object id)
+	{
+		return !cacheComplete && !removedIds.contains(id);
+	}
+	
+	/**
+	 * Put an evicted object back in the cache, if something is still holding on to it.
+	 * 
+	 * This keeps us from loading a second copy of an object that is still in use.
+	 * 
+	 * @param id The id of the object to restore
+	 * @return The cached object, or null if it's no longer in memory
+	 */
+	protected CachedObject restoreEvicted(Object id)
+	{
+		WeakReference<Object> evicted = evictedMap.remove(id);
+		if (evicted == null) return null;
+		
+		Object o = evicted.get();
+		if (o == null) return null;
+		
+		CachedObject cached = addLoadedToCache(o);
+		snapshot(cached);
+		return cached;
+	}
+	
+	/**
+	 * Load a single object by id, and add it to the working set.
+	 * 
+	 * This is used for non-cached classes, which don't keep the whole table in memory.
+	 * 
+	 * @param store The store to load from
+	 * @param id The id of the object to load
+	 * @return The newly cached object, or null if not found
+	 */
+	protected CachedObject loadObject(DataStore store, Object id)
+	{
+		long start = OperationStats.start();
+		Object newInstance = null;
+		LoadContext context = new LoadContext();
+		if (!store.connect()) return null;
+		
+		DataTable classTable = getClassTable();
+		store.load(classTable, idField.getDataName(), id);
+		if (classTable.getRows().size() == 0) return null;
+		
+		newInstance = createInstance(classTable.getRows().get(0), context);
+		if (newInstance == null) return null;
+		
+		for (PersistedList list : externalFields)
+		{
+			list.load(store, newInstance, context);
+		}
+		
+		// References may need to be loaded from other stores
+		CachedObject cached = addLoadedToCache(newInstance);
+		context.resolve();
+		snapshot(cached);
+		loadObjectStats.end(start, 1);
+		
+		evict();
+		return cached;
+	}
+	
+	/**
+	 * Load a set of objects by id, and add them to the working set.
+	 * 
+	 * This works like loadObject, but reads all of the objects' rows, and their list rows,
+	 * with one query per chunk of ids. The caller should evict afterward.
+	 * 
+	 * @param store The store to load from
+	 * @param ids The ids of the objects to load
+	 */
+	protected void loadObjects(DataStore store, List<Object> ids)
+	{
+		long start = OperationStats.start();
+		final List<Object> loaded = new ArrayList<Object>();
+		final LoadContext context = new LoadContext();
+		if (!store.connect()) return;
+		
+		store.loadIds(getClassTable(), idField.getDataName(), ids, new DataRowHandler()
+		{
+			public void handle(DataRow row)
+			{
+				Object newInstance = createInstance(row, context);
+				if (newInstance != null)
+				{
+					loaded.add(newInstance);
+				}
 			}
+		});
+		if (loaded.size() == 0) return;
+		
+		for (PersistedList list : externalFields)
+		{
+			list.loadIds(store, loaded, context);
 		}
 		
-		// Load any reference lists
-		PersistedList.endDefer();
+		List<CachedObject> cachedObjects = new ArrayList<CachedObject>(loaded.size());
+		for (Object newInstance : loaded)
+		{
+			cachedObjects.add(addLoadedToCache(newInstance));
+		}
+		context.resolve();
+		for (CachedObject cached : cachedObjects)
+		{
+			snapshot(cached);
+		}
+		loadObjectStats.end(start, loaded.size());
+	}
+	
+	/**
+	 * Read every object in a non-cached class, without adding them to the working set.
+	 * 
+	 * Rows are read from the store one at a time. Objects that are already
+	 * in the working set are used in place of a fresh copy, and new objects that
+	 * haven't been saved yet are included.
+	 * 
+	 * @param objects A list to fill with objects
+	 */
+	protected void loadAll(final List<Object> objects)
+	{
+		loadAll(objects, null, null);
+	}
+	
+	/**
+	 * Read the objects in a non-cached class that have a given field value.
+	 * 
+	 * This works like loadAll, but only reads matching rows from the store.
+	 * 
+	 * @param objects A list to fill with objects
+	 * @param field The field to match, or null to read every object
+	 * @param key The index key to match
+	 */
+	protected void loadAll(final List<Object> objects, final PersistedField field, final Object key)
+	{
+		long start = OperationStats.start();
+		final DataStore store = defaultStore;
+		final List<Object> loaded = new ArrayList<Object>();
+		final HashSet<Object> loadedIds = new HashSet<Object>();
+		final String idName = idField.getDataName();
+		final DataType idType = idField.getDataType();
+		final LoadContext context = new LoadContext();
+		
+		if (!store.connect()) return;
+		
+		DataRowHandler handler = new DataRowHandler()
+		{
+			public void handle(DataRow row)
+			{
+				DataField idData = row.get(idName);
+				if (idData == null) return;
+				
+				Object id = DataType.convertTo(idData.getValue(), idType);
+				if (removedIds.contains(id)) return;
+				loadedIds.add(id);
+				
+				// The cached copy may have been changed since it was saved
+				CachedObject cached = cacheMap.get(id);
+				if (cached != null)
+				{
+					if (matches(cached.getObject(), field, key))
+					{
+						objects.add(cached.getObject());
+					}
+					return;
+				}
+				
+				Object newInstance = createInstance(row, context);
+				if (newInstance != null)
+				{
+					objects.add(newInstance);
+					loaded.add(newInstance);
+				}
+			}
+		};
+		if (field == null)
+		{
+			store.load(getClassTable(), handler);
+		}
+		else
+		{
+			store.load(getClassTable(), field.getDataName(), key, handler);
+		}
+		
+		for (PersistedList list : externalFields)
+		{
+			list.load(store, loaded, context);
+		}
+		context.resolve();
+		
+		for (CachedObject cached : cacheMap.values())
+		{
+			Object id = getId(cached.getObject());
+			if (!loadedIds.contains(id) && matches(cached.getObject(), field, key))
+			{
+				objects.add(cached.getObject());
+			}
+		}
+		loadAllStats.end(start, loadedIds.size());
+	}
+	
+	/**
+	 * Evict objects from the cache, based on this class' cache size and timeout settings.
+	 * 
+	 * Objects that have been idle longer than the timeout are evicted, and then the least
+	 * recently used objects are evicted until the cache is under its maximum size.
+	 * 
+	 * Only clean objects are evicted. Dirty objects that would have been evicted are saved instead,
+	 * and will be evicted on a later pass, once they've been written. If that write fails, the 
+	 * objects are dirty again before their pending write is released, so they are kept and saved again.
+	 * 
+	 * Evicted objects will be reloaded from the store as needed.
+	 */
+	public void evict()
+	{
+		boolean loading = lock();
+		try
+		{
+			evictObjects();
+		}
+		finally
+		{
+			unlock(loading);
+		}
+	}
+	
+	protected void evictObjects()
+	{
+		if (loadState != LoadState.LOADED) return;
+		
+		// Objects from failed writes are dirty, make sure they get saved along with the rest
+		requeueFailed();
+		purgeEvicted();
+		
+		boolean overSize = maxCacheSize > 0 && cacheMap.size() > maxCacheSize;
+		if (!overSize && cacheTimeout <= 0) return;
+		
+		List<CachedObject> candidates = new ArrayList<CachedObject>();
+		for (CachedObject cached : cacheMap.values())
+		{
+			if (!cached.isWritePending())
+			{
+				candidates.add(cached);
+			}
+		}
+		Collections.sort(candidates, new Comparator<CachedObject>()
+		{
+			public int compare(CachedObject a, CachedObject b)
+			{
+				long aTime = a.getCacheTime();
+				long bTime = b.getCacheTime();
+				return aTime < bTime ? -1 : (aTime == bTime ? 0 : 1);
+			}
+		});
+		
+		// Trim a bit past the limit, so we're not doing this on every load
+		int targetSize = overSize ? maxCacheSize * 3 / 4 : cacheMap.size();
+		long expireTime = System.currentTimeMillis() - cacheTimeout;
+		List<CachedObject> saveObjects = new ArrayList<CachedObject>();
+		for (CachedObject cached : candidates)
+		{
+			boolean expired = cacheTimeout > 0 && cached.getCacheTime() < expireTime;
+			if (!expired && cacheMap.size() - saveObjects.size() <= targetSize) break;
+			
+			// Re-check under the object's lock, a write may have finished or failed since
+			if (!cached.isEvictable())
+			{
+				if (cached.isDirty())
+				{
+					saveObjects.add(cached);
+				}
+				continue;
+			}
+			
+			// Flag the cache as incomplete before removing anything, 
+			// so unlocked readers can tell they may have missed an object.
+			cacheComplete = false;
+			cacheEvictions++;
+			
+			Object o = cached.getObject();
+			Object id = getId(o);
+			cacheMap.remove(id);
+			unindex(id);
+			evictedMap.put(id, new WeakReference<Object>(o));
+		}
+		
+		if (saveObjects.size() > 0)
+		{
+			SaveBatch batch = new SaveBatch(this, defaultStore);
+			populate(batch, saveObjects);
+			Persistence.getInstance().write(batch);
+		}
+	}
+	
+	protected void purgeEvicted()
+	{
+		Iterator<WeakReference<Object>> it = evictedMap.values().iterator();
+		while (it.hasNext())
+		{
+			if (it.next().get() == null)
+			{
+				it.remove();
+			}
+		}
+	}
+	
+	public int getCacheSize()
+	{
+		return cacheMap.size();
+	}
+	
+	public int getMaxCacheSize()
+	{
+		return maxCacheSize;
+	}
+	
+	public long getCacheHits()
+	{
+		return cacheHits.get();
+	}
+	
+	public long getCacheMisses()
+	{
+		return cacheMisses.get();
+	}
+	
+	/**
+	 * Get the timings and counters for this class.
+	 * 
+	 * @return This class's stats
+	 */
+	public Stats getStats()
+	{
+		return stats;
+	}
+	
+	protected void addGauges()
+	{
+		stats.addGauge("cacheSize", new Gauge()
+		{
+			public long getValue()
+			{
+				return getCacheSize();
+			}
+		});
+		stats.addGauge("cacheHits", new Gauge()
+		{
+			public long getValue()
+			{
+				return getCacheHits();
+			}
+		});
+		stats.addGauge("cacheMisses", new Gauge()
+		{
+			public long getValue()
+			{
+				return getCacheMisses();
+			}
+		});
+		stats.addGauge("cacheEvictions", new Gauge()
+		{
+			public long getValue()
+			{
+				return getCacheEvictions();
+			}
+		});
+		stats.addGauge("dirtyObjects", new Gauge()
+		{
+			public long getValue()
+			{
+				return dirtyObjects.size() + removedIds.size();
+			}
+		});
+	}
+	
+	public long getCacheEvictions()
+	{
+		return cacheEvictions;
 	}
 	
 	public void load(DataRow row, Object o)
+	{
+		LoadContext context = new LoadContext();
+		load(row, o, context);
+		context.resolve();
+	}
+	
+	/**
+	 * Load an object's fields from a row.
+	 * 
+	 * References to other objects are added to the load context, and
+	 * aren't bound until it is resolved.
+	 * 
+	 * @param row The row to read from
+	 * @param o The object to load data into
+	 * @param context The load context for this load
+	 */
+	public void load(DataRow row, Object o, LoadContext context)
 	{
         for (PersistedField field : internalFields)
         {
     		try
     		{
-    			field.load(row, o);
+    			field.load(row, o, context);
     		}
 			catch (Exception ex)
 			{
@@ -599,14 +2145,14 @@ public class PersistedClass
         }
 	}
 	
-	protected Object createInstance(DataRow row)
+	protected Object createInstance(DataRow row, LoadContext context)
 	{
 		Object newObject = null;
 		
 		try
 		{
 			newObject = persistClass.newInstance();
-			load(row, newObject);
+			load(row, newObject, context);
 		}
 		catch (IllegalAccessException ex)
 		{
@@ -637,16 +2183,12 @@ public class PersistedClass
 		// Check to see if this object has already been removed
 		// If the ids are autogenerated, just assume it's a new object.
 		boolean autogenerate = idField.isAutogenerated();
+		boolean removed = false;
 		Object id = null;
 		if (!autogenerate)
 		{
-			CachedObject removedObject = removedMap.get(id);
-			if (removedObject != null)
-			{
-				removedMap.remove(id);
-				removedFromCache.remove(removedObject);
-			}
 			id = getId(o);
+			removed = removedIds.remove(id);
 		}
 		else
 		{
@@ -655,24 +2197,68 @@ public class PersistedClass
 		}
 
 		CachedObject cached = new CachedObject(o);
-		cache.add(cached);
 		cacheMap.put(id, cached);
+		index(id, o);
+		
+		// If the delete for this object hasn't been written yet, its row is still there.
+		// Otherwise, if we have the whole table in memory, we know this is a new row.
+		if (removed)
+		{
+			cached.setStored(null);
+		}
+		else if (autogenerate || cacheComplete)
+		{
+			cached.setNew();
+		}
+		
+		return cached;
+	}
+	
+	/**
+	 * Add an object that was loaded from a store to the cache.
+	 * 
+	 * Unlike addToCache, this keeps the object's id, even if it is autogenerated.
+	 * 
+	 * @param o The loaded object
+	 * @return The cached object
+	 */
+	protected CachedObject addLoadedToCache(Object o)
+	{
+		Object id = getId(o);
+		if (idField.isAutogenerated() && id instanceof Integer)
+		{
+			int intId = (Integer)id;
+			if (intId >= maxId) maxId = intId + 1;
+		}
+		
+		CachedObject cached = new CachedObject(o);
+		cached.setStored(null);
+		if (id != null)
+		{
+			cacheMap.put(id, cached);
+		}
 		
 		return cached;
 	}
 	
 	protected void removeFromCache(Object id)
 	{
-		CachedObject co = cacheMap.get(id);
-		if (co == null)
+		if (id == null) return;
+		
+		// Objects that aren't in memory are still deleted from the store
+		CachedObject co = cacheMap.remove(id);
+		if (co != null)
 		{
-			return;
+			dirtyObjects.remove(co);
 		}
+		unindex(id);
+		evictedMap.remove(id);
+		removedIds.add(id);
 		
-		cache.remove(co);
-		cacheMap.remove(id);
-		removedFromCache.add(co);
-		removedMap.put(id, co);
+		if (persistence != null)
+		{
+			persistence.markDirty(this);
+		}
 	}
 	
 	/*
@@ -686,18 +2272,32 @@ public class PersistedClass
 		LOADED,
 	}
 	
-	protected boolean						dirty				= false;
-	protected LoadState						loadState			= LoadState.UNLOADED;
+	protected volatile LoadState			loadState			= LoadState.UNLOADED;
 
 	protected boolean						contained			= false;
 	protected boolean						cacheObjects		= false;
 	protected DataStore						defaultStore		= null;
+	protected Persistence					persistence			= null;
 	protected int							maxId				= 1;
+	protected int							maxCacheSize		= 0;
+	protected long							cacheTimeout		= 0;
+	protected volatile boolean				cacheComplete		= false;
+	protected volatile boolean				hasReferences		= true;
+	protected final AtomicLong				cacheHits			= new AtomicLong();
+	protected final AtomicLong				cacheMisses			= new AtomicLong();
+	protected volatile long					cacheEvictions		= 0;
 
-	protected HashMap<Object, CachedObject>	cacheMap			= new HashMap<Object, CachedObject>();
-	protected List<CachedObject>			cache				= new ArrayList<CachedObject>();
-	protected HashMap<Object, CachedObject>	removedMap			= new HashMap<Object, CachedObject>();
-	protected List<CachedObject>			removedFromCache	= new ArrayList<CachedObject>();
+	protected ConcurrentHashMap<Object, CachedObject> cacheMap	= new ConcurrentHashMap<Object, CachedObject>();
+	protected HashMap<Object, WeakReference<Object>> evictedMap	= new HashMap<Object, WeakReference<Object>>();
+	protected LinkedHashSet<CachedObject>	dirtyObjects		= new LinkedHashSet<CachedObject>();
+	protected LinkedHashSet<Object>			removedIds			= new LinkedHashSet<Object>();
+	protected final ConcurrentLinkedQueue<CachedObject> failedObjects = new ConcurrentLinkedQueue<CachedObject>();
+	protected final ConcurrentLinkedQueue<Object> failedRemovals = new ConcurrentLinkedQueue<Object>();
+	protected ColumnarTable					prefetchedTable		= null;
+	protected List<FieldIndex>				indexes				= new ArrayList<FieldIndex>();
+	protected Map<PersistedList, ColumnarTable> prefetchedLists	= null;
+	protected boolean						journalChecked		= false;
+	protected boolean						journaled			= false;
 
 	protected Class<? extends Object>		persistClass;
 
@@ -711,5 +2311,17 @@ public class PersistedClass
 	protected String						schema 				= null;
 	protected String						name 				= null;
 
+	protected final ReentrantLock			classLock			= new ReentrantLock();
+	
+	protected final Stats					stats				= new Stats();
+	protected final OperationStats			loadStats			= stats.getOperation("load");
+	protected final OperationStats			loadObjectStats		= stats.getOperation("loadObject");
+	protected final OperationStats			loadAllStats		= stats.getOperation("loadAll");
+	protected final OperationStats			saveStats			= stats.getOperation("save");
+	protected final OperationStats			writeStats			= stats.getOperation("write");
+	protected final OperationStats			snapshotReadStats	= stats.getOperation("snapshotRead");
+	protected final OperationStats			snapshotWriteStats	= stats.getOperation("snapshotWrite");
+	
+	protected static final ReentrantLock	loadLock			= new ReentrantLock();
 	protected static Logger					log					= PersistencePlugin.getLogger();
 }
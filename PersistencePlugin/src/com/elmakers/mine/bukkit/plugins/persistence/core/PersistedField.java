@@ -1,7 +1,6 @@
 package com.elmakers.mine.bukkit.plugins.persistence.core;
 
 import java.lang.reflect.Field;
-import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.util.logging.Logger;
 
@@ -49,6 +48,8 @@ public class PersistedField
 
 	public String getDataName()
 	{
+		if (dataName != null) return dataName;
+		
 		if (container != null)
 		{
 			return getContainedName(container.getDataName(), name);
@@ -58,68 +59,43 @@ public class PersistedField
 	
 	public boolean set(Object o, Object value)
 	{
-		if (setter != null)
-		{
-			try
-			{
-				setter.invoke(o, value);
-			}
-			catch(InvocationTargetException e)
-			{
-				return false;
-			}
-			catch(IllegalAccessException e)
-			{
-				return false;
-			}
-		}
-		
-		if (field != null)
-		{
-			try
-			{
-				field.set(o, value);
-			}
-			catch(IllegalAccessException e)
-			{
-				return false;
-			}
-		}
-		return true;
+		return getAccessor().set(o, value);
 	}
 	
 	public Object get(Object o)
 	{
-		Object result = null;
-		if (getter != null)
-		{
-			try
-			{
-				result = getter.invoke(o);
-			}
-			catch(InvocationTargetException e)
-			{
-				result = null;
-			}
-			catch(IllegalAccessException e)
-			{
-				result = null;
-			}
-		}
-		
-		if (result == null && field != null)
+		return getAccessor().get(o);
+	}
+	
+	/**
+	 * Bind this field's accessor, and cache type information.
+	 * 
+	 * This is called once all of the fields in a class have been bound, and 
+	 * avoids doing any lookups when loading and saving individual objects.
+	 */
+	public void bindAccessor()
+	{
+		getAccessor();
+		dataType = null;
+		dataType = getDataType();
+		dataName = null;
+		dataName = getDataName();
+	}
+	
+	protected FieldAccessor getAccessor()
+	{
+		if (accessor == null)
 		{
-			try
+			if (field != null)
 			{
-				result = field.get(o);
+				accessor = FieldAccessor.create(field);
 			}
-			catch(IllegalAccessException e)
+			else
 			{
-				result = null;
+				accessor = FieldAccessor.create(getter, setter);
 			}
 		}
-		
-		return result;
+		return accessor;
 	}
 	
 	public void populateHeader(DataTable dataTable, PersistedField container)
@@ -133,6 +109,10 @@ public class PersistedField
 		{
 			dataTable.addIdFieldName(getName());
 		}
+		if (isIndexed())
+		{
+			dataTable.addIndexFieldName(getDataName());
+		}
 	}
 	
 	public void populateHeader(DataTable dataTable)
@@ -185,6 +165,21 @@ public class PersistedField
 		row.add(field);
 	}
 	
+	/**
+	 * Load this field's data from a row.
+	 * 
+	 * Fields that reference other objects add their references to the load context,
+	 * to be bound once the load is finished.
+	 * 
+	 * @param row The row to read from
+	 * @param o The object to load data into
+	 * @param context The load context for this load
+	 */
+	public void load(DataRow row, Object o, LoadContext context)
+	{
+		load(row, o);
+	}
+	
 	public void load(DataRow row, Object o)
 	{
 		DataField dataField = row.get(getDataName());
@@ -200,6 +195,8 @@ public class PersistedField
 	
 	public DataType getDataType()
 	{
+		if (dataType != null) return dataType;
+		
 		Class<?> fieldType = getType();
 		return DataType.getTypeFromClass(fieldType);
 	}
@@ -379,6 +376,40 @@ public class PersistedField
 		return autogenerate;
 	}
 	
+	public void setIndexed(boolean indexed)
+	{
+		this.indexed = indexed;
+	}
+	
+	public boolean isIndexed()
+	{
+		return indexed;
+	}
+	
+	/**
+	 * Get the value this field is indexed by, for a given object.
+	 * 
+	 * @param o The object to read from
+	 * @return The index key
+	 */
+	public Object getIndexKey(Object o)
+	{
+		return toIndexKey(get(o));
+	}
+	
+	/**
+	 * Convert a field value to the value it is indexed by.
+	 * 
+	 * This is the value itself for data fields.
+	 * 
+	 * @param value The field value
+	 * @return The index key
+	 */
+	public Object toIndexKey(Object value)
+	{
+		return value;
+	}
+	
 	protected PersistedField	container		= null;
 	protected Method			getter			= null;
 	protected Method			setter			= null;
@@ -387,6 +418,10 @@ public class PersistedField
 	protected boolean			idField			= false;
 	protected boolean			contained		= false;
 	protected boolean			autogenerate	= false;
+	protected boolean			indexed			= false;
+	protected FieldAccessor		accessor		= null;
+	protected DataType			dataType		= null;
+	protected String			dataName		= null;
 
 	protected static Logger	log				= PersistencePlugin.getLogger();
 }
@@ -5,12 +5,17 @@ import java.lang.reflect.Method;
 import java.lang.reflect.ParameterizedType;
 import java.lang.reflect.Type;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 
 import com.elmakers.mine.bukkit.plugins.persistence.Persistence;
+import com.elmakers.mine.bukkit.plugins.persistence.data.ColumnarTable;
 import com.elmakers.mine.bukkit.plugins.persistence.data.DataField;
 import com.elmakers.mine.bukkit.plugins.persistence.data.DataRow;
+import com.elmakers.mine.bukkit.plugins.persistence.data.DataRowHandler;
+import com.elmakers.mine.bukkit.plugins.persistence.data.DataStore;
 import com.elmakers.mine.bukkit.plugins.persistence.data.DataTable;
 import com.elmakers.mine.bukkit.plugins.persistence.data.DataType;
 
@@ -67,68 +72,148 @@ public class PersistedList extends PersistedField
         }
 	}
 
-	public void load(DataTable subTable, List<Object> instances)
+	/**
+	 * Load list data for a set of instances from a table that has already been read.
+	 * 
+	 * @param subTable The list data
+	 * @param instances The instances that own the list data
+	 * @param context The load context, lists of references are bound when it is resolved
+	 */
+	public void load(DataTable subTable, List<Object> instances, LoadContext context)
 	{
-		load(subTable, instances, null);
+		// Load data for all lists in all instances at once, mapping to
+		// correct instances based on the id column.
+		ListLoader loader = new ListLoader(instances, context);
+		for (DataRow row : subTable.getRows())
+		{
+			loader.handle(row);
+		}
+		loader.finish();
 	}
 	
-	public void load(DataTable subTable, List<Object> instances, PersistedField container)
+	/**
+	 * Load list data for a set of instances directly from a store, one row at a time.
+	 * 
+	 * @param store The store to read from
+	 * @param instances The instances that own the list data
+	 * @param context The load context, lists of references are bound when it is resolved
+	 */
+	public void load(DataStore store, List<Object> instances, LoadContext context)
 	{
-		// Load data for all lists in all instances at once, mapping to
-		// correct instances based on the id column.
-		
-		HashMap<Object, Object> objectIdMap = new HashMap<Object, Object>();
-		HashMap<Object, List<Object> > objectLists = new HashMap<Object, List<Object> >();
+		ListLoader loader = new ListLoader(instances, context);
+		store.load(new DataTable(getTableName()), loader);
+		loader.finish();
+	}
+	
+	/**
+	 * Load list data for a set of instances from a store, only reading their rows.
+	 * 
+	 * @param store The store to read from
+	 * @param instances The instances that own the list data
+	 * @param context The load context, lists of references are bound when it is resolved
+	 */
+	public void loadIds(DataStore store, List<Object> instances, LoadContext context)
+	{
+		List<Object> ids = new ArrayList<Object>(instances.size());
 		for (Object instance : instances)
 		{
-			Object instanceId = owningType.getId(instance);
-			objectIdMap.put(instanceId, instance);
-			List<Object> listData = new ArrayList<Object>();
-			objectLists.put(instanceId, listData);
+			ids.add(owningType.getId(instance));
 		}
-		
-		String idName = owningType.getContainedIdName(this);
-		
-		for (DataRow row : subTable.getRows())
+		ListLoader loader = new ListLoader(instances, context);
+		store.loadIds(new DataTable(getTableName()), owningType.getContainedIdName(this), ids, loader);
+		loader.finish();
+	}
+	
+	/**
+	 * Load list data for a single instance from a store.
+	 * 
+	 * @param store The store to read from
+	 * @param instance The instance that owns the list data
+	 * @param context The load context, lists of references are bound when it is resolved
+	 */
+	public void load(DataStore store, Object instance, LoadContext context)
+	{
+		List<Object> instances = new ArrayList<Object>(1);
+		instances.add(instance);
+		ListLoader loader = new ListLoader(instances, context);
+		store.load(new DataTable(getTableName()), owningType.getContainedIdName(this), owningType.getId(instance), loader);
+		loader.finish();
+	}
+	
+	/**
+	 * Maps list rows back to their owning instances as they are read.
+	 */
+	class ListLoader implements DataRowHandler
+	{
+		public ListLoader(List<Object> instances, LoadContext context)
 		{
-			Object id = row.get(idName);
-			List<Object> list = objectLists.get(id);
-			if (list != null)
+			this.context = context;
+			for (Object instance : instances)
 			{
-				if (contained && referenceType != null)
-				{
-					Object newInstance = referenceType.createInstance(row);
-					list.add(newInstance);
-				}
-				else
-				{
-					Object data = row.get(getReferenceIdName());
-					list.add(data);
-				}
+				Object instanceId = owningType.getId(instance);
+				objectIdMap.put(instanceId, instance);
+				List<Object> listData = new ArrayList<Object>();
+				objectLists.put(instanceId, listData);
 			}
+			
+			idName = owningType.getContainedIdName(PersistedList.this);
+			referenceIdName = getReferenceIdName();
 		}
 		
-		// Assign lists to instance fields, or defer until later
-		for (Object objectId : objectLists.keySet())
+		public void handle(DataRow row)
 		{
-			List<Object> listData = objectLists.get(objectId);
-			Object instance = objectIdMap.get(objectId);
+			DataField idField = row.get(idName);
+			if (idField == null) return;
+			
+			List<Object> list = objectLists.get(idField.getValue());
+			if (list == null) return;
 			
-			if (referenceType == null || contained)
+			if (contained && referenceType != null)
 			{
-				set(instance, listData);
+				Object newInstance = referenceType.createInstance(row, context);
+				list.add(newInstance);
 			}
 			else
 			{
-				DeferredReferenceList list = deferListMap.get(instance);
-				if (list == null)
+				String valueName = referenceIdName == null ? getDataName() : referenceIdName;
+				DataField dataField = row.get(valueName);
+				Object data = null;
+				if (dataField != null)
+				{
+					data = dataField.getValue();
+					if (referenceType == null && dataField.getType() != listDataType)
+					{
+						data = DataType.convertTo(data, listDataType);
+					}
+				}
+				list.add(data);
+			}
+		}
+		
+		public void finish()
+		{
+			// Assign lists to instance fields, or defer until the load context is resolved
+			for (Object objectId : objectLists.keySet())
+			{
+				List<Object> listData = objectLists.get(objectId);
+				Object instance = objectIdMap.get(objectId);
+				
+				if (referenceType == null || contained)
+				{
+					set(instance, listData);
+				}
+				else
 				{
-					list = new DeferredReferenceList(this);
-					deferListMap.put(instance, list);
+					context.addReferenceList(PersistedList.this, instance, listData);
 				}
-				list.idList = listData;
 			}
 		}
+		
+		private final LoadContext context;
+		private final HashMap<Object, Object> objectIdMap = new HashMap<Object, Object>();
+		private final HashMap<Object, List<Object> > objectLists = new HashMap<Object, List<Object> >();
+		private final String idName;
+		private final String referenceIdName;
 	}
 	
 	public String getReferenceIdName()
@@ -145,6 +230,27 @@ public class PersistedList extends PersistedField
 	}
 	
 	protected void populate(DataRow dataRow, Object instance, Object data, PersistedField container)
+	{
+		populateOwner(dataRow, instance);
+		
+		// Add data rows
+		if (contained && referenceType != null)
+		{
+			referenceType.populate(dataRow, data);
+		}
+		else
+		{
+			populateKey(dataRow, getKey(data));
+		}
+	}
+	
+	/**
+	 * Add the owning instance's id column, this binds the row to the owning class.
+	 * 
+	 * @param dataRow The row to add to
+	 * @param instance The instance that owns the list
+	 */
+	protected void populateOwner(DataRow dataRow, Object instance)
 	{
 		PersistedField idField = owningType.getIdField();
 		
@@ -158,34 +264,75 @@ public class PersistedList extends PersistedField
 		DataField idData = new DataField(idName, idField.getDataType(), id);
 		idData.setIdField(true);
 		dataRow.add(idData);
-		
-		// Add data rows
+	}
+	
+	/**
+	 * Add the value column for a list element, using its key.
+	 * 
+	 * This is the value itself for lists of data, or the id of the referenced
+	 * object for lists of references. It is not used for contained objects.
+	 * 
+	 * @param dataRow The row to add to
+	 * @param key The element key
+	 */
+	protected void populateKey(DataRow dataRow, Object key)
+	{
+		DataField valueData = null;
 		if (referenceType == null)
 		{
-			DataField valueData = new DataField(getDataName(), listDataType);
-			valueData.setIdField(true);
-			if (data != null)
-			{
-				valueData.setValue(data);
-			}
-			dataRow.add(valueData);
+			valueData = new DataField(getDataName(), listDataType);
 		}
-		else if (contained)
+		else
 		{
-			referenceType.populate(dataRow, data);
+			valueData = new DataField(getReferenceIdName(), referenceType.getIdField().getDataType());
 		}
-		else
-		{	
-			PersistedField referenceIdField = referenceType.getIdField();
-			DataField referenceIdData = new DataField(getReferenceIdName(), referenceIdField.getDataType());
-			if (data != null)
-			{
-				Object referenceId = referenceIdField.get(data);
-				referenceIdData.setValue(referenceId);
-			}
-			referenceIdData.setIdField(true);
-			dataRow.add(referenceIdData);
-		}	
+		if (key != null)
+		{
+			valueData.setValue(key);
+		}
+		valueData.setIdField(true);
+		dataRow.add(valueData);
+	}
+	
+	/**
+	 * Get a value that identifies a list element in the store.
+	 * 
+	 * For contained objects, this is a list of all of the object's column values.
+	 * 
+	 * @param data The list element
+	 * @return The element key
+	 */
+	protected Object getKey(Object data)
+	{
+		if (referenceType == null) return data;
+		if (data == null) return null;
+		if (!contained) return referenceType.getIdField().get(data);
+		
+		DataRow row = new DataRow(new DataTable(tableName));
+		referenceType.populate(row, data);
+		return Arrays.asList(PersistedClass.getValues(row));
+	}
+	
+	/**
+	 * Get the keys for every element of an instance's list.
+	 * 
+	 * @param instance The instance that owns the list
+	 * @return A list of element keys, in list order
+	 */
+	public List<Object> getKeys(Object instance)
+	{
+		List<Object> keys = new ArrayList<Object>();
+		if (instance == null) return keys;
+		
+		@SuppressWarnings("unchecked")
+		List<? extends Object> list = (List<? extends Object>)get(instance);
+		if (list == null) return keys;
+		
+		for (Object data : list)
+		{
+			keys.add(getKey(data));
+		}
+		return keys;
 	}
 	
 	public void populateHeader(DataTable dataTable, PersistedField container)
@@ -211,6 +358,118 @@ public class PersistedList extends PersistedField
 		}
 	}
 	
+	/**
+	 * Collect the changes needed to save this list for one instance.
+	 * 
+	 * The list is compared with the keys that were last loaded or saved. If elements
+	 * have only been removed, or added to the end of the list, just those rows are
+	 * deleted or written, which keeps the rows in list order. Any other change
+	 * rewrites all of the rows for this instance.
+	 * 
+	 * Lists of contained objects are always rewritten if they've changed at all.
+	 * 
+	 * @param changes The changes for this list, for all instances being saved
+	 * @param instance The instance that owns the list
+	 * @param savedKeys The keys last read or written, or null if not known
+	 * @return The current keys, to compare with on the next save
+	 */
+	public List<Object> save(ListChanges changes, Object instance, List<Object> savedKeys)
+	{
+		List<Object> keys = getKeys(instance);
+		if (savedKeys != null && keys.equals(savedKeys)) return keys;
+		
+		if (savedKeys != null && !contained)
+		{
+			HashSet<Object> keySet = new HashSet<Object>(keys);
+			HashSet<Object> savedSet = new HashSet<Object>(savedKeys);
+			List<Object> kept = new ArrayList<Object>();
+			List<Object> removed = new ArrayList<Object>();
+			for (Object key : savedKeys)
+			{
+				if (keySet.contains(key))
+				{
+					kept.add(key);
+				}
+				else
+				{
+					removed.add(key);
+				}
+			}
+			
+			boolean appendOnly = keys.size() >= kept.size() && keys.subList(0, kept.size()).equals(kept);
+			for (int i = kept.size(); appendOnly && i < keys.size(); i++)
+			{
+				appendOnly = !savedSet.contains(keys.get(i));
+			}
+			
+			if (appendOnly)
+			{
+				for (Object key : removed)
+				{
+					DataRow row = new DataRow(changes.deleteTable);
+					populateOwner(row, instance);
+					populateKey(row, key);
+					changes.deleteTable.addRow(row);
+				}
+				for (int i = kept.size(); i < keys.size(); i++)
+				{
+					DataRow row = new DataRow(changes.insertTable);
+					populateOwner(row, instance);
+					populateKey(row, keys.get(i));
+					changes.insertTable.addRow(row);
+				}
+				return keys;
+			}
+		}
+		
+		changes.rewriteIds.add(owningType.getId(instance));
+		save(changes.rewriteTable, instance);
+		return keys;
+	}
+	
+	public ListChanges createChanges()
+	{
+		return new ListChanges();
+	}
+	
+	/**
+	 * The rows to write for a list, for a set of instances.
+	 */
+	public class ListChanges
+	{
+		public ListChanges()
+		{
+			rewriteTable.addIdFieldName(owningType.getContainedIdName());
+		}
+		
+		/**
+		 * Add steps to a batch to write these changes.
+		 * 
+		 * @param batch The batch to add to
+		 */
+		public void addTo(SaveBatch batch)
+		{
+			if (rewriteIds.size() > 0)
+			{
+				// Delete the old list data, then save the new list data.
+				batch.clearIds(rewriteTable, rewriteIds);
+			}
+			if (deleteTable.getRowCount() > 0)
+			{
+				batch.delete(deleteTable);
+			}
+			if (insertTable.getRowCount() > 0)
+			{
+				batch.save(insertTable);
+			}
+		}
+		
+		protected final DataTable rewriteTable = new ColumnarTable(tableName);
+		protected final DataTable insertTable = new ColumnarTable(tableName);
+		protected final DataTable deleteTable = new DataTable(tableName);
+		protected final List<Object> rewriteIds = new ArrayList<Object>();
+	}
+	
 	protected void findListType()
 	{
         Type type = getGenericType();  
@@ -259,52 +518,6 @@ public class PersistedList extends PersistedField
 		return genericType;
 	}
 	
-	public static void beginDefer()
-	{
-		deferStackDepth++;
-	}
-	
-	public static void endDefer()
-	{
-		deferStackDepth--;
-		if (deferStackDepth > 0) return;
-		
-		for (Object instance : deferListMap.keySet())
-		{
-			List<Object> references = new ArrayList<Object>();
-			DeferredReferenceList ref = deferListMap.get(instance);
-			for (Object id : ref.idList)
-			{
-				if (id == null) 
-				{
-					references.add(null);
-				}
-				else
-				{
-					Object reference = ref.referenceList.referenceType.get(id);
-					references.add(reference);
-				}
-			}
-			
-			ref.referenceList.set(instance, references);
-		}
-		deferListMap.clear();
-	}
-	
-	class DeferredReferenceList
-	{
-		public PersistedList referenceList;
-		public List<Object> idList;
-		
-		public DeferredReferenceList(PersistedList listField)
-		{
-			referenceList = listField;
-		}
-	}
-
-	private static int deferStackDepth = 0;
-	private final static HashMap<Object, DeferredReferenceList> deferListMap = new HashMap<Object, DeferredReferenceList>();
-
 	protected final PersistedClass owningType;
 	protected String tableName;
 	protected Class<?> listType;
@@ -2,8 +2,6 @@ package com.elmakers.mine.bukkit.plugins.persistence.core;
 
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
-import java.util.List;
-import java.util.ArrayList;
 
 import com.elmakers.mine.bukkit.plugins.persistence.Persistence;
 import com.elmakers.mine.bukkit.plugins.persistence.data.DataField;
@@ -91,6 +89,27 @@ public class PersistedReference extends PersistedField
 		{
 			headerRow.add(field);
 		}
+		if (isIndexed())
+		{
+			dataTable.addIndexFieldName(getDataName());
+		}
+	}
+	
+	/**
+	 * References are indexed by the id of the referenced object.
+	 * 
+	 * The value may be either the referenced object, or its id.
+	 */
+	@Override
+	public Object toIndexKey(Object value)
+	{
+		if (value == null || referenceType == null) return value;
+		
+		if (referenceType.getType().isInstance(value))
+		{
+			return referenceType.getId(value);
+		}
+		return value;
 	}
 
 	public void save(DataRow row, Object o)
@@ -118,13 +137,22 @@ public class PersistedReference extends PersistedField
 		row.add(field);
 	}
 	
+	@Override
 	public void load(DataRow row, Object o)
+	{
+		LoadContext context = new LoadContext();
+		load(row, o, context);
+		context.resolve();
+	}
+	
+	@Override
+	public void load(DataRow row, Object o, LoadContext context)
 	{
 		if (referenceType == null) return;	
 		
 		if (contained)
 		{
-			Object newInstance = referenceType.createInstance(row);
+			Object newInstance = referenceType.createInstance(row, context);
 			set(o, newInstance);
 			return;
 		}
@@ -132,43 +160,8 @@ public class PersistedReference extends PersistedField
 		DataField dataField = row.get(getDataName());
 		Object referenceId = dataField.getValue();
 		
-		deferredReferences.add(new DeferredReference(this, o, referenceId));
-	}
-		
-	public static void beginDefer()
-	{
-		deferStackDepth++;
-	}
-	
-	public static void endDefer()
-	{
-		deferStackDepth--;
-		if (deferStackDepth > 0) return;
-		
-		for (DeferredReference ref : deferredReferences)
-		{
-			Object reference = ref.referenceField.referenceType.get(ref.referenceId);
-			ref.referenceField.set(ref.object, reference);
-		}
-		deferredReferences.clear();
+		context.addReference(this, o, referenceId);
 	}
-	
-	class DeferredReference
-	{
-		public PersistedReference referenceField;
-		public Object object;
-		public Object referenceId;
-		
-		public DeferredReference(PersistedReference field, Object o, Object id)
-		{
-			referenceField = field;
-			object = o;
-			referenceId = id;
-		}
-	}
-	
-	private static int deferStackDepth = 0;
-	private final static List<DeferredReference> deferredReferences = new ArrayList<DeferredReference>();
 
 	protected PersistedClass referenceType = null;
 }
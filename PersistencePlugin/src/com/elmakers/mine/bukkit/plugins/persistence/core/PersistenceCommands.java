@@ -3,6 +3,7 @@ package com.elmakers.mine.bukkit.plugins.persistence.core;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 
 import org.bukkit.command.Command;
 import org.bukkit.command.CommandSender;
@@ -14,6 +15,9 @@ import com.elmakers.mine.bukkit.plugins.persistence.PersistencePlugin;
 import com.elmakers.mine.bukkit.plugins.persistence.dao.PluginCommand;
 import com.elmakers.mine.bukkit.plugins.persistence.dao.Message;
 import com.elmakers.mine.bukkit.plugins.persistence.dao.PluginData;
+import com.elmakers.mine.bukkit.plugins.persistence.data.DataStore;
+import com.elmakers.mine.bukkit.plugins.persistence.stats.OperationStats;
+import com.elmakers.mine.bukkit.plugins.persistence.stats.Stats;
 
 public class PersistenceCommands
 {
@@ -33,6 +37,10 @@ public class PersistenceCommands
 		schemaDisplayMessage = messaging.getMessage("schemaDisplay", d.schemaDisplayMessage);
 		entityListMessage = messaging.getMessage("entityList", d.entityListMessage);
 		schemaListMessage = messaging.getMessage("schemaList", d.schemaListMessage);
+		cacheStatsMessage = messaging.getMessage("cacheStats", d.cacheStatsMessage);
+		statsHeaderMessage = messaging.getMessage("statsHeader", d.statsHeaderMessage);
+		operationStatsMessage = messaging.getMessage("operationStats", d.operationStatsMessage);
+		gaugeStatsMessage = messaging.getMessage("gaugeStats", d.gaugeStatsMessage);
 		unknownSchemaMessage = messaging.getMessage("unknownSchema", d.unknownSchemaMessage);
 		unknownEntityMessage = messaging.getMessage("unknownEntity", d.unknownEntityMessage);
 		dataSavedMessage = messaging.getMessage("dataSaved", d.dataSavedMessage);
@@ -46,6 +54,8 @@ public class PersistenceCommands
 		listSubCommand = persistCommand.getSubCommand(d.listSubCommand[0], d.listSubCommand[1], d.listSubCommand[2]);
 		reloadSubCommand = persistCommand.getSubCommand(d.reloadSubCommand[0], d.reloadSubCommand[1], d.reloadSubCommand[2]);
 		resetSubCommand = persistCommand.getSubCommand(d.resetSubCommand[0], d.resetSubCommand[1], d.resetSubCommand[2]);
+		cacheSubCommand = persistCommand.getSubCommand(d.cacheSubCommand[0], d.cacheSubCommand[1], d.cacheSubCommand[2]);
+		statsSubCommand = persistCommand.getSubCommand(d.statsSubCommand[0], d.statsSubCommand[1], d.statsSubCommand[2]);
 		
 		helpCommand = messaging.getGeneralCommand(d.helpCommand[0], d.helpCommand[1], d.helpCommand[2]);
 		
@@ -64,11 +74,23 @@ public class PersistenceCommands
 			listSubCommand.addUsage(usage);
 		}
 		
+		for (String usage : d.cacheUsage)
+		{
+			cacheSubCommand.addUsage(usage);
+		}
+		
+		for (String usage : d.statsUsage)
+		{
+			statsSubCommand.addUsage(usage);
+		}
+		
 		saveSubCommand.bind("onSave");
 		describeSubCommand.bind("onDescribe");
 		listSubCommand.bind("onList");
 		reloadSubCommand.bind("onReload");
 		resetSubCommand.bind("onReset");
+		cacheSubCommand.bind("onCache");
+		statsSubCommand.bind("onStats");
 		
 		helpCommand.bind("onHelp");
 	}
@@ -198,6 +220,84 @@ public class PersistenceCommands
 		return true;
 	}
  	
+	public boolean onCache(CommandSender messageOutput, String[] parameters)
+	{
+		if (parameters == null || parameters.length < 1)
+		{
+			for (Schema schema : persistence.getSchemaList())
+			{
+				showCacheStats(messageOutput, schema.getPersistedClasses());
+			}
+			return true;
+		}
+		
+		String[] entityPath = parameters[0].split("\\.");
+		if (entityPath.length == 1)
+		{
+			Schema schema = persistence.getSchema(entityPath[0]);
+			if (schema == null)
+			{
+				unknownSchemaMessage.sendTo(messageOutput, entityPath[0]);
+				return true;
+			}
+			showCacheStats(messageOutput, schema.getPersistedClasses());
+			return true;
+		}
+		
+		PersistedClass persisted = getEntity(messageOutput, entityPath[0], entityPath[1]);
+		if (persisted == null) return true;
+		
+		List<PersistedClass> entities = new ArrayList<PersistedClass>();
+		entities.add(persisted);
+		showCacheStats(messageOutput, entities);
+		return true;
+	}
+	
+	public boolean onStats(CommandSender messageOutput, String[] parameters)
+	{
+		if (parameters == null || parameters.length < 1)
+		{
+			showStats(messageOutput, "Persistence", persistence.getStats());
+			for (DataStore store : persistence.getStoreList())
+			{
+				showStats(messageOutput, store.getSchema() + " store", store.getStats());
+			}
+			for (Schema schema : persistence.getSchemaList())
+			{
+				showStats(messageOutput, schema.getPersistedClasses());
+			}
+			return true;
+		}
+		
+		String[] entityPath = parameters[0].split("\\.");
+		if (entityPath.length == 1)
+		{
+			Schema schema = persistence.getSchema(entityPath[0]);
+			if (schema == null)
+			{
+				unknownSchemaMessage.sendTo(messageOutput, entityPath[0]);
+				return true;
+			}
+			for (DataStore store : persistence.getStoreList())
+			{
+				if (store.getSchema().equalsIgnoreCase(entityPath[0]))
+				{
+					showStats(messageOutput, store.getSchema() + " store", store.getStats());
+				}
+			}
+			showStats(messageOutput, schema.getPersistedClasses());
+			return true;
+		}
+		
+		PersistedClass persisted = getEntity(messageOutput, entityPath[0], entityPath[1]);
+		if (persisted == null) return true;
+		
+		List<PersistedClass> entities = new ArrayList<PersistedClass>();
+		entities.add(persisted);
+		showStats(messageOutput, entities);
+		return true;
+	}
+	
 	public boolean onDescribe(CommandSender messageOutput, String[] parameters)
 	{
 		if (parameters.length < 1)
@@ -433,6 +533,47 @@ public class PersistenceCommands
 		return persisted;
 	}
 	
+	protected void showCacheStats(CommandSender messageOutput, List<PersistedClass> entities)
+	{
+		for (PersistedClass persisted : entities)
+		{
+			String maxSize = persisted.getMaxCacheSize() > 0 ? Integer.toString(persisted.getMaxCacheSize()) : "-";
+			cacheStatsMessage.sendTo(messageOutput, persisted.getSchema(), persisted.getTableName(), persisted.getCacheSize(), maxSize,
+					persisted.getCacheHits(), persisted.getCacheMisses(), persisted.getCacheEvictions());
+		}
+	}
+	
+	protected void showStats(CommandSender messageOutput, List<PersistedClass> entities)
+	{
+		for (PersistedClass persisted : entities)
+		{
+			showStats(messageOutput, persisted.getSchema() + "." + persisted.getTableName(), persisted.getStats());
+		}
+	}
+	
+	protected void showStats(CommandSender messageOutput, String name, Stats stats)
+	{
+		statsHeaderMessage.sendTo(messageOutput, name);
+		for (Map.Entry<String, Long> gauge : stats.getGaugeValues().entrySet())
+		{
+			gaugeStatsMessage.sendTo(messageOutput, gauge.getKey(), gauge.getValue());
+		}
+		
+		// Skip anything that hasn't happened yet, to keep the output short
+		for (OperationStats operation : stats.getOperations())
+		{
+			if (operation.getCount() == 0) continue;
+			operationStatsMessage.sendTo(messageOutput, operation.getName(), operation.getCount(), operation.getRows(), operation.getBytes(),
+					formatMillis(operation.getMeanMillis()), formatMillis(operation.getPercentileMillis(50)),
+					formatMillis(operation.getPercentileMillis(99)), formatMillis(operation.getMaxMillis()));
+		}
+	}
+	
+	protected static String formatMillis(double millis)
+	{
+		return String.format("%.2f", millis);
+	}
+	
 	protected void describeSchema(CommandSender messageOutput, String schemaName)
 	{
 		Persistence persistence = Persistence.getInstance();
@@ -492,6 +633,8 @@ public class PersistenceCommands
 	private PluginCommand listSubCommand;
 	private PluginCommand reloadSubCommand;
 	private PluginCommand resetSubCommand;
+	private PluginCommand cacheSubCommand;
+	private PluginCommand statsSubCommand;
 	private PluginCommand helpCommand;
 
 	private Message resettingEntityMessage;
@@ -501,6 +644,10 @@ public class PersistenceCommands
 	private Message entityListMessage;
 	private Message schemaDisplayMessage;
 	private Message schemaListMessage;
+	private Message cacheStatsMessage;
+	private Message statsHeaderMessage;
+	private Message operationStatsMessage;
+	private Message gaugeStatsMessage;
 	private Message unknownSchemaMessage;
 	private Message unknownEntityMessage;
 	private Message dataSavedMessage;
@@ -9,10 +9,14 @@ class PersistenceDefaults
 	public final String[] listSubCommand = {"list", "List entities or data", "list <schema>.<entity>"};
 	public final String[] reloadSubCommand = {"reload", "Reload an entity", "reload"};
 	public final String[] resetSubCommand = {"RESET", "DROP an entity table", "RESET <schema>.<entity>"};
+	public final String[] cacheSubCommand = {"cache", "Show cache statistics", "cache <schema>.<entity>"};
+	public final String[] statsSubCommand = {"stats", "Show timings and counters", "stats <schema>.<entity>"};
 	public final String[] helpCommand = {"phelp", "Get help on Persistence plugins", "phelp"};
 
 	public final String[] describeUsage = {"describe <schema>", "describe <schema>.<entity>"};
 	public final String[] listUsage = {"list <schema>.<entity>.<id>"};
+	public final String[] cacheUsage = {"cache <schema>"};
+	public final String[] statsUsage = {"stats <schema>"};
 	
 	public final String[] helpUsage = {"phelp <plugin>", "phelp <plugin>.<command>"};
 	
@@ -23,6 +27,10 @@ class PersistenceDefaults
 	public final String entityDisplayMessage = "Entity %s.%s:";
 	public final String entityListMessage = "%s, %s : %i entities:";
 	public final String schemaListMessage = "Schemas:";
+	public final String cacheStatsMessage = "%s.%s: %s/%s cached, %s hits, %s misses, %s evictions";
+	public final String statsHeaderMessage = "%s:";
+	public final String operationStatsMessage = " %s: %s calls, %s rows, %s bytes, avg %sms, p50 %sms, p99 %sms, max %sms";
+	public final String gaugeStatsMessage = " %s: %s";
 	public final String schemaDisplayMessage = "Schema %s:";
 	public final String unknownSchemaMessage = "Unknown schema: %s";
 	public final String unknownEntityMessage = "Unknown entity: %s";
@@ -0,0 +1,884 @@
+package com.elmakers.mine.bukkit.plugins.persistence.core;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+import com.elmakers.mine.bukkit.plugins.persistence.Persistence;
+import com.elmakers.mine.bukkit.plugins.persistence.PersistencePlugin;
+import com.elmakers.mine.bukkit.plugins.persistence.data.DataField;
+import com.elmakers.mine.bukkit.plugins.persistence.data.DataRow;
+import com.elmakers.mine.bukkit.plugins.persistence.data.DataStore;
+import com.elmakers.mine.bukkit.plugins.persistence.data.DataTable;
+import com.elmakers.mine.bukkit.plugins.persistence.data.DataType;
+import com.elmakers.mine.bukkit.plugins.persistence.stats.OperationStats;
+
+/**
+ * An append-only log of changes that haven't been saved to a data store yet.
+ *
+ * Each put or remove writes a record holding the full state of one object- its class table
+ * row and its list rows, or no rows if it was removed. Replaying a record replaces whatever the
+ * store has for that object, so records can safely be replayed more than once.
+ *
+ * Records are buffered in memory, and a background thread writes them out and forces them
+ * to disk every few milliseconds. This group commit means a put never waits on the disk,
+ * at the cost of losing the last commit interval's changes if the machine itself goes down.
+ *
+ * The journal is split into numbered segment files. Each save starts a new segment, and the
+ * older segments are deleted once that save has been written to the store.
+ *
+ * @author NathanWolf
+ *
+ */
+public class PersistenceJournal
+{
+	public PersistenceJournal(File folder, int commitInterval)
+	{
+		this.folder = folder;
+		this.commitInterval = Math.max(0, commitInterval);
+	}
+
+	/**
+	 * Apply any records left over from the last run to their data stores.
+	 *
+	 * This must be called before any classes are loaded, and before open(). Records are
+	 * applied in order, with one transaction per schema. If every schema is updated, the
+	 * journal files are removed. Otherwise they are kept, to try again on the next startup.
+	 *
+	 * @param persistence The Persistence instance to get stores from
+	 * @return The number of records replayed, or -1 if the replay failed
+	 */
+	public int replay(Persistence persistence)
+	{
+		List<File> files = getSegmentFiles();
+		if (files.size() == 0) return 0;
+
+		// Records for different schemas don't depend on each other, so each schema can be written separately.
+		LinkedHashMap<String, List<Record>> schemaRecords = new LinkedHashMap<String, List<Record>>();
+		int recordCount = 0;
+		for (File file : files)
+		{
+			try
+			{
+				for (Record record : read(file))
+				{
+					List<Record> records = schemaRecords.get(record.schema);
+					if (records == null)
+					{
+						records = new ArrayList<Record>();
+						schemaRecords.put(record.schema, records);
+					}
+					records.add(record);
+					recordCount++;
+				}
+			}
+			catch (IOException e)
+			{
+				log.severe("Persistence: Error reading journal file " + file.getName() + ": " + e.getMessage());
+				pin();
+				return -1;
+			}
+		}
+
+		boolean success = true;
+		for (Map.Entry<String, List<Record>> entry : schemaRecords.entrySet())
+		{
+			if (!apply(persistence.getStore(entry.getKey()), entry.getValue()))
+			{
+				log.severe("Persistence: Error replaying journal for schema " + entry.getKey());
+				success = false;
+			}
+		}
+
+		// Keep everything if anything failed, it's all safe to replay again.
+		if (!success)
+		{
+			pin();
+			return -1;
+		}
+
+		for (File file : files)
+		{
+			if (!file.delete())
+			{
+				log.warning("Persistence: Couldn't remove journal file " + file.getName());
+			}
+		}
+		return recordCount;
+	}
+
+	/**
+	 * Start a new segment, after any that are already on disk, and start the commit thread.
+	 *
+	 * @return false if the journal file couldn't be opened
+	 */
+	public boolean open()
+	{
+		folder.mkdirs();
+		synchronized (channelLock)
+		{
+			long last = 0;
+			firstSegment = 0;
+			for (File file : getSegmentFiles())
+			{
+				long number = getSegmentNumber(file);
+				if (firstSegment == 0) firstSegment = number;
+				last = number;
+			}
+
+			if (!openSegment(last + 1)) return false;
+			if (firstSegment == 0) firstSegment = segment;
+		}
+		thread = new Thread(new Runnable()
+		{
+			public void run()
+			{
+				commitLoop();
+			}
+		}, "Persistence Journal");
+		thread.setDaemon(true);
+		thread.start();
+		return true;
+	}
+
+	/**
+	 * Record the current state of an object.
+	 *
+	 * Each table should have the object's owner id column as its first id field name, and
+	 * contain only that object's rows. An object with no rows in a table has its rows removed.
+	 *
+	 * The record is written to disk on the next group commit.
+	 *
+	 * @param schema The schema the tables are in
+	 * @param id The id of the object
+	 * @param tables The object's rows, by table
+	 * @return false if the record couldn't be encoded
+	 */
+	public boolean write(String schema, Object id, List<DataTable> tables)
+	{
+		byte[] record = null;
+		try
+		{
+			record = encode(schema, id, tables);
+		}
+		catch (IOException e)
+		{
+			log.warning("Persistence: Error encoding journal record for " + schema + "." + tables.get(0).getName() + ": " + e.getMessage());
+			return false;
+		}
+		if (record == null) return false;
+
+		synchronized (pendingLock)
+		{
+			if (!running) return false;
+			pending.add(record);
+			segmentRecords++;
+			pendingLock.notify();
+		}
+		return true;
+	}
+
+	/**
+	 * Start a new segment, in preparation for a save.
+	 *
+	 * Every record written before this is called is for a change that a save started
+	 * afterward will include. Once that save has been written, the returned checkpoint
+	 * can be run to remove the older segments.
+	 *
+	 * @return A checkpoint for the segments written so far, or null if there are none
+	 */
+	public Checkpoint checkpoint()
+	{
+		synchronized (channelLock)
+		{
+			List<byte[]> records = null;
+			boolean roll = false;
+			synchronized (pendingLock)
+			{
+				roll = segmentRecords > 0;
+				if (!roll && firstSegment >= segment) return null;
+				records = pending;
+				pending = new ArrayList<byte[]>();
+			}
+
+			if (roll)
+			{
+				write(records);
+				openSegment(segment + 1);
+			}
+			return new Checkpoint(segment);
+		}
+	}
+
+	/**
+	 * Stop removing journal files, until the next restart.
+	 *
+	 * This is used when a save fails. The objects that failed are saved again on a
+	 * later save, but until one succeeds the journal is the only durable copy of
+	 * their changes, so it is kept rather than truncated by a later checkpoint.
+	 */
+	public void pin()
+	{
+		pinned = true;
+	}
+
+	public boolean isPinned()
+	{
+		return pinned;
+	}
+
+	/**
+	 * Set the stats that each write to disk is timed in.
+	 *
+	 * @param writeStats The stats to use, or null to not record writes
+	 */
+	public void setWriteStats(OperationStats writeStats)
+	{
+		this.writeStats = writeStats;
+	}
+
+	/**
+	 * Write any pending records to disk now, and wait for them to be written.
+	 */
+	public void commit()
+	{
+		synchronized (channelLock)
+		{
+			List<byte[]> records = null;
+			synchronized (pendingLock)
+			{
+				if (pending.size() == 0) return;
+				records = pending;
+				pending = new ArrayList<byte[]>();
+			}
+			write(records);
+		}
+	}
+
+	/**
+	 * Write any pending records, stop the commit thread, and close the journal file.
+	 *
+	 * If all changes have been saved, the journal file is removed.
+	 */
+	public void close()
+	{
+		synchronized (pendingLock)
+		{
+			running = false;
+			pendingLock.notify();
+		}
+		if (thread != null)
+		{
+			try
+			{
+				thread.join();
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+			}
+			thread = null;
+		}
+
+		commit();
+		synchronized (channelLock)
+		{
+			closeSegment();
+			File file = getSegmentFile(segment);
+			if (file.length() == 0)
+			{
+				file.delete();
+			}
+		}
+	}
+
+	/**
+	 * The body of the commit thread.
+	 *
+	 * This waits on the pending lock rather than sleeping, so that close() can wake it
+	 * without interrupting it- an interrupt during a write would close the journal file.
+	 */
+	protected void commitLoop()
+	{
+		while (running)
+		{
+			try
+			{
+				synchronized (pendingLock)
+				{
+					while (running && pending.size() == 0)
+					{
+						pendingLock.wait();
+					}
+
+					// Give other changes a chance to join this commit
+					long deadline = System.currentTimeMillis() + commitInterval;
+					long remaining = commitInterval;
+					while (running && remaining > 0)
+					{
+						pendingLock.wait(remaining);
+						remaining = deadline - System.currentTimeMillis();
+					}
+				}
+			}
+			catch (InterruptedException e)
+			{
+				break;
+			}
+
+			try
+			{
+				commit();
+			}
+			catch (Exception e)
+			{
+				log.severe("Persistence: Exception in journal thread: " + e.getMessage());
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Check to see if a column type can be written to the journal.
+	 *
+	 * @param type The column type
+	 * @return true if values of this type can be journaled
+	 */
+	public static boolean canWrite(DataType type)
+	{
+		if (type == null) return false;
+		switch (type)
+		{
+			case INTEGER:
+			case BOOLEAN:
+			case DOUBLE:
+			case STRING:
+			case DATE:
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Removes the segments before a save, once the save has been written.
+	 *
+	 * A save's batches are added to its checkpoint. When the checkpoint is run, after
+	 * the batches have executed, the older segments are removed only if every batch succeeded,
+	 * and every class with changes was saved.
+	 */
+	public class Checkpoint implements Runnable
+	{
+		public Checkpoint(long segment)
+		{
+			this.segment = segment;
+		}
+
+		public void add(SaveBatch batch)
+		{
+			// Empty batches are never executed
+			if (batch.isEmpty()) return;
+			batches.add(batch);
+		}
+
+		/**
+		 * Mark this checkpoint as not covering all changes, because a class with changes wasn't saved.
+		 *
+		 * Its segments are kept, and will be removed by a later checkpoint.
+		 */
+		public void setIncomplete()
+		{
+			complete = false;
+		}
+
+		public void run()
+		{
+			for (SaveBatch batch : batches)
+			{
+				if (!batch.isWritten())
+				{
+					log.warning("Persistence: Save failed, keeping the journal until the next restart");
+					pin();
+					return;
+				}
+			}
+			if (complete)
+			{
+				truncate(segment);
+			}
+		}
+
+		private final long				segment;
+		private boolean					complete	= true;
+		private final List<SaveBatch>	batches		= new ArrayList<SaveBatch>();
+	}
+
+	/*
+	 * Protected members
+	 */
+
+	/**
+	 * Remove the segments before a given segment.
+	 *
+	 * @param beforeSegment The first segment to keep
+	 */
+	protected void truncate(long beforeSegment)
+	{
+		if (pinned) return;
+
+		synchronized (channelLock)
+		{
+			for (File file : getSegmentFiles())
+			{
+				long number = getSegmentNumber(file);
+				if (number >= beforeSegment) continue;
+				if (!file.delete())
+				{
+					log.warning("Persistence: Couldn't remove journal file " + file.getName());
+					return;
+				}
+			}
+			firstSegment = Math.max(firstSegment, beforeSegment);
+		}
+	}
+
+	/**
+	 * Write records to the current segment, and force them to disk.
+	 *
+	 * Must be called while holding the channel lock.
+	 */
+	protected void write(List<byte[]> records)
+	{
+		if (records.size() == 0) return;
+		if (channel == null)
+		{
+			log.severe("Persistence: Journal is closed, " + records.size() + " changes were not journaled");
+			return;
+		}
+
+		long start = OperationStats.start();
+		ByteBuffer[] buffers = new ByteBuffer[records.size()];
+		long remaining = 0;
+		for (int i = 0; i < buffers.length; i++)
+		{
+			buffers[i] = ByteBuffer.wrap(records.get(i));
+			remaining += buffers[i].remaining();
+		}
+
+		long size = remaining;
+		try
+		{
+			while (remaining > 0)
+			{
+				remaining -= channel.write(buffers);
+			}
+			channel.force(false);
+			if (writeStats != null)
+			{
+				writeStats.end(start, records.size(), size);
+			}
+		}
+		catch (IOException e)
+		{
+			// A partial record ends a segment when it is replayed, so move on to a new one.
+			log.severe("Persistence: Error writing journal: " + e.getMessage());
+			openSegment(segment + 1);
+		}
+	}
+
+	/**
+	 * Close the current segment, and open a new one.
+	 *
+	 * Must be called while holding the channel lock.
+	 */
+	protected boolean openSegment(long number)
+	{
+		closeSegment();
+		segment = number;
+		synchronized (pendingLock)
+		{
+			segmentRecords = pending.size();
+		}
+
+		File file = getSegmentFile(number);
+		try
+		{
+			segmentFile = new RandomAccessFile(file, "rw");
+			channel = segmentFile.getChannel();
+			channel.position(channel.size());
+			return true;
+		}
+		catch (IOException e)
+		{
+			log.severe("Persistence: Error opening journal file " + file.getName() + ": " + e.getMessage());
+			closeSegment();
+			return false;
+		}
+	}
+
+	protected void closeSegment()
+	{
+		if (segmentFile == null) return;
+		try
+		{
+			segmentFile.close();
+		}
+		catch (IOException e)
+		{
+			log.warning("Persistence: Error closing journal file: " + e.getMessage());
+		}
+		segmentFile = null;
+		channel = null;
+	}
+
+	protected File getSegmentFile(long number)
+	{
+		return new File(folder, number + segmentExtension);
+	}
+
+	protected List<File> getSegmentFiles()
+	{
+		List<File> segments = new ArrayList<File>();
+		File[] files = folder.listFiles();
+		if (files == null) return segments;
+
+		for (File file : files)
+		{
+			if (getSegmentNumber(file) > 0)
+			{
+				segments.add(file);
+			}
+		}
+		Collections.sort(segments, new Comparator<File>()
+		{
+			public int compare(File a, File b)
+			{
+				long numberA = getSegmentNumber(a);
+				long numberB = getSegmentNumber(b);
+				return numberA < numberB ? -1 : (numberA == numberB ? 0 : 1);
+			}
+		});
+		return segments;
+	}
+
+	protected static long getSegmentNumber(File file)
+	{
+		String name = file.getName();
+		if (!name.endsWith(segmentExtension)) return 0;
+		try
+		{
+			return Long.parseLong(name.substring(0, name.length() - segmentExtension.length()));
+		}
+		catch (NumberFormatException e)
+		{
+			return 0;
+		}
+	}
+
+	/**
+	 * Write the records for one schema to its store, in a single transaction.
+	 */
+	protected boolean apply(DataStore store, List<Record> records)
+	{
+		synchronized (store)
+		{
+			if (!store.connect()) return false;
+
+			// Tables that don't exist yet have never been saved to, and would be created empty anyway.
+			Set<String> existingTables = new HashSet<String>();
+			Set<String> missingTables = new HashSet<String>();
+			boolean success = store.beginTransaction();
+			for (Record record : records)
+			{
+				for (DataTable table : record.tables)
+				{
+					String tableName = table.getName();
+					if (missingTables.contains(tableName)) continue;
+					if (!existingTables.contains(tableName))
+					{
+						if (!store.tableExists(table))
+						{
+							log.info("Persistence: Skipping journal records for missing table " + tableName);
+							missingTables.add(tableName);
+							continue;
+						}
+						existingTables.add(tableName);
+					}
+					success = store.clearIds(table, record.ids);
+					if (!success) break;
+				}
+				if (!success) break;
+			}
+
+			if (success)
+			{
+				return store.commit();
+			}
+			store.rollback();
+			return false;
+		}
+	}
+
+	/*
+	 * Record format
+	 *
+	 * Each record is an int payload length and a CRC32 of the payload, followed by the payload:
+	 * the schema name, the object id, then each table's name, owner id column, columns and rows.
+	 */
+
+	protected byte[] encode(String schema, Object id, List<DataTable> tables) throws IOException
+	{
+		DataType idType = id == null ? null : DataType.getTypeFromClass(id.getClass());
+		if (!canWrite(idType)) return null;
+
+		ByteArrayOutputStream payloadBytes = new ByteArrayOutputStream(256);
+		DataOutputStream payload = new DataOutputStream(payloadBytes);
+		writeString(payload, schema);
+		payload.writeByte(idType.ordinal());
+		writeValue(payload, idType, id);
+		payload.writeShort(tables.size());
+		for (DataTable table : tables)
+		{
+			writeString(payload, table.getName());
+			writeString(payload, table.getIdFieldNames().get(0));
+
+			DataRow header = table.getHeader();
+			List<DataField> columns = header == null ? new ArrayList<DataField>() : header.getFields();
+			payload.writeShort(columns.size());
+			for (DataField column : columns)
+			{
+				if (!canWrite(column.getType())) return null;
+				writeString(payload, column.getName());
+				payload.writeByte(column.getType().ordinal());
+			}
+
+			payload.writeInt(table.getRowCount());
+			for (DataRow row : table.getRows())
+			{
+				for (DataField column : columns)
+				{
+					DataField field = row.get(column.getName());
+					writeValue(payload, column.getType(), field == null ? null : field.getValue());
+				}
+			}
+		}
+		payload.flush();
+
+		byte[] data = payloadBytes.toByteArray();
+		CRC32 checksum = new CRC32();
+		checksum.update(data);
+
+		ByteArrayOutputStream recordBytes = new ByteArrayOutputStream(data.length + 12);
+		DataOutputStream record = new DataOutputStream(recordBytes);
+		record.writeInt(data.length);
+		record.writeLong(checksum.getValue());
+		record.write(data);
+		record.flush();
+		return recordBytes.toByteArray();
+	}
+
+	/**
+	 * Read all of the complete records in a segment.
+	 *
+	 * Reading stops at the first partial or damaged record, which can only be the last
+	 * record written before a crash.
+	 */
+	protected List<Record> read(File file) throws IOException
+	{
+		List<Record> records = new ArrayList<Record>();
+		RandomAccessFile randomAccess = new RandomAccessFile(file, "r");
+		try
+		{
+			FileChannel readChannel = randomAccess.getChannel();
+			long size = readChannel.size();
+			if (size > Integer.MAX_VALUE) throw new IOException("Journal file is too large");
+
+			ByteBuffer buffer = ByteBuffer.allocate((int)size);
+			while (buffer.hasRemaining())
+			{
+				if (readChannel.read(buffer) < 0) break;
+			}
+			buffer.flip();
+
+			while (buffer.remaining() >= 12)
+			{
+				int length = buffer.getInt();
+				long expected = buffer.getLong();
+				if (length < 0 || length > buffer.remaining())
+				{
+					log.warning("Persistence: Journal file " + file.getName() + " ends with a partial record, ignoring it");
+					break;
+				}
+
+				byte[] data = new byte[length];
+				buffer.get(data);
+				CRC32 checksum = new CRC32();
+				checksum.update(data);
+				if (checksum.getValue() != expected)
+				{
+					log.warning("Persistence: Journal file " + file.getName() + " has a damaged record, ignoring the rest of it");
+					break;
+				}
+				records.add(decode(ByteBuffer.wrap(data)));
+			}
+		}
+		finally
+		{
+			randomAccess.close();
+		}
+		return records;
+	}
+
+	protected Record decode(ByteBuffer in) throws IOException
+	{
+		String schema = readString(in);
+		DataType idType = DataType.values()[in.get()];
+		Object id = readValue(in, idType);
+		int tableCount = in.getShort();
+		List<DataTable> tables = new ArrayList<DataTable>(tableCount);
+		for (int t = 0; t < tableCount; t++)
+		{
+			DataTable table = new DataTable(readString(in));
+			table.addIdFieldName(readString(in));
+
+			int columnCount = in.getShort();
+			String[] names = new String[columnCount];
+			DataType[] types = new DataType[columnCount];
+			for (int c = 0; c < columnCount; c++)
+			{
+				names[c] = readString(in);
+				types[c] = DataType.values()[in.get()];
+			}
+
+			int rowCount = in.getInt();
+			for (int r = 0; r < rowCount; r++)
+			{
+				DataRow row = new DataRow(table);
+				for (int c = 0; c < columnCount; c++)
+				{
+					row.add(new DataField(names[c], types[c], readValue(in, types[c])));
+				}
+				table.addRow(row);
+			}
+			tables.add(table);
+		}
+
+		List<Object> ids = new ArrayList<Object>(1);
+		ids.add(id);
+		return new Record(schema, ids, tables);
+	}
+
+	protected static void writeValue(DataOutputStream out, DataType type, Object value) throws IOException
+	{
+		if (value == null)
+		{
+			out.writeBoolean(false);
+			return;
+		}
+		out.writeBoolean(true);
+		switch (type)
+		{
+			case INTEGER:
+				out.writeInt(((Number)value).intValue());
+				break;
+			case BOOLEAN:
+				out.writeBoolean((Boolean)value);
+				break;
+			case DOUBLE:
+				out.writeDouble(((Number)value).doubleValue());
+				break;
+			case DATE:
+				out.writeLong(((Date)value).getTime());
+				break;
+			default:
+				writeString(out, value.toString());
+				break;
+		}
+	}
+
+	protected static Object readValue(ByteBuffer in, DataType type) throws IOException
+	{
+		if (in.get() == 0) return null;
+		switch (type)
+		{
+			case INTEGER:
+				return in.getInt();
+			case BOOLEAN:
+				return in.get() != 0;
+			case DOUBLE:
+				return in.getDouble();
+			case DATE:
+				return new Date(in.getLong());
+			default:
+				return readString(in);
+		}
+	}
+
+	protected static void writeString(DataOutputStream out, String value) throws IOException
+	{
+		byte[] bytes = value.getBytes("UTF-8");
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	protected static String readString(ByteBuffer in) throws IOException
+	{
+		byte[] bytes = new byte[in.getInt()];
+		in.get(bytes);
+		return new String(bytes, "UTF-8");
+	}
+
+	/**
+	 * A decoded record, the rows of a single object.
+	 */
+	class Record
+	{
+		public final String				schema;
+		public final List<Object>			ids;
+		public final List<DataTable>		tables;
+
+		public Record(String schema, List<Object> ids, List<DataTable> tables)
+		{
+			this.schema = schema;
+			this.ids = ids;
+			this.tables = tables;
+		}
+	}
+
+	private final File					folder;
+	private final int					commitInterval;
+	private volatile boolean			running			= true;
+	private volatile boolean			pinned			= false;
+
+	private Thread						thread			= null;
+
+	// Guarded by the pending lock
+	private final Object				pendingLock		= new Object();
+	private List<byte[]>				pending			= new ArrayList<byte[]>();
+	private int							segmentRecords	= 0;
+	private volatile OperationStats		writeStats		= null;
+
+	// Guarded by the channel lock
+	private final Object				channelLock		= new Object();
+	private RandomAccessFile			segmentFile		= null;
+	private FileChannel					channel			= null;
+	private long						segment			= 0;
+	private long						firstSegment	= 0;
+
+	private static final String			segmentExtension	= ".journal";
+	protected static Logger				log				= PersistencePlugin.getLogger();
+}
@@ -0,0 +1,232 @@
+package com.elmakers.mine.bukkit.plugins.persistence.core;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import com.elmakers.mine.bukkit.plugins.persistence.PersistencePlugin;
+
+/**
+ * A background thread that writes SaveBatches to their data stores.
+ *
+ * This is used for write-behind saving- Persistence.save() snapshots dirty
+ * data into SaveBatches on the main thread, and then hands them off here
+ * so the server doesn't have to wait on the database.
+ *
+ * The queue is bounded, so if the writer falls too far behind, save() will
+ * block until there is room.
+ *
+ * A batch that fails here isn't retried by the writer. The batch reports the
+ * failure back to its class, which marks the objects dirty again so they
+ * go out with the next save().
+ *
+ * @author NathanWolf
+ *
+ */
+public class PersistenceWriter extends Thread
+{
+	public PersistenceWriter(int queueSize)
+	{
+		super("Persistence Writer");
+		setDaemon(true);
+		queue = new ArrayBlockingQueue<Object>(Math.max(1, queueSize));
+	}
+
+	/**
+	 * Queue a batch to be written.
+	 *
+	 * Will block if the queue is full.
+	 *
+	 * @param batch The batch to write
+	 */
+	public void queue(SaveBatch batch)
+	{
+		if (batch == null || batch.isEmpty()) return;
+
+		if (!running)
+		{
+			batch.execute();
+			return;
+		}
+
+		try
+		{
+			queue.put(batch);
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			batch.execute();
+		}
+	}
+
+	/**
+	 * Run a task once all currently queued batches have been written.
+	 *
+	 * The task is run on the writer thread, or right away if the writer isn't running.
+	 *
+	 * @param task The task to run
+	 */
+	public void queue(Runnable task)
+	{
+		if (!running)
+		{
+			task.run();
+			return;
+		}
+
+		try
+		{
+			queue.put(task);
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			task.run();
+		}
+	}
+
+	/**
+	 * Wait for all currently queued batches to be written.
+	 *
+	 * This blocks the calling thread, it should only be used on shutdown, or when
+	 * you really need to know that your data is in the database.
+	 */
+	public void flush()
+	{
+		if (!running || Thread.currentThread() == this) return;
+
+		CountDownLatch flushed = new CountDownLatch(1);
+		try
+		{
+			queue.put(flushed);
+			flushed.await();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Flush any pending data, and stop the writer thread.
+	 * 
+	 * This waits for the thread to finish, so nothing is being written once it returns.
+	 * The thread is woken with a marker rather than interrupted, so a write that is in 
+	 * progress isn't cut off.
+	 */
+	public void shutdown()
+	{
+		flush();
+		running = false;
+		try
+		{
+			queue.put(STOP);
+			join();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+		
+		// Anything queued while the thread was stopping still needs to go out
+		drain();
+	}
+
+	public int getPendingCount()
+	{
+		return queue.size();
+	}
+	
+	/**
+	 * Get the number of batches that failed to write on this thread.
+	 * 
+	 * @return The failed batch count
+	 */
+	public long getFailedCount()
+	{
+		return failedBatches.get();
+	}
+
+	@Override
+	public void run()
+	{
+		while (running)
+		{
+			Object next = null;
+			try
+			{
+				next = queue.take();
+			}
+			catch (InterruptedException e)
+			{
+				continue;
+			}
+
+			if (next == STOP)
+			{
+				continue;
+			}
+			
+			if (next instanceof CountDownLatch)
+			{
+				((CountDownLatch)next).countDown();
+				continue;
+			}
+
+			try
+			{
+				if (next instanceof Runnable)
+				{
+					((Runnable)next).run();
+				}
+				else
+				{
+					SaveBatch batch = (SaveBatch)next;
+					if (!batch.execute())
+					{
+						failedBatches.incrementAndGet();
+					}
+				}
+			}
+			catch (Exception e)
+			{
+				log.severe("Persistence: Exception in writer thread: " + e.getMessage());
+				e.printStackTrace();
+			}
+		}
+
+		// Anything queued after shutdown still needs to go out.
+		drain();
+	}
+	
+	protected void drain()
+	{
+		Object next = null;
+		while ((next = queue.poll()) != null)
+		{
+			if (next instanceof SaveBatch)
+			{
+				((SaveBatch)next).execute();
+			}
+			else if (next instanceof Runnable)
+			{
+				((Runnable)next).run();
+			}
+			else if (next instanceof CountDownLatch)
+			{
+				((CountDownLatch)next).countDown();
+			}
+		}
+	}
+
+	private static final Object				STOP	= new Object();
+	
+	private volatile boolean				running	= true;
+	private final BlockingQueue<Object>		queue;
+	private final AtomicLong				failedBatches = new AtomicLong();
+
+	protected static Logger					log		= PersistencePlugin.getLogger();
+}
@@ -0,0 +1,383 @@
+package com.elmakers.mine.bukkit.plugins.persistence.core;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import com.elmakers.mine.bukkit.plugins.persistence.PersistencePlugin;
+import com.elmakers.mine.bukkit.plugins.persistence.data.DataStore;
+import com.elmakers.mine.bukkit.plugins.persistence.data.DataTable;
+import com.elmakers.mine.bukkit.plugins.persistence.stats.OperationStats;
+
+/**
+ * A snapshot of pending writes for a single PersistedClass.
+ *
+ * A SaveBatch is built on the main thread from the current state of the
+ * cache. The rows to write are copied into DataTables up front, so executing
+ * the batch later, on another thread, never reads the live objects.
+ *
+ * It does keep a reference to each saved object's CachedObject, and to its
+ * PersistedClass, so that it can report back once the batch has run. Those
+ * calls are made from whichever thread executes the batch, so CachedObject
+ * and PersistedClass.writeFailed must be safe to call from there.
+ *
+ * The saved objects only take on the state that was written once the batch
+ * has actually been written. If it fails, they are marked dirty again and
+ * handed back to the PersistedClass, so they will be saved on the next save.
+ *
+ * @author NathanWolf
+ *
+ */
+public class SaveBatch
+{
+	public SaveBatch(PersistedClass persistedClass, DataStore store)
+	{
+		this.persistedClass = persistedClass;
+		this.store = store;
+	}
+
+	/**
+	 * Remove all rows in the table, keeping the rows contained in "table".
+	 *
+	 * @param table The table to clear
+	 */
+	public void clear(DataTable table)
+	{
+		steps.add(new Step(StepType.CLEAR, table, null));
+	}
+
+	/**
+	 * Write all rows in the table to the store.
+	 *
+	 * @param table The table to save
+	 */
+	public void save(DataTable table)
+	{
+		steps.add(new Step(StepType.SAVE, table, null));
+	}
+
+	/**
+	 * Insert new rows into the store.
+	 *
+	 * @param table The table of new rows
+	 */
+	public void insert(DataTable table)
+	{
+		steps.add(new Step(StepType.INSERT, table, null));
+	}
+
+	/**
+	 * Update the columns in "table" for existing rows.
+	 *
+	 * Any row that turns out not to exist is saved from "fullTable" instead.
+	 *
+	 * @param table The table of changed columns, including id columns
+	 * @param fullTable The complete rows, in the same order as "table"
+	 */
+	public void update(DataTable table, DataTable fullTable)
+	{
+		steps.add(new Step(StepType.UPDATE, table, null, fullTable));
+	}
+
+	/**
+	 * Delete the rows in "table", matched by id.
+	 *
+	 * @param table The table of rows to delete
+	 */
+	public void delete(DataTable table)
+	{
+		steps.add(new Step(StepType.DELETE, table, null));
+	}
+
+	/**
+	 * Remove all rows for the given owner ids, then write the rows in "table".
+	 *
+	 * @param table The list table to update
+	 * @param ids The ids of the objects that own the list data
+	 */
+	public void clearIds(DataTable table, List<Object> ids)
+	{
+		steps.add(new Step(StepType.CLEAR_IDS, table, ids));
+	}
+
+	/**
+	 * Track an object whose data is in this batch.
+	 *
+	 * The object will be marked as having a pending write until this batch is executed.
+	 *
+	 * @param cached The object that was saved
+	 * @return The state to write for this object
+	 */
+	SavedObject addSavedObject(CachedObject cached)
+	{
+		SavedObject saved = new SavedObject(cached);
+		savedObjects.add(saved);
+		return saved;
+	}
+
+	/**
+	 * Track the ids of removed objects that this batch deletes.
+	 *
+	 * If the batch fails, these are removed again on the next save.
+	 *
+	 * @param ids The removed ids
+	 */
+	void addRemovedIds(List<Object> ids)
+	{
+		removedIds.addAll(ids);
+	}
+
+	public boolean isEmpty()
+	{
+		return steps.size() == 0;
+	}
+
+	public PersistedClass getPersistedClass()
+	{
+		return persistedClass;
+	}
+
+	public DataStore getStore()
+	{
+		return store;
+	}
+
+	/**
+	 * Write this batch to its data store.
+	 *
+	 * This is safe to call from any thread, access to the store is serialized.
+	 *
+	 * If the batch fails, for any reason, its class is told so that the
+	 * objects in it are saved again.
+	 *
+	 * @return false if any step failed
+	 */
+	public boolean execute()
+	{
+		long start = OperationStats.start();
+		boolean success = false;
+		try
+		{
+			synchronized (store)
+			{
+				try
+				{
+					if (store.connect())
+					{
+						success = executeSteps();
+					}
+				}
+				catch (RuntimeException e)
+				{
+					log.severe("Persistence: Exception saving " + persistedClass.getSchema() + "." + persistedClass.getTableName() + ": " + e.getMessage());
+					e.printStackTrace();
+					
+					// The store may have thrown from inside its own nested transaction
+					store.abort();
+				}
+			}
+		}
+		finally
+		{
+			// Always report back, even if something unexpected went wrong, so
+			// the objects in this batch are either saved or dirty again.
+			persistedClass.writeStats.end(start, getRowCount());
+			written = success;
+			finish(success);
+		}
+
+		if (!success)
+		{
+			log.warning("Persistence: Error saving " + persistedClass.getSchema() + "." + persistedClass.getTableName() + ", will retry on next save");
+		}
+		return success;
+	}
+
+	/**
+	 * Let the saved objects know whether or not their data was written.
+	 *
+	 * @param success true if the batch was written
+	 */
+	protected void finish(boolean success)
+	{
+		List<CachedObject> failedObjects = success ? null : new ArrayList<CachedObject>();
+		for (SavedObject saved : savedObjects)
+		{
+			if (success)
+			{
+				saved.cached.endWrite(saved.sequence, saved.values, saved.lists);
+			}
+			else
+			{
+				saved.cached.failWrite();
+				failedObjects.add(saved.cached);
+			}
+		}
+		savedObjects.clear();
+
+		if (!success)
+		{
+			persistedClass.writeFailed(failedObjects, removedIds);
+		}
+	}
+
+	/**
+	 * Check to see if this batch has been written to its store.
+	 *
+	 * @return true if the batch was executed successfully
+	 */
+	public boolean isWritten()
+	{
+		return written;
+	}
+
+	/**
+	 * Count the rows written and ids cleared by this batch.
+	 *
+	 * @return The number of rows this batch touches
+	 */
+	public int getRowCount()
+	{
+		int rowCount = 0;
+		for (Step step : steps)
+		{
+			rowCount += step.table.getRowCount();
+			if (step.ids != null)
+			{
+				rowCount += step.ids.size();
+			}
+		}
+		return rowCount;
+	}
+
+	protected boolean executeSteps()
+	{
+		boolean success = true;
+
+		// Write the class table and all of its list tables together, so
+		// a failure part-way through doesn't leave half-saved objects.
+		store.beginTransaction();
+		for (Step step : steps)
+		{
+			switch (step.type)
+			{
+				case CLEAR:
+					success = store.clear(step.table);
+					break;
+				case SAVE:
+					success = store.save(step.table);
+					break;
+				case INSERT:
+					success = store.insert(step.table);
+					break;
+				case UPDATE:
+					success = store.update(step.table, step.fullTable);
+					break;
+				case DELETE:
+					success = store.delete(step.table);
+					break;
+				case CLEAR_IDS:
+					success = store.clearIds(step.table, step.ids);
+					break;
+			}
+			if (!success) break;
+		}
+
+		if (success)
+		{
+			success = store.commit();
+		}
+		else
+		{
+			store.rollback();
+		}
+		return success;
+	}
+
+	enum StepType
+	{
+		CLEAR,
+		SAVE,
+		INSERT,
+		UPDATE,
+		DELETE,
+		CLEAR_IDS
+	}
+
+	class Step
+	{
+		public final StepType type;
+		public final DataTable table;
+		public final List<Object> ids;
+		public final DataTable fullTable;
+
+		public Step(StepType type, DataTable table, List<Object> ids)
+		{
+			this(type, table, ids, null);
+		}
+
+		public Step(StepType type, DataTable table, List<Object> ids, DataTable fullTable)
+		{
+			this.type = type;
+			this.table = table;
+			this.ids = ids;
+			this.fullTable = fullTable;
+		}
+	}
+
+	/**
+	 * The state of an object as of this batch.
+	 *
+	 * If the object already has a write in flight, the store may or may not have
+	 * that write's data yet, so its row and lists are treated as unknown and
+	 * written in full.
+	 */
+	class SavedObject
+	{
+		public SavedObject(CachedObject cached)
+		{
+			this.cached = cached;
+			synchronized (cached)
+			{
+				boolean pending = cached.isWritePending();
+				rowState = pending ? CachedObject.RowState.UNKNOWN : cached.getRowState();
+				savedValues = pending ? null : cached.getSavedValues();
+				listsKnown = !pending;
+				sequence = cached.beginWrite();
+			}
+		}
+
+		/**
+		 * Get the list keys that are in the store for this object.
+		 *
+		 * @param list The list field
+		 * @return The keys in the store, or null if they aren't known
+		 */
+		public List<Object> getSavedList(PersistedList list)
+		{
+			if (rowState == CachedObject.RowState.NEW) return new ArrayList<Object>();
+			if (!listsKnown) return null;
+			return cached.getSavedList(list);
+		}
+
+		public final CachedObject cached;
+		public final CachedObject.RowState rowState;
+		public final Object[] savedValues;
+		public final int sequence;
+		public Object[] values;
+		public final Map<PersistedList, List<Object>> lists = new HashMap<PersistedList, List<Object>>();
+
+		private final boolean listsKnown;
+	}
+
+	protected final PersistedClass persistedClass;
+	protected final DataStore store;
+	protected final List<Step> steps = new ArrayList<Step>();
+	protected final List<SavedObject> savedObjects = new ArrayList<SavedObject>();
+	protected final List<Object> removedIds = new ArrayList<Object>();
+	protected volatile boolean written = false;
+
+	protected static Logger log = PersistencePlugin.getLogger();
+}
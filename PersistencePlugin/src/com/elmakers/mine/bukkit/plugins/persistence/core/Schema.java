@@ -1,8 +1,8 @@
 package com.elmakers.mine.bukkit.plugins.persistence.core;
 
-import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * Describes a schema.
@@ -41,6 +41,6 @@ public class Schema
 	}
 	
 	private String name;
-	private final List<PersistedClass> persistedClasses = new ArrayList<PersistedClass>();
-	private final HashMap<String, PersistedClass> nameMap = new HashMap<String, PersistedClass>();
+	private final List<PersistedClass> persistedClasses = new CopyOnWriteArrayList<PersistedClass>();
+	private final ConcurrentHashMap<String, PersistedClass> nameMap = new ConcurrentHashMap<String, PersistedClass>();
 }
@@ -266,7 +266,7 @@ public class PluginCommand implements Comparable<PluginCommand>
 		this.command = command;
 	}
 
-	@Persist
+	@Persist(indexed=true)
 	public void setPlugin(PluginData plugin)
 	{
 		this.plugin = plugin;
@@ -0,0 +1,224 @@
+package com.elmakers.mine.bukkit.plugins.persistence.data;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * A DataTable that stores its data by column, in primitive arrays.
+ * 
+ * Rows added to this table are copied into its columns and are not kept, except
+ * for the first row, which is kept as the header. Rows read back with getRows are
+ * created as needed- use getColumns, or read with a DataRowHandler, to avoid that.
+ * 
+ * This is meant for large tables that are built up and then written or read in bulk,
+ * where holding a DataRow, a field map and a boxed DataField for every cell adds
+ * up quickly.
+ * 
+ * All rows are expected to have the same fields as the header. Fields that
+ * the header doesn't have are ignored, and missing fields are null.
+ * 
+ * @author NathanWolf
+ *
+ */
+public class ColumnarTable extends DataTable
+{
+	public ColumnarTable(String name)
+	{
+		super(name);
+	}
+	
+	/**
+	 * Create an empty table with a set of columns, for reading data into.
+	 * 
+	 * @param name The table name
+	 * @param columns The columns, which should be empty
+	 */
+	public ColumnarTable(String name, List<DataColumn> columns)
+	{
+		super(name);
+		for (DataColumn column : columns)
+		{
+			addColumn(column);
+		}
+	}
+	
+	@Override
+	public void addRow(DataRow row)
+	{
+		if (header == null)
+		{
+			header = row;
+			if (columns.size() == 0)
+			{
+				for (DataField field : row.getFields())
+				{
+					DataColumn column = DataColumn.create(field.getName(), field.getType());
+					column.setIdField(field.isIdField());
+					column.setAutogenerated(field.isAutogenerated());
+					addColumn(column);
+				}
+			}
+		}
+		
+		int rowIndex = rowCount++;
+		for (DataField field : row.getFields())
+		{
+			DataColumn column = columnMap.get(field.getName());
+			if (column != null)
+			{
+				column.set(rowIndex, field.getValue());
+			}
+		}
+	}
+	
+	/**
+	 * Add a row, to be filled in directly using the columns.
+	 * 
+	 * @return The index of the new row
+	 */
+	public int addRow()
+	{
+		return rowCount++;
+	}
+	
+	@Override
+	public int getRowCount()
+	{
+		return rowCount;
+	}
+	
+	/**
+	 * Get a list of rows, which are created as they are accessed.
+	 * 
+	 * Changes to the returned rows are not stored in the table.
+	 */
+	@Override
+	public List<DataRow> getRows()
+	{
+		return new AbstractList<DataRow>()
+		{
+			@Override
+			public DataRow get(int index)
+			{
+				if (index < 0 || index >= rowCount)
+				{
+					throw new IndexOutOfBoundsException("Row " + index + " of " + rowCount);
+				}
+				return createRow(index);
+			}
+
+			@Override
+			public int size()
+			{
+				return rowCount;
+			}
+		};
+	}
+	
+	@Override
+	public DataRow getHeader()
+	{
+		if (header == null && columns.size() > 0)
+		{
+			header = createRow(-1);
+		}
+		return header;
+	}
+	
+	@Override
+	public void createHeader()
+	{
+		if (header != null) return;
+		
+		header = new DataRow(this);
+	}
+	
+	/**
+	 * Pass every row to a handler.
+	 * 
+	 * A single DataRow is re-used for each row.
+	 * 
+	 * @param handler The handler that will process each row
+	 */
+	public void read(DataRowHandler handler)
+	{
+		DataRow row = createRow(-1);
+		List<DataField> fields = row.getFields();
+		int columnCount = columns.size();
+		for (int rowIndex = 0; rowIndex < rowCount; rowIndex++)
+		{
+			for (int i = 0; i < columnCount; i++)
+			{
+				fields.get(i).setValue(columns.get(i).get(rowIndex));
+			}
+			handler.handle(row);
+		}
+	}
+	
+	public List<DataColumn> getColumns()
+	{
+		return columns;
+	}
+	
+	public DataColumn getColumn(String columnName)
+	{
+		return columnMap.get(columnName);
+	}
+	
+	/**
+	 * Get an estimate of the memory used by this table's data, in bytes.
+	 * 
+	 * @return The approximate size of all columns
+	 */
+	public long getFootprint()
+	{
+		long footprint = 0;
+		for (DataColumn column : columns)
+		{
+			footprint += column.getFootprint();
+		}
+		return footprint;
+	}
+	
+	/**
+	 * Add a column. This should only be done before any rows are added.
+	 * 
+	 * @param column The new column
+	 */
+	public void addColumn(DataColumn column)
+	{
+		columns.add(column);
+		columnMap.put(column.getName(), column);
+		if (column.isIdField())
+		{
+			addIdFieldName(column.getName());
+		}
+	}
+	
+	/**
+	 * Create a DataRow from a row of column data.
+	 * 
+	 * @param rowIndex The row to copy, or -1 for an empty row
+	 * @return A new row
+	 */
+	protected DataRow createRow(int rowIndex)
+	{
+		DataRow row = new DataRow(this);
+		for (DataColumn column : columns)
+		{
+			Object value = rowIndex < 0 ? null : column.get(rowIndex);
+			DataField field = new DataField(column.getName(), column.getType(), value);
+			field.setIdField(column.isIdField());
+			field.setAutogenerated(column.isAutogenerated());
+			row.add(field);
+		}
+		return row;
+	}
+	
+	protected DataRow header = null;
+	protected int rowCount = 0;
+	protected final List<DataColumn> columns = new ArrayList<DataColumn>();
+	protected final HashMap<String, DataColumn> columnMap = new HashMap<String, DataColumn>();
+}
@@ -0,0 +1,537 @@
+package com.elmakers.mine.bukkit.plugins.persistence.data;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * A single column of a ColumnarTable.
+ * 
+ * Values are kept in a primitive array (or a bit set, or a string dictionary) 
+ * instead of as one boxed DataField per cell. Nulls are tracked separately.
+ * 
+ * Values set on a column are converted to the column's type. Values read back
+ * with get are boxed again, in the same form a DataField would hold them.
+ * 
+ * @author NathanWolf
+ *
+ */
+public abstract class DataColumn
+{
+	/**
+	 * Create a column to hold values of a given type.
+	 * 
+	 * Types without a primitive representation are stored as plain objects.
+	 * 
+	 * @param name The column name
+	 * @param type The type of data the column holds
+	 * @return A new, empty column
+	 */
+	public static DataColumn create(String name, DataType type)
+	{
+		if (type == null)
+		{
+			return new ObjectColumn(name, DataType.NULL);
+		}
+		
+		switch (type)
+		{
+			case INTEGER:
+				return new IntColumn(name);
+			case DATE:
+				return new DateColumn(name);
+			case DOUBLE:
+				return new DoubleColumn(name);
+			case BOOLEAN:
+				return new BooleanColumn(name);
+			case STRING:
+				return new StringColumn(name);
+		}
+		return new ObjectColumn(name, type);
+	}
+	
+	protected DataColumn(String name, DataType type)
+	{
+		this.name = name;
+		this.type = type;
+	}
+	
+	public String getName()
+	{
+		return name;
+	}
+	
+	public DataType getType()
+	{
+		return type;
+	}
+	
+	public boolean isIdField()
+	{
+		return idField;
+	}
+	
+	public void setIdField(boolean idField)
+	{
+		this.idField = idField;
+	}
+	
+	public boolean isAutogenerated()
+	{
+		return autogenerated;
+	}
+	
+	public void setAutogenerated(boolean autogenerated)
+	{
+		this.autogenerated = autogenerated;
+	}
+	
+	/**
+	 * Check for a null value.
+	 * 
+	 * Rows that were never set are null.
+	 * 
+	 * @param row The row index
+	 * @return true if the value in this row is null
+	 */
+	public boolean isNull(int row)
+	{
+		return row >= size || nulls.get(row);
+	}
+	
+	/**
+	 * Set a value, converting it to this column's type.
+	 * 
+	 * @param row The row index
+	 * @param value The value to set, may be null
+	 */
+	public void set(int row, Object value)
+	{
+		if (value == null)
+		{
+			setNull(row);
+			return;
+		}
+		setValue(grow(row), value);
+		nulls.clear(row);
+	}
+	
+	public void setNull(int row)
+	{
+		grow(row);
+		nulls.set(row);
+	}
+	
+	/**
+	 * Get a value as an object.
+	 * 
+	 * @param row The row index
+	 * @return The value, or null
+	 */
+	public Object get(int row)
+	{
+		if (isNull(row)) return null;
+		return getValue(row);
+	}
+	
+	/**
+	 * Get an estimate of the memory used by this column's data, in bytes.
+	 * 
+	 * @return The approximate size of this column
+	 */
+	public long getFootprint()
+	{
+		return nulls.size() / 8 + getValueFootprint();
+	}
+	
+	/**
+	 * Make room for a row, and update the size.
+	 * 
+	 * @param row The row index
+	 * @return The row index
+	 */
+	protected int grow(int row)
+	{
+		if (row >= capacity)
+		{
+			int newCapacity = Math.max(Math.max(16, capacity * 2), row + 1);
+			resize(newCapacity);
+			capacity = newCapacity;
+		}
+		if (row >= size)
+		{
+			// Rows that were skipped over are null
+			nulls.set(size, row);
+			size = row + 1;
+		}
+		return row;
+	}
+	
+	protected static Number toNumber(Object value)
+	{
+		if (value instanceof Number) return (Number)value;
+		if (value instanceof Boolean) return (Boolean)value ? 1 : 0;
+		if (value instanceof Date) return ((Date)value).getTime();
+		return Double.parseDouble(value.toString());
+	}
+	
+	protected abstract void resize(int newCapacity);
+	protected abstract void setValue(int row, Object value);
+	protected abstract Object getValue(int row);
+	protected abstract long getValueFootprint();
+	
+	protected final String name;
+	protected final DataType type;
+	protected boolean idField = false;
+	protected boolean autogenerated = false;
+	protected int size = 0;
+	protected int capacity = 0;
+	protected final BitSet nulls = new BitSet();
+	
+	public static class IntColumn extends DataColumn
+	{
+		public IntColumn(String name)
+		{
+			super(name, DataType.INTEGER);
+		}
+		
+		public int getInt(int row)
+		{
+			return values[row];
+		}
+		
+		public void setInt(int row, int value)
+		{
+			// Grow first, since it may replace the array
+			int index = grow(row);
+			values[index] = value;
+			nulls.clear(row);
+		}
+		
+		@Override
+		protected void resize(int newCapacity)
+		{
+			int[] newValues = new int[newCapacity];
+			System.arraycopy(values, 0, newValues, 0, size);
+			values = newValues;
+		}
+		
+		@Override
+		protected void setValue(int row, Object value)
+		{
+			values[row] = toNumber(value).intValue();
+		}
+		
+		@Override
+		protected Object getValue(int row)
+		{
+			return values[row];
+		}
+		
+		@Override
+		protected long getValueFootprint()
+		{
+			return (long)values.length * 4;
+		}
+		
+		protected int[] values = new int[0];
+	}
+	
+	/**
+	 * Dates are kept as milliseconds.
+	 */
+	public static class DateColumn extends DataColumn
+	{
+		public DateColumn(String name)
+		{
+			super(name, DataType.DATE);
+		}
+		
+		public long getLong(int row)
+		{
+			return values[row];
+		}
+		
+		public void setLong(int row, long value)
+		{
+			int index = grow(row);
+			values[index] = value;
+			nulls.clear(row);
+		}
+		
+		@Override
+		protected void resize(int newCapacity)
+		{
+			long[] newValues = new long[newCapacity];
+			System.arraycopy(values, 0, newValues, 0, size);
+			values = newValues;
+		}
+		
+		@Override
+		protected void setValue(int row, Object value)
+		{
+			values[row] = toNumber(value).longValue();
+		}
+		
+		@Override
+		protected Object getValue(int row)
+		{
+			return new Date(values[row]);
+		}
+		
+		@Override
+		protected long getValueFootprint()
+		{
+			return (long)values.length * 8;
+		}
+		
+		protected long[] values = new long[0];
+	}
+	
+	public static class DoubleColumn extends DataColumn
+	{
+		public DoubleColumn(String name)
+		{
+			super(name, DataType.DOUBLE);
+		}
+		
+		public double getDouble(int row)
+		{
+			return values[row];
+		}
+		
+		public void setDouble(int row, double value)
+		{
+			int index = grow(row);
+			values[index] = value;
+			nulls.clear(row);
+		}
+		
+		@Override
+		protected void resize(int newCapacity)
+		{
+			double[] newValues = new double[newCapacity];
+			System.arraycopy(values, 0, newValues, 0, size);
+			values = newValues;
+		}
+		
+		@Override
+		protected void setValue(int row, Object value)
+		{
+			values[row] = toNumber(value).doubleValue();
+		}
+		
+		@Override
+		protected Object getValue(int row)
+		{
+			return values[row];
+		}
+		
+		@Override
+		protected long getValueFootprint()
+		{
+			return (long)values.length * 8;
+		}
+		
+		protected double[] values = new double[0];
+	}
+	
+	public static class BooleanColumn extends DataColumn
+	{
+		public BooleanColumn(String name)
+		{
+			super(name, DataType.BOOLEAN);
+		}
+		
+		public boolean getBoolean(int row)
+		{
+			return values.get(row);
+		}
+		
+		public void setBoolean(int row, boolean value)
+		{
+			values.set(grow(row), value);
+			nulls.clear(row);
+		}
+		
+		@Override
+		protected void resize(int newCapacity)
+		{
+			// BitSets grow on their own
+		}
+		
+		@Override
+		protected void setValue(int row, Object value)
+		{
+			boolean flag = false;
+			if (value instanceof Boolean)
+			{
+				flag = (Boolean)value;
+			}
+			else
+			{
+				flag = toNumber(value).intValue() != 0;
+			}
+			values.set(row, flag);
+		}
+		
+		@Override
+		protected Object getValue(int row)
+		{
+			return values.get(row);
+		}
+		
+		@Override
+		protected long getValueFootprint()
+		{
+			return values.size() / 8;
+		}
+		
+		protected final BitSet values = new BitSet();
+	}
+	
+	/**
+	 * Strings are stored as codes into a dictionary of distinct values,
+	 * so repeated strings are only kept once.
+	 */
+	public static class StringColumn extends DataColumn
+	{
+		public StringColumn(String name)
+		{
+			super(name, DataType.STRING);
+		}
+		
+		public String getString(int row)
+		{
+			return dictionary.get(codes[row]);
+		}
+		
+		public void setString(int row, String value)
+		{
+			if (value == null)
+			{
+				setNull(row);
+				return;
+			}
+			int index = grow(row);
+			codes[index] = getCode(value);
+			nulls.clear(row);
+		}
+		
+		public int getDictionarySize()
+		{
+			return dictionary.size();
+		}
+		
+		/**
+		 * Get the distinct values in this column, in code order.
+		 * 
+		 * @return The string dictionary, which should not be modified
+		 */
+		public List<String> getDictionary()
+		{
+			return dictionary;
+		}
+		
+		/**
+		 * Get the dictionary code for a row.
+		 * 
+		 * @param row The row index
+		 * @return An index into the dictionary
+		 */
+		public int getStringCode(int row)
+		{
+			return codes[row];
+		}
+		
+		protected int getCode(String value)
+		{
+			Integer code = codeMap.get(value);
+			if (code == null)
+			{
+				code = dictionary.size();
+				dictionary.add(value);
+				codeMap.put(value, code);
+			}
+			return code;
+		}
+		
+		@Override
+		protected void resize(int newCapacity)
+		{
+			int[] newCodes = new int[newCapacity];
+			System.arraycopy(codes, 0, newCodes, 0, size);
+			codes = newCodes;
+		}
+		
+		@Override
+		protected void setValue(int row, Object value)
+		{
+			codes[row] = getCode(value.toString());
+		}
+		
+		@Override
+		protected Object getValue(int row)
+		{
+			return dictionary.get(codes[row]);
+		}
+		
+		@Override
+		protected long getValueFootprint()
+		{
+			// Codes, plus roughly 40 bytes of overhead for each distinct string and its map entry
+			long footprint = (long)codes.length * 4;
+			for (String value : dictionary)
+			{
+				footprint += 40 + value.length() * 2;
+			}
+			return footprint;
+		}
+		
+		protected int[] codes = new int[0];
+		protected final List<String> dictionary = new ArrayList<String>();
+		protected final HashMap<String, Integer> codeMap = new HashMap<String, Integer>();
+	}
+	
+	/**
+	 * Holds values that have no primitive form.
+	 */
+	public static class ObjectColumn extends DataColumn
+	{
+		public ObjectColumn(String name, DataType type)
+		{
+			super(name, type);
+		}
+		
+		@Override
+		protected void resize(int newCapacity)
+		{
+			Object[] newValues = new Object[newCapacity];
+			System.arraycopy(values, 0, newValues, 0, size);
+			values = newValues;
+		}
+		
+		@Override
+		protected void setValue(int row, Object value)
+		{
+			values[row] = value;
+		}
+		
+		@Override
+		protected Object getValue(int row)
+		{
+			return values[row];
+		}
+		
+		@Override
+		protected long getValueFootprint()
+		{
+			// References only, the objects themselves aren't counted
+			return (long)values.length * 8;
+		}
+		
+		protected Object[] values = new Object[0];
+	}
+}
@@ -0,0 +1,22 @@
+package com.elmakers.mine.bukkit.plugins.persistence.data;
+
+/**
+ * A callback used to process rows one at a time as they are read from a DataStore.
+ * 
+ * This lets large tables be processed without first loading every row into a DataTable.
+ * 
+ * @author NathanWolf
+ *
+ */
+public interface DataRowHandler
+{
+	/**
+	 * Process a single row.
+	 * 
+	 * The row should not be kept after this method returns- stores may
+	 * re-use the same row, reading the next row's values into it.
+	 * 
+	 * @param row The row that was read
+	 */
+	public void handle(DataRow row);
+}
@@ -5,10 +5,15 @@ import java.util.logging.Logger;
 
 import com.elmakers.mine.bukkit.plugins.persistence.Persistence;
 import com.elmakers.mine.bukkit.plugins.persistence.PersistencePlugin;
+import com.elmakers.mine.bukkit.plugins.persistence.stats.Stats;
 
 /**
  * An abstract class representing a data store.
  * 
+ * Writes are made while synchronized on the store. Loads may be called from any thread
+ * without holding a lock, so stores that share a connection between reads and writes
+ * must serialize their own reads.
+ * 
  * @author NathanWolf
  *
  */
@@ -80,6 +85,77 @@ public abstract class DataStore
 	 */
 	public abstract boolean load(DataTable table);
 	
+	/**
+	 * Load only the rows of a table where a column matches a value.
+	 * 
+	 * This is generally used to look up a single object by id.
+	 * 
+	 * Assumes that the table already exists.
+	 * 
+	 * @param table The table to load
+	 * @param columnName The column to match
+	 * @param value The value to look for
+	 * @return true if success
+	 */
+	public abstract boolean load(DataTable table, String columnName, Object value);
+	
+	/**
+	 * Read the rows of a table where a column matches a value, passing each one to a handler.
+	 * 
+	 * Rows are not added to the table. The same DataRow may be re-used for each
+	 * row, so handlers should copy out any values they need.
+	 * 
+	 * Assumes that the table already exists.
+	 * 
+	 * @param table The table to read
+	 * @param columnName The column to match
+	 * @param value The value to look for
+	 * @param handler The handler that will process each row
+	 * @return true if success
+	 */
+	public abstract boolean load(DataTable table, String columnName, Object value, DataRowHandler handler);
+	
+	/**
+	 * Read the rows of a table where a column matches any of a set of values, passing each one to a handler.
+	 * 
+	 * This is generally used to look up a batch of objects by id. The same DataRow may be 
+	 * re-used for each row, so handlers should copy out any values they need.
+	 * 
+	 * Stores that can't look up several values at once can leave the default implementation,
+	 * which does one lookup per value.
+	 * 
+	 * Assumes that the table already exists.
+	 * 
+	 * @param table The table to read
+	 * @param columnName The column to match
+	 * @param values The values to look for
+	 * @param handler The handler that will process each row
+	 * @return true if success
+	 */
+	public boolean loadIds(DataTable table, String columnName, List<Object> values, DataRowHandler handler)
+	{
+		for (Object value : values)
+		{
+			if (!load(table, columnName, value, handler)) return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Read all rows of a table, passing each one to a handler.
+	 * 
+	 * Rows are not added to the table, so this can be used to read a large table
+	 * without holding all of its rows in memory. The same DataRow may be re-used 
+	 * for each row, so handlers should copy out any values they need.
+	 * 
+	 * Assumes that the table already exists.
+	 * 
+	 * @param table The table to read
+	 * @param handler The handler that will process each row
+	 * @return true if success
+	 */
+	public abstract boolean load(DataTable table, DataRowHandler handler);
+	
 	/**
 	 * Save a table to the data store.
 	 * 
@@ -90,6 +166,61 @@ public abstract class DataStore
 	 */
 	public abstract boolean save(DataTable table);
 	
+	/**
+	 * Insert new rows into a table.
+	 * 
+	 * Unlike save, this will fail if any of the rows already exist.
+	 * 
+	 * Assumes that the table already exists.
+	 * 
+	 * @param table The table of new rows
+	 * @return true if success
+	 */
+	public abstract boolean insert(DataTable table);
+	
+	/**
+	 * Update existing rows in a table.
+	 * 
+	 * Only the columns present in the table's first row are written. Rows are
+	 * matched using the table's id field names, which must be included in each row.
+	 * 
+	 * Assumes that the table already exists.
+	 * 
+	 * @param table The table of rows to update
+	 * @return true if success
+	 */
+	public abstract boolean update(DataTable table);
+	
+	/**
+	 * Update existing rows in a table, and insert any rows that don't exist.
+	 * 
+	 * This is used when saving objects that we think are already in the store,
+	 * in case they aren't. Stores that can't tell which rows an update matched can 
+	 * leave the default implementation, which saves every row in full.
+	 * 
+	 * @param table The table of rows to update
+	 * @param fullTable The complete rows, in the same order as "table"
+	 * @return true if success
+	 */
+	public boolean update(DataTable table, DataTable fullTable)
+	{
+		if (fullTable == null || table.getRowCount() == 0)
+		{
+			return update(table);
+		}
+		return save(fullTable);
+	}
+	
+	/**
+	 * Delete specific rows from a table.
+	 * 
+	 * Rows are matched using the table's id field names, other columns are ignored.
+	 * 
+	 * @param table The table of rows to delete
+	 * @return true if success
+	 */
+	public abstract boolean delete(DataTable table);
+	
 	/**
 	 * Check to see if the specified table exists.
 	 * 
@@ -98,6 +229,79 @@ public abstract class DataStore
 	 */
 	public abstract boolean tableExists(DataTable table);
 	
+	/**
+	 * Count the rows in a table.
+	 * 
+	 * Stores that can't count rows without reading them can leave the default implementation.
+	 * 
+	 * @param table The table to count
+	 * @return The number of rows, or -1 if unknown
+	 */
+	public int count(DataTable table)
+	{
+		return -1;
+	}
+	
+	/**
+	 * Get a value that changes whenever the data in this store changes.
+	 * 
+	 * This must also change when the data is changed outside of Persistence, since cache 
+	 * snapshots are only used if it is the same as when they were written. Stores that can't
+	 * tell, such as a database server that other servers can write to, can leave the default
+	 * implementation, and snapshots won't be used with them.
+	 * 
+	 * @return The current data version, or 0 if unknown
+	 */
+	public long getDataVersion()
+	{
+		return 0;
+	}
+	
+	/**
+	 * Begin a transaction.
+	 * 
+	 * Transactions may be nested- only the outermost commit will actually
+	 * write data. If any nested transaction is rolled back, the whole
+	 * transaction will be rolled back.
+	 * 
+	 * Stores that don't support transactions can leave the default implementation,
+	 * which does nothing.
+	 * 
+	 * @return true if success
+	 */
+	public boolean beginTransaction()
+	{
+		return true;
+	}
+	
+	/**
+	 * Commit the current transaction.
+	 * 
+	 * @return true if success, false if the transaction was rolled back
+	 */
+	public boolean commit()
+	{
+		return true;
+	}
+	
+	/**
+	 * Roll back the current transaction.
+	 */
+	public void rollback()
+	{
+	}
+	
+	/**
+	 * Roll back and end the current transaction, however deeply it is nested.
+	 * 
+	 * Use this after an unexpected error, when nested transactions may not have been
+	 * rolled back, so that the next transaction starts fresh.
+	 */
+	public void abort()
+	{
+		rollback();
+	}
+	
 	/**
 	 * Check to see if this is a read-only data store
 	 * 
@@ -122,7 +326,23 @@ public abstract class DataStore
 		this.schema = schema;
 	}
 	
+	public String getSchema()
+	{
+		return schema;
+	}
+	
+	/**
+	 * Get the timings and counters for this store.
+	 * 
+	 * @return This store's stats
+	 */
+	public Stats getStats()
+	{
+		return stats;
+	}
+	
 	protected Persistence persistence = null;
 	protected String schema;
+	protected final Stats stats = new Stats();
 	protected static Logger log = PersistencePlugin.getLogger();
 }
@@ -15,11 +15,16 @@ public class DataTable
 		return name;
 	}
 	
-	public final List<DataRow> getRows()
+	public List<DataRow> getRows()
 	{
 		return rows;
 	}
 	
+	public int getRowCount()
+	{
+		return rows.size();
+	}
+	
 	public void addRow(DataRow row)
 	{
 		rows.add(row);
@@ -50,6 +55,24 @@ public class DataTable
 		}
 	}
 	
+	/**
+	 * Get the names of columns that should be indexed in the data store.
+	 * 
+	 * @return The indexed column names
+	 */
+	public List<String> getIndexFieldNames()
+	{
+		return indexFieldNames;
+	}
+	
+	public void addIndexFieldName(String indexFieldName)
+	{
+		if (!indexFieldNames.contains(indexFieldName))
+		{
+			indexFieldNames.add(indexFieldName);
+		}
+	}
+	
 	public void createHeader()
 	{
 		if (rows.size() > 0) return;
@@ -60,5 +83,6 @@ public class DataTable
 
 	protected String name;
 	protected List<String> idFieldNames = new ArrayList<String>();
+	protected List<String> indexFieldNames = new ArrayList<String>();
 	protected List<DataRow> rows = new ArrayList<DataRow>();
 }
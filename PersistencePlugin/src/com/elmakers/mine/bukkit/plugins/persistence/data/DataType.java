@@ -89,7 +89,7 @@ public enum DataType
 		switch(dataType)
 		{		
 			case STRING: return field.toString();
-			case DOUBLE: return Double.parseDouble(field.toString());
+			case DOUBLE: return toDouble(field);
 			case INTEGER: return (Integer)field;
 			case DATE:
 				Date d = (Date)field;
@@ -110,11 +110,11 @@ public enum DataType
 		switch(dataType)
 		{		
 			case STRING: return field.toString();
-			case DOUBLE: return Double.parseDouble(field.toString());
+			case DOUBLE: return toDouble(field);
 			case INTEGER: return (Integer)field;
 			case DATE:
-				Integer intDate = (Integer)field;
-				Date d = new Date(intDate * 1000);
+				long seconds = ((Number)field).longValue();
+				Date d = new Date(seconds * 1000);
 				return d;
 			case BOOLEAN:
 				Integer intBoolean = (Integer)field;
@@ -123,4 +123,17 @@ public enum DataType
 		}
 		return field;
 	}
+	
+	/**
+	 * Convert a value to a Double, without going through a String if it's already a number.
+	 * 
+	 * @param field The value to convert
+	 * @return The value as a Double
+	 */
+	protected static Double toDouble(Object field)
+	{
+		if (field instanceof Double) return (Double)field;
+		if (field instanceof Number) return ((Number)field).doubleValue();
+		return Double.parseDouble(field.toString());
+	}
 }
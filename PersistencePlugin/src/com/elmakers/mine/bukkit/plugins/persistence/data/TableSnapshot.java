@@ -0,0 +1,342 @@
+package com.elmakers.mine.bukkit.plugins.persistence.data;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Reads and writes a set of ColumnarTables as a single binary file.
+ *
+ * Data is written a column at a time, using the same primitive layout that
+ * ColumnarTable uses in memory. Strings are written once per column, as a dictionary,
+ * with an int code per row. Files are memory-mapped when read.
+ *
+ * Each file has a format version, a signature that the caller uses to check that
+ * the tables still have the same layout, and a checksum of the whole file. A file that
+ * fails any of those checks is not read.
+ *
+ * Only INTEGER, BOOLEAN, DOUBLE, STRING and DATE columns can be written.
+ *
+ * @author NathanWolf
+ *
+ */
+public class TableSnapshot
+{
+	/**
+	 * Write a set of tables to a file.
+	 *
+	 * The file is written to a temporary file first, and then renamed, so a failed
+	 * write will not leave a partial snapshot behind.
+	 *
+	 * @param file The file to write
+	 * @param signature A value identifying the table layout, checked on read
+	 * @param tables The tables to write
+	 * @return false if the tables can't be written
+	 * @throws IOException
+	 */
+	public static boolean write(File file, long signature, List<ColumnarTable> tables) throws IOException
+	{
+		for (ColumnarTable table : tables)
+		{
+			for (DataColumn column : table.getColumns())
+			{
+				if (!canWrite(column.getType())) return false;
+			}
+		}
+
+		File tempFile = new File(file.getPath() + ".tmp");
+		FileOutputStream fileStream = new FileOutputStream(tempFile);
+		try
+		{
+			CRC32 checksum = new CRC32();
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new CheckedOutputStream(fileStream, checksum), 65536));
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(signature);
+			out.writeInt(tables.size());
+			for (ColumnarTable table : tables)
+			{
+				writeTable(out, table);
+			}
+			out.flush();
+
+			// The checksum covers everything before it
+			DataOutputStream footer = new DataOutputStream(fileStream);
+			footer.writeLong(checksum.getValue());
+			footer.flush();
+		}
+		finally
+		{
+			fileStream.close();
+		}
+
+		file.delete();
+		return tempFile.renameTo(file);
+	}
+
+	/**
+	 * Read a set of tables from a file.
+	 *
+	 * @param file The file to read
+	 * @param signature The expected table layout signature
+	 * @return The tables, or null if the file is missing, corrupt, or out of date
+	 * @throws IOException
+	 */
+	public static List<ColumnarTable> read(File file, long signature) throws IOException
+	{
+		if (!file.exists()) return null;
+
+		RandomAccessFile randomAccess = new RandomAccessFile(file, "r");
+		try
+		{
+			FileChannel channel = randomAccess.getChannel();
+			long size = channel.size();
+			if (size < HEADER_SIZE + 8 || size > Integer.MAX_VALUE) return null;
+
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+			int dataSize = (int)size - 8;
+			if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) return null;
+			if (buffer.getLong(8) != signature) return null;
+			if (buffer.getLong(dataSize) != getChecksum(buffer, dataSize)) return null;
+
+			buffer.position(HEADER_SIZE - 4);
+			int tableCount = buffer.getInt();
+			List<ColumnarTable> tables = new ArrayList<ColumnarTable>(tableCount);
+			for (int i = 0; i < tableCount; i++)
+			{
+				tables.add(readTable(buffer));
+			}
+			return tables;
+		}
+		finally
+		{
+			randomAccess.close();
+		}
+	}
+
+	public static boolean canWrite(DataType type)
+	{
+		if (type == null) return false;
+		switch (type)
+		{
+			case INTEGER:
+			case BOOLEAN:
+			case DOUBLE:
+			case STRING:
+			case DATE:
+				return true;
+		}
+		return false;
+	}
+
+	protected static void writeTable(DataOutputStream out, ColumnarTable table) throws IOException
+	{
+		int rowCount = table.getRowCount();
+		List<DataColumn> columns = table.getColumns();
+		writeString(out, table.getName());
+		out.writeInt(rowCount);
+		out.writeInt(columns.size());
+		for (DataColumn column : columns)
+		{
+			writeString(out, column.getName());
+			out.writeByte(column.getType().ordinal());
+			out.writeBoolean(column.isIdField());
+			out.writeBoolean(column.isAutogenerated());
+
+			// Null flags, packed 8 to a byte
+			writeBits(out, column, rowCount, true);
+
+			switch (column.getType())
+			{
+				case INTEGER:
+					DataColumn.IntColumn intColumn = (DataColumn.IntColumn)column;
+					for (int row = 0; row < rowCount; row++)
+					{
+						out.writeInt(column.isNull(row) ? 0 : intColumn.getInt(row));
+					}
+					break;
+				case DATE:
+					DataColumn.DateColumn dateColumn = (DataColumn.DateColumn)column;
+					for (int row = 0; row < rowCount; row++)
+					{
+						out.writeLong(column.isNull(row) ? 0 : dateColumn.getLong(row));
+					}
+					break;
+				case DOUBLE:
+					DataColumn.DoubleColumn doubleColumn = (DataColumn.DoubleColumn)column;
+					for (int row = 0; row < rowCount; row++)
+					{
+						out.writeDouble(column.isNull(row) ? 0 : doubleColumn.getDouble(row));
+					}
+					break;
+				case BOOLEAN:
+					writeBits(out, column, rowCount, false);
+					break;
+				case STRING:
+					DataColumn.StringColumn stringColumn = (DataColumn.StringColumn)column;
+					List<String> dictionary = stringColumn.getDictionary();
+					out.writeInt(dictionary.size());
+					for (String value : dictionary)
+					{
+						writeString(out, value);
+					}
+					for (int row = 0; row < rowCount; row++)
+					{
+						out.writeInt(column.isNull(row) ? -1 : stringColumn.getStringCode(row));
+					}
+					break;
+			}
+		}
+	}
+
+	protected static ColumnarTable readTable(ByteBuffer in) throws IOException
+	{
+		String name = readString(in);
+		int rowCount = in.getInt();
+		int columnCount = in.getInt();
+		List<DataColumn> columns = new ArrayList<DataColumn>(columnCount);
+		for (int i = 0; i < columnCount; i++)
+		{
+			String columnName = readString(in);
+			DataType type = DataType.values()[in.get()];
+			DataColumn column = DataColumn.create(columnName, type);
+			column.setIdField(in.get() != 0);
+			column.setAutogenerated(in.get() != 0);
+
+			byte[] nulls = new byte[(rowCount + 7) / 8];
+			in.get(nulls);
+
+			switch (type)
+			{
+				case INTEGER:
+					DataColumn.IntColumn intColumn = (DataColumn.IntColumn)column;
+					for (int row = 0; row < rowCount; row++)
+					{
+						int value = in.getInt();
+						if (!isSet(nulls, row)) intColumn.setInt(row, value);
+					}
+					break;
+				case DATE:
+					DataColumn.DateColumn dateColumn = (DataColumn.DateColumn)column;
+					for (int row = 0; row < rowCount; row++)
+					{
+						long value = in.getLong();
+						if (!isSet(nulls, row)) dateColumn.setLong(row, value);
+					}
+					break;
+				case DOUBLE:
+					DataColumn.DoubleColumn doubleColumn = (DataColumn.DoubleColumn)column;
+					for (int row = 0; row < rowCount; row++)
+					{
+						double value = in.getDouble();
+						if (!isSet(nulls, row)) doubleColumn.setDouble(row, value);
+					}
+					break;
+				case BOOLEAN:
+					DataColumn.BooleanColumn booleanColumn = (DataColumn.BooleanColumn)column;
+					byte[] values = new byte[nulls.length];
+					in.get(values);
+					for (int row = 0; row < rowCount; row++)
+					{
+						if (!isSet(nulls, row)) booleanColumn.setBoolean(row, isSet(values, row));
+					}
+					break;
+				case STRING:
+					DataColumn.StringColumn stringColumn = (DataColumn.StringColumn)column;
+					int dictionarySize = in.getInt();
+					String[] dictionary = new String[dictionarySize];
+					for (int d = 0; d < dictionarySize; d++)
+					{
+						dictionary[d] = readString(in);
+					}
+					for (int row = 0; row < rowCount; row++)
+					{
+						int code = in.getInt();
+						if (code >= 0) stringColumn.setString(row, dictionary[code]);
+					}
+					break;
+				default:
+					throw new IOException("Unsupported column type " + type);
+			}
+
+			columns.add(column);
+		}
+
+		ColumnarTable table = new ColumnarTable(name, columns);
+		for (int row = 0; row < rowCount; row++)
+		{
+			table.addRow();
+		}
+		return table;
+	}
+
+	/**
+	 * Write one bit per row, either the null flag or a boolean value.
+	 */
+	protected static void writeBits(DataOutputStream out, DataColumn column, int rowCount, boolean nulls) throws IOException
+	{
+		byte[] bits = new byte[(rowCount + 7) / 8];
+		DataColumn.BooleanColumn booleanColumn = nulls ? null : (DataColumn.BooleanColumn)column;
+		for (int row = 0; row < rowCount; row++)
+		{
+			boolean set = nulls ? column.isNull(row) : !column.isNull(row) && booleanColumn.getBoolean(row);
+			if (set)
+			{
+				bits[row >> 3] |= 1 << (row & 7);
+			}
+		}
+		out.write(bits);
+	}
+
+	protected static boolean isSet(byte[] bits, int row)
+	{
+		return (bits[row >> 3] & (1 << (row & 7))) != 0;
+	}
+
+	protected static void writeString(DataOutputStream out, String value) throws IOException
+	{
+		byte[] bytes = value.getBytes("UTF-8");
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	protected static String readString(ByteBuffer in) throws IOException
+	{
+		byte[] bytes = new byte[in.getInt()];
+		in.get(bytes);
+		return new String(bytes, "UTF-8");
+	}
+
+	protected static long getChecksum(ByteBuffer buffer, int length)
+	{
+		CRC32 checksum = new CRC32();
+		byte[] chunk = new byte[65536];
+		ByteBuffer data = buffer.duplicate();
+		data.position(0);
+		int remaining = length;
+		while (remaining > 0)
+		{
+			int count = Math.min(chunk.length, remaining);
+			data.get(chunk, 0, count);
+			checksum.update(chunk, 0, count);
+			remaining -= count;
+		}
+		return checksum.getValue();
+	}
+
+	protected static final int MAGIC = 0x50534e50;
+	protected static final int VERSION = 1;
+
+	// Magic, version, signature and table count
+	protected static final int HEADER_SIZE = 20;
+}
@@ -0,0 +1,197 @@
+package com.elmakers.mine.bukkit.plugins.persistence.data.sql;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.LinkedList;
+import java.util.logging.Logger;
+
+import com.elmakers.mine.bukkit.plugins.persistence.PersistencePlugin;
+
+/**
+ * A bounded pool of read connections for a SqlStore.
+ * 
+ * Each pooled connection carries its own StatementCache, so load statements
+ * are prepared once per connection and re-used.
+ * 
+ * Connections are opened lazily, up to the maximum size. If all of them are in
+ * use, acquire will wait for one to be released.
+ * 
+ * @author NathanWolf
+ *
+ */
+public class ConnectionPool
+{
+	public ConnectionPool(SqlStore store, int maxSize, int statementCacheSize)
+	{
+		this.store = store;
+		this.maxSize = Math.max(1, maxSize);
+		this.statementCacheSize = statementCacheSize;
+	}
+	
+	/**
+	 * Borrow a connection from the pool.
+	 * 
+	 * The connection must be given back with release or discard.
+	 * 
+	 * @return A statement cache for the borrowed connection
+	 * @throws SQLException If the pool is closed, or a new connection could not be opened
+	 */
+	public StatementCache acquire() throws SQLException
+	{
+		synchronized (idle)
+		{
+			while (true)
+			{
+				if (closed)
+				{
+					throw new SQLException("Connection pool is closed");
+				}
+				if (idle.size() > 0)
+				{
+					return idle.removeFirst();
+				}
+				if (openCount < maxSize)
+				{
+					openCount++;
+					break;
+				}
+				try
+				{
+					idle.wait();
+				}
+				catch (InterruptedException ex)
+				{
+					Thread.currentThread().interrupt();
+					throw new SQLException("Interrupted waiting for a connection");
+				}
+			}
+		}
+		
+		// Open outside of the lock, this may be slow
+		try
+		{
+			Connection connection = store.openConnection();
+			return new StatementCache(connection, statementCacheSize);
+		}
+		catch (SQLException ex)
+		{
+			closed(null);
+			throw ex;
+		}
+		catch (RuntimeException ex)
+		{
+			closed(null);
+			throw ex;
+		}
+	}
+	
+	/**
+	 * Give a connection back to the pool, so it can be re-used.
+	 * 
+	 * @param reader The statement cache returned by acquire
+	 */
+	public void release(StatementCache reader)
+	{
+		synchronized (idle)
+		{
+			if (!closed)
+			{
+				idle.addFirst(reader);
+				idle.notify();
+				return;
+			}
+		}
+		closed(reader);
+	}
+	
+	/**
+	 * Close a connection instead of returning it to the pool.
+	 * 
+	 * This should be used if the connection had an error, and may no longer be usable.
+	 * 
+	 * @param reader The statement cache returned by acquire
+	 */
+	public void discard(StatementCache reader)
+	{
+		closed(reader);
+	}
+	
+	/**
+	 * Remove cached statements for a table from all idle connections.
+	 * 
+	 * @param tableName The table that was dropped or altered
+	 */
+	public void invalidate(String tableName)
+	{
+		synchronized (idle)
+		{
+			for (StatementCache reader : idle)
+			{
+				reader.invalidate(tableName);
+			}
+		}
+	}
+	
+	/**
+	 * Close all idle connections.
+	 * 
+	 * Connections that are in use are closed when they are released.
+	 */
+	public void close()
+	{
+		LinkedList<StatementCache> closing;
+		synchronized (idle)
+		{
+			closed = true;
+			closing = new LinkedList<StatementCache>(idle);
+			idle.clear();
+		}
+		for (StatementCache reader : closing)
+		{
+			closed(reader);
+		}
+	}
+	
+	public int getMaxSize()
+	{
+		return maxSize;
+	}
+	
+	public int getOpenCount()
+	{
+		synchronized (idle)
+		{
+			return openCount;
+		}
+	}
+	
+	protected void closed(StatementCache reader)
+	{
+		if (reader != null)
+		{
+			reader.clear();
+			try
+			{
+				reader.getConnection().close();
+			}
+			catch (SQLException ex)
+			{
+				log.warning("Persistence: Error closing pooled connection: " + ex.getMessage());
+			}
+		}
+		synchronized (idle)
+		{
+			openCount--;
+			idle.notify();
+		}
+	}
+	
+	private final SqlStore store;
+	private final int maxSize;
+	private final int statementCacheSize;
+	private final LinkedList<StatementCache> idle = new LinkedList<StatementCache>();
+	private int openCount = 0;
+	private boolean closed = false;
+	
+	protected static Logger log = PersistencePlugin.getLogger();
+}
@@ -0,0 +1,136 @@
+package com.elmakers.mine.bukkit.plugins.persistence.data.sql;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+import com.elmakers.mine.bukkit.plugins.persistence.data.DataRow;
+import com.elmakers.mine.bukkit.plugins.persistence.data.DataTable;
+import com.elmakers.mine.bukkit.plugins.persistence.data.DataType;
+
+/**
+ * A generic JDBC store, configured with a driver class and connection URL.
+ * 
+ * This uses standard SQL types, and looks tables up using JDBC metadata
+ * instead of a master table. Saves use MERGE, as supported by H2, so an 
+ * embedded H2 database can be used in place of SQLite for local testing.
+ * 
+ * The connection URL may contain {schema} and {folder}, which are replaced with
+ * the schema name and the absolute path of the data folder.
+ * 
+ * @author NathanWolf
+ *
+ */
+public class JdbcStore extends SqlStore
+{
+	public JdbcStore(String driverClassName, String connectionUrl)
+	{
+		this.driverClassName = driverClassName;
+		this.connectionUrl = connectionUrl;
+	}
+	
+	@Override
+	public String getDriverClassName() 
+	{ 
+		return driverClassName; 
+	}
+
+	/**
+	 * Use the sub-protocol of the URL as the driver jar name, 
+	 * so "jdbc:h2:..." will look for lib/h2.jar
+	 */
+	@Override
+	public String getDriverFileName() 
+	{ 
+		String[] parts = connectionUrl.split(":");
+		if (parts.length < 2) return connectionUrl;
+		return parts[1]; 
+	}
+	
+	@Override
+	public String getMasterTableName() 
+	{ 
+		return "INFORMATION_SCHEMA.TABLES"; 
+	}
+	
+	@Override
+	public String getConnectionString(String schema, String user, String password) 
+	{ 
+		String url = connectionUrl.replace("{schema}", schema);
+		if (dataFolder != null)
+		{
+			url = url.replace("{folder}", dataFolder.getAbsolutePath());
+		}
+		return url;
+	}
+	
+	@Override
+	protected Connection openConnection() throws SQLException
+	{
+		String url = getConnectionString(schema, user, password);
+		if (user == null || user.length() == 0)
+		{
+			return DriverManager.getConnection(url);
+		}
+		return DriverManager.getConnection(url, user, password);
+	}
+	
+	@Override
+	public boolean tableExists(DataTable table)
+	{
+		String tableName = table.getName();
+		try
+		{
+			DatabaseMetaData metaData = connection.getMetaData();
+			ResultSet rs = metaData.getTables(null, null, tableName, null);
+			try
+			{
+				// The name is a pattern, so check for an exact match
+				while (rs.next())
+				{
+					if (tableName.equals(rs.getString("TABLE_NAME"))) return true;
+				}
+			}
+			finally
+			{
+				rs.close();
+			}
+		}
+		catch (SQLException ex)
+		{
+			log.severe("Persistence: Error getting table data: " + ex.getMessage());
+		}
+		return false;
+	}
+	
+	@Override
+	protected String getSaveSql(String tableName, DataRow header)
+	{
+		// MERGE matches existing rows using the primary key
+		return getInsertSql("MERGE", tableName, header);
+	}
+	
+	@Override
+	public String getTypeName(DataType dataType)
+	{
+		switch (dataType)
+		{
+			case INTEGER:
+				return "INTEGER";
+			case BOOLEAN:
+				return "INTEGER";
+			case DATE:
+				return "INTEGER";
+			case DOUBLE:
+				return "DOUBLE";
+			case STRING:
+				return "VARCHAR(4096)";
+		}
+		return null;
+	}
+	
+	protected final String driverClassName;
+	protected final String connectionUrl;
+}
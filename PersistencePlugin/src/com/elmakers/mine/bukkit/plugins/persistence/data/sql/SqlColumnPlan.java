@@ -0,0 +1,68 @@
+package com.elmakers.mine.bukkit.plugins.persistence.data.sql;
+
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+
+import com.elmakers.mine.bukkit.plugins.persistence.data.DataTable;
+import com.elmakers.mine.bukkit.plugins.persistence.data.DataType;
+
+/**
+ * The column layout of a query result.
+ * 
+ * This is read from the ResultSetMetaData once per query, so column names and
+ * types don't need to be looked up again for every row.
+ * 
+ * @author NathanWolf
+ *
+ */
+public class SqlColumnPlan
+{
+	/**
+	 * Read the column layout of a result set.
+	 * 
+	 * @param rs The result set, which should be positioned on its first row
+	 * @throws SQLException If the metadata can't be read
+	 */
+	public SqlColumnPlan(ResultSet rs) throws SQLException
+	{
+		ResultSetMetaData rowInfo = rs.getMetaData();
+		int columnCount = rowInfo.getColumnCount();
+		columnNames = new String[columnCount];
+		columnTypes = new DataType[columnCount];
+		for (int i = 0; i < columnCount; i++)
+		{
+			columnNames[i] = rowInfo.getColumnName(i + 1);
+			columnTypes[i] = SqlDataRow.getTypeFromSqlType(rowInfo.getColumnType(i + 1));
+		}
+	}
+	
+	/**
+	 * Create a row with one field per column, which can be read into repeatedly.
+	 * 
+	 * @param table The table the row belongs to
+	 * @return A new, empty row
+	 */
+	public SqlDataRow createRow(DataTable table)
+	{
+		return new SqlDataRow(table, this);
+	}
+	
+	public int getColumnCount()
+	{
+		return columnNames.length;
+	}
+	
+	public String getColumnName(int index)
+	{
+		return columnNames[index];
+	}
+	
+	public DataType getColumnType(int index)
+	{
+		return columnTypes[index];
+	}
+	
+	private final String[] columnNames;
+	private final DataType[] columnTypes;
+}
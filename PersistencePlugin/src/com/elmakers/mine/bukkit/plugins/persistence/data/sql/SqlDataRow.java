@@ -1,7 +1,6 @@
 package com.elmakers.mine.bukkit.plugins.persistence.data.sql;
 
 import java.sql.ResultSet;
-import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 
 import com.elmakers.mine.bukkit.plugins.persistence.data.DataField;
@@ -12,35 +11,52 @@ import com.elmakers.mine.bukkit.plugins.persistence.data.DataType;
 public class SqlDataRow extends DataRow
 {
 	/**
-	 * Create a DataRow based on a SQL ResultSet
+	 * Create a DataRow for reading query results into.
 	 * 
-	 * This constructor is used to create a DataRow for reading from a store.
+	 * The row has one field for each column in the plan. Call read to fill
+	 * the fields in from the current row of a ResultSet- the same row can be
+	 * re-used for every row in the result.
 	 * 
-	 * @param row The SQL ResultSet to read from
+	 * @param table The table this row belongs to
+	 * @param plan The column layout of the query
 	 */
-	public SqlDataRow(DataTable table, ResultSet row)
+	public SqlDataRow(DataTable table, SqlColumnPlan plan)
 	{
 		super(table);
 		
-		try
+		this.plan = plan;
+		int columnCount = plan.getColumnCount();
+		columns = new DataField[columnCount];
+		for (int i = 0; i < columnCount; i++)
 		{
-			ResultSetMetaData rowInfo = row.getMetaData();
-			int columnCount = rowInfo.getColumnCount();
-			for (int i = 1; i <= columnCount; i++)
-			{
-				int sqlType = rowInfo.getColumnType(i);
-				String columnName = rowInfo.getColumnName(i);
-				Object data = row.getObject(i);
-				DataType dataType = getTypeFromSqlType(sqlType);
-				DataField field = new DataField(columnName, dataType, data);
-				add(field);
-			}
+			DataField field = new DataField(plan.getColumnName(i), plan.getColumnType(i));
+			columns[i] = field;
+			add(field);
 		}
-		catch (SQLException ex)
+	}
+	
+	/**
+	 * Read the values of the current row of a ResultSet into this row's fields.
+	 * 
+	 * @param rs The ResultSet to read, using the same columns as this row's plan
+	 * @throws SQLException If a value can't be read
+	 */
+	public void read(ResultSet rs) throws SQLException
+	{
+		for (int i = 0; i < columns.length; i++)
 		{
-			log.warning("Persistence: error creating SQLDataRow: " + ex.getMessage());
+			Object data = rs.getObject(i + 1);
+			DataField field = columns[i];
+			
+			// Fall back to the value's type when the driver didn't know the column type
+			DataType dataType = plan.getColumnType(i);
+			if (dataType == DataType.NULL && data != null)
+			{
+				dataType = DataType.getTypeFromClass(data.getClass());
+			}
+			field.setType(dataType);
+			field.setValue(data);
 		}
-		
 	}
 	
 	/**
@@ -122,4 +138,6 @@ public class SqlDataRow extends DataRow
 		return dataType;
 	}
 	
+	protected final SqlColumnPlan plan;
+	protected final DataField[] columns;
 }
@@ -1,6 +1,8 @@
 package com.elmakers.mine.bukkit.plugins.persistence.data.sql;
 
 import java.io.File;
+import java.sql.SQLException;
+import java.sql.Statement;
 
 import com.elmakers.mine.bukkit.plugins.persistence.data.DataType;
 
@@ -18,10 +20,81 @@ public class SqlLiteStore extends SqlStore
 	@Override
 	public String getConnectionString(String schema, String user, String password) 
 	{ 
-		File sqlLiteFile = new File(dataFolder, schema + ".db");
+		File sqlLiteFile = getDatabaseFile();
 		return "jdbc:sqlite:" + sqlLiteFile.getAbsolutePath();
 	}
 	
+	/**
+	 * Use the database file's modification time and size as its data version.
+	 * 
+	 * In WAL mode, committed changes are first moved into the database file, so that
+	 * closing the store afterwards doesn't change the file again.
+	 */
+	@Override
+	public long getDataVersion()
+	{
+		if (readPoolSize > 0 && connection != null)
+		{
+			try
+			{
+				Statement statement = connection.createStatement();
+				try
+				{
+					statement.execute("PRAGMA wal_checkpoint(TRUNCATE)");
+				}
+				finally
+				{
+					statement.close();
+				}
+			}
+			catch (SQLException ex)
+			{
+				log.warning("Persistence: Could not checkpoint " + schema + ": " + ex.getMessage());
+				return 0;
+			}
+		}
+		
+		File sqlLiteFile = getDatabaseFile();
+		if (!sqlLiteFile.exists()) return 0;
+		return sqlLiteFile.lastModified() * 31 + sqlLiteFile.length();
+	}
+	
+	protected File getDatabaseFile()
+	{
+		return new File(dataFolder, schema + ".db");
+	}
+	
+	/**
+	 * Switch to write-ahead logging when using a read pool.
+	 * 
+	 * In SQLite's default journal mode, a writer locks out readers on other
+	 * connections while it commits. In WAL mode readers see the last committed
+	 * data, and don't block the writer.
+	 */
+	@Override
+	public boolean onConnect()
+	{
+		if (readPoolSize <= 0) return true;
+		
+		try
+		{
+			Statement statement = connection.createStatement();
+			try
+			{
+				statement.execute("PRAGMA journal_mode=WAL");
+			}
+			finally
+			{
+				statement.close();
+			}
+		}
+		catch (SQLException ex)
+		{
+			log.warning("Persistence: Could not enable WAL mode for " + schema + ": " + ex.getMessage());
+		}
+		return true;
+	}
+	
 	@Override
 	public String getTypeName(DataType dataType)
 	{
@@ -7,13 +7,19 @@ import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.List;
 
+import com.elmakers.mine.bukkit.plugins.persistence.data.ColumnarTable;
+import com.elmakers.mine.bukkit.plugins.persistence.data.DataColumn;
 import com.elmakers.mine.bukkit.plugins.persistence.data.DataField;
 import com.elmakers.mine.bukkit.plugins.persistence.data.DataRow;
+import com.elmakers.mine.bukkit.plugins.persistence.data.DataRowHandler;
 import com.elmakers.mine.bukkit.plugins.persistence.data.DataTable;
 import com.elmakers.mine.bukkit.plugins.persistence.data.DataType;
 import com.elmakers.mine.bukkit.plugins.persistence.data.DataStore;
+import com.elmakers.mine.bukkit.plugins.persistence.stats.Gauge;
+import com.elmakers.mine.bukkit.plugins.persistence.stats.OperationStats;
 
 /**
  * An abstract base clase for all JDBC-SQL-based stores.
@@ -23,6 +29,11 @@ import com.elmakers.mine.bukkit.plugins.persistence.data.DataStore;
  */
 public abstract class SqlStore extends DataStore
 {
+	public SqlStore()
+	{
+		addGauges();
+	}
+	
 	public abstract String getDriverClassName();
 	public abstract String getDriverFileName();
 	public abstract String getMasterTableName();
@@ -39,26 +50,35 @@ public abstract class SqlStore extends DataStore
 		return true;
 	}
 	
+	/**
+	 * Open a new connection to this store's schema.
+	 * 
+	 * This is used for the main connection, and for any pooled read connections.
+	 * 
+	 * @return A new connection
+	 * @throws SQLException If the connection could not be opened
+	 */
+	protected Connection openConnection() throws SQLException
+	{
+		return DriverManager.getConnection(getConnectionString(schema, user, password));
+	}
+	
 	@Override
 	public boolean connect()
 	{
-		if (connection != null)
+		// Readers check this without holding the store lock, so they don't
+		// wait on a save in progress.
+		if (isConnected()) return true;
+		
+		synchronized (this)
 		{
-			boolean closed = true;
-			try
-			{
-				closed = connection.isClosed();
-			}
-			catch (SQLException ex)
-			{
-				closed = true;
-			}
-			if (!closed)
-			{
-				return true;
-			}
+			if (isConnected()) return true;
+			return open();
 		}
-		
+	}
+	
+	protected boolean open()
+	{
 		// Try to load drivers if necessary
 		if (!driversLoaded)
 		{
@@ -121,14 +141,18 @@ public abstract class SqlStore extends DataStore
 			}
 		}
 		// Create or connect to the database
-		
-		// TODO: user, password
-		String user = "";
-		String password = "";
-				
 		try
 		{
-			connection = DriverManager.getConnection(getConnectionString(schema, user, password));
+			Connection newConnection = openConnection();
+			statementCache = new StatementCache(newConnection, statementCacheSize);
+			
+			// Pooled connections are opened as needed, but the pool needs to be in place
+			// before anyone can see the new connection, so readers never use it.
+			if (readPoolSize > 0)
+			{
+				readPool = new ConnectionPool(this, readPoolSize, statementCacheSize);
+			}
+			connection = newConnection;
 		}
 		catch(SQLException e)
 		{
@@ -140,8 +164,20 @@ public abstract class SqlStore extends DataStore
 	}
 
 	@Override
-	public void disconnect()
+	public synchronized void disconnect()
 	{
+		if (readPool != null)
+		{
+			readPool.close();
+			readPool = null;
+		}
+		transactionDepth = 0;
+		rollbackOnly = false;
+		if (statementCache != null)
+		{
+			statementCache.clear();
+			statementCache = null;
+		}
 		if (connection != null)
 		{
 			try
@@ -158,11 +194,17 @@ public abstract class SqlStore extends DataStore
 
 	public boolean tableExists(DataTable table)
 	{
-		String checkQuery = "SELECT name FROM \"" + getMasterTableName() + "\" WHERE type='table' AND name='" + table.getName() + "'";
 		boolean tableExists = false;
+		String checkQuery = null;
 		try
 		{
-			PreparedStatement ps = connection.prepareStatement(checkQuery);
+			PreparedStatement ps = statementCache.get(tableExistsKey);
+			if (ps == null)
+			{
+				checkQuery = "SELECT name FROM \"" + getMasterTableName() + "\" WHERE type='table' AND name=?";
+				ps = statementCache.prepare(tableExistsKey, checkQuery);
+			}
+			ps.setString(1, table.getName());
 			ResultSet rs = ps.executeQuery();
 			tableExists = rs.next();
 			rs.close();
@@ -170,12 +212,39 @@ public abstract class SqlStore extends DataStore
 		catch (SQLException ex)
 		{
 			log.severe("Persistence: Error getting table data: " + ex.getMessage());
-			log.info(checkQuery);
+			if (checkQuery != null) log.info(checkQuery);
 			return false;
 		}
 		return tableExists;
 	}
 	
+	@Override
+	public int count(DataTable table)
+	{
+		long start = OperationStats.start();
+		int rowCount = -1;
+		String countQuery = "SELECT COUNT(*) FROM \"" + table.getName() + "\"";
+		try
+		{
+			PreparedStatement ps = connection.prepareStatement(countQuery);
+			ResultSet rs = ps.executeQuery();
+			if (rs.next())
+			{
+				rowCount = rs.getInt(1);
+			}
+			rs.close();
+			ps.close();
+		}
+		catch (SQLException ex)
+		{
+			log.severe("Persistence: Error counting rows: " + ex.getMessage());
+			log.info(countQuery);
+			return -1;
+		}
+		countStats.end(start);
+		return rowCount;
+	}
+	
 	@Override
 	public boolean validateTable(DataTable table)
 	{	
@@ -232,8 +301,36 @@ public abstract class SqlStore extends DataStore
 			// TODO: validate schema, migrate data or add columns
 		}
 		
+		validateIndexes(table);
+		
 		return true;
 	}
+	
+	/**
+	 * Create an index for each indexed column in a table, if it doesn't already exist.
+	 * 
+	 * @param table The table to create indexes for
+	 */
+	protected void validateIndexes(DataTable table)
+	{
+		String tableName = table.getName();
+		for (String columnName : table.getIndexFieldNames())
+		{
+			String indexStatement = "CREATE INDEX IF NOT EXISTS \"" + tableName + "_" + columnName + "\" ON \"" 
+				+ tableName + "\" (\"" + columnName + "\")";
+			try
+			{
+				PreparedStatement ps = connection.prepareStatement(indexStatement);
+				ps.execute();
+				ps.close();
+			}
+			catch (SQLException ex)
+			{
+				log.severe("Persistence: error creating index: " + ex.getMessage());
+				log.info(indexStatement);
+			}
+		}
+	}
 
 	@Override
 	public boolean reset(DataTable table)
@@ -242,6 +339,11 @@ public abstract class SqlStore extends DataStore
 		{
 			String tableName = table.getName();
 			String dropQuery = "DROP TABLE \"" + tableName + "\"";
+			statementCache.invalidate(tableName);
+			if (readPool != null)
+			{
+				readPool.invalidate(tableName);
+			}
 			try
 			{
 				PreparedStatement ps = connection.prepareStatement(dropQuery);
@@ -261,193 +363,1189 @@ public abstract class SqlStore extends DataStore
 	@Override
 	public boolean clear(DataTable table)
 	{
-		String deleteSql = "DELETE FROM \"" + table.getName() + "\"";
+		String tableName = table.getName();
+		StatementCache.Key deleteKey = new StatementCache.Key("clear", tableName);
+		String deleteSql = null;
 		
+		beginTransaction();
 		try
 		{
-			PreparedStatement deleteStatement = connection.prepareStatement(deleteSql);
+			PreparedStatement deleteStatement = statementCache.get(deleteKey);
+			if (deleteStatement == null)
+			{
+				deleteSql = "DELETE FROM \"" + tableName + "\"";
+				deleteStatement = statementCache.prepare(deleteKey, deleteSql);
+			}
 			deleteStatement.execute();
 		}
 		catch (SQLException ex)
 		{
-			log.warning("Persistence: Error deleting list " + table.getName() + ": " + ex.getMessage());
-			log.info(deleteSql);
+			log.warning("Persistence: Error deleting list " + tableName + ": " + ex.getMessage());
+			if (deleteSql != null) log.info(deleteSql);
+			rollback();
 			return false;
 		}
 		
-		if (table.getRows().size() > 0)
+		if (table.getRowCount() > 0 && !save(table))
 		{
-			save(table);
+			rollback();
+			return false;
 		}
 		
-		return true;
+		return commit();
 	}
 	
 	@Override
 	public boolean save(DataTable table)
 	{
-		if (table.getRows().size() == 0)
+		if (table.getRowCount() == 0)
 		{
 			return clear(table);
 		}
 		
-		String tableName = table.getName();
-		String fieldList = "";
-		String valueList = "";
-		int fieldCount = 0;
 		DataRow header = table.getHeader();
+		StatementCache.Key saveKey = new StatementCache.Key("save", table.getName(), StatementCache.getColumns(header));
+		return writeRows(table, saveKey, false);
+	}
+	
+	@Override
+	public boolean insert(DataTable table)
+	{
+		if (table.getRowCount() == 0) return true;
 		
-		for (DataField field : header.getFields())
+		DataRow header = table.getHeader();
+		StatementCache.Key insertKey = new StatementCache.Key("insert", table.getName(), StatementCache.getColumns(header));
+		return writeRows(table, insertKey, false);
+	}
+	
+	@Override
+	public boolean update(DataTable table)
+	{
+		if (table.getRowCount() == 0) return true;
+		
+		if (table.getIdFieldNames().size() == 0)
 		{
-			if (fieldCount != 0)
-			{
-				fieldList += ", ";
-				valueList += ", ";
-			}
-			fieldCount++;
-			fieldList += "\"" + field.getName() + "\"";
-			valueList += "?";
+			log.warning("Persistence: Can't update " + table.getName() + " without an id field");
+			return false;
 		}
-			
-		if (fieldCount == 0)
+		
+		DataRow header = table.getHeader();
+		StatementCache.Key updateKey = new StatementCache.Key("update", table.getName(), StatementCache.getColumns(header));
+		return writeRows(table, updateKey, true);
+	}
+	
+	@Override
+	public boolean update(DataTable table, DataTable fullTable)
+	{
+		if (fullTable == null || table.getRowCount() == 0) return update(table);
+		
+		if (table.getIdFieldNames().size() == 0)
 		{
-			log.warning("Persistence: class " + tableName + " has no fields");
+			log.warning("Persistence: Can't update " + table.getName() + " without an id field");
 			return false;
 		}
 		
-		String updateSql = "INSERT OR REPLACE INTO \"" + tableName + "\" (" + fieldList + ") VALUES (" + valueList + ")";
-		for (DataRow row : table.getRows())
-        {
-			try
-			{	
-				PreparedStatement updateStatement = connection.prepareStatement(updateSql);
-			
-				int index = 1;
-				for (DataField field : row.getFields())
-				{	
-					Object value = field.getValue();
-					if (value != null)
-					{
-						updateStatement.setObject(index, DataType.convertFrom(value, field.getType()));
-					}
-					else
-					{
-						updateStatement.setNull(index, java.sql.Types.NULL);
-					}
-					index++;
-				}
-           
-				updateStatement.execute();
+		DataRow header = table.getHeader();
+		StatementCache.Key updateKey = new StatementCache.Key("update", table.getName(), StatementCache.getColumns(header));
+		List<Integer> missingRows = new ArrayList<Integer>();
+		
+		beginTransaction();
+		if (!writeRows(table, updateKey, true, missingRows))
+		{
+			rollback();
+			return false;
+		}
+		
+		// Rows that weren't there to update are inserted in full
+		if (missingRows.size() > 0)
+		{
+			DataTable insertTable = new DataTable(fullTable.getName());
+			for (String idField : fullTable.getIdFieldNames())
+			{
+				insertTable.addIdFieldName(idField);
 			}
-			catch (SQLException ex)
+			List<DataRow> fullRows = fullTable.getRows();
+			for (Integer row : missingRows)
+			{
+				insertTable.addRow(fullRows.get(row));
+			}
+			if (!insert(insertTable))
 			{
-				log.warning("Persistence: Error updating table " + tableName + ": " + ex.getMessage());
-				log.info(updateSql);
+				rollback();
 				return false;
 			}
-			
-        }
-		return true;
-	}
+		}
 		
+		return commit();
+	}
+	
 	@Override
-	public boolean clearIds(DataTable table, List<Object> ids)
+	public boolean delete(DataTable table)
 	{
-		if (ids.size() <= 0) return true;
+		if (table.getRowCount() == 0) return true;
 		
 		List<String> idFields = table.getIdFieldNames();
-		if (idFields.size() < 1) return false;
+		if (idFields.size() == 0)
+		{
+			log.warning("Persistence: Can't delete from " + table.getName() + " without an id field");
+			return false;
+		}
 		
-		String idField = idFields.get(0);
-		String deleteSql = "DELETE FROM \"" + table.getName() + "\" WHERE \"" + idField + "\" IN (";
+		StatementCache.Key deleteKey = new StatementCache.Key("delete", table.getName(), idFields);
+		return writeRows(table, deleteKey, true);
+	}
+	
+	/**
+	 * Write all of the rows in a table using a single cached statement, in batches.
+	 * 
+	 * @param table The rows to write
+	 * @param key The statement key, the kind of key determines the SQL used
+	 * @param idsLast If true, id fields are bound after all other fields, for use in a WHERE clause
+	 * @return true if success
+	 */
+	protected boolean writeRows(DataTable table, StatementCache.Key key, boolean idsLast)
+	{
+		return writeRows(table, key, idsLast, null);
+	}
+	
+	/**
+	 * Write all of the rows in a table using a single cached statement, in batches.
+	 * 
+	 * @param table The rows to write
+	 * @param key The statement key, the kind of key determines the SQL used
+	 * @param idsLast If true, id fields are bound after all other fields, for use in a WHERE clause
+	 * @param missingRows If not null, this is filled with the index of each row that the statement didn't change
+	 * @return true if success
+	 */
+	protected boolean writeRows(DataTable table, StatementCache.Key key, boolean idsLast, List<Integer> missingRows)
+	{
+		String tableName = table.getName();
+		DataRow header = table.getHeader();
 		
-		boolean firstId = true;
-		for (int i = 0; i < ids.size(); i++)
+		if (header.getFields().size() == 0)
 		{
-			if (!firstId) deleteSql += ", ";
-			firstId = false;
-			deleteSql += "?";
+			log.warning("Persistence: class " + tableName + " has no fields");
+			return false;
 		}
-		deleteSql += ")";
 		
+		List<String> idFields = table.getIdFieldNames();
+		boolean isDelete = key.getKind().equals("delete");
+		String writeSql = null;
+		long start = OperationStats.start();
+		
+		beginTransaction();
 		try
-		{
-			PreparedStatement deleteStatement = connection.prepareStatement(deleteSql);
+		{	
+			PreparedStatement writeStatement = statementCache.get(key);
+			if (writeStatement == null)
+			{
+				writeSql = getWriteSql(key.getKind(), tableName, header, idFields);
+				writeStatement = statementCache.prepare(key, writeSql);
+			}
 			
-			int index = 1;
-			for (Object id : ids)
+			// Columnar tables are bound straight from their column arrays
+			ColumnarTable columnar = null;
+			DataColumn[] valueColumns = null;
+			DataColumn[] idColumns = null;
+			if (table instanceof ColumnarTable)
 			{
-				deleteStatement.setObject(index, id);
-				index++;
+				columnar = (ColumnarTable)table;
+				List<DataColumn> values = new ArrayList<DataColumn>();
+				for (DataField field : header.getFields())
+				{
+					if (idsLast && idFields.contains(field.getName())) continue;
+					values.add(columnar.getColumn(field.getName()));
+				}
+				valueColumns = values.toArray(new DataColumn[values.size()]);
+				idColumns = new DataColumn[idFields.size()];
+				for (int i = 0; i < idColumns.length; i++)
+				{
+					idColumns[i] = columnar.getColumn(idFields.get(i));
+				}
 			}
 			
-			deleteStatement.execute();
+			int batchCount = 0;
+			int rowCount = table.getRowCount();
+			List<DataRow> rows = columnar == null ? table.getRows() : null;
+			for (int rowIndex = 0; rowIndex < rowCount; rowIndex++)
+			{
+				int index = 1;
+				if (columnar != null)
+				{
+					if (!isDelete)
+					{
+						for (DataColumn column : valueColumns)
+						{
+							setParameter(writeStatement, index++, column, rowIndex);
+						}
+					}
+					if (idsLast)
+					{
+						for (DataColumn column : idColumns)
+						{
+							setParameter(writeStatement, index++, column, rowIndex);
+						}
+					}
+				}
+				else
+				{
+					DataRow row = rows.get(rowIndex);
+					if (!isDelete)
+					{
+						for (DataField field : row.getFields())
+						{
+							if (idsLast && idFields.contains(field.getName())) continue;
+							setParameter(writeStatement, index++, field);
+						}
+					}
+					if (idsLast)
+					{
+						for (String idField : idFields)
+						{
+							setParameter(writeStatement, index++, row.get(idField));
+						}
+					}
+				}
+				writeStatement.addBatch();
+				batchCount++;
+				
+				if (batchCount >= batchSize)
+				{
+					checkUpdateCounts(writeStatement.executeBatch(), rowIndex + 1 - batchCount, missingRows);
+					batchCount = 0;
+				}
+			}
+			
+			if (batchCount > 0)
+			{
+				checkUpdateCounts(writeStatement.executeBatch(), rowCount - batchCount, missingRows);
+			}
 		}
 		catch (SQLException ex)
 		{
-			log.warning("Persistence: Error deleting ids " + table.getName() + ": " + ex.getMessage());
-			log.info(deleteSql);
+			log.warning("Persistence: Error updating table " + tableName + ": " + ex.getMessage());
+			if (writeSql != null) log.info(writeSql);
+			rollback();
 			return false;
 		}
 		
-		if (table.getRows().size() > 0)
+		boolean success = commit();
+		if (start != 0)
 		{
-			save(table);
+			stats.getOperation(key.getKind()).end(start, table.getRowCount());
 		}
-		
-		return true;
+		return success;
 	}
 	
-	@Override
-	public boolean load(DataTable table)
+	/**
+	 * Record which rows of a batch didn't change anything.
+	 * 
+	 * Drivers that don't report counts for a batch are assumed to have changed every row.
+	 * 
+	 * @param counts The update counts returned by executeBatch
+	 * @param firstRow The table index of the first row in the batch
+	 * @param missingRows The list to add row indexes to, or null to ignore counts
+	 */
+	protected void checkUpdateCounts(int[] counts, int firstRow, List<Integer> missingRows)
 	{
-		String tableName = table.getName();
-		
-		// Select all columns instead of building a column list
-		// This lets me sort out missing columns instead of throwing SQL errors.
-		String selectQuery = "SELECT * FROM \"" + tableName + "\"";
+		if (missingRows == null || counts == null) return;
 		
-		try
+		for (int i = 0; i < counts.length; i++)
 		{
-			PreparedStatement ps = connection.prepareStatement(selectQuery);
-			ResultSet rs = ps.executeQuery();
-		
-			while (rs.next())
+			if (counts[i] == 0)
 			{
-				SqlDataRow row = new SqlDataRow(table, rs);
-				table.addRow(row);
+				missingRows.add(firstRow + i);
 			}
-			rs.close();
 		}
-		catch (SQLException ex)
+	}
+	
+	protected void setParameter(PreparedStatement statement, int index, DataField field) throws SQLException
+	{
+		Object value = field == null ? null : field.getValue();
+		if (value != null)
 		{
-			log.warning("Persistence: Error selecting from table " + tableName + ": " + ex.getMessage());
-			return false;
+			statement.setObject(index, DataType.convertFrom(value, field.getType()));
+		}
+		else
+		{
+			statement.setNull(index, java.sql.Types.NULL);
 		}
-		
-		return true;
 	}
 	
-	public boolean isConnected()
+	/**
+	 * Bind a value from a column, without boxing it.
+	 * 
+	 * Values are converted the same way DataType.convertFrom would convert them.
+	 */
+	protected void setParameter(PreparedStatement statement, int index, DataColumn column, int row) throws SQLException
 	{
-		boolean isClosed = true;
-		try
+		if (column == null || column.isNull(row))
 		{
-			isClosed = connection == null || connection.isClosed();
+			statement.setNull(index, java.sql.Types.NULL);
 		}
-		catch (SQLException e)
+		else if (column instanceof DataColumn.IntColumn)
 		{
-			isClosed = true;
+			statement.setInt(index, ((DataColumn.IntColumn)column).getInt(row));
+		}
+		else if (column instanceof DataColumn.DoubleColumn)
+		{
+			statement.setDouble(index, ((DataColumn.DoubleColumn)column).getDouble(row));
+		}
+		else if (column instanceof DataColumn.StringColumn)
+		{
+			statement.setString(index, ((DataColumn.StringColumn)column).getString(row));
+		}
+		else if (column instanceof DataColumn.BooleanColumn)
+		{
+			statement.setInt(index, ((DataColumn.BooleanColumn)column).getBoolean(row) ? 1 : 0);
+		}
+		else if (column instanceof DataColumn.DateColumn)
+		{
+			statement.setInt(index, (int)(((DataColumn.DateColumn)column).getLong(row) / 1000));
+		}
+		else
+		{
+			statement.setObject(index, DataType.convertFrom(column.get(row), column.getType()));
 		}
-		return (connection != null && !isClosed);
 	}
-
-	public void setDataFolder(File dataFolder)
+	
+	protected String getWriteSql(String kind, String tableName, DataRow header, List<String> idFields)
 	{
-		this.dataFolder = dataFolder;
+		if (kind.equals("update"))
+		{
+			return getUpdateSql(tableName, header, idFields);
+		}
+		if (kind.equals("delete"))
+		{
+			return "DELETE FROM \"" + tableName + "\" WHERE " + getIdCondition(idFields);
+		}
+		if (kind.equals("insert"))
+		{
+			return getInsertSql("INSERT", tableName, header);
+		}
+		return getSaveSql(tableName, header);
 	}
 	
-	protected File dataFolder = null;
-	protected Connection connection = null;
-	protected static boolean driversLoaded = false;
+	protected String getSaveSql(String tableName, DataRow header)
+	{
+		return getInsertSql("INSERT OR REPLACE", tableName, header);
+	}
+	
+	protected String getInsertSql(String insertCommand, String tableName, DataRow header)
+	{
+		StringBuilder fieldList = new StringBuilder();
+		StringBuilder valueList = new StringBuilder();
+		int fieldCount = 0;
+		
+		for (DataField field : header.getFields())
+		{
+			if (fieldCount != 0)
+			{
+				fieldList.append(", ");
+				valueList.append(", ");
+			}
+			fieldCount++;
+			fieldList.append("\"").append(field.getName()).append("\"");
+			valueList.append("?");
+		}
+		
+		return insertCommand + " INTO \"" + tableName + "\" (" + fieldList + ") VALUES (" + valueList + ")";
+	}
+	
+	protected String getUpdateSql(String tableName, DataRow header, List<String> idFields)
+	{
+		StringBuilder updateSql = new StringBuilder();
+		updateSql.append("UPDATE \"").append(tableName).append("\" SET ");
+		
+		int fieldCount = 0;
+		for (DataField field : header.getFields())
+		{
+			if (idFields.contains(field.getName())) continue;
+			if (fieldCount != 0) updateSql.append(", ");
+			fieldCount++;
+			updateSql.append("\"").append(field.getName()).append("\" = ?");
+		}
+		
+		updateSql.append(" WHERE ").append(getIdCondition(idFields));
+		return updateSql.toString();
+	}
+	
+	protected String getIdCondition(List<String> idFields)
+	{
+		StringBuilder condition = new StringBuilder();
+		int idCount = 0;
+		for (String idField : idFields)
+		{
+			if (idCount != 0) condition.append(" AND ");
+			idCount++;
+			condition.append("\"").append(idField).append("\" = ?");
+		}
+		return condition.toString();
+	}
+	
+	@Override
+	public boolean beginTransaction()
+	{
+		if (transactionDepth == 0)
+		{
+			try
+			{
+				connection.setAutoCommit(false);
+			}
+			catch (SQLException ex)
+			{
+				log.warning("Persistence: Error starting transaction: " + ex.getMessage());
+				return false;
+			}
+			rollbackOnly = false;
+		}
+		transactionDepth++;
+		return true;
+	}
+	
+	@Override
+	public boolean commit()
+	{
+		if (transactionDepth <= 0) return true;
+		
+		transactionDepth--;
+		if (transactionDepth > 0) return !rollbackOnly;
+		
+		long start = OperationStats.start();
+		boolean success = !rollbackOnly;
+		try
+		{
+			if (rollbackOnly)
+			{
+				connection.rollback();
+			}
+			else
+			{
+				connection.commit();
+			}
+		}
+		catch (SQLException ex)
+		{
+			log.warning("Persistence: Error committing transaction: " + ex.getMessage());
+			success = false;
+			try
+			{
+				connection.rollback();
+			}
+			catch (SQLException rollbackEx)
+			{
+			}
+		}
+		finally
+		{
+			endTransaction();
+		}
+		commitStats.end(start);
+		return success;
+	}
+	
+	@Override
+	public void rollback()
+	{
+		if (transactionDepth <= 0) return;
+		
+		rollbackOnly = true;
+		commit();
+	}
+	
+	@Override
+	public void abort()
+	{
+		if (transactionDepth <= 0) return;
+		
+		transactionDepth = 0;
+		try
+		{
+			connection.rollback();
+		}
+		catch (SQLException ex)
+		{
+			log.warning("Persistence: Error rolling back transaction: " + ex.getMessage());
+		}
+		finally
+		{
+			endTransaction();
+		}
+	}
+	
+	protected void endTransaction()
+	{
+		rollbackOnly = false;
+		try
+		{
+			connection.setAutoCommit(true);
+		}
+		catch (SQLException ex)
+		{
+		}
+	}
+	
+		
+	@Override
+	public boolean clearIds(DataTable table, List<Object> ids)
+	{
+		if (ids.size() <= 0) return true;
+		
+		List<String> idFields = table.getIdFieldNames();
+		if (idFields.size() < 1) return false;
+		
+		String idField = idFields.get(0);
+		String tableName = table.getName();
+		List<String> idColumns = new ArrayList<String>(1);
+		idColumns.add(idField);
+		StatementCache.Key deleteKey = new StatementCache.Key("clearIds", tableName, idColumns);
+		String deleteSql = null;
+		long start = OperationStats.start();
+		
+		beginTransaction();
+		try
+		{
+			PreparedStatement deleteStatement = statementCache.get(deleteKey);
+			if (deleteStatement == null)
+			{
+				deleteSql = getClearIdsSql(tableName, idField);
+				deleteStatement = statementCache.prepare(deleteKey, deleteSql);
+			}
+			
+			// Always use a full chunk of parameters, so the same statement can be
+			// re-used no matter how many ids there are. Short chunks are padded by
+			// repeating the last id.
+			int idCount = ids.size();
+			for (int chunkStart = 0; chunkStart < idCount; chunkStart += ID_CHUNK_SIZE)
+			{
+				for (int i = 0; i < ID_CHUNK_SIZE; i++)
+				{
+					int idIndex = Math.min(chunkStart + i, idCount - 1);
+					deleteStatement.setObject(i + 1, ids.get(idIndex));
+				}
+				deleteStatement.execute();
+			}
+		}
+		catch (SQLException ex)
+		{
+			log.warning("Persistence: Error deleting ids " + tableName + ": " + ex.getMessage());
+			if (deleteSql != null) log.info(deleteSql);
+			rollback();
+			return false;
+		}
+		
+		if (table.getRowCount() > 0 && !save(table))
+		{
+			rollback();
+			return false;
+		}
+		
+		boolean success = commit();
+		clearIdsStats.end(start, ids.size());
+		return success;
+	}
+	
+	protected String getClearIdsSql(String tableName, String idField)
+	{
+		StringBuilder deleteSql = new StringBuilder();
+		deleteSql.append("DELETE FROM \"").append(tableName).append("\" WHERE \"").append(idField).append("\" IN (");
+		for (int i = 0; i < ID_CHUNK_SIZE; i++)
+		{
+			if (i != 0) deleteSql.append(", ");
+			deleteSql.append("?");
+		}
+		deleteSql.append(")");
+		return deleteSql.toString();
+	}
+	
+	@Override
+	public boolean load(DataTable table)
+	{
+		if (table instanceof ColumnarTable)
+		{
+			return query(table, null, null, null, false);
+		}
+		final DataTable loadTable = table;
+		return query(table, null, null, new DataRowHandler()
+		{
+			public void handle(DataRow row)
+			{
+				loadTable.addRow(row);
+			}
+		}, false);
+	}
+	
+	@Override
+	public boolean load(DataTable table, DataRowHandler handler)
+	{
+		return query(table, null, null, handler, true);
+	}
+	
+	@Override
+	public boolean load(DataTable table, String columnName, Object value)
+	{
+		if (table instanceof ColumnarTable)
+		{
+			return query(table, columnName, value, null, false);
+		}
+		final DataTable loadTable = table;
+		return query(table, columnName, value, new DataRowHandler()
+		{
+			public void handle(DataRow row)
+			{
+				loadTable.addRow(row);
+			}
+		}, false);
+	}
+	
+	@Override
+	public boolean load(DataTable table, String columnName, Object value, DataRowHandler handler)
+	{
+		return query(table, columnName, value, handler, true);
+	}
+	
+	/**
+	 * Select the rows matching a set of ids, in chunks.
+	 * 
+	 * Like clearIds, this always binds a full chunk of parameters so one statement
+	 * can be re-used. Short chunks are padded by repeating the last id.
+	 */
+	@Override
+	public boolean loadIds(DataTable table, String columnName, List<Object> values, DataRowHandler handler)
+	{
+		if (values.size() == 0) return true;
+		
+		// Without a read pool, reads share the main connection with writes
+		if (readPool == null)
+		{
+			synchronized (this)
+			{
+				return queryIds(table, columnName, values, handler);
+			}
+		}
+		return queryIds(table, columnName, values, handler);
+	}
+	
+	protected boolean queryIds(DataTable table, String columnName, List<Object> values, DataRowHandler handler)
+	{
+		String tableName = table.getName();
+		List<String> keyColumns = new ArrayList<String>(1);
+		keyColumns.add(columnName);
+		StatementCache.Key selectKey = new StatementCache.Key("loadIds", tableName, keyColumns);
+		
+		StatementCache reader = null;
+		boolean success = false;
+		long start = OperationStats.start();
+		int rowCount = 0;
+		try
+		{
+			reader = acquireReader();
+			PreparedStatement ps = reader.get(selectKey);
+			if (ps == null)
+			{
+				ps = reader.prepare(selectKey, getLoadIdsSql(tableName, columnName));
+			}
+			
+			int idCount = values.size();
+			for (int chunkStart = 0; chunkStart < idCount; chunkStart += ID_CHUNK_SIZE)
+			{
+				for (int i = 0; i < ID_CHUNK_SIZE; i++)
+				{
+					Object value = values.get(Math.min(chunkStart + i, idCount - 1));
+					if (value == null)
+					{
+						ps.setNull(i + 1, java.sql.Types.NULL);
+					}
+					else
+					{
+						ps.setObject(i + 1, DataType.convertFrom(value, DataType.getTypeFromClass(value.getClass())));
+					}
+				}
+				rowCount += readRows(table, ps.executeQuery(), handler, true);
+			}
+			success = true;
+			if (start != 0)
+			{
+				stats.getOperation(selectKey.getKind()).end(start, rowCount);
+			}
+		}
+		catch (SQLException ex)
+		{
+			log.warning("Persistence: Error selecting ids from table " + tableName + ": " + ex.getMessage());
+		}
+		finally
+		{
+			if (success)
+			{
+				releaseReader(reader);
+			}
+			else
+			{
+				discardReader(reader);
+			}
+		}
+		
+		return success;
+	}
+	
+	protected String getLoadIdsSql(String tableName, String columnName)
+	{
+		StringBuilder selectSql = new StringBuilder();
+		selectSql.append("SELECT * FROM \"").append(tableName).append("\" WHERE \"").append(columnName).append("\" IN (");
+		for (int i = 0; i < ID_CHUNK_SIZE; i++)
+		{
+			if (i != 0) selectSql.append(", ");
+			selectSql.append("?");
+		}
+		selectSql.append(")");
+		return selectSql.toString();
+	}
+	
+	/**
+	 * Select rows from a table, passing each one to a handler.
+	 * 
+	 * @param table The table to read
+	 * @param columnName A column to match, or null to read every row
+	 * @param value The value to match, if a column was given
+	 * @param handler The handler that will process each row, or null to read straight into a ColumnarTable
+	 * @param reuseRow If true, a single row is read into over and over. Otherwise each
+	 * row is new, so that it can be kept.
+	 * @return true if success
+	 */
+	protected boolean query(DataTable table, String columnName, Object value, DataRowHandler handler, boolean reuseRow)
+	{
+		// Without a read pool, reads share the main connection with writes
+		if (readPool == null)
+		{
+			synchronized (this)
+			{
+				return queryRows(table, columnName, value, handler, reuseRow);
+			}
+		}
+		return queryRows(table, columnName, value, handler, reuseRow);
+	}
+	
+	protected boolean queryRows(DataTable table, String columnName, Object value, DataRowHandler handler, boolean reuseRow)
+	{
+		String tableName = table.getName();
+		
+		// Select all columns instead of building a column list
+		// This lets me sort out missing columns instead of throwing SQL errors.
+		StatementCache.Key selectKey = null;
+		if (columnName == null)
+		{
+			selectKey = new StatementCache.Key("load", tableName);
+		}
+		else
+		{
+			List<String> keyColumns = new ArrayList<String>(1);
+			keyColumns.add(columnName);
+			selectKey = new StatementCache.Key("loadBy", tableName, keyColumns);
+		}
+		
+		StatementCache reader = null;
+		boolean success = false;
+		long start = OperationStats.start();
+		try
+		{
+			reader = acquireReader();
+			PreparedStatement ps = reader.get(selectKey);
+			if (ps == null)
+			{
+				String selectQuery = "SELECT * FROM \"" + tableName + "\"";
+				if (columnName != null)
+				{
+					selectQuery += " WHERE \"" + columnName + "\" = ?";
+				}
+				ps = reader.prepare(selectKey, selectQuery);
+			}
+			if (columnName != null)
+			{
+				if (value == null)
+				{
+					ps.setNull(1, java.sql.Types.NULL);
+				}
+				else
+				{
+					ps.setObject(1, DataType.convertFrom(value, DataType.getTypeFromClass(value.getClass())));
+				}
+			}
+			ResultSet rs = ps.executeQuery();
+			int rowCount = readRows(table, rs, handler, reuseRow);
+			success = true;
+			if (start != 0)
+			{
+				stats.getOperation(selectKey.getKind()).end(start, rowCount);
+			}
+		}
+		catch (SQLException ex)
+		{
+			log.warning("Persistence: Error selecting from table " + tableName + ": " + ex.getMessage());
+		}
+		finally
+		{
+			if (success)
+			{
+				releaseReader(reader);
+			}
+			else
+			{
+				discardReader(reader);
+			}
+		}
+		
+		return success;
+	}
+	
+	/**
+	 * Get a statement cache to run a query on.
+	 * 
+	 * If there is no read pool, this is the main connection's cache, which is
+	 * shared with writes. Otherwise a connection is borrowed from the pool.
+	 * 
+	 * @return The statement cache to read with
+	 * @throws SQLException If a pooled connection could not be opened
+	 */
+	protected StatementCache acquireReader() throws SQLException
+	{
+		ConnectionPool pool = readPool;
+		if (pool == null)
+		{
+			if (statementCache == null)
+			{
+				throw new SQLException("Not connected");
+			}
+			return statementCache;
+		}
+		return pool.acquire();
+	}
+	
+	/**
+	 * Add gauges for the main connection's statement cache to this store's stats.
+	 * 
+	 * Pooled read connections each have their own cache, which isn't counted here.
+	 */
+	protected void addGauges()
+	{
+		stats.addGauge("statementHits", new Gauge()
+		{
+			public long getValue()
+			{
+				StatementCache cache = statementCache;
+				return cache == null ? 0 : cache.getHits();
+			}
+		});
+		stats.addGauge("statementMisses", new Gauge()
+		{
+			public long getValue()
+			{
+				StatementCache cache = statementCache;
+				return cache == null ? 0 : cache.getMisses();
+			}
+		});
+		stats.addGauge("statementEvictions", new Gauge()
+		{
+			public long getValue()
+			{
+				StatementCache cache = statementCache;
+				return cache == null ? 0 : cache.getEvictions();
+			}
+		});
+		stats.addGauge("statementHitPercent", new Gauge()
+		{
+			public long getValue()
+			{
+				StatementCache cache = statementCache;
+				return cache == null ? 0 : Math.round(cache.getHitRate() * 100);
+			}
+		});
+	}
+	
+	protected void releaseReader(StatementCache reader)
+	{
+		ConnectionPool pool = readPool;
+		if (reader == null || reader == statementCache || pool == null) return;
+		pool.release(reader);
+	}
+	
+	protected void discardReader(StatementCache reader)
+	{
+		ConnectionPool pool = readPool;
+		if (reader == null || reader == statementCache || pool == null) return;
+		pool.discard(reader);
+	}
+	
+	/**
+	 * Read every row of a result, passing each one to a handler.
+	 * 
+	 * Column names and types are looked up once, from the first row.
+	 * 
+	 * @param table The table being read
+	 * @param rs The query result, which will be closed
+	 * @param handler The handler that will process each row
+	 * @param reuseRow If true, the same DataRow is used for every row
+	 * @return The number of rows read
+	 * @throws SQLException If the result couldn't be read
+	 */
+	protected int readRows(DataTable table, ResultSet rs, DataRowHandler handler, boolean reuseRow) throws SQLException
+	{
+		if (handler == null)
+		{
+			return readColumns((ColumnarTable)table, rs);
+		}
+		
+		int rowCount = 0;
+		try
+		{
+			SqlColumnPlan plan = null;
+			SqlDataRow row = null;
+			while (rs.next())
+			{
+				rowCount++;
+				if (plan == null)
+				{
+					plan = new SqlColumnPlan(rs);
+				}
+				if (row == null || !reuseRow)
+				{
+					row = plan.createRow(table);
+				}
+				row.read(rs);
+				handler.handle(row);
+			}
+		}
+		finally
+		{
+			rs.close();
+		}
+		return rowCount;
+	}
+	
+	/**
+	 * Read every row of a result directly into the columns of a table.
+	 * 
+	 * If the table has no columns, they are created from the result's column types.
+	 * Otherwise, result columns that the table doesn't have are skipped.
+	 * 
+	 * @param table The table to read into
+	 * @param rs The query result, which will be closed
+	 * @return The number of rows read
+	 * @throws SQLException If the result couldn't be read
+	 */
+	protected int readColumns(ColumnarTable table, ResultSet rs) throws SQLException
+	{
+		int rowCount = 0;
+		try
+		{
+			DataColumn[] columns = null;
+			while (rs.next())
+			{
+				if (columns == null)
+				{
+					columns = getColumns(table, new SqlColumnPlan(rs));
+				}
+				int row = table.addRow();
+				for (int i = 0; i < columns.length; i++)
+				{
+					readColumn(rs, i + 1, columns[i], row);
+				}
+				rowCount++;
+			}
+		}
+		finally
+		{
+			rs.close();
+		}
+		return rowCount;
+	}
+	
+	protected DataColumn[] getColumns(ColumnarTable table, SqlColumnPlan plan)
+	{
+		boolean createColumns = table.getColumns().size() == 0;
+		DataColumn[] columns = new DataColumn[plan.getColumnCount()];
+		for (int i = 0; i < columns.length; i++)
+		{
+			String columnName = plan.getColumnName(i);
+			if (createColumns)
+			{
+				columns[i] = DataColumn.create(columnName, plan.getColumnType(i));
+				table.addColumn(columns[i]);
+			}
+			else
+			{
+				columns[i] = table.getColumn(columnName);
+			}
+		}
+		return columns;
+	}
+	
+	protected void readColumn(ResultSet rs, int index, DataColumn column, int row) throws SQLException
+	{
+		if (column == null) return;
+		
+		if (column instanceof DataColumn.IntColumn)
+		{
+			int value = rs.getInt(index);
+			if (rs.wasNull())
+			{
+				column.setNull(row);
+			}
+			else
+			{
+				((DataColumn.IntColumn)column).setInt(row, value);
+			}
+		}
+		else if (column instanceof DataColumn.DoubleColumn)
+		{
+			double value = rs.getDouble(index);
+			if (rs.wasNull())
+			{
+				column.setNull(row);
+			}
+			else
+			{
+				((DataColumn.DoubleColumn)column).setDouble(row, value);
+			}
+		}
+		else if (column instanceof DataColumn.StringColumn)
+		{
+			((DataColumn.StringColumn)column).setString(row, rs.getString(index));
+		}
+		else if (column instanceof DataColumn.BooleanColumn)
+		{
+			int value = rs.getInt(index);
+			if (rs.wasNull())
+			{
+				column.setNull(row);
+			}
+			else
+			{
+				((DataColumn.BooleanColumn)column).setBoolean(row, value != 0);
+			}
+		}
+		else if (column instanceof DataColumn.DateColumn)
+		{
+			// Dates are stored in seconds
+			long value = rs.getLong(index);
+			if (rs.wasNull())
+			{
+				column.setNull(row);
+			}
+			else
+			{
+				((DataColumn.DateColumn)column).setLong(row, value * 1000);
+			}
+		}
+		else
+		{
+			column.set(row, rs.getObject(index));
+		}
+	}
+	
+	public boolean isConnected()
+	{
+		boolean isClosed = true;
+		try
+		{
+			isClosed = connection == null || connection.isClosed();
+		}
+		catch (SQLException e)
+		{
+			isClosed = true;
+		}
+		return (connection != null && !isClosed);
+	}
+
+	/**
+	 * Set the user and password used to connect.
+	 * 
+	 * This takes effect on the next connect.
+	 * 
+	 * @param user The user name, or null
+	 * @param password The password, or null
+	 */
+	public void setCredentials(String user, String password)
+	{
+		this.user = user;
+		this.password = password;
+	}
+	
+	/**
+	 * Set the number of extra connections to use for loading data.
+	 * 
+	 * With a read pool, loads don't share the main connection, so they don't have to
+	 * wait for a save to finish. Zero means all reads and writes use the main connection.
+	 * 
+	 * This takes effect on the next connect.
+	 * 
+	 * @param poolSize The maximum number of read connections
+	 */
+	public void setReadPoolSize(int poolSize)
+	{
+		this.readPoolSize = Math.max(0, poolSize);
+	}
+	
+	public int getReadPoolSize()
+	{
+		return readPoolSize;
+	}
+	
+	public void setDataFolder(File dataFolder)
+	{
+		this.dataFolder = dataFolder;
+	}
+	
+	/**
+	 * Set the maximum number of rows sent to the database in a single JDBC batch.
+	 * 
+	 * @param batchSize The number of rows per batch
+	 */
+	public void setBatchSize(int batchSize)
+	{
+		this.batchSize = Math.max(1, batchSize);
+	}
+	
+	/**
+	 * Set the maximum number of prepared statements to keep open.
+	 * 
+	 * This takes effect on the next connect.
+	 * 
+	 * @param cacheSize The maximum number of cached statements
+	 */
+	public void setStatementCacheSize(int cacheSize)
+	{
+		this.statementCacheSize = cacheSize;
+	}
+	
+	/**
+	 * Retrieve the prepared statement cache for the current connection.
+	 * 
+	 * This can be used to check cache hit rates.
+	 * 
+	 * @return The statement cache, or null if not connected
+	 */
+	public StatementCache getStatementCache()
+	{
+		return statementCache;
+	}
+	
+	protected File dataFolder = null;
+	protected volatile Connection connection = null;
+	protected int batchSize = 500;
+	protected int statementCacheSize = 64;
+	protected volatile StatementCache statementCache = null;
+	protected int transactionDepth = 0;
+	protected boolean rollbackOnly = false;
+	protected boolean driversLoaded = false;
+	protected String user = "";
+	protected String password = "";
+	protected int readPoolSize = 0;
+	protected volatile ConnectionPool readPool = null;
+	
+	protected final OperationStats clearIdsStats = stats.getOperation("clearIds");
+	protected final OperationStats commitStats = stats.getOperation("commit");
+	protected final OperationStats countStats = stats.getOperation("count");
+	
+	protected static final int ID_CHUNK_SIZE = 32;
+	protected static final StatementCache.Key tableExistsKey = new StatementCache.Key("tableExists", null);
 }
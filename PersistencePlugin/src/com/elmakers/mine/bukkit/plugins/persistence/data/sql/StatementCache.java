@@ -0,0 +1,257 @@
+package com.elmakers.mine.bukkit.plugins.persistence.data.sql;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.elmakers.mine.bukkit.plugins.persistence.data.DataField;
+import com.elmakers.mine.bukkit.plugins.persistence.data.DataRow;
+
+/**
+ * A bounded, least-recently-used cache of PreparedStatements for a single Connection.
+ *
+ * Statements are keyed by the kind of statement, the table name and the
+ * list of columns it was built for, so the SQL text only needs to be built
+ * the first time a particular statement is used.
+ *
+ * Cached statements must not be closed by callers- they are closed when evicted,
+ * or when the cache is cleared.
+ *
+ * @author NathanWolf
+ *
+ */
+public class StatementCache
+{
+	/**
+	 * Identifies a single cached statement.
+	 */
+	public static class Key
+	{
+		public Key(String kind, String tableName)
+		{
+			this(kind, tableName, null);
+		}
+
+		public Key(String kind, String tableName, List<String> columns)
+		{
+			this.kind = kind;
+			this.tableName = tableName;
+			this.columns = columns;
+
+			int hash = kind.hashCode();
+			hash = hash * 31 + (tableName == null ? 0 : tableName.hashCode());
+			hash = hash * 31 + (columns == null ? 0 : columns.hashCode());
+			this.hash = hash;
+		}
+
+		public String getKind()
+		{
+			return kind;
+		}
+
+		public String getTableName()
+		{
+			return tableName;
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object o)
+		{
+			if (o == this) return true;
+			if (!(o instanceof Key)) return false;
+			Key other = (Key)o;
+			if (hash != other.hash) return false;
+			if (!kind.equals(other.kind)) return false;
+			if (tableName == null ? other.tableName != null : !tableName.equals(other.tableName)) return false;
+			if (columns == null) return other.columns == null;
+			return columns.equals(other.columns);
+		}
+
+		private final String kind;
+		private final String tableName;
+		private final List<String> columns;
+		private final int hash;
+	}
+
+	public StatementCache(Connection connection, int maxSize)
+	{
+		this.connection = connection;
+		this.maxSize = Math.max(1, maxSize);
+	}
+
+	/**
+	 * Build a column signature for a row, for use in a statement Key.
+	 *
+	 * @param row The row to get column names from
+	 * @return The list of column names in the row
+	 */
+	public static List<String> getColumns(DataRow row)
+	{
+		List<DataField> fields = row.getFields();
+		List<String> columns = new ArrayList<String>(fields.size());
+		for (DataField field : fields)
+		{
+			columns.add(field.getName());
+		}
+		return columns;
+	}
+
+	/**
+	 * Look up a cached statement.
+	 *
+	 * Any parameters from the last use of the statement are cleared.
+	 *
+	 * @param key The statement key
+	 * @return The cached statement, or null if it's not in the cache
+	 */
+	public PreparedStatement get(Key key) throws SQLException
+	{
+		PreparedStatement statement = statements.get(key);
+		if (statement == null)
+		{
+			misses++;
+			return null;
+		}
+		hits++;
+		statement.clearParameters();
+		return statement;
+	}
+
+	/**
+	 * Prepare a statement and add it to the cache.
+	 *
+	 * @param key The statement key
+	 * @param sql The SQL to prepare
+	 * @return The new statement
+	 */
+	public PreparedStatement prepare(Key key, String sql) throws SQLException
+	{
+		PreparedStatement statement = connection.prepareStatement(sql);
+		PreparedStatement previous = statements.put(key, statement);
+		if (previous != null && previous != statement)
+		{
+			close(previous);
+		}
+		return statement;
+	}
+
+	/**
+	 * Remove and close all statements that reference a table.
+	 *
+	 * This needs to be called when a table is dropped or altered.
+	 *
+	 * @param tableName The table to invalidate
+	 */
+	public void invalidate(String tableName)
+	{
+		Iterator<Map.Entry<Key, PreparedStatement>> it = statements.entrySet().iterator();
+		while (it.hasNext())
+		{
+			Map.Entry<Key, PreparedStatement> entry = it.next();
+			if (tableName.equals(entry.getKey().getTableName()))
+			{
+				close(entry.getValue());
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * Close all cached statements.
+	 */
+	public void clear()
+	{
+		for (PreparedStatement statement : statements.values())
+		{
+			close(statement);
+		}
+		statements.clear();
+	}
+
+	/**
+	 * Get the connection this cache prepares statements on.
+	 *
+	 * @return The connection
+	 */
+	public Connection getConnection()
+	{
+		return connection;
+	}
+
+	public int size()
+	{
+		return statements.size();
+	}
+
+	public long getHits()
+	{
+		return hits;
+	}
+
+	public long getMisses()
+	{
+		return misses;
+	}
+
+	public long getEvictions()
+	{
+		return evictions;
+	}
+
+	/**
+	 * Get the fraction of lookups that were served from the cache.
+	 *
+	 * @return The hit rate, from 0 to 1
+	 */
+	public double getHitRate()
+	{
+		long total = hits + misses;
+		if (total == 0) return 0;
+		return (double)hits / total;
+	}
+
+	protected void close(PreparedStatement statement)
+	{
+		try
+		{
+			statement.close();
+		}
+		catch (SQLException ex)
+		{
+		}
+	}
+
+	private final Connection connection;
+	private final int maxSize;
+
+	// Only updated by the thread using the connection, but read by stats
+	private volatile long hits = 0;
+	private volatile long misses = 0;
+	private volatile long evictions = 0;
+
+	private final LinkedHashMap<Key, PreparedStatement> statements = new LinkedHashMap<Key, PreparedStatement>(16, 0.75f, true)
+	{
+		static final long serialVersionUID = 0;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Key, PreparedStatement> eldest)
+		{
+			if (size() <= maxSize) return false;
+
+			evictions++;
+			close(eldest.getValue());
+			return true;
+		}
+	};
+}
@@ -0,0 +1,12 @@
+package com.elmakers.mine.bukkit.plugins.persistence.stats;
+
+/**
+ * A value that is read when stats are displayed, such as a cache size.
+ *
+ * @author NathanWolf
+ *
+ */
+public interface Gauge
+{
+	public long getValue();
+}
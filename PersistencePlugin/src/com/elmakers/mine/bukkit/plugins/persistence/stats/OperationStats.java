@@ -0,0 +1,175 @@
+package com.elmakers.mine.bukkit.plugins.persistence.stats;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters and a latency histogram for one kind of operation.
+ *
+ * Callers time an operation like this:
+ *
+ * long start = OperationStats.start();
+ * ... do the work ...
+ * loadStats.end(start, rowCount);
+ *
+ * If stats are disabled, start() returns 0 without reading the clock, and end() returns
+ * right away, so an operation costs one volatile read.
+ *
+ * Latencies are counted in power-of-two buckets of microseconds, so percentiles are
+ * approximate- they report the upper bound of the bucket they fall in.
+ *
+ * @author NathanWolf
+ *
+ */
+public class OperationStats
+{
+	public OperationStats(String name)
+	{
+		this.name = name;
+	}
+
+	/**
+	 * Start timing an operation.
+	 *
+	 * @return The start time to pass to end(), or 0 if stats are disabled
+	 */
+	public static long start()
+	{
+		if (!Stats.isEnabled()) return 0;
+		return System.nanoTime();
+	}
+
+	public void end(long start)
+	{
+		end(start, 0, 0);
+	}
+
+	public void end(long start, long rows)
+	{
+		end(start, rows, 0);
+	}
+
+	/**
+	 * Record a finished operation.
+	 *
+	 * @param start The value returned by start()
+	 * @param rows The number of rows read or written
+	 * @param bytes The number of bytes read or written
+	 */
+	public void end(long start, long rows, long bytes)
+	{
+		if (start == 0) return;
+
+		long elapsed = System.nanoTime() - start;
+		count.incrementAndGet();
+		totalNanos.addAndGet(elapsed);
+		if (rows != 0) this.rows.addAndGet(rows);
+		if (bytes != 0) this.bytes.addAndGet(bytes);
+		buckets.incrementAndGet(getBucket(elapsed));
+
+		long max = maxNanos.get();
+		while (elapsed > max && !maxNanos.compareAndSet(max, elapsed))
+		{
+			max = maxNanos.get();
+		}
+	}
+
+	public String getName()
+	{
+		return name;
+	}
+
+	public long getCount()
+	{
+		return count.get();
+	}
+
+	public long getRows()
+	{
+		return rows.get();
+	}
+
+	public long getBytes()
+	{
+		return bytes.get();
+	}
+
+	public double getTotalMillis()
+	{
+		return totalNanos.get() / 1000000.0;
+	}
+
+	public double getMeanMillis()
+	{
+		long operations = count.get();
+		if (operations == 0) return 0;
+		return totalNanos.get() / 1000000.0 / operations;
+	}
+
+	public double getMaxMillis()
+	{
+		return maxNanos.get() / 1000000.0;
+	}
+
+	/**
+	 * Estimate a latency percentile from the histogram.
+	 *
+	 * @param percentile The percentile, from 0 to 100
+	 * @return The upper bound of the bucket the percentile falls in, in milliseconds
+	 */
+	public double getPercentileMillis(double percentile)
+	{
+		long[] counts = new long[BUCKET_COUNT];
+		long total = 0;
+		for (int i = 0; i < BUCKET_COUNT; i++)
+		{
+			counts[i] = buckets.get(i);
+			total += counts[i];
+		}
+		if (total == 0) return 0;
+
+		long target = (long)Math.ceil(total * percentile / 100.0);
+		long seen = 0;
+		for (int i = 0; i < BUCKET_COUNT; i++)
+		{
+			seen += counts[i];
+			if (seen >= Math.max(1, target))
+			{
+				// Bucket i holds latencies under 2^i microseconds
+				return Math.min((1L << i) / 1000.0, getMaxMillis());
+			}
+		}
+		return getMaxMillis();
+	}
+
+	public void reset()
+	{
+		count.set(0);
+		totalNanos.set(0);
+		maxNanos.set(0);
+		rows.set(0);
+		bytes.set(0);
+		for (int i = 0; i < BUCKET_COUNT; i++)
+		{
+			buckets.set(i, 0);
+		}
+	}
+
+	protected static int getBucket(long nanos)
+	{
+		long micros = nanos / 1000;
+		int bucket = 64 - Long.numberOfLeadingZeros(micros);
+		return Math.min(bucket, BUCKET_COUNT - 1);
+	}
+
+	// Enough buckets for latencies up to about 18 minutes
+	protected static final int	BUCKET_COUNT	= 31;
+
+	private final String		name;
+	private final AtomicLong	count			= new AtomicLong();
+	private final AtomicLong	totalNanos		= new AtomicLong();
+	private final AtomicLong	maxNanos		= new AtomicLong();
+	private final AtomicLong	rows			= new AtomicLong();
+	private final AtomicLong	bytes			= new AtomicLong();
+	private final AtomicLongArray buckets		= new AtomicLongArray(BUCKET_COUNT);
+}
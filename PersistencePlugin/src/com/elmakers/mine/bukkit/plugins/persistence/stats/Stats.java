@@ -0,0 +1,264 @@
+package com.elmakers.mine.bukkit.plugins.persistence.stats;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanConstructorInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanNotificationInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import com.elmakers.mine.bukkit.plugins.persistence.Persistence;
+
+/**
+ * The operation stats and gauges for one part of Persistence, such as a class or a data store.
+ *
+ * A Stats can be registered with JMX, as a dynamic MBean. Each operation shows up as a set of
+ * attributes, named after the operation- loadCount, loadMeanMillis and so on. Each gauge is
+ * an attribute of its own.
+ *
+ * Stats are enabled or disabled globally, with the persistence-stats property.
+ *
+ * @author NathanWolf
+ *
+ */
+public class Stats implements DynamicMBean
+{
+	/**
+	 * Get the stats for an operation, creating them if this is the first time it's been used.
+	 *
+	 * Callers should keep the result, rather than looking it up each time.
+	 *
+	 * @param name The name of the operation
+	 * @return The operation's stats
+	 */
+	public OperationStats getOperation(String name)
+	{
+		OperationStats operation = operationMap.get(name);
+		if (operation != null) return operation;
+
+		synchronized (operations)
+		{
+			operation = operationMap.get(name);
+			if (operation == null)
+			{
+				operation = new OperationStats(name);
+				operations.add(operation);
+				operationMap.put(name, operation);
+			}
+		}
+		return operation;
+	}
+
+	public List<OperationStats> getOperations()
+	{
+		synchronized (operations)
+		{
+			return new ArrayList<OperationStats>(operations);
+		}
+	}
+
+	public void addGauge(String name, Gauge gauge)
+	{
+		synchronized (gauges)
+		{
+			gauges.put(name, gauge);
+		}
+	}
+
+	/**
+	 * Read the current value of every gauge.
+	 *
+	 * @return Gauge values, by name
+	 */
+	public Map<String, Long> getGaugeValues()
+	{
+		Map<String, Long> values = new LinkedHashMap<String, Long>();
+		synchronized (gauges)
+		{
+			for (Map.Entry<String, Gauge> entry : gauges.entrySet())
+			{
+				values.put(entry.getKey(), entry.getValue().getValue());
+			}
+		}
+		return values;
+	}
+
+	public void reset()
+	{
+		for (OperationStats operation : getOperations())
+		{
+			operation.reset();
+		}
+	}
+
+	/**
+	 * Register these stats with the platform MBean server.
+	 *
+	 * Anything already registered under the same name is replaced.
+	 *
+	 * @param name The JMX object name
+	 */
+	public void register(ObjectName name)
+	{
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		try
+		{
+			if (server.isRegistered(name))
+			{
+				server.unregisterMBean(name);
+			}
+			server.registerMBean(this, name);
+			objectName = name;
+		}
+		catch (JMException e)
+		{
+			log.warning("Persistence: Can't register MBean " + name + ": " + e.getMessage());
+		}
+	}
+
+	public void unregister()
+	{
+		if (objectName == null) return;
+
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		try
+		{
+			if (server.isRegistered(objectName))
+			{
+				server.unregisterMBean(objectName);
+			}
+		}
+		catch (JMException e)
+		{
+			log.warning("Persistence: Can't unregister MBean " + objectName + ": " + e.getMessage());
+		}
+		objectName = null;
+	}
+
+	public static boolean isEnabled()
+	{
+		return enabled;
+	}
+
+	public static void setEnabled(boolean enable)
+	{
+		enabled = enable;
+	}
+
+	/*
+	 * DynamicMBean interface
+	 */
+
+	public Object getAttribute(String attribute) throws AttributeNotFoundException
+	{
+		synchronized (gauges)
+		{
+			Gauge gauge = gauges.get(attribute);
+			if (gauge != null) return gauge.getValue();
+		}
+
+		for (OperationStats operation : getOperations())
+		{
+			String name = operation.getName();
+			if (!attribute.startsWith(name)) continue;
+
+			String value = attribute.substring(name.length());
+			if (value.equals("Count")) return operation.getCount();
+			if (value.equals("Rows")) return operation.getRows();
+			if (value.equals("Bytes")) return operation.getBytes();
+			if (value.equals("MeanMillis")) return operation.getMeanMillis();
+			if (value.equals("P50Millis")) return operation.getPercentileMillis(50);
+			if (value.equals("P99Millis")) return operation.getPercentileMillis(99);
+			if (value.equals("MaxMillis")) return operation.getMaxMillis();
+		}
+		throw new AttributeNotFoundException(attribute);
+	}
+
+	public AttributeList getAttributes(String[] attributes)
+	{
+		AttributeList list = new AttributeList();
+		for (String attribute : attributes)
+		{
+			try
+			{
+				list.add(new Attribute(attribute, getAttribute(attribute)));
+			}
+			catch (AttributeNotFoundException e)
+			{
+			}
+		}
+		return list;
+	}
+
+	public void setAttribute(Attribute attribute) throws AttributeNotFoundException
+	{
+		throw new AttributeNotFoundException("Persistence stats are read-only");
+	}
+
+	public AttributeList setAttributes(AttributeList attributes)
+	{
+		return new AttributeList();
+	}
+
+	public Object invoke(String actionName, Object[] params, String[] signature)
+	{
+		if (actionName.equals("reset"))
+		{
+			reset();
+		}
+		return null;
+	}
+
+	public MBeanInfo getMBeanInfo()
+	{
+		// Operations can be added at any time, so this is built on demand
+		List<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+		synchronized (gauges)
+		{
+			for (String gauge : gauges.keySet())
+			{
+				attributes.add(new MBeanAttributeInfo(gauge, "long", gauge, true, false, false));
+			}
+		}
+		for (OperationStats operation : getOperations())
+		{
+			String name = operation.getName();
+			attributes.add(new MBeanAttributeInfo(name + "Count", "long", "Number of " + name + " operations", true, false, false));
+			attributes.add(new MBeanAttributeInfo(name + "Rows", "long", "Rows read or written by " + name, true, false, false));
+			attributes.add(new MBeanAttributeInfo(name + "Bytes", "long", "Bytes read or written by " + name, true, false, false));
+			attributes.add(new MBeanAttributeInfo(name + "MeanMillis", "double", "Mean " + name + " time", true, false, false));
+			attributes.add(new MBeanAttributeInfo(name + "P50Millis", "double", "Median " + name + " time", true, false, false));
+			attributes.add(new MBeanAttributeInfo(name + "P99Millis", "double", "99th percentile " + name + " time", true, false, false));
+			attributes.add(new MBeanAttributeInfo(name + "MaxMillis", "double", "Longest " + name + " time", true, false, false));
+		}
+
+		MBeanOperationInfo[] actions = new MBeanOperationInfo[]
+		{
+			new MBeanOperationInfo("reset", "Reset all counters", null, "void", MBeanOperationInfo.ACTION)
+		};
+		return new MBeanInfo(getClass().getName(), "Persistence stats", attributes.toArray(new MBeanAttributeInfo[attributes.size()]),
+				new MBeanConstructorInfo[0], actions, new MBeanNotificationInfo[0]);
+	}
+
+	private final List<OperationStats>					operations		= new ArrayList<OperationStats>();
+	private final ConcurrentHashMap<String, OperationStats> operationMap = new ConcurrentHashMap<String, OperationStats>();
+	private final LinkedHashMap<String, Gauge>			gauges			= new LinkedHashMap<String, Gauge>();
+	private volatile ObjectName							objectName		= null;
+
+	private static volatile boolean						enabled			= true;
+	private static final Logger							log				= Persistence.getLogger();
+}
@@ -0,0 +1,170 @@
+package com.elmakers.mine.bukkit.plugins.spells.benchmark;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.elmakers.mine.bukkit.plugins.spells.utilities.BlockRay;
+
+/**
+ * Compares finding a spell target with BlockRay against the fixed-step
+ * loop Spell used to use, which moved 0.2 blocks at a time and redid the
+ * trig for every step.
+ *
+ * Both cast the same rays, from random points and angles, over a block
+ * grid with hilly ground. "openness" is the chance that a column has no
+ * ground at all, so higher values mean longer rays.
+ *
+ * @author NathanWolf
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RayBenchmark
+{
+	@Param({"0", "0.5", "0.9"})
+	public double openness;
+
+	@Setup
+	public void setup()
+	{
+		Random random = new Random(42);
+		solid = new boolean[SIZE * SIZE * SIZE];
+		for (int x = 0; x < SIZE; x++)
+		{
+			for (int z = 0; z < SIZE; z++)
+			{
+				if (random.nextDouble() < openness) continue;
+
+				int height = 48 + (int)(16 * Math.sin(x / 9.0) * Math.cos(z / 13.0));
+				for (int y = 0; y < height; y++)
+				{
+					solid[index(x, y, z)] = true;
+				}
+			}
+		}
+
+		origins = new double[CASTS * 3];
+		rotations = new double[CASTS * 2];
+		for (int i = 0; i < CASTS; i++)
+		{
+			origins[i * 3] = 64 + random.nextDouble() * 128;
+			origins[i * 3 + 1] = 70 + random.nextDouble() * 8;
+			origins[i * 3 + 2] = 64 + random.nextDouble() * 128;
+			rotations[i * 2] = random.nextDouble() * 360;
+			rotations[i * 2 + 1] = -random.nextDouble() * 60;
+		}
+	}
+
+	@Benchmark
+	public long blockRay()
+	{
+		int cast = nextCast();
+		double xRotation = rotations[cast * 2];
+		double yRotation = rotations[cast * 2 + 1];
+		double hLength = Math.cos(Math.toRadians(yRotation));
+		double dx = hLength * Math.cos(Math.toRadians(xRotation));
+		double dy = Math.sin(Math.toRadians(yRotation));
+		double dz = hLength * Math.sin(Math.toRadians(xRotation));
+
+		ray.start(origins[cast * 3], origins[cast * 3 + 1], origins[cast * 3 + 2], dx, dy, dz, RANGE);
+		while (ray.next())
+		{
+			if (isSolid(ray.getX(), ray.getY(), ray.getZ()))
+			{
+				return pack(ray.getX(), ray.getY(), ray.getZ());
+			}
+		}
+		return -1;
+	}
+
+	@Benchmark
+	public long steppingLoop()
+	{
+		int cast = nextCast();
+		double xRotation = rotations[cast * 2];
+		double yRotation = rotations[cast * 2 + 1];
+		double originX = origins[cast * 3];
+		double originY = origins[cast * 3 + 1];
+		double originZ = origins[cast * 3 + 2];
+
+		double length = 0;
+		int targetX = (int)Math.floor(originX);
+		int targetY = (int)Math.floor(originY);
+		int targetZ = (int)Math.floor(originZ);
+		while (true)
+		{
+			int lastX = targetX;
+			int lastY = targetY;
+			int lastZ = targetZ;
+			do
+			{
+				length += STEP;
+
+				double hLength = (length * Math.cos(Math.toRadians(yRotation)));
+				double yOffset = (length * Math.sin(Math.toRadians(yRotation)));
+				double xOffset = (hLength * Math.cos(Math.toRadians(xRotation)));
+				double zOffset = (hLength * Math.sin(Math.toRadians(xRotation)));
+
+				targetX = (int)Math.floor(xOffset + originX);
+				targetY = (int)Math.floor(yOffset + originY);
+				targetZ = (int)Math.floor(zOffset + originZ);
+			}
+			while ((length <= RANGE) && ((targetX == lastX) && (targetY == lastY) && (targetZ == lastZ)));
+
+			if (length > RANGE) return -1;
+			if (isSolid(targetX, targetY, targetZ))
+			{
+				return pack(targetX, targetY, targetZ);
+			}
+		}
+	}
+
+	protected int nextCast()
+	{
+		cast = (cast + 1) % CASTS;
+		return cast;
+	}
+
+	protected boolean isSolid(int x, int y, int z)
+	{
+		if (x < 0 || y < 0 || z < 0 || x >= SIZE || y >= SIZE || z >= SIZE) return false;
+		return solid[index(x, y, z)];
+	}
+
+	protected static int index(int x, int y, int z)
+	{
+		return (x * SIZE + z) * SIZE + y;
+	}
+
+	protected static long pack(int x, int y, int z)
+	{
+		return ((long)x << 40) | ((long)y << 20) | z;
+	}
+
+	protected static final int		SIZE	= 256;
+	protected static final int		CASTS	= 1024;
+	protected static final int		RANGE	= 200;
+	protected static final double	STEP	= 0.2;
+
+	protected boolean[]				solid;
+	protected double[]				origins;
+	protected double[]				rotations;
+	protected int					cast	= 0;
+	protected final BlockRay		ray		= new BlockRay();
+}
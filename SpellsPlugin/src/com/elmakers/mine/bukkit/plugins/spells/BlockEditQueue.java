@@ -0,0 +1,184 @@
+package com.elmakers.mine.bukkit.plugins.spells;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Applies the block changes made by spells a little at a time, so a large spell doesn't
+ * stall the server.
+ *
+ * Each tick, up to a budget of blocks and milliseconds is spent. Players take turns, so
+ * one player's huge blast doesn't hold up everyone else's spells. Each player's own
+ * batches are applied in the order they were cast.
+ *
+ * Batches can be added from any thread, but process() must be called from the main thread.
+ * Spells calls it once per tick, from the server scheduler.
+ */
+public class BlockEditQueue
+{
+	public BlockEditQueue(Spells spells)
+	{
+		this.spells = spells;
+	}
+
+	public void add(EditBatch batch)
+	{
+		synchronized (queueLock)
+		{
+			String playerName = batch.getPlayer().getName();
+			LinkedList<EditBatch> batches = playerBatches.get(playerName);
+			if (batches == null)
+			{
+				batches = new LinkedList<EditBatch>();
+				playerBatches.put(playerName, batches);
+			}
+			batches.add(batch);
+		}
+	}
+
+	/**
+	 * Spend a tick's budget applying changes.
+	 */
+	public void process()
+	{
+		List<EditBatch> finished = new ArrayList<EditBatch>();
+		synchronized (queueLock)
+		{
+			if (playerBatches.size() == 0) return;
+
+			long deadline = System.nanoTime() + millisPerTick * 1000000L;
+			int budget = blocksPerTick;
+
+			// Start with a different player each tick, so no one is always first
+			List<String> players = new ArrayList<String>(playerBatches.keySet());
+			int first = nextPlayer % players.size();
+			nextPlayer = first + 1;
+
+			while (budget > 0 && playerBatches.size() > 0 && System.nanoTime() < deadline)
+			{
+				int share = Math.max(MIN_SHARE, budget / playerBatches.size());
+				for (int i = 0; i < players.size() && budget > 0; i++)
+				{
+					String playerName = players.get((first + i) % players.size());
+					LinkedList<EditBatch> batches = playerBatches.get(playerName);
+					if (batches == null) continue;
+
+					EditBatch batch = batches.getFirst();
+					budget -= batch.apply(Math.min(share, budget), deadline);
+					if (batch.isComplete())
+					{
+						batches.removeFirst();
+						finished.add(batch);
+						if (batches.size() == 0)
+						{
+							playerBatches.remove(playerName);
+						}
+					}
+					if (System.nanoTime() >= deadline) break;
+				}
+			}
+		}
+
+		for (EditBatch batch : finished)
+		{
+			finish(batch);
+		}
+	}
+
+	/**
+	 * Stop applying a player's changes.
+	 *
+	 * Anything already changed is kept, and can be undone as usual.
+	 *
+	 * @param playerName The player to cancel changes for
+	 * @return true if there were changes waiting
+	 */
+	public boolean cancel(String playerName)
+	{
+		LinkedList<EditBatch> batches = null;
+		synchronized (queueLock)
+		{
+			batches = playerBatches.remove(playerName);
+		}
+		if (batches == null) return false;
+
+		for (EditBatch batch : batches)
+		{
+			batch.cancel();
+			finish(batch);
+		}
+		return true;
+	}
+
+	public void cancelAll()
+	{
+		List<String> players = null;
+		synchronized (queueLock)
+		{
+			players = new ArrayList<String>(playerBatches.keySet());
+		}
+		for (String playerName : players)
+		{
+			cancel(playerName);
+		}
+	}
+
+	/**
+	 * Get the number of changes waiting to be applied, for all players.
+	 *
+	 * @return The number of pending changes
+	 */
+	public int getPendingCount()
+	{
+		int pending = 0;
+		synchronized (queueLock)
+		{
+			for (Map.Entry<String, LinkedList<EditBatch>> entry : playerBatches.entrySet())
+			{
+				for (EditBatch batch : entry.getValue())
+				{
+					pending += batch.getRemaining();
+				}
+			}
+		}
+		return pending;
+	}
+
+	public void setBlocksPerTick(int blocks)
+	{
+		blocksPerTick = Math.max(1, blocks);
+	}
+
+	public void setMillisPerTick(int millis)
+	{
+		millisPerTick = Math.max(1, millis);
+	}
+
+	protected void finish(EditBatch batch)
+	{
+		if (batch.getBlocks().getCount() == 0) return;
+
+		if (batch.getTimeToLive() > 0)
+		{
+			batch.getBlocks().setTimeToLive(batch.getTimeToLive());
+			spells.scheduleCleanup(batch.getBlocks());
+		}
+		else if (batch.isUndoable())
+		{
+			spells.addToUndoQueue(batch.getPlayer(), batch.getBlocks());
+		}
+	}
+
+	// The smallest number of blocks a player gets per turn
+	protected static final int								MIN_SHARE		= 16;
+
+	private final Spells									spells;
+	private final LinkedHashMap<String, LinkedList<EditBatch>>	playerBatches	= new LinkedHashMap<String, LinkedList<EditBatch>>();
+	private final Object									queueLock		= new Object();
+	private int												blocksPerTick	= 1000;
+	private int												millisPerTick	= 10;
+	private int												nextPlayer		= 0;
+}
@@ -0,0 +1,409 @@
+package com.elmakers.mine.bukkit.plugins.spells;
+
+import java.util.HashMap;
+
+import org.bukkit.Location;
+import org.bukkit.Material;
+import org.bukkit.World;
+import org.bukkit.block.Block;
+import org.bukkit.block.BlockFace;
+import org.bukkit.entity.Player;
+import org.bukkit.util.Vector;
+
+import com.elmakers.mine.bukkit.plugins.spells.utilities.BlockList;
+import com.elmakers.mine.bukkit.plugins.spells.utilities.BlockRay;
+
+/**
+ * Everything that belongs to a single cast of a spell- who cast it, with which parameters,
+ * where they were looking, and the blocks the cast has changed.
+ *
+ * Spells are shared by every player, so a spell that keeps all of its per-cast state here,
+ * by overriding Spell.onCast(CastContext), can have more than one cast in progress at a time.
+ * Work such as building a shape can be done on another thread, as long as the world itself
+ * is only changed on the main thread.
+ *
+ * A CastContext is not thread-safe, it should only be used by one thread at a time.
+ */
+public class CastContext
+{
+	/**
+	 * Create a context for a new cast, and start targeting from the player's eyes.
+	 *
+	 * @param spell The spell being cast
+	 * @param player The player casting the spell
+	 * @param parameters Any parameters passed to the spell
+	 */
+	public CastContext(Spell spell, Player player, String[] parameters)
+	{
+		this.spell = spell;
+		this.player = player;
+		this.parameters = parameters;
+		this.location = player.getLocation();
+
+		targetThroughMaterials.putAll(spell.getDefaultTargetThroughMaterials());
+		targetThroughMaterials.put(Material.AIR, true);
+		targetThroughMaterials.put(Material.WATER, true);
+		targetThroughMaterials.put(Material.STATIONARY_WATER, true);
+
+		initializeTargeting();
+	}
+
+	public Spell getSpell()
+	{
+		return spell;
+	}
+
+	public Player getPlayer()
+	{
+		return player;
+	}
+
+	public String[] getParameters()
+	{
+		return parameters;
+	}
+
+	/**
+	 * Get the player's location at the time of the cast.
+	 *
+	 * @return The location targeting started from
+	 */
+	public Location getLocation()
+	{
+		return location;
+	}
+
+	public World getWorld()
+	{
+		return location.getWorld();
+	}
+
+	/**
+	 * Get the blocks this cast has changed.
+	 *
+	 * Add each block here before changing it. When the cast succeeds, the list is added to
+	 * the player's undo queue.
+	 *
+	 * @return The list of changed blocks
+	 */
+	public BlockList getBlocks()
+	{
+		if (blocks == null)
+		{
+			blocks = new BlockList();
+		}
+		return blocks;
+	}
+
+	public boolean hasBlocks()
+	{
+		return blocks != null && blocks.getCount() > 0;
+	}
+
+	/**
+	 * Queue a change to a block's type.
+	 *
+	 * Queued changes are made after the cast, a few at a time, so large spells don't stall
+	 * the server. Each block is added to getBlocks() as it is changed.
+	 *
+	 * @param block The block to change
+	 * @param material The new material
+	 */
+	public void setBlock(Block block, Material material)
+	{
+		getEdits().add(block, material);
+	}
+
+	/**
+	 * Queue a change to a block's type and data.
+	 *
+	 * @param block The block to change
+	 * @param material The new material
+	 * @param data The new data value
+	 * @see #setBlock(Block, Material)
+	 */
+	public void setBlock(Block block, Material material, byte data)
+	{
+		getEdits().add(block, material, data);
+	}
+
+	/**
+	 * Get the block changes this cast has queued.
+	 *
+	 * This can be used to set a time to live, or to turn off undo, for the changes.
+	 *
+	 * @return The queued changes
+	 */
+	public EditBatch getEdits()
+	{
+		if (edits == null)
+		{
+			edits = new EditBatch(player, getBlocks());
+		}
+		return edits;
+	}
+
+	public boolean hasEdits()
+	{
+		return edits != null && !edits.isComplete();
+	}
+
+	/*
+	 * Targeting options
+	 */
+
+	public void targetThrough(Material mat)
+	{
+		targetThroughMaterials.put(mat, true);
+	}
+
+	public void noTargetThrough(Material mat)
+	{
+		targetThroughMaterials.put(mat, false);
+	}
+
+	public boolean isTargetable(Material mat)
+	{
+		Boolean checkMat = targetThroughMaterials.get(mat);
+		if (reverseTargeting)
+		{
+			return (checkMat != null && checkMat);
+		}
+		return (checkMat == null || !checkMat);
+	}
+
+	public void setReverseTargeting(boolean reverse)
+	{
+		reverseTargeting = reverse;
+	}
+
+	public boolean isReverseTargeting()
+	{
+		return reverseTargeting;
+	}
+
+	public void setTargetHeightRequired(int height)
+	{
+		targetHeightRequired = height;
+	}
+
+	public int getTargetHeightRequired()
+	{
+		return targetHeightRequired;
+	}
+
+	/**
+	 * Get the (simplified) player pitch.
+	 *
+	 * @return Player Y-axis rotation (pitch)
+	 */
+	public double getYRotation()
+	{
+		return yRotation;
+	}
+
+	/**
+	 * Get the (simplified) player yaw.
+	 *
+	 * @return Player X-axis rotation (yaw)
+	 */
+	public double getXRotation()
+	{
+		return xRotation;
+	}
+
+	/*
+	 * Targeting
+	 */
+
+	/**
+	 * Start targeting again from the player's eyes.
+	 *
+	 * This resets the target height required and reverse targeting, but keeps any
+	 * targetThrough settings.
+	 */
+	public void initializeTargeting()
+	{
+		targetHeightRequired = 1;
+		reverseTargeting = false;
+		xRotation = (location.getYaw() + 90) % 360;
+		yRotation = location.getPitch() * -1;
+
+		// The trig is only done once per cast, the ray steps from block to block after this
+		double hLength = Math.cos(Math.toRadians(yRotation));
+		double dx = hLength * Math.cos(Math.toRadians(xRotation));
+		double dy = Math.sin(Math.toRadians(yRotation));
+		double dz = hLength * Math.sin(Math.toRadians(xRotation));
+
+		startRay(location.getX(), location.getY() + spell.getViewHeight(), location.getZ(), dx, dy, dz, spell.getRange());
+	}
+
+	/**
+	 * Cast a ray from any location, and return the first block it hits.
+	 *
+	 * Afterwards, getLastBlock() and getTargetFace() describe the hit, and getTargetBlock()
+	 * returns it again.
+	 *
+	 * @param start Where to cast the ray from
+	 * @param direction The direction to cast in
+	 * @param maxRange The distance to give up at
+	 * @return The block hit, or null if out of range
+	 * @see Spell#rayCast(Location, Vector, int)
+	 */
+	public Block rayCast(Location start, Vector direction, int maxRange)
+	{
+		startRay(start.getX(), start.getY(), start.getZ(), direction.getX(), direction.getY(), direction.getZ(), maxRange);
+		return getTargetBlock();
+	}
+
+	/**
+	 * Returns the block at the cursor, or null if out of range
+	 *
+	 * @return The target block
+	 */
+	public Block getTargetBlock()
+	{
+		findTargetBlock();
+		return getCurBlock();
+	}
+
+	/**
+	 * Returns the block attached to the face at the cursor, or null if out of
+	 * range
+	 *
+	 * @return The face block
+	 */
+	public Block getFaceBlock()
+	{
+		findTargetBlock();
+		if (getCurBlock() != null)
+		{
+			return getLastBlock();
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the face of the target block that the line of vision hit.
+	 *
+	 * @return The face of the target block, or null if out of range
+	 */
+	public BlockFace getTargetFace()
+	{
+		findTargetBlock();
+		if (ray.isComplete())
+		{
+			return null;
+		}
+		return ray.getFace();
+	}
+
+	/**
+	 * Move forward one block along line of vision and returns the block there
+	 *
+	 * @return The block at the new location, or null if out of range
+	 */
+	public Block getNextBlock()
+	{
+		lastX = targetX;
+		lastY = targetY;
+		lastZ = targetZ;
+
+		if (!ray.next())
+		{
+			return null;
+		}
+
+		targetX = ray.getX();
+		targetY = ray.getY();
+		targetZ = ray.getZ();
+
+		return getBlockAt(targetX, targetY, targetZ);
+	}
+
+	/**
+	 * Returns the current block along the line of vision
+	 *
+	 * @return The block, or null if out of range
+	 */
+	public Block getCurBlock()
+	{
+		if (ray.isComplete())
+		{
+			return null;
+		}
+		return getBlockAt(targetX, targetY, targetZ);
+	}
+
+	/**
+	 * Returns the previous block along the line of vision
+	 *
+	 * @return The block
+	 */
+	public Block getLastBlock()
+	{
+		return getBlockAt(lastX, lastY, lastZ);
+	}
+
+	public Block getBlockAt(int x, int y, int z)
+	{
+		return getWorld().getBlockAt(x, y, z);
+	}
+
+	protected void startRay(double x, double y, double z, double dx, double dy, double dz, double maxRange)
+	{
+		ray.start(x, y, z, dx, dy, dz, maxRange);
+
+		targetX = ray.getX();
+		targetY = ray.getY();
+		targetZ = ray.getZ();
+		lastX = targetX;
+		lastY = targetY;
+		lastZ = targetZ;
+		targetingComplete = false;
+	}
+
+	protected void findTargetBlock()
+	{
+		if (targetingComplete)
+		{
+			return;
+		}
+
+		while (getNextBlock() != null)
+		{
+			Block block = getCurBlock();
+			if (isTargetable(block.getType()))
+			{
+				boolean enoughSpace = true;
+				for (int i = 1; i < targetHeightRequired; i++)
+				{
+					block = block.getFace(BlockFace.UP);
+					if (!isTargetable(block.getType()))
+					{
+						enoughSpace = false;
+						break;
+					}
+				}
+				if (enoughSpace) break;
+			}
+		}
+		targetingComplete = true;
+	}
+
+	private final Spell							spell;
+	private final Player						player;
+	private final String[]						parameters;
+	private final Location						location;
+	private BlockList							blocks;
+	private EditBatch							edits;
+
+	private boolean								targetingComplete;
+	private int									targetHeightRequired	= 1;
+	private boolean								reverseTargeting		= false;
+	private final HashMap<Material, Boolean>	targetThroughMaterials	= new HashMap<Material, Boolean>();
+	private double								xRotation, yRotation;
+	private final BlockRay						ray						= new BlockRay();
+	private int									lastX, lastY, lastZ;
+	private int									targetX, targetY, targetZ;
+}
@@ -0,0 +1,179 @@
+package com.elmakers.mine.bukkit.plugins.spells;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.bukkit.Material;
+import org.bukkit.block.Block;
+import org.bukkit.entity.Player;
+
+import com.elmakers.mine.bukkit.plugins.spells.utilities.BlockList;
+
+/**
+ * The block changes made by one cast, waiting to be applied by the BlockEditQueue.
+ *
+ * Each block is recorded in the cast's BlockList just before it is changed, so the list
+ * always matches what has actually been done, even if the batch is cancelled part way.
+ *
+ * When the batch is finished or cancelled, the BlockList is added to the player's undo
+ * queue, or scheduled for cleanup if it has a time to live.
+ */
+public class EditBatch
+{
+	public EditBatch(Player player, BlockList blocks)
+	{
+		this.player = player;
+		this.blocks = blocks;
+	}
+
+	/**
+	 * Queue a change to a block's type.
+	 *
+	 * @param block The block to change
+	 * @param material The new material
+	 */
+	public void add(Block block, Material material)
+	{
+		edits.add(new Edit(block, material, KEEP_DATA));
+	}
+
+	/**
+	 * Queue a change to a block's type and data.
+	 *
+	 * @param block The block to change
+	 * @param material The new material
+	 * @param data The new data value
+	 */
+	public void add(Block block, Material material, byte data)
+	{
+		edits.add(new Edit(block, material, data));
+	}
+
+	/**
+	 * Apply queued changes, in the order they were added.
+	 *
+	 * @param maxBlocks The most blocks to change
+	 * @param deadline Stop once System.nanoTime() passes this
+	 * @return The number of blocks changed
+	 */
+	public int apply(int maxBlocks, long deadline)
+	{
+		int applied = 0;
+		while (applied < maxBlocks && next < edits.size())
+		{
+			Edit edit = edits.get(next);
+			edits.set(next, null);
+			next++;
+
+			blocks.addBlock(edit.block);
+			edit.block.setType(edit.material);
+			if (edit.data != KEEP_DATA)
+			{
+				edit.block.setData((byte)edit.data);
+			}
+			applied++;
+
+			// Reading the clock isn't free, so only check it every few blocks
+			if ((applied % CLOCK_INTERVAL) == 0 && System.nanoTime() > deadline)
+			{
+				break;
+			}
+		}
+		if (next >= edits.size())
+		{
+			edits.clear();
+			next = 0;
+		}
+		return applied;
+	}
+
+	/**
+	 * Drop any changes that haven't been applied yet.
+	 */
+	public void cancel()
+	{
+		edits.clear();
+		next = 0;
+	}
+
+	public boolean isComplete()
+	{
+		return next >= edits.size();
+	}
+
+	/**
+	 * Get the number of changes still waiting to be applied.
+	 *
+	 * @return The number of pending changes
+	 */
+	public int getRemaining()
+	{
+		return edits.size() - next;
+	}
+
+	public Player getPlayer()
+	{
+		return player;
+	}
+
+	public BlockList getBlocks()
+	{
+		return blocks;
+	}
+
+	/**
+	 * Set whether the changed blocks go in the player's undo queue once the batch is done.
+	 *
+	 * Turn this off when changing blocks that are already in an undo list.
+	 *
+	 * @param undoable false to not add the blocks to the undo queue
+	 */
+	public void setUndoable(boolean undoable)
+	{
+		this.undoable = undoable;
+	}
+
+	public boolean isUndoable()
+	{
+		return undoable;
+	}
+
+	/**
+	 * Undo the changes automatically, some time after the batch is done.
+	 *
+	 * @param ttl The time, in milliseconds, or 0 to keep the changes
+	 */
+	public void setTimeToLive(int ttl)
+	{
+		timeToLive = ttl;
+	}
+
+	public int getTimeToLive()
+	{
+		return timeToLive;
+	}
+
+	protected static class Edit
+	{
+		public Edit(Block block, Material material, int data)
+		{
+			this.block = block;
+			this.material = material;
+			this.data = data;
+		}
+
+		public final Block		block;
+		public final Material	material;
+		public final int		data;
+	}
+
+	protected static final int	KEEP_DATA		= -1;
+	protected static final int	CLOCK_INTERVAL	= 32;
+
+	private final Player		player;
+	private final BlockList		blocks;
+	private final List<Edit>	edits			= new ArrayList<Edit>();
+	private int					next			= 0;
+	private boolean				undoable		= true;
+	private int					timeToLive		= 0;
+}
@@ -34,19 +34,54 @@ public abstract class Spell implements Comparable<Spell>
 	 */
 	protected Player						player;
 	protected Spells						spells;
+	protected CastContext					context;
 
 	/**
 	 * Called when this spell is cast.
 	 * 
 	 * This is where you do your work!
 	 * 
+	 * The context holds the player, parameters and targeting for this cast. A spell that
+	 * overrides this method, and only uses the context, can have several casts in progress
+	 * at once. Any blocks added to context.getBlocks() are added to the player's undo queue
+	 * if the cast succeeds.
+	 * 
+	 * By default, this sets the player and context members, calls onCast(String[]), and
+	 * then clears them again, so nothing from this cast is seen by the next one.
+	 * 
+	 * @param context The context for this cast
+	 * @return true if the spell worked, false if it failed
+	 */
+	public boolean onCast(CastContext context)
+	{
+		// These members are shared by every cast, so spells that use them must be cast on the main thread
+		this.player = context.getPlayer();
+		this.context = context;
+		try
+		{
+			return onCast(context.getParameters());
+		}
+		finally
+		{
+			this.player = null;
+			this.context = null;
+		}
+	}
+
+	/**
+	 * Called when this spell is cast, if onCast(CastContext) isn't overridden.
+	 * 
 	 * If parameters were passed to this spell, either via a variant or the command line,
-	 * they will be passed in here.
+	 * they will be passed in here. The player and targeting functions of Spell refer to
+	 * the current cast.
 	 * 
 	 * @param parameters Any parameters that were passed to this spell
 	 * @return true if the spell worked, false if it failed
 	 */
-	public abstract boolean onCast(String[] parameters);
+	public boolean onCast(String[] parameters)
+	{
+		return false;
+	}
 
 	/**
 	 * You must specify a unique name (id) for your spell.
@@ -174,6 +209,11 @@ public abstract class Spell implements Comparable<Spell>
 	}
 	
 	public ItemStack getBuildingMaterial(boolean allowAir)
+	{
+		return getBuildingMaterial(player, allowAir);
+	}
+
+	public ItemStack getBuildingMaterial(Player player, boolean allowAir)
 	{
 		ItemStack result = null;
 		List<Material> buildingMaterials = spells.getBuildingMaterials();
@@ -192,44 +232,66 @@ public abstract class Spell implements Comparable<Spell>
 		return result;
 	}
 
+	/*
+	 * Targeting options- these apply to the current cast. Outside of a cast, 
+	 * targetThrough and noTargetThrough change the defaults for every cast.
+	 */
 	public void targetThrough(Material mat)
 	{
+		if (context != null)
+		{
+			context.targetThrough(mat);
+			return;
+		}
 		targetThroughMaterials.put(mat, true);
 	}
 
 	public void noTargetThrough(Material mat)
 	{
+		if (context != null)
+		{
+			context.noTargetThrough(mat);
+			return;
+		}
 		targetThroughMaterials.put(mat, false);
 	}
 	
 	public boolean isTargetable(Material mat)
 	{
-		Boolean checkMat = targetThroughMaterials.get(mat);
-		if (reverseTargeting)
+		if (context != null)
 		{
-			return(checkMat != null && checkMat);
+			return context.isTargetable(mat);
 		}
+		Boolean checkMat = targetThroughMaterials.get(mat);
 		return (checkMat == null || !checkMat);
 	}
 
 	public void setReverseTargeting(boolean reverse)
 	{
-		reverseTargeting = reverse;
+		CastContext current = getContext();
+		if (current != null)
+		{
+			current.setReverseTargeting(reverse);
+		}
 	}
 	
 	public boolean isReverseTargeting()
 	{
-		return reverseTargeting;
+		return context != null && context.isReverseTargeting();
 	}
 	
 	public void setTargetHeightRequired(int height)
 	{
-		targetHeightRequired = height;
+		CastContext current = getContext();
+		if (current != null)
+		{
+			current.setTargetHeightRequired(height);
+		}
 	}
 	
 	public int getTargetHeightRequired()
 	{
-		return targetHeightRequired;
+		return context == null ? 1 : context.getTargetHeightRequired();
 	}
 	
 	/*
@@ -315,6 +377,17 @@ public abstract class Spell implements Comparable<Spell>
 	 * @return The Block the player is standing on
 	 */
 	public Block getPlayerBlock()
+	{
+		return getPlayerBlock(player);
+	}
+
+	/**
+	 * Get the block a player is standing on.
+	 * 
+	 * @param player The player to check
+	 * @return The Block the player is standing on
+	 */
+	public Block getPlayerBlock(Player player)
 	{
 		Block playerBlock = null;
 		Location playerLoc = player.getLocation();
@@ -338,7 +411,18 @@ public abstract class Spell implements Comparable<Spell>
 	 */
 	public BlockFace getPlayerFacing()
 	{
-		float playerRot = getPlayerRotation();
+		return getPlayerFacing(player);
+	}
+
+	/**
+	 * Get the direction a player is facing as a BlockFace.
+	 * 
+	 * @param player The player to check
+	 * @return a BlockFace representing the direction the player is facing
+	 */
+	public BlockFace getPlayerFacing(Player player)
+	{
+		float playerRot = getPlayerRotation(player);
 
 		BlockFace direction = BlockFace.NORTH;
 		if (playerRot <= 45 || playerRot > 315)
@@ -424,8 +508,8 @@ public abstract class Spell implements Comparable<Spell>
 
 		int height = 2;
 		double hLength = 2;
-		double xOffset = (hLength * Math.cos(Math.toRadians(xRotation)));
-		double zOffset = (hLength * Math.sin(Math.toRadians(xRotation)));
+		double xOffset = (hLength * Math.cos(Math.toRadians(getXRotation())));
+		double zOffset = (hLength * Math.sin(Math.toRadians(getXRotation())));
 
 		Vector aimVector = new Vector(xOffset + 0.5, height + 0.5, zOffset + 0.5);
 
@@ -443,6 +527,9 @@ public abstract class Spell implements Comparable<Spell>
 	 */
 	public Vector getAimVector()
 	{
+		CastContext current = getContext();
+		if (current == null) return null;
+		Location playerLocation = current.getLocation();
 		return new Vector((0 - Math.sin(Math.toRadians(playerLocation.getYaw()))), (0 - Math.sin(Math
 				.toRadians(playerLocation.getPitch()))), Math.cos(Math.toRadians(playerLocation.getYaw())));
 	}
@@ -455,7 +542,8 @@ public abstract class Spell implements Comparable<Spell>
 	 */
 	public double getYRotation()
 	{
-		return yRotation;
+		CastContext current = getContext();
+		return current == null ? 0 : current.getYRotation();
 	}
 	
 	/**
@@ -464,7 +552,8 @@ public abstract class Spell implements Comparable<Spell>
 	 */
 	public double getXRotation()
 	{
-		return xRotation;
+		CastContext current = getContext();
+		return current == null ? 0 : current.getXRotation();
 	}
 	
 	/**
@@ -477,6 +566,18 @@ public abstract class Spell implements Comparable<Spell>
 	 * @return The player X-rotation (yaw)
 	 */
 	public float getPlayerRotation()
+	{
+		return getPlayerRotation(player);
+	}
+
+	/**
+	 * Gets the normal rotation of a player.
+	 * 
+	 * @param player The player to check
+	 * @return The player X-rotation (yaw)
+	 * @see #getPlayerRotation()
+	 */
+	public float getPlayerRotation(Player player)
 	{
 		float playerRot = player.getLocation().getYaw();
 		while (playerRot < 0)
@@ -487,7 +588,7 @@ public abstract class Spell implements Comparable<Spell>
 	}
 	
 	/*
-	 * HitBlox-ported code
+	 * Targeting- these use the context of the current cast
 	 */
 
 	/**
@@ -497,8 +598,8 @@ public abstract class Spell implements Comparable<Spell>
 	 */
 	public Block getTargetBlock()
 	{
-		findTargetBlock();
-		return getCurBlock();
+		CastContext current = getContext();
+		return current == null ? null : current.getTargetBlock();
 	}
 
 	/**
@@ -509,50 +610,52 @@ public abstract class Spell implements Comparable<Spell>
 	 */
 	public Block getFaceBlock()
 	{
-		findTargetBlock();
-		if (getCurBlock() != null)
-		{
-			return getLastBlock();
-		}
-		else
-		{
-			return null;
-		}
+		CastContext current = getContext();
+		return current == null ? null : current.getFaceBlock();
 	}
 
 	/**
-	 * Move "steps" forward along line of vision and returns the block there
+	 * Returns the face of the target block that the line of vision hit.
 	 * 
-	 * @return The block at the new location
+	 * This is the side facing the block returned by getLastBlock().
+	 * 
+	 * @return The face of the target block, or null if out of range
 	 */
-	public Block getNextBlock()
+	public BlockFace getTargetFace()
 	{
-		lastX = targetX;
-		lastY = targetY;
-		lastZ = targetZ;
-
-		do
-		{
-			length += step;
-
-			hLength = (length * Math.cos(Math.toRadians(yRotation)));
-			yOffset = (length * Math.sin(Math.toRadians(yRotation)));
-			xOffset = (hLength * Math.cos(Math.toRadians(xRotation)));
-			zOffset = (hLength * Math.sin(Math.toRadians(xRotation)));
-
-			targetX = (int) Math.floor(xOffset + playerLocation.getX());
-			targetY = (int) Math.floor(yOffset + playerLocation.getY() + viewHeight);
-			targetZ = (int) Math.floor(zOffset + playerLocation.getZ());
-
-		}
-		while ((length <= range) && ((targetX == lastX) && (targetY == lastY) && (targetZ == lastZ)));
+		CastContext current = getContext();
+		return current == null ? null : current.getTargetFace();
+	}
 
-		if (length > range)
-		{
-			return null;
-		}
+	/**
+	 * Cast a ray from any location, and return the first block it hits.
+	 * 
+	 * This uses the same rules as getTargetBlock- targetThrough, and the target height required.
+	 * Afterwards, getLastBlock() and getTargetFace() describe the hit, and getTargetBlock()
+	 * returns it again.
+	 * 
+	 * @param start Where to cast the ray from
+	 * @param direction The direction to cast in
+	 * @param maxRange The distance to give up at
+	 * @return The block hit, or null if out of range
+	 */
+	public Block rayCast(Location start, Vector direction, int maxRange)
+	{
+		CastContext current = getContext();
+		return current == null ? null : current.rayCast(start, direction, maxRange);
+	}
 
-		return getBlockAt(targetX, targetY, targetZ);
+	/**
+	 * Move forward one block along line of vision and returns the block there
+	 * 
+	 * Each block the line passes through is returned once, in order.
+	 * 
+	 * @return The block at the new location
+	 */
+	public Block getNextBlock()
+	{
+		CastContext current = getContext();
+		return current == null ? null : current.getNextBlock();
 	}
 
 	/**
@@ -562,14 +665,8 @@ public abstract class Spell implements Comparable<Spell>
 	 */
 	public Block getCurBlock()
 	{
-		if (length > range)
-		{
-			return null;
-		}
-		else
-		{
-			return getBlockAt(targetX, targetY, targetZ);
-		}
+		CastContext current = getContext();
+		return current == null ? null : current.getCurBlock();
 	}
 
 	/**
@@ -579,23 +676,24 @@ public abstract class Spell implements Comparable<Spell>
 	 */
 	public Block getLastBlock()
 	{
-		return getBlockAt(lastX, lastY, lastZ);
+		CastContext current = getContext();
+		return current == null ? null : current.getLastBlock();
 	}
 
 	/**
 	 * Returns the block at the specified location
 	 * 
-	 * Just a wrapper for world.getBlock at this point.
+	 * This uses the world of the current cast.
 	 * 
 	 * @param x
 	 * @param y
 	 * @param z
-	 * @return block The block at the specified coordinates
+	 * @return block The block at the specified coordinates, or null if there is no current cast
 	 */
 	public Block getBlockAt(int x, int y, int z)
 	{
-		World world = player.getWorld();
-		return world.getBlockAt(x, y, z);
+		CastContext current = getContext();
+		return current == null ? null : current.getBlockAt(x, y, z);
 	}	
 	
 	/*
@@ -741,15 +839,33 @@ public abstract class Spell implements Comparable<Spell>
 	 */
 	public boolean cast(String[] parameters, Player player)
 	{
-		this.player = player;
-
-		targetThrough(Material.AIR);
-		targetThrough(Material.WATER);
-		targetThrough(Material.STATIONARY_WATER);
-
-		initializeTargeting(player);
+		return cast(new CastContext(this, player, parameters));
+	}
 
-		return onCast(parameters);
+	/**
+	 * Called by Spells to cast this spell, do not call.
+	 * 
+	 * If the cast succeeds, any block changes it queued are handed to Spells, and any 
+	 * blocks it recorded in the context are added to the player's undo queue.
+	 * 
+	 * @param castContext The context for this cast
+	 * @return true if the spell succeed, false if failed
+	 */
+	public boolean cast(CastContext castContext)
+	{
+		boolean success = onCast(castContext);
+		if (!success) return false;
+		
+		if (castContext.hasEdits())
+		{
+			// The blocks are added to the undo queue once the changes are done
+			spells.queueEdits(castContext.getEdits());
+		}
+		else if (castContext.hasBlocks())
+		{
+			spells.addToUndoQueue(castContext.getPlayer(), castContext.getBlocks());
+		}
+		return true;
 	}
 
 	/**
@@ -762,54 +878,65 @@ public abstract class Spell implements Comparable<Spell>
 	{
 		this.player = player;
 		this.spells = plugin;
-
-		onCancel();
+		try
+		{
+			onCancel();
+		}
+		finally
+		{
+			this.player = null;
+			this.context = null;
+		}
 	}
 
+	/**
+	 * Start targeting again from the player's eyes.
+	 * 
+	 * @param player The player casting this spell
+	 */
 	protected void initializeTargeting(Player player)
 	{
-		playerLocation = player.getLocation();
-		length = 0;
-		targetHeightRequired = 1;
-		xRotation = (playerLocation.getYaw() + 90) % 360;
-		yRotation = playerLocation.getPitch() * -1;
-		reverseTargeting = false;
-
-		targetX = (int) Math.floor(playerLocation.getX());
-		targetY = (int) Math.floor(playerLocation.getY() + viewHeight);
-		targetZ = (int) Math.floor(playerLocation.getZ());
-		lastX = targetX;
-		lastY = targetY;
-		lastZ = targetZ;
-		targetingComplete = false;
-	}
-
-	protected void findTargetBlock()
-	{
-		if (targetingComplete)
+		if (context == null || context.getPlayer() != player)
 		{
+			context = new CastContext(this, player, new String[0]);
 			return;
 		}
+		context.initializeTargeting();
+	}
 
-		while (getNextBlock() != null)
+	/**
+	 * Get the context of the current cast.
+	 * 
+	 * While cancelling, this starts targeting from the eyes of the cancelling player.
+	 * 
+	 * @return The current context, or null outside of a cast
+	 */
+	protected CastContext getContext()
+	{
+		if (context == null && player != null)
 		{
-			Block block = getCurBlock();
-			if (isTargetable(block.getType()))
-			{
-				boolean enoughSpace = true;
-				for (int i = 1; i < targetHeightRequired; i++)
-				{
-					block = block.getFace(BlockFace.UP);
-					if (!isTargetable(block.getType()))
-					{
-						enoughSpace = false;
-						break;
-					}
-				}
-				if (enoughSpace) break;
-			}
+			context = new CastContext(this, player, new String[0]);
 		}
-		targetingComplete = true;
+		return context;
+	}
+
+	/*
+	 * Used by CastContext
+	 */
+
+	int getRange()
+	{
+		return range;
+	}
+
+	double getViewHeight()
+	{
+		return viewHeight;
+	}
+
+	HashMap<Material, Boolean> getDefaultTargetThroughMaterials()
+	{
+		return targetThroughMaterials;
 	}
 	
 	/* Used for sorting spells
@@ -826,18 +953,8 @@ public abstract class Spell implements Comparable<Spell>
 
 	private int									range					= 200;
 	private double								viewHeight				= 1.65;
-	private double								step					= 0.2;
-
-	private boolean								targetingComplete;
-	private int									targetHeightRequired	= 1;
-	private Location							playerLocation;
-	private double								xRotation, yRotation;
-	private double								length, hLength;
-	private double								xOffset, yOffset, zOffset;
-	private int									lastX, lastY, lastZ;
-	private int									targetX, targetY, targetZ;
+
 	private final HashMap<Material, Boolean>	targetThroughMaterials	= new HashMap<Material, Boolean>();
-	private boolean								reverseTargeting		= false;
 	private final List<SpellVariant>			variants				= new ArrayList<SpellVariant>();
 
 }
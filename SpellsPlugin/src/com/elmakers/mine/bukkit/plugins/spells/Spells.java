@@ -28,6 +28,7 @@ import com.elmakers.mine.bukkit.plugins.spells.builtin.*;
 import com.elmakers.mine.bukkit.plugins.spells.dynmap.MapSpell;
 import com.elmakers.mine.bukkit.plugins.spells.utilities.BlockList;
 import com.elmakers.mine.bukkit.plugins.spells.utilities.PluginProperties;
+import com.elmakers.mine.bukkit.plugins.spells.utilities.TimerWheel;
 import com.elmakers.mine.bukkit.plugins.spells.utilities.UndoQueue;
 import com.elmakers.mine.bukkit.plugins.spells.utilities.UndoableBlock;
 
@@ -298,48 +299,70 @@ public class Spells
 		return queue.getLast();
 	}
 	
+	/**
+	 * Queue block changes, to be applied over the next few ticks.
+	 * 
+	 * Changes are only made by the timer task, so every cast in a tick shares that tick's budget.
+	 * 
+	 * @param batch The changes to make
+	 */
+	public void queueEdits(EditBatch batch)
+	{
+		editQueue.add(batch);
+	}
+	
+	public BlockEditQueue getEditQueue()
+	{
+		return editQueue;
+	}
+	
+	/**
+	 * Undo any temporary block lists whose time is up.
+	 * 
+	 * This is called every tick, by the server scheduler.
+	 */
 	public void cleanup()
 	{
+		List<BlockList> expired = null;
 		synchronized(cleanupLock)
 		{
-			if (cleanupBlocks.size() == 0) return;
+			expired = cleanupTimers.advance(System.currentTimeMillis());
+		}
+		undoExpired(expired);
+	}
+	
+	protected void undoExpired(List<BlockList> expired)
+	{
+		for (BlockList blocks : expired)
+		{
+			blocks.undo();
+			if (!blocks.expire()) continue;
 			
-			List<BlockList> tempList = new ArrayList<BlockList>();
-			tempList.addAll(cleanupBlocks);
-			long timePassed = System.currentTimeMillis() - lastCleanupTime;
-			for (BlockList blocks : tempList)
+			synchronized(cleanupLock)
 			{
-				if (blocks.age((int)timePassed))
-				{
-					blocks.undo();
-				}
-				if (blocks.isExpired())
-				{
-					cleanupBlocks.remove(blocks);
-				}
+				cleanupTimers.schedule(blocks, blocks.getTimeToLive());
 			}
-			lastCleanupTime = System.currentTimeMillis();
 		}
 	}
 	
 	public void forceCleanup()
 	{
-		for (BlockList blocks : cleanupBlocks)
+		List<BlockList> scheduled = null;
+		synchronized(cleanupLock)
+		{
+			scheduled = cleanupTimers.clear();
+		}
+		for (BlockList blocks : scheduled)
 		{
 			blocks.undo();
 		}
-		cleanupBlocks.clear();
 	}
 	
 	public void scheduleCleanup(BlockList blocks)
 	{
 		synchronized(cleanupLock)
 		{
-			if (cleanupBlocks.size() == 0)
-			{
-				lastCleanupTime = System.currentTimeMillis();
-			}
-			cleanupBlocks.add(blocks);
+			cleanupTimers.schedule(blocks, blocks.getTimeToLive());
 		}
 	}
 	
@@ -396,6 +419,7 @@ public class Spells
 	
 	public void cancel(Player player)
 	{
+		editQueue.cancel(player.getName());
 		for (Spell spell : spells)
 		{
 			spell.cancel(this, player);
@@ -573,6 +597,37 @@ public class Spells
 		this.plugin = plugin;
 		addBuiltinSpells();
 		load();
+		startTimer();
+	}
+	
+	/**
+	 * Start the task that runs cleanup and applies queued block changes, once per tick.
+	 */
+	protected void startTimer()
+	{
+		if (timerTaskId != -1) return;
+		
+		Runnable timer = new Runnable()
+		{
+			public void run()
+			{
+				cleanup();
+				editQueue.process();
+			}
+		};
+		timerTaskId = plugin.getServer().getScheduler().scheduleSyncRepeatingTask(plugin, timer, 1, 1);
+		if (timerTaskId == -1)
+		{
+			log.warning("Spells: Unable to schedule the cleanup timer, temporary spells will not be undone");
+		}
+	}
+	
+	protected void stopTimer()
+	{
+		if (timerTaskId == -1) return;
+		
+		plugin.getServer().getScheduler().cancelTask(timerTaskId);
+		timerTaskId = -1;
 	}
 	
 	public void load()
@@ -590,11 +645,16 @@ public class Spells
 		silent = properties.getBoolean("spells-general-silent", silent);
 		quiet = properties.getBoolean("spells-general-quiet", quiet);
 		autoExpandUndo = properties.getBoolean("spells-general-expand-undo", autoExpandUndo);
+		BlockList.setDefaultStoreNeighbors(autoExpandUndo);
 		allowCommands = properties.getBoolean("spells-general-allow-commands", allowCommands);
 		stickyMaterials = PluginProperties.parseMaterials(STICKY_MATERIALS);
 		stickyMaterialsDoubleHeight = PluginProperties.parseMaterials(STICKY_MATERIALS_DOUBLE_HEIGHT);
 		autoPreventCaveIn = properties.getBoolean("spells-general-prevent-cavein", autoPreventCaveIn);
 		undoCaveInHeight = properties.getInteger("spells-general-undo-cavein-height", undoCaveInHeight);
+		editBlocksPerTick = properties.getInteger("spells-general-edit-blocks-per-tick", editBlocksPerTick);
+		editMillisPerTick = properties.getInteger("spells-general-edit-millis-per-tick", editMillisPerTick);
+		editQueue.setBlocksPerTick(editBlocksPerTick);
+		editQueue.setMillisPerTick(editMillisPerTick);
 		
 		//buildingMaterials = properties.getMaterials("spells-general-building", DEFAULT_BUILDING_MATERIALS);
 		buildingMaterials = PluginProperties.parseMaterials(DEFAULT_BUILDING_MATERIALS);
@@ -625,6 +685,8 @@ public class Spells
 	
 	public void clear()
 	{
+		stopTimer();
+		editQueue.cancelAll();
 		forceCleanup();
 		movementListeners.clear();
 		materialListeners.clear();
@@ -651,9 +713,6 @@ public class Spells
 	
 	public void onPlayerMove(PlayerMoveEvent event)
 	{
-		// Used as a refresh timer for now.. :(
-		cleanup();
-		
 		// Must allow listeners to remove themselves during the event!
 		List<Spell> active = new ArrayList<Spell>();
 		active.addAll(movementListeners);
@@ -820,9 +879,10 @@ public class Spells
 	private List<Material>	stickyMaterialsDoubleHeight		= new ArrayList<Material>();
 	private Material gravityFillMaterial = Material.DIRT;
 	
-	private final List<BlockList> cleanupBlocks = new ArrayList<BlockList>();
+	// One slot per server tick, so the wheel turns once every 25 seconds or so
+	private final TimerWheel<BlockList> cleanupTimers = new TimerWheel<BlockList>(512, 50);
 	private final Object cleanupLock = new Object();
-	private long lastCleanupTime = 0;
+	private int timerTaskId = -1;
 	
 	private int undoQueueDepth = 256;
 	private boolean silent = false;
@@ -831,6 +891,9 @@ public class Spells
 	private boolean	autoExpandUndo = true;
 	private boolean autoPreventCaveIn = false;
 	private int undoCaveInHeight = 32;
+	private int editBlocksPerTick = 1000;
+	private int editMillisPerTick = 10;
+	private final BlockEditQueue editQueue = new BlockEditQueue(this);
 	private HashMap<String, UndoQueue> playerUndoQueues =  new HashMap<String, UndoQueue>();
 	
 	private final Logger log = Logger.getLogger("Minecraft");
@@ -5,9 +5,11 @@ import java.util.List;
 
 import org.bukkit.Material;
 import org.bukkit.block.Block;
+import org.bukkit.entity.Player;
 
+import com.elmakers.mine.bukkit.plugins.spells.CastContext;
+import com.elmakers.mine.bukkit.plugins.spells.EditBatch;
 import com.elmakers.mine.bukkit.plugins.spells.Spell;
-import com.elmakers.mine.bukkit.plugins.spells.utilities.BlockList;
 import com.elmakers.mine.bukkit.plugins.spells.utilities.PluginProperties;
 
 public class BlastSpell extends Spell
@@ -26,9 +28,11 @@ public class BlastSpell extends Spell
 	}
 	
 	@Override
-	public boolean onCast(String[] parameters)
+	public boolean onCast(CastContext context)
 	{
-		Block target = getTargetBlock();
+		Player player = context.getPlayer();
+		String[] parameters = context.getParameters();
+		Block target = context.getTargetBlock();
 		if (target == null)
 		{
 			castMessage(player, "No target");
@@ -57,7 +61,7 @@ public class BlastSpell extends Spell
 			}
 		}
 		
-		BlockList blastedBlocks = new BlockList();
+		EditBatch blastedBlocks = context.getEdits();
 		int diameter = radius * 2;
 		int midX = (diameter - 1) / 2;
 		int midY = (diameter - 1) / 2;
@@ -85,8 +89,7 @@ public class BlastSpell extends Spell
 			}
 		}
 
-		spells.addToUndoQueue(player, blastedBlocks);
-		castMessage(player, "Blasted " + blastedBlocks.getCount() + "blocks");
+		castMessage(player, "Blasted " + blastedBlocks.getRemaining() + "blocks");
 
 		return true;
 	}
@@ -96,18 +99,17 @@ public class BlastSpell extends Spell
 		return (x * x) + (y * y) + (z * z) - (R * R);
 	}
 
-	public void blastBlock(int dx, int dy, int dz, Block centerPoint, int radius, BlockList blastedBlocks)
+	public void blastBlock(int dx, int dy, int dz, Block centerPoint, int radius, EditBatch blastedBlocks)
 	{
 		int x = centerPoint.getX() + dx - radius;
 		int y = centerPoint.getY() + dy - radius;
 		int z = centerPoint.getZ() + dz - radius;
-		Block block = player.getWorld().getBlockAt(x, y, z);
+		Block block = centerPoint.getWorld().getBlockAt(x, y, z);
 		if (!isDestructible(block))
 		{
 			return;
 		}
-		blastedBlocks.addBlock(block);
-		block.setType(Material.AIR);
+		blastedBlocks.add(block, Material.AIR);
 	}
 
 	public boolean isDestructible(Block block)
@@ -5,11 +5,13 @@ import java.util.List;
 
 import org.bukkit.Material;
 import org.bukkit.block.Block;
+import org.bukkit.entity.Player;
 import org.bukkit.inventory.ItemStack;
 import org.bukkit.material.MaterialData;
 
+import com.elmakers.mine.bukkit.plugins.spells.CastContext;
+import com.elmakers.mine.bukkit.plugins.spells.EditBatch;
 import com.elmakers.mine.bukkit.plugins.spells.Spell;
-import com.elmakers.mine.bukkit.plugins.spells.utilities.BlockList;
 import com.elmakers.mine.bukkit.plugins.spells.utilities.PluginProperties;
 
 public class ConstructSpell extends Spell
@@ -49,15 +51,17 @@ public class ConstructSpell extends Spell
 	};
 	
 	@Override
-	public boolean onCast(String[] parameters)
+	public boolean onCast(CastContext context)
 	{
-		targetThrough(Material.GLASS);
-		Block target = getTargetBlock();
+		Player player = context.getPlayer();
+		String[] parameters = context.getParameters();
+		context.targetThrough(Material.GLASS);
+		Block target = context.getTargetBlock();
 		if (target == null)
 		{
-			initializeTargeting(player);
-			noTargetThrough(Material.GLASS);
-			target = getTargetBlock();
+			context.initializeTargeting();
+			context.noTargetThrough(Material.GLASS);
+			target = context.getTargetBlock();
 			if (target == null)
 			{
 				castMessage(player, "No target");
@@ -91,7 +95,7 @@ public class ConstructSpell extends Spell
 		Material material = target.getType();
 		byte data = target.getData();
 		
-		ItemStack buildWith = getBuildingMaterial();
+		ItemStack buildWith = getBuildingMaterial(player, false);
 		if (buildWith != null)
 		{
 			material = buildWith.getType();
@@ -104,8 +108,8 @@ public class ConstructSpell extends Spell
 		
 		switch (conType)
 		{
-			case SPHERE: constructSphere(target, radius, material, data); break;
-			case SHELL: constructShell(target, radius, material, data); break;
+			case SPHERE: constructSphere(context, target, radius, material, data); break;
+			case SHELL: constructShell(context, target, radius, material, data); break;
 			default : return false;
 		}
 		
@@ -113,19 +117,19 @@ public class ConstructSpell extends Spell
 		return true;
 	}
 	
-	public void constructSphere(Block target, int radius, Material material, byte data)
+	public void constructSphere(CastContext context, Block target, int radius, Material material, byte data)
 	{
-		fillSphere(target, radius, material, data, true);
+		fillSphere(context, target, radius, material, data, true);
 	}
 	
-	public void constructShell(Block target, int radius, Material material, byte data)
+	public void constructShell(CastContext context, Block target, int radius, Material material, byte data)
 	{
-		fillSphere(target, radius, material, data, false);
+		fillSphere(context, target, radius, material, data, false);
 	}
 	
-	public void fillSphere(Block target, int radius, Material material, byte data, boolean fill)
+	public void fillSphere(CastContext context, Block target, int radius, Material material, byte data, boolean fill)
 	{
-		BlockList constructedBlocks = new BlockList();
+		EditBatch constructedBlocks = context.getEdits();
 		int diameter = radius * 2;
 		int midX = (diameter - 1) / 2;
 		int midY = (diameter - 1) / 2;
@@ -158,8 +162,7 @@ public class ConstructSpell extends Spell
 			}
 		}
 
-		spells.addToUndoQueue(player, constructedBlocks);
-		castMessage(player, "Constructed " + constructedBlocks.getCount() + "blocks");
+		castMessage(context.getPlayer(), "Constructed " + constructedBlocks.getRemaining() + "blocks");
 	}
 	
 	public int getDistance(int x, int y, int z)
@@ -172,19 +175,17 @@ public class ConstructSpell extends Spell
 		return (x * x) + (y * y) + (z * z) - (R * R);
 	}
 
-	public void constructBlock(int dx, int dy, int dz, Block centerPoint, int radius, Material material, byte data, BlockList constructedBlocks)
+	public void constructBlock(int dx, int dy, int dz, Block centerPoint, int radius, Material material, byte data, EditBatch constructedBlocks)
 	{
 		int x = centerPoint.getX() + dx - radius;
 		int y = centerPoint.getY() + dy - radius;
 		int z = centerPoint.getZ() + dz - radius;
-		Block block = player.getWorld().getBlockAt(x, y, z);
+		Block block = centerPoint.getWorld().getBlockAt(x, y, z);
 		if (!isDestructible(block))
 		{
 			return;
 		}
-		constructedBlocks.addBlock(block);
-		block.setType(material);
-		block.setData(data);
+		constructedBlocks.add(block, material, data);
 	}
 
 	public boolean isDestructible(Block block)
@@ -4,9 +4,11 @@ import java.util.HashMap;
 
 import org.bukkit.Material;
 import org.bukkit.block.Block;
+import org.bukkit.entity.Player;
 import org.bukkit.inventory.ItemStack;
 import org.bukkit.material.MaterialData;
 
+import com.elmakers.mine.bukkit.plugins.spells.CastContext;
 import com.elmakers.mine.bukkit.plugins.spells.Spell;
 import com.elmakers.mine.bukkit.plugins.spells.utilities.BlockList;
 import com.elmakers.mine.bukkit.plugins.spells.utilities.PluginProperties;
@@ -23,9 +25,11 @@ public class FillSpell extends Spell
 	}
 	
 	@Override
-	public boolean onCast(String[] parameters) 
+	public boolean onCast(CastContext context) 
 	{
-		Block targetBlock = getTargetBlock();
+		Player player = context.getPlayer();
+		String[] parameters = context.getParameters();
+		Block targetBlock = context.getTargetBlock();
 		Material material = spells.finishMaterialUse(player);
 		boolean overrideMaterial = false;
 		boolean singleBlock = false;
@@ -52,7 +56,7 @@ public class FillSpell extends Spell
 		
 		if (overrideMaterial)
 		{
-			ItemStack buildWith = getBuildingMaterial(!singleBlock);
+			ItemStack buildWith = getBuildingMaterial(player, !singleBlock);
 			if (buildWith != null)
 			{
 				material = buildWith.getType();
@@ -81,7 +85,7 @@ public class FillSpell extends Spell
 			return true;
 		}
 		
-		Block target = getTarget();
+		Block target = getTarget(player);
 		
 		if (target != null)
 		{			
@@ -113,7 +117,6 @@ public class FillSpell extends Spell
 			absy++;
 			absz++;
 			
-			BlockList filledBlocks = new BlockList();
 			castMessage(player, "Filling " + absx + "x" + absy + "x" + absz + " area with " + material.name().toLowerCase());
 			int x = target.getX();
 			int y = target.getY();
@@ -124,22 +127,19 @@ public class FillSpell extends Spell
 				{
 					for (int iz = 0; iz < absz; iz++)
 					{
-						Block block = getBlockAt(x + ix * dx, y + iy * dy, z + iz * dz);
-						filledBlocks.addBlock(block);
-						block.setType(material);
-						block.setData(data);
+						Block block = context.getBlockAt(x + ix * dx, y + iy * dy, z + iz * dz);
+						context.setBlock(block, material, data);
 					}
 				}
 			}
-			spells.addToUndoQueue(player, filledBlocks);
 			
-			setTarget(null);
+			setTarget(player, null);
 			return true;
 		}
 		else
 		{
 			target = targetBlock;
-			setTarget(target);
+			setTarget(player, target);
 			spells.startMaterialUse(player, target.getType(), target.getData());
 			if (!overrideMaterial)
 			{
@@ -150,12 +150,12 @@ public class FillSpell extends Spell
 		}
 	}
 	
-	protected Block getTarget()
+	protected Block getTarget(Player player)
 	{
 		return playerTargets.get(player.getName());
 	}
 	
-	protected void setTarget(Block target)
+	protected void setTarget(Player player, Block target)
 	{
 		playerTargets.put(player.getName(), target);
 	}
@@ -163,11 +163,11 @@ public class FillSpell extends Spell
 	@Override
 	public void onCancel()
 	{
-		Block target = getTarget();
+		Block target = getTarget(player);
 		if (target != null)
 		{
 			player.sendMessage("Cancelled fill");
-			setTarget(null);
+			setTarget(player, null);
 		}
 	}
 
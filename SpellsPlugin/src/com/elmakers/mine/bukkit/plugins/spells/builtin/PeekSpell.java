@@ -5,9 +5,11 @@ import java.util.List;
 
 import org.bukkit.Material;
 import org.bukkit.block.Block;
+import org.bukkit.entity.Player;
 
+import com.elmakers.mine.bukkit.plugins.spells.CastContext;
+import com.elmakers.mine.bukkit.plugins.spells.EditBatch;
 import com.elmakers.mine.bukkit.plugins.spells.Spell;
-import com.elmakers.mine.bukkit.plugins.spells.utilities.BlockList;
 import com.elmakers.mine.bukkit.plugins.spells.utilities.PluginProperties;
 
 public class PeekSpell extends Spell
@@ -21,10 +23,12 @@ public class PeekSpell extends Spell
 
 
 	@Override
-	public boolean onCast(String[] parameters)
+	public boolean onCast(CastContext context)
 	{
-		targetThrough(Material.GLASS);
-		Block target = getTargetBlock();
+		Player player = context.getPlayer();
+		String[] parameters = context.getParameters();
+		context.targetThrough(Material.GLASS);
+		Block target = context.getTargetBlock();
 		if (target == null)
 		{
 			castMessage(player, "No target");
@@ -53,7 +57,7 @@ public class PeekSpell extends Spell
 			}
 		}
 		
-		BlockList peekedBlocks = new BlockList();
+		EditBatch peekedBlocks = context.getEdits();
 		int diameter = radius * 2;
 		int midX = (diameter - 1) / 2;
 		int midY = (diameter - 1) / 2;
@@ -81,10 +85,10 @@ public class PeekSpell extends Spell
 			}
 		}
 		
+		// The glass is cleaned up 8 seconds after it has all been placed
 		peekedBlocks.setTimeToLive(8000);
-		spells.scheduleCleanup(peekedBlocks);
 
-		castMessage(player, "Peeked through  " + peekedBlocks.getCount() + "blocks");
+		castMessage(player, "Peeked through  " + peekedBlocks.getRemaining() + "blocks");
 
 		return true;
 	}
@@ -95,18 +99,17 @@ public class PeekSpell extends Spell
 		return (x * x) + (y * y) + (z * z) - (R * R);
 	}
 
-	public void blastBlock(int dx, int dy, int dz, Block centerPoint, int radius, BlockList blocks)
+	public void blastBlock(int dx, int dy, int dz, Block centerPoint, int radius, EditBatch blocks)
 	{
 		int x = centerPoint.getX() + dx - radius;
 		int y = centerPoint.getY() + dy - radius;
 		int z = centerPoint.getZ() + dz - radius;
-		Block block = player.getWorld().getBlockAt(x, y, z);
+		Block block = centerPoint.getWorld().getBlockAt(x, y, z);
 		if (!isPeekable(block))
 		{
 			return;
 		}
-		blocks.addBlock(block);
-		block.setType(Material.GLASS);
+		blocks.add(block, Material.GLASS);
 	}
 
 	public boolean isPeekable(Block block)
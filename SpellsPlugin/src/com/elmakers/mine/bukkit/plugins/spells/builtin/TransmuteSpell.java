@@ -2,9 +2,12 @@ package com.elmakers.mine.bukkit.plugins.spells.builtin;
 
 import org.bukkit.Material;
 import org.bukkit.block.Block;
+import org.bukkit.entity.Player;
 import org.bukkit.inventory.ItemStack;
 import org.bukkit.material.MaterialData;
 
+import com.elmakers.mine.bukkit.plugins.spells.CastContext;
+import com.elmakers.mine.bukkit.plugins.spells.EditBatch;
 import com.elmakers.mine.bukkit.plugins.spells.Spell;
 import com.elmakers.mine.bukkit.plugins.spells.utilities.BlockList;
 import com.elmakers.mine.bukkit.plugins.spells.utilities.UndoableBlock;
@@ -13,16 +16,17 @@ public class TransmuteSpell extends Spell
 {
 
 	@Override
-	public boolean onCast(String[] parameters)
+	public boolean onCast(CastContext context)
 	{	
+		Player player = context.getPlayer();
 		BlockList transmuteAction = null;
 
 		/*
 		 * Use target if targeting
 		 */
 		boolean usedTarget = false;
-		targetThrough(Material.GLASS);
-		Block target = getTargetBlock();
+		context.targetThrough(Material.GLASS);
+		Block target = context.getTargetBlock();
 		
 		if (target != null)
 		{
@@ -41,7 +45,7 @@ public class TransmuteSpell extends Spell
 			return false;
 		}
 		
-		ItemStack targetItem = getBuildingMaterial(true);
+		ItemStack targetItem = getBuildingMaterial(player, true);
 		if (targetItem == null)
 		{
 			sendMessage(player, "Nothing to transmute with");
@@ -56,12 +60,14 @@ public class TransmuteSpell extends Spell
 			data = targetData.getData();
 		}
 				
+		// These blocks are already in the undo queue, so undo still restores the originals
+		EditBatch transmuted = new EditBatch(player, transmuteAction);
+		transmuted.setUndoable(false);
 		for (UndoableBlock undoBlock : transmuteAction.getBlocks())
 		{
-			Block block = undoBlock.getBlock();
-			block.setType(material);
-			block.setData(data);
+			transmuted.add(undoBlock.getBlock(), material, data);
 		}
+		spells.queueEdits(transmuted);
 		
 		if (usedTarget)
 		{
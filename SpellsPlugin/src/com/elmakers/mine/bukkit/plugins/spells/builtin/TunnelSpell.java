@@ -6,9 +6,11 @@ import java.util.List;
 import org.bukkit.Material;
 import org.bukkit.block.Block;
 import org.bukkit.block.BlockFace;
+import org.bukkit.entity.Player;
 
+import com.elmakers.mine.bukkit.plugins.spells.CastContext;
+import com.elmakers.mine.bukkit.plugins.spells.EditBatch;
 import com.elmakers.mine.bukkit.plugins.spells.Spell;
-import com.elmakers.mine.bukkit.plugins.spells.utilities.BlockList;
 import com.elmakers.mine.bukkit.plugins.spells.utilities.PluginProperties;
 
 public class TunnelSpell extends Spell
@@ -23,9 +25,10 @@ public class TunnelSpell extends Spell
 	private int torchFrequency = 4;
 	
 	@Override
-	public boolean onCast(String[] parameters)
+	public boolean onCast(CastContext context)
 	{
-		Block playerBlock = getPlayerBlock();
+		Player player = context.getPlayer();
+		Block playerBlock = getPlayerBlock(player);
 		if (playerBlock == null) 
 		{
 			// no spot found to tunnel
@@ -33,7 +36,7 @@ public class TunnelSpell extends Spell
 			return false;
 		}
 		
-		BlockFace direction = getPlayerFacing();
+		BlockFace direction = getPlayerFacing(player);
 		Block searchBlock = playerBlock.getFace(BlockFace.UP).getFace(BlockFace.UP);
 		
 		int searchDistance = 0;
@@ -47,7 +50,7 @@ public class TunnelSpell extends Spell
 		int height = defaultHeight;
 		int width = defaultWidth;
 		
-		BlockList tunneledBlocks = new BlockList();
+		EditBatch tunneledBlocks = context.getEdits();
 		
 		BlockFace toTheLeft = goLeft(direction);
 		BlockFace toTheRight = goRight(direction);
@@ -78,7 +81,6 @@ public class TunnelSpell extends Spell
 						&& 		(h == 1)
 						&& 		(d % torchFrequency == 0)
 						);
-						tunneledBlocks.addBlock(targetBlock);
 						if (useTorch)
 						{
 							// First check to see if the torch will stick to the wall
@@ -94,16 +96,16 @@ public class TunnelSpell extends Spell
 							}
 							if (checkBlock.getType() == Material.AIR)
 							{
-								targetBlock.setType(Material.AIR);
+								tunneledBlocks.add(targetBlock, Material.AIR);
 							}
 							else
 							{
-								targetBlock.setType(Material.TORCH);
+								tunneledBlocks.add(targetBlock, Material.TORCH);
 							}
 						}
 						else
 						{
-							targetBlock.setType(Material.AIR);
+							tunneledBlocks.add(targetBlock, Material.AIR);
 						}
 					}
 					targetBlock = targetBlock.getFace(BlockFace.UP);
@@ -113,8 +115,7 @@ public class TunnelSpell extends Spell
 			bottomLeftBlock = bottomLeftBlock.getFace(direction);
 		}
 
-		spells.addToUndoQueue(player, tunneledBlocks);
-		castMessage(player, "Tunneled through " + tunneledBlocks.getCount() + "blocks");
+		castMessage(player, "Tunneled through " + tunneledBlocks.getRemaining() + "blocks");
 		
 		return true;
 	}
@@ -1,51 +1,140 @@
 package com.elmakers.mine.bukkit.plugins.spells.utilities;
 
+import java.util.AbstractList;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 
+import org.bukkit.Material;
+import org.bukkit.World;
 import org.bukkit.block.Block;
+import org.bukkit.block.BlockFace;
 
-
-public class BlockList 
+/**
+ * A list of blocks, and what they looked like before they were changed.
+ *
+ * Undo queues can hold a lot of these, so the blocks are stored in parallel arrays of
+ * primitives rather than as objects- a block's position is packed into a long, next to
+ * its material id and data. A block costs around 20 bytes, or around 35 if neighbors
+ * are stored as well.
+ *
+ * UndoableBlocks returned by addBlock() and getBlocks() are views onto this list.
+ */
+public class BlockList
 {
-	private final List<UndoableBlock> blocks = new ArrayList<UndoableBlock>();
-	private final HashMap<Block, UndoableBlock> blockLookup = new HashMap<Block, UndoableBlock>();
+	private static final int INITIAL_CAPACITY = 8;
+
+	// The number of neighbors stored per block- the four sides, then the top
+	private static final int NEIGHBORS = 5;
+	protected static final int TOP = 4;
+
+	// The most worlds a list can hold blocks from is WORLD_MASK + 1
+	private static final int WORLD_MASK = 0xF;
+
+	private static boolean defaultStoreNeighbors = true;
+
+	private final List<World> worlds = new ArrayList<World>(1);
+	private final boolean storeNeighbors;
+	private int count = 0;
+	private long[] positions = new long[INITIAL_CAPACITY];
+	private short[] materials = new short[INITIAL_CAPACITY];
+	private byte[] data = new byte[INITIAL_CAPACITY];
+	private short[] neighborMaterials;
+	private byte[] neighborData;
+
+	// Open addressing table of index + 1 into positions, 0 means empty
+	private int[] lookup = new int[INITIAL_CAPACITY * 2];
+
 	private int timeToLive = 0;
 	private int timeRemaining = 0;
 	private int passesRemaining = 1;
 
 	public BlockList()
 	{
+		this(defaultStoreNeighbors);
 	}
-	
+
+	/**
+	 * Create an empty list.
+	 *
+	 * @param storeNeighbors Whether to record the blocks next to each block, for expanding undo
+	 */
+	public BlockList(boolean storeNeighbors)
+	{
+		this.storeNeighbors = storeNeighbors;
+		if (storeNeighbors)
+		{
+			neighborMaterials = new short[INITIAL_CAPACITY * NEIGHBORS];
+			neighborData = new byte[INITIAL_CAPACITY * NEIGHBORS];
+		}
+	}
+
 	public BlockList(BlockList other)
 	{
-		for (UndoableBlock block : other.blocks)
+		worlds.addAll(other.worlds);
+		storeNeighbors = other.storeNeighbors;
+		count = other.count;
+		positions = other.positions.clone();
+		materials = other.materials.clone();
+		data = other.data.clone();
+		lookup = other.lookup.clone();
+		if (storeNeighbors)
 		{
-			UndoableBlock newBlock = new UndoableBlock(block);
-			blocks.add(newBlock);
-			blockLookup.put(block.getBlock(), newBlock);
+			neighborMaterials = other.neighborMaterials.clone();
+			neighborData = other.neighborData.clone();
 		}
 		timeToLive = other.timeToLive;
 	}
-	
+
+	/**
+	 * Set whether new lists record the blocks next to each block.
+	 *
+	 * The neighbors are only used to expand undo, so this can be turned off if that is.
+	 *
+	 * @param store true to record neighbors in new lists
+	 */
+	public static void setDefaultStoreNeighbors(boolean store)
+	{
+		defaultStoreNeighbors = store;
+	}
+
 	public int getCount()
 	{
-		return blocks.size();
+		return count;
 	}
-		
+
 	public void setTimeToLive(int ttl)
 	{
 		timeToLive = ttl;
 		timeRemaining = ttl;
 	}
-	
+
+	public int getTimeToLive()
+	{
+		return timeToLive;
+	}
+
 	public void setRepetitions(int repeat)
 	{
 		passesRemaining = repeat;
 	}
-	
+
+	/**
+	 * Call when the time to live has run out, to use up one pass.
+	 *
+	 * @return true if there are passes left, and the list should be scheduled again
+	 */
+	public boolean expire()
+	{
+		timeRemaining = 0;
+		passesRemaining--;
+		if (passesRemaining > 0)
+		{
+			timeRemaining = timeToLive;
+			return true;
+		}
+		return false;
+	}
+
 	public boolean age(int t)
 	{
 		boolean triggered = false;
@@ -61,40 +150,250 @@ public class BlockList
 		}
 		return triggered;
 	}
-	
+
 	public boolean isExpired()
 	{
 		return timeRemaining <= 0;
 	}
-	
+
+	/**
+	 * Add a block to the list, recording how it looks now.
+	 *
+	 * If the block is already in the list, nothing is recorded, so the list keeps the
+	 * block's state from before the first change.
+	 *
+	 * @param block The block, before it is changed
+	 * @return The list's entry for the block
+	 */
 	public UndoableBlock addBlock(Block block)
 	{
-		UndoableBlock searchBlock = blockLookup.get(block);
-		
-		if (searchBlock == null)
+		long position = pack(block);
+		int slot = findSlot(position);
+		if (lookup[slot] != 0)
 		{
-			searchBlock = new UndoableBlock(block);
-			blocks.add(searchBlock);
-			blockLookup.put(block, searchBlock);
+			return new UndoableBlock(this, lookup[slot] - 1);
 		}
-		return searchBlock;
+
+		if (count == positions.length)
+		{
+			grow();
+			slot = findSlot(position);
+		}
+
+		int index = count++;
+		positions[index] = position;
+		materials[index] = (short)block.getTypeId();
+		data[index] = block.getData();
+		lookup[slot] = index + 1;
+
+		if (storeNeighbors)
+		{
+			int base = index * NEIGHBORS;
+			for (int i = 0; i < UndoableBlock.SIDES.length; i++)
+			{
+				Block side = block.getFace(UndoableBlock.SIDES[i]);
+				neighborMaterials[base + i] = (short)side.getTypeId();
+				neighborData[base + i] = side.getData();
+			}
+			Block top = block.getFace(BlockFace.UP);
+			neighborMaterials[base + TOP] = (short)top.getTypeId();
+			neighborData[base + TOP] = top.getData();
+		}
+
+		return new UndoableBlock(this, index);
 	}
-	
+
 	public void undo()
 	{
-		for (UndoableBlock block : blocks)
+		for (int i = 0; i < count; i++)
 		{
-			block.undo();
+			undo(i);
 		}
 	}
 
 	public boolean contains(Block block)
 	{
-		return (blockLookup.get(block) != null);
+		int worldIndex = worlds.indexOf(block.getWorld());
+		if (worldIndex < 0) return false;
+		return lookup[findSlot(pack(block.getX(), block.getY(), block.getZ(), worldIndex))] != 0;
 	}
-	
+
+	/**
+	 * Get the blocks in this list, in the order they were added.
+	 *
+	 * The list is read-only, and each UndoableBlock in it is created when it is asked for.
+	 *
+	 * @return The blocks
+	 */
 	public List<UndoableBlock> getBlocks()
 	{
-		return blocks;
+		return new AbstractList<UndoableBlock>()
+		{
+			@Override
+			public UndoableBlock get(int index)
+			{
+				if (index < 0 || index >= count)
+				{
+					throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + count);
+				}
+				return new UndoableBlock(BlockList.this, index);
+			}
+
+			@Override
+			public int size()
+			{
+				return count;
+			}
+		};
+	}
+
+	/*
+	 * Per-block access, for UndoableBlock
+	 */
+
+	protected Block getBlock(int index)
+	{
+		long position = positions[index];
+		return worlds.get(unpackWorld(position)).getBlockAt(unpackX(position), unpackY(position), unpackZ(position));
+	}
+
+	protected Material getMaterial(int index)
+	{
+		return Material.getMaterial(materials[index]);
+	}
+
+	protected byte getData(int index)
+	{
+		return data[index];
+	}
+
+	protected void setOriginal(int index, short material, byte data)
+	{
+		materials[index] = material;
+		this.data[index] = data;
+	}
+
+	protected short getNeighborTypeId(int index, int neighbor)
+	{
+		if (!storeNeighbors) return (short)Material.AIR.getId();
+		return neighborMaterials[index * NEIGHBORS + neighbor];
+	}
+
+	protected byte getNeighborData(int index, int neighbor)
+	{
+		if (!storeNeighbors) return 0;
+		return neighborData[index * NEIGHBORS + neighbor];
+	}
+
+	protected void undo(int index)
+	{
+		Block block = getBlock(index);
+		if (block.getTypeId() != materials[index] || block.getData() != data[index])
+		{
+			block.setTypeId(materials[index]);
+			block.setData(data[index]);
+		}
+	}
+
+	/*
+	 * Position packing- x and z take 26 bits each, y takes 8 and the world index 4
+	 */
+
+	protected long pack(Block block)
+	{
+		World world = block.getWorld();
+		int worldIndex = worlds.indexOf(world);
+		if (worldIndex < 0)
+		{
+			if (worlds.size() > WORLD_MASK)
+			{
+				throw new IllegalArgumentException("A BlockList can't hold blocks from more than " + (WORLD_MASK + 1) + " worlds");
+			}
+			worldIndex = worlds.size();
+			worlds.add(world);
+		}
+		return pack(block.getX(), block.getY(), block.getZ(), worldIndex);
+	}
+
+	protected static long pack(int x, int y, int z, int world)
+	{
+		return ((long)x << 38) | (((long)z & 0x3FFFFFF) << 12) | ((long)(y & 0xFF) << 4) | world;
+	}
+
+	protected static int unpackX(long position)
+	{
+		return (int)(position >> 38);
+	}
+
+	protected static int unpackY(long position)
+	{
+		return (int)((position >> 4) & 0xFF);
+	}
+
+	protected static int unpackZ(long position)
+	{
+		return (int)((position << 26) >> 38);
+	}
+
+	protected static int unpackWorld(long position)
+	{
+		return (int)(position & WORLD_MASK);
+	}
+
+	/*
+	 * Lookup table
+	 */
+
+	protected int findSlot(long position)
+	{
+		int mask = lookup.length - 1;
+		long hash = position * 0x9E3779B97F4A7C15L;
+		int slot = (int)(hash >>> 32) & mask;
+		while (lookup[slot] != 0 && positions[lookup[slot] - 1] != position)
+		{
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+
+	protected void grow()
+	{
+		int capacity = positions.length * 2;
+		positions = copyOf(positions, capacity);
+		materials = copyOf(materials, capacity);
+		data = copyOf(data, capacity);
+		if (storeNeighbors)
+		{
+			neighborMaterials = copyOf(neighborMaterials, capacity * NEIGHBORS);
+			neighborData = copyOf(neighborData, capacity * NEIGHBORS);
+		}
+
+		// Keep the table at most half full
+		lookup = new int[capacity * 2];
+		for (int i = 0; i < count; i++)
+		{
+			lookup[findSlot(positions[i])] = i + 1;
+		}
+	}
+
+	private static long[] copyOf(long[] array, int length)
+	{
+		long[] copy = new long[length];
+		System.arraycopy(array, 0, copy, 0, array.length);
+		return copy;
+	}
+
+	private static short[] copyOf(short[] array, int length)
+	{
+		short[] copy = new short[length];
+		System.arraycopy(array, 0, copy, 0, array.length);
+		return copy;
+	}
+
+	private static byte[] copyOf(byte[] array, int length)
+	{
+		byte[] copy = new byte[length];
+		System.arraycopy(array, 0, copy, 0, array.length);
+		return copy;
 	}
 }
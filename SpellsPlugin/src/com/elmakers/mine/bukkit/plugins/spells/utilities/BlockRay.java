@@ -0,0 +1,170 @@
+package com.elmakers.mine.bukkit.plugins.spells.utilities;
+
+import org.bukkit.block.BlockFace;
+
+/**
+ * Walks a ray through the block grid, one block at a time.
+ *
+ * This is a voxel traversal (Amanatides and Woo): the distance to the next block boundary
+ * on each axis is worked out once, and each step crosses whichever boundary is closest.
+ * Every block the ray passes through is visited exactly once, in order, and the face
+ * the ray entered through is known for each one.
+ *
+ * A BlockRay can be re-used by calling start() again.
+ */
+public class BlockRay
+{
+	public BlockRay()
+	{
+	}
+
+	public BlockRay(double x, double y, double z, double dx, double dy, double dz, double range)
+	{
+		start(x, y, z, dx, dy, dz, range);
+	}
+
+	/**
+	 * Start a new ray.
+	 *
+	 * The ray starts in the block containing the origin, which is not visited by next().
+	 *
+	 * @param x The origin X coordinate
+	 * @param y The origin Y coordinate
+	 * @param z The origin Z coordinate
+	 * @param dx The X direction
+	 * @param dy The Y direction
+	 * @param dz The Z direction
+	 * @param range The distance to stop at
+	 */
+	public void start(double x, double y, double z, double dx, double dy, double dz, double range)
+	{
+		double length = Math.sqrt(dx * dx + dy * dy + dz * dz);
+		if (length > 0)
+		{
+			dx /= length;
+			dy /= length;
+			dz /= length;
+		}
+
+		this.range = range;
+		distance = 0;
+		face = BlockFace.SELF;
+		complete = length == 0;
+
+		blockX = (int)Math.floor(x);
+		blockY = (int)Math.floor(y);
+		blockZ = (int)Math.floor(z);
+
+		stepX = dx > 0 ? 1 : (dx < 0 ? -1 : 0);
+		stepY = dy > 0 ? 1 : (dy < 0 ? -1 : 0);
+		stepZ = dz > 0 ? 1 : (dz < 0 ? -1 : 0);
+
+		// The distance along the ray to cross one whole block, on each axis
+		deltaX = stepX == 0 ? Double.POSITIVE_INFINITY : Math.abs(1 / dx);
+		deltaY = stepY == 0 ? Double.POSITIVE_INFINITY : Math.abs(1 / dy);
+		deltaZ = stepZ == 0 ? Double.POSITIVE_INFINITY : Math.abs(1 / dz);
+
+		// The distance along the ray to the first boundary, on each axis
+		nextX = getFirstBoundary(x, blockX, stepX, deltaX);
+		nextY = getFirstBoundary(y, blockY, stepY, deltaY);
+		nextZ = getFirstBoundary(z, blockZ, stepZ, deltaZ);
+	}
+
+	/**
+	 * Move on to the next block along the ray.
+	 *
+	 * @return false if the ray has gone past its range
+	 */
+	public boolean next()
+	{
+		if (complete) return false;
+
+		if (nextX < nextY && nextX < nextZ)
+		{
+			distance = nextX;
+			nextX += deltaX;
+			blockX += stepX;
+			face = stepX > 0 ? BlockFace.NORTH : BlockFace.SOUTH;
+		}
+		else if (nextY < nextZ)
+		{
+			distance = nextY;
+			nextY += deltaY;
+			blockY += stepY;
+			face = stepY > 0 ? BlockFace.DOWN : BlockFace.UP;
+		}
+		else
+		{
+			distance = nextZ;
+			nextZ += deltaZ;
+			blockZ += stepZ;
+			face = stepZ > 0 ? BlockFace.EAST : BlockFace.WEST;
+		}
+
+		if (distance > range)
+		{
+			complete = true;
+			return false;
+		}
+		return true;
+	}
+
+	public int getX()
+	{
+		return blockX;
+	}
+
+	public int getY()
+	{
+		return blockY;
+	}
+
+	public int getZ()
+	{
+		return blockZ;
+	}
+
+	/**
+	 * Get the face of the current block that the ray entered through.
+	 *
+	 * This is the side facing the previous block, or SELF for the starting block.
+	 *
+	 * @return The face the ray came in through
+	 */
+	public BlockFace getFace()
+	{
+		return face;
+	}
+
+	/**
+	 * Get the distance along the ray to where it entered the current block.
+	 *
+	 * @return The distance from the origin
+	 */
+	public double getDistance()
+	{
+		return distance;
+	}
+
+	public boolean isComplete()
+	{
+		return complete;
+	}
+
+	protected static double getFirstBoundary(double origin, int block, int step, double delta)
+	{
+		if (step == 0) return Double.POSITIVE_INFINITY;
+		double boundary = step > 0 ? block + 1 : block;
+		return Math.abs(boundary - origin) * delta;
+	}
+
+	private double		range;
+	private double		distance;
+	private boolean		complete	= true;
+	private BlockFace	face		= BlockFace.SELF;
+
+	private int			blockX, blockY, blockZ;
+	private int			stepX, stepY, stepZ;
+	private double		deltaX, deltaY, deltaZ;
+	private double		nextX, nextY, nextZ;
+}
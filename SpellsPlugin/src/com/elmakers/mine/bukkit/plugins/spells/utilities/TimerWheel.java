@@ -0,0 +1,151 @@
+package com.elmakers.mine.bukkit.plugins.spells.utilities;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * A hashed timer wheel- schedules items to expire after a delay.
+ *
+ * Time is split into ticks, and each tick has a slot on the wheel. An item goes in the
+ * slot its delay lands on, with a count of how many more times round the wheel it must
+ * wait, so scheduling is O(1), and each tick only looks at the items in one slot.
+ *
+ * A TimerWheel is not thread-safe.
+ */
+public class TimerWheel<T>
+{
+	/**
+	 * Create a new timer wheel.
+	 *
+	 * @param slotCount The number of slots, rounded up to a power of two
+	 * @param tickMillis The length of one tick, in milliseconds
+	 */
+	@SuppressWarnings("unchecked")
+	public TimerWheel(int slotCount, int tickMillis)
+	{
+		int size = 1;
+		while (size < slotCount)
+		{
+			size <<= 1;
+		}
+		slots = new LinkedList[size];
+		for (int i = 0; i < size; i++)
+		{
+			slots[i] = new LinkedList<Timer<T>>();
+		}
+		mask = size - 1;
+		this.tickMillis = Math.max(1, tickMillis);
+	}
+
+	/**
+	 * Schedule an item to expire.
+	 *
+	 * The delay is rounded up to a whole number of ticks, and is at least one tick.
+	 *
+	 * @param item The item to schedule
+	 * @param delayMillis The time until it expires, in milliseconds
+	 */
+	public void schedule(T item, int delayMillis)
+	{
+		int ticks = Math.max(1, (delayMillis + tickMillis - 1) / tickMillis);
+		int slot = (currentSlot + ticks) & mask;
+		slots[slot].add(new Timer<T>(item, (ticks - 1) / slots.length));
+		size++;
+	}
+
+	/**
+	 * Move the wheel on to the given time, and return everything that expired.
+	 *
+	 * The first call only sets the starting time.
+	 *
+	 * @param now The current time, in milliseconds
+	 * @return The expired items, in the order they expired
+	 */
+	public List<T> advance(long now)
+	{
+		List<T> expired = new ArrayList<T>();
+		if (lastTick == 0)
+		{
+			lastTick = now;
+			return expired;
+		}
+
+		// Nothing to expire, so skip straight to now. The wheel may go a long 
+		// time between calls when nobody is around to tick it.
+		if (size == 0 && now > lastTick)
+		{
+			long ticks = (now - lastTick) / tickMillis;
+			lastTick += ticks * tickMillis;
+			currentSlot = (int)((currentSlot + ticks) & mask);
+			return expired;
+		}
+
+		while (lastTick + tickMillis <= now)
+		{
+			lastTick += tickMillis;
+			currentSlot = (currentSlot + 1) & mask;
+			if (size == 0) continue;
+
+			Iterator<Timer<T>> it = slots[currentSlot].iterator();
+			while (it.hasNext())
+			{
+				Timer<T> timer = it.next();
+				if (timer.rounds > 0)
+				{
+					timer.rounds--;
+					continue;
+				}
+				it.remove();
+				size--;
+				expired.add(timer.item);
+			}
+		}
+		return expired;
+	}
+
+	/**
+	 * Remove everything from the wheel.
+	 *
+	 * @return The items that were scheduled
+	 */
+	public List<T> clear()
+	{
+		List<T> items = new ArrayList<T>();
+		for (LinkedList<Timer<T>> slot : slots)
+		{
+			for (Timer<T> timer : slot)
+			{
+				items.add(timer.item);
+			}
+			slot.clear();
+		}
+		size = 0;
+		return items;
+	}
+
+	public int size()
+	{
+		return size;
+	}
+
+	protected static class Timer<T>
+	{
+		public Timer(T item, int rounds)
+		{
+			this.item = item;
+			this.rounds = rounds;
+		}
+
+		public final T	item;
+		public int		rounds;
+	}
+
+	private final LinkedList<Timer<T>>[]	slots;
+	private final int						mask;
+	private final int						tickMillis;
+	private int								currentSlot	= 0;
+	private int								size		= 0;
+	private long							lastTick	= 0;
+}